@@ -38,6 +38,7 @@ import android.widget.TextView;
 import com.myriadmobile.library.lantern.BeaconService;
 import com.myriadmobile.library.lantern.IBeacon;
 import com.myriadmobile.library.lantern.Lantern;
+import com.myriadmobile.library.lantern.LocalEventTransport;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -104,18 +105,19 @@ public class MainActivity extends Activity {
         scanningStatus = (TextView)findViewById(R.id.tv_status);
         scanToggle = (Switch)findViewById(R.id.swtScan);
 
-        // Create the receivers to catch broadcasts from the service.
+        // Create the receivers to catch events from the service.
         receiver = new BeaconReceiver();
         statusReceiver = new ServiceStatusReceiver();
 
-        // Create the intent filters to get only the broadcasts from the service.
+        // Create the intent filters to get only the events from the service.
         IntentFilter intentFilter = new IntentFilter(BeaconService.BEACON_DETECTED_RECEIVER_ACTION);
         intentFilter.addAction(BeaconService.BEACON_EXPIRATION_RECEIVER_ACTION);
         IntentFilter statusIntentFilter = new IntentFilter(BeaconService.BEACON_SERVICE_STATUS_ACTION);
 
         // Register the receivers for the service.
-        registerReceiver(statusReceiver, statusIntentFilter);
-        registerReceiver(receiver, intentFilter);
+        LocalEventTransport events = LocalEventTransport.getInstance(this);
+        events.registerReceiver(statusReceiver, statusIntentFilter);
+        events.registerReceiver(receiver, intentFilter);
 
         scanToggle.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
             @Override
@@ -139,11 +141,12 @@ public class MainActivity extends Activity {
     protected void onDestroy() {
         super.onDestroy();
         lantern.stopScan();
+        LocalEventTransport events = LocalEventTransport.getInstance(this);
         if (receiver != null) {
-            unregisterReceiver(receiver);
+            events.unregisterReceiver(receiver);
         }
         if (statusReceiver != null) {
-            unregisterReceiver(statusReceiver);
+            events.unregisterReceiver(statusReceiver);
         }
     }
 
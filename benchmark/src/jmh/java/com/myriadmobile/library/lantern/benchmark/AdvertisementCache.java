@@ -0,0 +1,249 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern.benchmark;
+
+import com.myriadmobile.library.lantern.IBeaconFrame;
+
+/**
+ * Remembers what the last advertisements decoded to, so the byte for byte repeats a device sends
+ * all through a scan window skip decoding and filtering. Entries are keyed on the sender's address
+ * and the start of the advertisement, and hold either the decoded frame or the fact that the
+ * advertisement wasn't an iBeacon or was filtered out.
+ * <p/>
+ * The cache is an open addressing table of fixed size: a lookup probes a few slots from where the
+ * hash lands, and an insert that finds them all taken overwrites the first one. Nothing is
+ * allocated after the cache is created. It is not thread safe.
+ * <p/>
+ * It lives here rather than in the tracker because a hit costs more than decoding again, see
+ * {@link AdvertisementCacheBenchmark}: checking the key reads the same bytes the decoder does.
+ */
+final class AdvertisementCache {
+
+    /**
+     * How many bytes of an advertisement are part of the key. {@link IBeaconFrame} never reads past
+     * them, so advertisements that only differ after them decode to the same frame.
+     */
+    static final int KEY_LENGTH = 30;
+
+    /**
+     * How many slots a lookup or insert probes.
+     */
+    static final int MAX_PROBES = 4;
+
+    /**
+     * The advertisement wasn't in the cache, it has to be decoded.
+     */
+    static final int MISS = 0;
+
+    /**
+     * The advertisement was an iBeacon that passed the filter, the frame was filled in.
+     */
+    static final int HIT = 1;
+
+    /**
+     * The advertisement wasn't an iBeacon or didn't pass the filter.
+     */
+    static final int HIT_REJECTED = 2;
+
+    /**
+     * Ints a key is packed into, big endian, the last one padded with zeros.
+     */
+    private static final int KEY_INTS = (KEY_LENGTH + 3) / 4;
+
+    // Layout of a slot in the table. All the ints of a slot sit next to each other, so a lookup
+    // touches one or two cache lines.
+    private static final int STATE = 0;
+    private static final int HASH = 1;
+    private static final int LENGTH = 2;
+    private static final int MAJOR = 3;
+    private static final int MINOR = 4;
+    private static final int TX_POWER = 5;
+    private static final int KEY = 6;
+    private static final int STRIDE = KEY + KEY_INTS;
+
+    private static final int EMPTY = 0;
+    private static final int ACCEPTED = 1;
+    private static final int REJECTED = 2;
+
+    private final int mask;
+    private final int[] table;
+    private final long[] uuids;
+    private final String[] addresses;
+    private final int[] key = new int[KEY_INTS];
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param capacity The number of advertisements to remember, rounded up to a power of two.
+     */
+    AdvertisementCache(int capacity) {
+        if (capacity <= 0 || capacity > 1 << 20) {
+            throw new IllegalArgumentException("Capacity must be between 1 and " + (1 << 20));
+        }
+        int slots = Integer.highestOneBit(capacity);
+        if (slots < capacity) {
+            slots <<= 1;
+        }
+        mask = slots - 1;
+        table = new int[slots * STRIDE];
+        uuids = new long[slots * 2];
+        addresses = new String[slots];
+    }
+
+    /**
+     * Looks up what an advertisement decoded to the last time it was seen.
+     *
+     * @param scanRecord The raw advertisement bytes.
+     * @param address    The mac address of the sender, may be null.
+     * @param frame      Filled in on a {@link #HIT}, left alone otherwise.
+     * @return {@link #HIT}, {@link #HIT_REJECTED} or {@link #MISS}.
+     */
+    int lookup(byte[] scanRecord, String address, IBeaconFrame frame) {
+        int hash = pack(scanRecord, address);
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            int slot = (hash + probe) & mask;
+            int base = slot * STRIDE;
+            int state = table[base + STATE];
+            if (state == EMPTY) {
+                break;
+            }
+            if (matches(slot, hash, scanRecord.length, address)) {
+                hits++;
+                if (state == REJECTED) {
+                    return HIT_REJECTED;
+                }
+                frame.uuidMostSignificantBits = uuids[slot * 2];
+                frame.uuidLeastSignificantBits = uuids[slot * 2 + 1];
+                frame.major = table[base + MAJOR];
+                frame.minor = table[base + MINOR];
+                frame.txPower = table[base + TX_POWER];
+                return HIT;
+            }
+        }
+        misses++;
+        return MISS;
+    }
+
+    /**
+     * Remembers what an advertisement decoded to.
+     *
+     * @param scanRecord The raw advertisement bytes.
+     * @param address    The mac address of the sender, may be null.
+     * @param frame      The frame it decoded to, or null if it wasn't an iBeacon or didn't pass
+     *                   the filter.
+     */
+    void put(byte[] scanRecord, String address, IBeaconFrame frame) {
+        int hash = pack(scanRecord, address);
+        int slot = -1;
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            int candidate = (hash + probe) & mask;
+            if (table[candidate * STRIDE + STATE] == EMPTY || matches(candidate, hash, scanRecord.length, address)) {
+                slot = candidate;
+                break;
+            }
+        }
+        if (slot < 0) {
+            slot = hash & mask;
+            evictions++;
+        }
+
+        int base = slot * STRIDE;
+        table[base + HASH] = hash;
+        table[base + LENGTH] = scanRecord.length;
+        System.arraycopy(key, 0, table, base + KEY, KEY_INTS);
+        addresses[slot] = address;
+        if (frame == null) {
+            table[base + STATE] = REJECTED;
+        } else {
+            table[base + STATE] = ACCEPTED;
+            table[base + MAJOR] = frame.major;
+            table[base + MINOR] = frame.minor;
+            table[base + TX_POWER] = frame.txPower;
+            uuids[slot * 2] = frame.uuidMostSignificantBits;
+            uuids[slot * 2 + 1] = frame.uuidLeastSignificantBits;
+        }
+    }
+
+    /**
+     * The number of remembered advertisements that were overwritten to make room.
+     */
+    long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * The share of lookups that were hits, 0 if there were none.
+     */
+    double getHitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    /**
+     * Compares a slot with the key last packed.
+     */
+    private boolean matches(int slot, int hash, int length, String address) {
+        int base = slot * STRIDE;
+        if (table[base + HASH] != hash || table[base + LENGTH] != length) {
+            return false;
+        }
+        for (int i = 0; i < KEY_INTS; i++) {
+            if (table[base + KEY + i] != key[i]) {
+                return false;
+            }
+        }
+        String cached = addresses[slot];
+        return cached == address || (cached != null && cached.equals(address));
+    }
+
+    /**
+     * Packs the start of the advertisement into the key, four bytes to an int, and hashes the
+     * key, the length and the address.
+     */
+    private int pack(byte[] scanRecord, String address) {
+        int length = Math.min(scanRecord.length, KEY_LENGTH);
+        int h = scanRecord.length;
+        for (int i = 0; i < KEY_INTS; i++) {
+            int offset = i * 4;
+            int value;
+            if (offset + 4 <= length) {
+                value = (scanRecord[offset] & 0xff) << 24 | (scanRecord[offset + 1] & 0xff) << 16
+                        | (scanRecord[offset + 2] & 0xff) << 8 | (scanRecord[offset + 3] & 0xff);
+            } else {
+                value = 0;
+                for (int j = 0; j < 4; j++) {
+                    value = value << 8 | (offset + j < length ? scanRecord[offset + j] & 0xff : 0);
+                }
+            }
+            key[i] = value;
+            h = h * 0x9e3779b1 + value;
+        }
+        if (address != null) {
+            h = h * 0x9e3779b1 + address.hashCode();
+        }
+        return h ^ (h >>> 15);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.myriadmobile.library.lantern.benchmark;
+
+import com.myriadmobile.library.lantern.IBeaconFrame;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost per packet of decoding an advertisement and checking the uuid filter, the way the tracker
+ * does for every packet, against looking the advertisement up in an {@link AdvertisementCache} of
+ * what it decoded to before. The same packet stream goes round and round, so once the warmup has
+ * filled the cache every beacon packet is a hit and only the other devices' packets miss, unless the cache is
+ * too small for the population. The hit rate is printed when the trial ends.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class AdvertisementCacheBenchmark {
+
+    @Param({"512", "4096"})
+    public int capacity;
+
+    private PacketMix mix;
+    private long[] filterBits;
+    private final IBeaconFrame frame = new IBeaconFrame();
+    private AdvertisementCache cache;
+
+    @Setup
+    public void setup(PacketMix mix) {
+        this.mix = mix;
+        filterBits = IBeaconFrame.parseUuid(PacketMix.VENUE_UUIDS[0]);
+        cache = new AdvertisementCache(capacity);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PacketMix.PACKET_COUNT)
+    public int decodeAndFilter() {
+        int accepted = 0;
+        for (int i = 0; i < PacketMix.PACKET_COUNT; i++) {
+            if (decode(mix.scanRecords[i])) {
+                accepted += frame.minor;
+            }
+        }
+        return accepted;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PacketMix.PACKET_COUNT)
+    public int cached() {
+        int accepted = 0;
+        for (int i = 0; i < PacketMix.PACKET_COUNT; i++) {
+            byte[] scanRecord = mix.scanRecords[i];
+            String address = mix.addresses[i];
+            switch (cache.lookup(scanRecord, address, frame)) {
+                case AdvertisementCache.HIT:
+                    accepted += frame.minor;
+                    break;
+                case AdvertisementCache.HIT_REJECTED:
+                    break;
+                default:
+                    if (decode(scanRecord)) {
+                        cache.put(scanRecord, address, frame);
+                        accepted += frame.minor;
+                    } else {
+                        cache.put(scanRecord, address, null);
+                    }
+            }
+        }
+        return accepted;
+    }
+
+    @TearDown
+    public void report() {
+        if (cache.getHitRate() == 0) {
+            // Only decoding ran.
+            return;
+        }
+        System.out.println(String.format("hit rate %.3f, %d evictions", cache.getHitRate(), cache.getEvictions()));
+    }
+
+    private boolean decode(byte[] scanRecord) {
+        return frame.parse(scanRecord) && frame.hasUuid(filterBits[0], filterBits[1]);
+    }
+}
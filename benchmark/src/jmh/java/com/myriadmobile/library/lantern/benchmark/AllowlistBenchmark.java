@@ -0,0 +1,148 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern.benchmark;
+
+import com.myriadmobile.library.lantern.BeaconAllowlist;
+import com.myriadmobile.library.lantern.BeaconKey;
+import com.myriadmobile.library.lantern.IBeaconFrame;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Memory and lookup cost of an allowlist of 10k to 1M beacons, without and with the Bloom filter,
+ * against a HashSet of BeaconKeys. Lookups are shaped like a busy public space: one in ten is a
+ * listed beacon, the rest are foreign beacons that share the deployment's uuids. The memory the
+ * list takes is printed when it is set up; for the HashSet, measure with {@code -prof gc} or a
+ * heap dump instead.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class AllowlistBenchmark {
+
+    private static final int LOOKUPS = 4096;
+
+    private static final int BLOOM_BITS_PER_BEACON = 10;
+
+    @Param({"10000", "100000", "1000000"})
+    public int entries;
+
+    /**
+     * "set" for the allowlist alone, "bloom" for it with the Bloom filter, "hashset" for the
+     * HashSet of BeaconKeys.
+     */
+    @Param({"set", "bloom", "hashset"})
+    public String variant;
+
+    private BeaconAllowlist allowlist;
+    private Set<BeaconKey> hashSet;
+    private long[] uuids;
+    private int[] lookupUuids;
+    private int[] lookupMajors;
+    private int[] lookupMinors;
+
+    @Setup
+    public void setup() {
+        uuids = new long[PacketMix.VENUE_UUIDS.length * 2];
+        for (int i = 0; i < PacketMix.VENUE_UUIDS.length; i++) {
+            long[] bits = IBeaconFrame.parseUuid(PacketMix.VENUE_UUIDS[i]);
+            uuids[i * 2] = bits[0];
+            uuids[i * 2 + 1] = bits[1];
+        }
+
+        // Listed beacons have an even minor, so odd minors are never listed.
+        Random random = new Random(42);
+        int[] listedUuids = new int[entries];
+        int[] listedMajors = new int[entries];
+        int[] listedMinors = new int[entries];
+        BeaconAllowlist.Builder builder = new BeaconAllowlist.Builder()
+                .withBloomFilter("bloom".equals(variant) ? BLOOM_BITS_PER_BEACON : 0);
+        if ("hashset".equals(variant)) {
+            hashSet = new HashSet<BeaconKey>();
+        }
+        for (int i = 0; i < entries; i++) {
+            listedUuids[i] = random.nextInt(PacketMix.VENUE_UUIDS.length);
+            listedMajors[i] = random.nextInt(65536);
+            listedMinors[i] = random.nextInt(32768) * 2;
+            long msb = uuids[listedUuids[i] * 2];
+            long lsb = uuids[listedUuids[i] * 2 + 1];
+            if (hashSet != null) {
+                hashSet.add(new BeaconKey(msb, lsb, listedMajors[i], listedMinors[i]));
+            } else {
+                builder.add(msb, lsb, listedMajors[i], listedMinors[i]);
+            }
+        }
+        if (hashSet == null) {
+            allowlist = builder.build();
+            System.out.println(String.format("%d beacons take %d bytes", allowlist.size(), allowlist.getMemoryBytes()));
+        }
+
+        lookupUuids = new int[LOOKUPS];
+        lookupMajors = new int[LOOKUPS];
+        lookupMinors = new int[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            if (random.nextInt(10) == 0) {
+                int listed = random.nextInt(entries);
+                lookupUuids[i] = listedUuids[listed];
+                lookupMajors[i] = listedMajors[listed];
+                lookupMinors[i] = listedMinors[listed];
+            } else {
+                lookupUuids[i] = random.nextInt(PacketMix.VENUE_UUIDS.length);
+                lookupMajors[i] = random.nextInt(65536);
+                lookupMinors[i] = random.nextInt(32768) * 2 + 1;
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public int contains() {
+        int found = 0;
+        for (int i = 0; i < LOOKUPS; i++) {
+            long msb = uuids[lookupUuids[i] * 2];
+            long lsb = uuids[lookupUuids[i] * 2 + 1];
+            boolean listed = hashSet != null
+                    ? hashSet.contains(new BeaconKey(msb, lsb, lookupMajors[i], lookupMinors[i]))
+                    : allowlist.contains(msb, lsb, lookupMajors[i], lookupMinors[i]);
+            if (listed) {
+                found++;
+            }
+        }
+        return found;
+    }
+}
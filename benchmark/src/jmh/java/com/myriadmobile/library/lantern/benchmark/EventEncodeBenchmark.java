@@ -0,0 +1,109 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern.benchmark;
+
+import com.myriadmobile.library.lantern.BeaconTracker;
+import com.myriadmobile.library.lantern.TrackedBeacon;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost per event of encoding a beacon for a broadcast.
+ * <p/>
+ * Parcel only exists on a device, so this writes the same fields in the same layout as
+ * IBeacon.writeToParcel into a buffer instead: strings as a length and UTF-16 characters padded
+ * to four bytes, everything else as it is.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class EventEncodeBenchmark {
+
+    private TrackedBeacon[] beacons;
+    private ByteBuffer buffer;
+
+    @Setup
+    public void setup(PacketMix mix) {
+        BeaconTracker tracker = new BeaconTracker(60000, new RegistryBenchmark.NullListener());
+        for (int i = 0; i < PacketMix.PACKET_COUNT; i++) {
+            tracker.onAdvertisement(mix.scanRecords[i], mix.rssis[i], mix.addresses[i], i);
+        }
+        List<TrackedBeacon> active = tracker.getBeacons();
+        beacons = active.toArray(new TrackedBeacon[active.size()]);
+        buffer = ByteBuffer.allocate(1024).order(ByteOrder.nativeOrder());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PacketMix.PACKET_COUNT)
+    public int parcelLayout() {
+        int size = 0;
+        // Repeat over the decoded beacons, so every invocation encodes the same number of events.
+        for (int i = 0; i < PacketMix.PACKET_COUNT; i++) {
+            TrackedBeacon beacon = beacons[i % beacons.length];
+            buffer.clear();
+            writeString(beacon.getUuid());
+            buffer.putInt(beacon.getMajor());
+            buffer.putInt(beacon.getMinor());
+            buffer.putInt(1);
+            buffer.putInt(beacon.getProximity());
+            buffer.putInt(1);
+            buffer.putDouble(beacon.getDistance());
+            buffer.putInt(beacon.getRssi());
+            buffer.putInt(beacon.getTxPower());
+            writeString(beacon.getBluetoothAddress());
+            buffer.putLong(beacon.getExpirationTime());
+            size += buffer.position();
+        }
+        return size;
+    }
+
+    private void writeString(String value) {
+        if (value == null) {
+            buffer.putInt(-1);
+            return;
+        }
+        int length = value.length();
+        buffer.putInt(length);
+        for (int i = 0; i < length; i++) {
+            buffer.putChar(value.charAt(i));
+        }
+        buffer.putChar((char) 0);
+        while ((buffer.position() & 3) != 0) {
+            buffer.put((byte) 0);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern.benchmark;
+
+import com.myriadmobile.library.lantern.IBeaconFrame;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost per decoded beacon of the uuid filter check done before a beacon is tracked, on the
+ * decoded bits, and on a formatted uuid String the way the service used to.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class FilterBenchmark {
+
+    private IBeaconFrame[] frames;
+    private String[] uuids;
+    private long[] filterBits;
+
+    /**
+     * A fresh String, like the one read back from the preferences, so the check can't
+     * get away with comparing references.
+     */
+    private String uuidFilter;
+
+    @Setup
+    public void setup(PacketMix mix) {
+        frames = new IBeaconFrame[PacketMix.PACKET_COUNT];
+        uuids = new String[PacketMix.PACKET_COUNT];
+        for (int i = 0; i < PacketMix.PACKET_COUNT; i++) {
+            IBeaconFrame frame = new IBeaconFrame();
+            if (frame.parse(mix.scanRecords[i])) {
+                frames[i] = frame;
+                uuids[i] = frame.getUuid();
+            }
+        }
+        uuidFilter = new String(PacketMix.VENUE_UUIDS[0]);
+        filterBits = IBeaconFrame.parseUuid(uuidFilter);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PacketMix.PACKET_COUNT)
+    public int uuidBits() {
+        int matches = 0;
+        for (int i = 0; i < PacketMix.PACKET_COUNT; i++) {
+            IBeaconFrame frame = frames[i];
+            if (frame != null && frame.hasUuid(filterBits[0], filterBits[1])) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PacketMix.PACKET_COUNT)
+    public int uuidString() {
+        int matches = 0;
+        for (int i = 0; i < PacketMix.PACKET_COUNT; i++) {
+            String uuid = uuids[i];
+            if (uuid != null && uuidFilter.equals(uuid)) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+}
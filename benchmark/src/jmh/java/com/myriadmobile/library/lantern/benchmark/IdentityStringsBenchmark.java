@@ -0,0 +1,145 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern.benchmark;
+
+import com.myriadmobile.library.lantern.IBeaconFrame;
+import com.myriadmobile.library.lantern.IdentityStrings;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Memory taken by the uuid and address Strings of the beacons, formatting them for every packet
+ * against looking them up in {@link IdentityStrings}. Every packet stores its beacon's Strings in
+ * a table, the way the tracker keeps them on the active beacons. When the trial ends the number of
+ * distinct String instances the table holds, and roughly how many bytes they take, is printed.
+ * Run with {@code -prof gc} to see the bytes allocated per packet.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class IdentityStringsBenchmark {
+
+    /**
+     * Rough size of a 17 or 36 character String with its char array on a 64 bit VM.
+     */
+    private static final int ADDRESS_BYTES = 24 + 16 + 2 * 17;
+    private static final int UUID_BYTES = 24 + 16 + 2 * 36;
+
+    private int[] beacons;
+    private long[] uuidBits;
+    private long[] addresses;
+    private String[] heldUuids;
+    private String[] heldAddresses;
+    private IdentityStrings strings;
+
+    @Setup
+    public void setup(PacketMix mix) {
+        beacons = new int[PacketMix.PACKET_COUNT];
+        uuidBits = new long[PacketMix.PACKET_COUNT * 2];
+        addresses = new long[PacketMix.PACKET_COUNT];
+        int count = 0;
+        for (int i = 0; i < PacketMix.PACKET_COUNT; i++) {
+            int beacon = mix.beaconIndexes[i];
+            if (beacon < 0) {
+                continue;
+            }
+            long[] uuid = IBeaconFrame.parseUuid(PacketMix.VENUE_UUIDS[beacon % PacketMix.VENUE_UUIDS.length]);
+            beacons[count] = beacon;
+            uuidBits[count * 2] = uuid[0];
+            uuidBits[count * 2 + 1] = uuid[1];
+            addresses[count] = Long.parseLong(mix.addresses[i].replace(":", ""), 16);
+            count++;
+        }
+        beacons = Arrays.copyOf(beacons, count);
+        heldUuids = new String[mix.population];
+        heldAddresses = new String[mix.population];
+        strings = new IdentityStrings();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PacketMix.PACKET_COUNT)
+    public String[] format() {
+        for (int i = 0; i < beacons.length; i++) {
+            heldUuids[beacons[i]] = IBeaconFrame.formatUuid(uuidBits[i * 2], uuidBits[i * 2 + 1]);
+            heldAddresses[beacons[i]] = formatAddress(addresses[i]);
+        }
+        return heldUuids;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PacketMix.PACKET_COUNT)
+    public String[] intern() {
+        for (int i = 0; i < beacons.length; i++) {
+            heldUuids[beacons[i]] = strings.uuid(uuidBits[i * 2], uuidBits[i * 2 + 1]);
+            heldAddresses[beacons[i]] = strings.address(addresses[i]);
+        }
+        return heldUuids;
+    }
+
+    @TearDown
+    public void report() {
+        int uuids = distinct(heldUuids);
+        int addressCount = distinct(heldAddresses);
+        System.out.println(String.format("holding %d uuid and %d address Strings, ~%d bytes",
+                uuids, addressCount, uuids * UUID_BYTES + addressCount * ADDRESS_BYTES));
+    }
+
+    private static int distinct(String[] held) {
+        Set<String> instances = Collections.newSetFromMap(new IdentityHashMap<String, Boolean>());
+        for (String string : held) {
+            if (string != null) {
+                instances.add(string);
+            }
+        }
+        return instances.size();
+    }
+
+    private static String formatAddress(long address) {
+        StringBuilder builder = new StringBuilder(17);
+        for (int i = 0; i < 6; i++) {
+            int b = (int) (address >>> (40 - i * 8)) & 0xff;
+            if (i > 0) {
+                builder.append(':');
+            }
+            builder.append(Character.toUpperCase(Character.forDigit(b >>> 4, 16)))
+                    .append(Character.toUpperCase(Character.forDigit(b & 0x0f, 16)));
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern.benchmark;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/**
+ * A synthetic stream of advertisements, shaped like what a scan in a busy venue returns.
+ * Most packets are iBeacons from the beacon population, spread over a few venue UUIDs,
+ * with the rest being other bluetooth low energy devices. Every packet is padded to the 62
+ * bytes Android hands to the scan callback.
+ */
+@State(Scope.Benchmark)
+public class PacketMix {
+
+    /**
+     * Number of packets in the stream, every benchmark invocation goes through all of them.
+     */
+    public static final int PACKET_COUNT = 4096;
+
+    /**
+     * Share of the packets that are not iBeacons.
+     */
+    public static final double OTHER_DEVICE_SHARE = 0.3;
+
+    public static final String[] VENUE_UUIDS = {
+            "e2c56db5-dffb-48d2-b060-d0f5a71096e0",
+            "f7826da6-4fa2-4e98-8024-bc5b71e0893e",
+            "b9407f30-f5f8-466e-aff9-25556b57fe6d"
+    };
+
+    /**
+     * Number of distinct beacons in the stream.
+     */
+    @Param({"10", "100", "1000"})
+    public int population;
+
+    public byte[][] scanRecords;
+    public int[] rssis;
+    public String[] addresses;
+
+    /**
+     * Index of the beacon each packet came from, or -1 for other devices.
+     */
+    public int[] beaconIndexes;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        scanRecords = new byte[PACKET_COUNT][];
+        rssis = new int[PACKET_COUNT];
+        addresses = new String[PACKET_COUNT];
+        beaconIndexes = new int[PACKET_COUNT];
+        for (int i = 0; i < PACKET_COUNT; i++) {
+            rssis[i] = -30 - random.nextInt(70);
+            if (random.nextDouble() < OTHER_DEVICE_SHARE) {
+                scanRecords[i] = otherDevice(random);
+                addresses[i] = address(population + random.nextInt(population + 1));
+                beaconIndexes[i] = -1;
+            } else {
+                int beacon = random.nextInt(population);
+                scanRecords[i] = iBeacon(beacon);
+                addresses[i] = address(beacon);
+                beaconIndexes[i] = beacon;
+            }
+        }
+    }
+
+    /**
+     * The iBeacon advertisement of a beacon in the population.
+     */
+    public static byte[] iBeacon(int beacon) {
+        byte[] record = new byte[62];
+        int i = 0;
+        // Flags.
+        record[i++] = 0x02;
+        record[i++] = 0x01;
+        record[i++] = 0x06;
+        // Apple manufacturer data with the iBeacon prefix.
+        record[i++] = 0x1a;
+        record[i++] = (byte) 0xff;
+        record[i++] = 0x4c;
+        record[i++] = 0x00;
+        record[i++] = 0x02;
+        record[i++] = 0x15;
+        String uuid = VENUE_UUIDS[beacon % VENUE_UUIDS.length].replace("-", "");
+        for (int j = 0; j < 16; j++) {
+            record[i++] = (byte) Integer.parseInt(uuid.substring(j * 2, j * 2 + 2), 16);
+        }
+        int major = beacon / 100;
+        int minor = beacon % 100;
+        record[i++] = (byte) (major >> 8);
+        record[i++] = (byte) major;
+        record[i++] = (byte) (minor >> 8);
+        record[i++] = (byte) minor;
+        record[i] = (byte) -59;
+        return record;
+    }
+
+    /**
+     * The advertisement of something that isn't a beacon, like a phone or a fitness tracker.
+     */
+    public static byte[] otherDevice(Random random) {
+        byte[] record = new byte[62];
+        record[0] = 0x02;
+        record[1] = 0x01;
+        record[2] = 0x1a;
+        int length = 3 + random.nextInt(20);
+        record[3] = (byte) length;
+        record[4] = (byte) 0xff;
+        for (int i = 5; i < 4 + length; i++) {
+            record[i] = (byte) random.nextInt(256);
+        }
+        // Keep it from looking like an iBeacon by accident.
+        record[5] = 0x06;
+        return record;
+    }
+
+    public static String address(int device) {
+        return String.format("C0:00:%02X:%02X:%02X:%02X", (device >> 24) & 0xff, (device >> 16) & 0xff,
+                (device >> 8) & 0xff, device & 0xff);
+    }
+}
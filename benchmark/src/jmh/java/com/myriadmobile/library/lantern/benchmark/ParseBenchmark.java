@@ -0,0 +1,94 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern.benchmark;
+
+import com.myriadmobile.library.lantern.Distance;
+import com.myriadmobile.library.lantern.IBeaconFrame;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost per packet of decoding a raw advertisement, and of the distance estimate done for
+ * every beacon whose RSSI changes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class ParseBenchmark {
+
+    private final IBeaconFrame frame = new IBeaconFrame();
+
+    @Benchmark
+    @OperationsPerInvocation(PacketMix.PACKET_COUNT)
+    public void parse(PacketMix mix, Blackhole blackhole) {
+        for (int i = 0; i < PacketMix.PACKET_COUNT; i++) {
+            blackhole.consume(frame.parse(mix.scanRecords[i]));
+        }
+    }
+
+    /**
+     * Decoding plus formatting the uuid, which happens when a beacon is first detected.
+     */
+    @Benchmark
+    @OperationsPerInvocation(PacketMix.PACKET_COUNT)
+    public void parseWithUuid(PacketMix mix, Blackhole blackhole) {
+        for (int i = 0; i < PacketMix.PACKET_COUNT; i++) {
+            if (frame.parse(mix.scanRecords[i])) {
+                blackhole.consume(frame.getUuid());
+            }
+        }
+    }
+
+    /**
+     * The distance computed with the curve every time.
+     */
+    @Benchmark
+    @OperationsPerInvocation(PacketMix.PACKET_COUNT)
+    public void calculateDistance(PacketMix mix, Blackhole blackhole) {
+        for (int i = 0; i < PacketMix.PACKET_COUNT; i++) {
+            blackhole.consume(Distance.estimate(-59, (double) mix.rssis[i]));
+        }
+    }
+
+    /**
+     * The distance looked up from the table for the tx power.
+     */
+    @Benchmark
+    @OperationsPerInvocation(PacketMix.PACKET_COUNT)
+    public void lookupDistance(PacketMix mix, Blackhole blackhole) {
+        for (int i = 0; i < PacketMix.PACKET_COUNT; i++) {
+            blackhole.consume(Distance.estimate(-59, mix.rssis[i]));
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern.benchmark;
+
+import com.myriadmobile.library.lantern.BeaconTracker;
+import com.myriadmobile.library.lantern.TrackedBeacon;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of keeping the active beacons up to date: decoding and upserting every packet, and
+ * expiring the whole population.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class RegistryBenchmark {
+
+    private static final long EXPIRATION_INTERVAL = 60000;
+
+    private PacketMix mix;
+    private BeaconTracker tracker;
+    private long now;
+
+    @Setup
+    public void setup(PacketMix mix) {
+        this.mix = mix;
+        tracker = new BeaconTracker(EXPIRATION_INTERVAL, new NullListener());
+    }
+
+    /**
+     * Starts every invocation with every beacon already active, as in a steady state.
+     */
+    @Setup(Level.Invocation)
+    public void fill() {
+        tracker.clear();
+        now = 0;
+        for (int i = 0; i < PacketMix.PACKET_COUNT; i++) {
+            tracker.onAdvertisement(mix.scanRecords[i], mix.rssis[i], mix.addresses[i], now++);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PacketMix.PACKET_COUNT)
+    public BeaconTracker upsert() {
+        for (int i = 0; i < PacketMix.PACKET_COUNT; i++) {
+            tracker.onAdvertisement(mix.scanRecords[i], mix.rssis[i], mix.addresses[i], now++);
+        }
+        return tracker;
+    }
+
+    @Benchmark
+    public long expirySweep() {
+        return tracker.expire(now + EXPIRATION_INTERVAL);
+    }
+
+    static class NullListener implements BeaconTracker.Listener {
+
+        @Override
+        public void onBeaconDetected(TrackedBeacon beacon) {
+        }
+
+        @Override
+        public void onBeaconChanged(TrackedBeacon beacon) {
+        }
+
+        @Override
+        public void onBeaconExpired(TrackedBeacon beacon) {
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern.benchmark;
+
+import com.myriadmobile.library.lantern.BeaconRule;
+import com.myriadmobile.library.lantern.BeaconTracker;
+import com.myriadmobile.library.lantern.ProximityZones;
+import com.myriadmobile.library.lantern.RuleEngine;
+import com.myriadmobile.library.lantern.TrackedBeacon;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost per packet of evaluating 100 to 10,000 rules, through the rule engine's index against
+ * checking every rule. Most rules are for single beacons of a deployment ten times the size of
+ * the population, one in ten for a whole major, which is what a venue with a rule per beacon
+ * looks like. The tracker's own cost is in both, see {@link RegistryBenchmark#upsert()}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class RuleBenchmark {
+
+    private static final long EXPIRATION_INTERVAL = 60000;
+
+    @Param({"100", "1000", "10000"})
+    public int rules;
+
+    /**
+     * "indexed" for the rule engine, "linear" for matching every rule against every change.
+     */
+    @Param({"indexed", "linear"})
+    public String variant;
+
+    private PacketMix mix;
+    private BeaconTracker tracker;
+    private long now;
+    private int matched;
+
+    @Setup
+    public void setup(PacketMix mix) {
+        this.mix = mix;
+        Random random = new Random(42);
+        final List<BeaconRule> beaconRules = new ArrayList<BeaconRule>(rules);
+        for (int i = 0; i < rules; i++) {
+            int beacon = random.nextInt(mix.population * 10);
+            BeaconRule.Builder builder = new BeaconRule.Builder("rule" + i, BeaconRule.ENTER)
+                    .withUuid(PacketMix.VENUE_UUIDS[beacon % PacketMix.VENUE_UUIDS.length])
+                    .withMajor(beacon / 100)
+                    .withZone(1)
+                    .withCooldown(600000);
+            if (random.nextInt(10) != 0) {
+                builder.withMinor(beacon % 100);
+            }
+            beaconRules.add(builder.build());
+        }
+        BeaconTracker.ProximityListener listener;
+        if ("indexed".equals(variant)) {
+            listener = new RuleEngine(beaconRules, ProximityZones.DEFAULT, TimeZone.getTimeZone("UTC"),
+                    new RuleEngine.Listener() {
+                        @Override
+                        public void onRuleFired(BeaconRule rule, TrackedBeacon beacon, long time) {
+                            matched++;
+                        }
+                    });
+        } else {
+            BeaconRule[] all = beaconRules.toArray(new BeaconRule[beaconRules.size()]);
+            listener = new LinearRules(all);
+        }
+        tracker = new BeaconTracker(EXPIRATION_INTERVAL, listener);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PacketMix.PACKET_COUNT)
+    public int evaluate() {
+        for (int i = 0; i < PacketMix.PACKET_COUNT; i++) {
+            tracker.onAdvertisement(mix.scanRecords[i], mix.rssis[i], mix.addresses[i], now++);
+        }
+        return matched;
+    }
+
+    /**
+     * Matches every rule against every change, the way an app's receiver would.
+     */
+    private class LinearRules implements BeaconTracker.ProximityListener {
+
+        private final BeaconRule[] rules;
+
+        LinearRules(BeaconRule[] rules) {
+            this.rules = rules;
+        }
+
+        private void evaluate(TrackedBeacon beacon) {
+            for (BeaconRule rule : rules) {
+                if (rule.matches(beacon.getKey()) && beacon.getProximity() > 0 && beacon.getProximity() <= rule.getZone()) {
+                    matched++;
+                }
+            }
+        }
+
+        @Override
+        public void onBeaconDetected(TrackedBeacon beacon) {
+            evaluate(beacon);
+        }
+
+        @Override
+        public void onBeaconChanged(TrackedBeacon beacon) {
+            evaluate(beacon);
+        }
+
+        @Override
+        public void onProximityChanged(TrackedBeacon beacon, int previousProximity) {
+            evaluate(beacon);
+        }
+
+        @Override
+        public void onBeaconExpired(TrackedBeacon beacon) {
+        }
+    }
+}
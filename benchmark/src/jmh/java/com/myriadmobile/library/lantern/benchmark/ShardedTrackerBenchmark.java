@@ -0,0 +1,83 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern.benchmark;
+
+import com.myriadmobile.library.lantern.ShardedBeaconTracker;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the sharded tracker as the number of shards grows. Every invocation feeds the
+ * whole packet mix and waits for the workers to handle it, so the score is end to end packets per
+ * second. Compare with {@link RegistryBenchmark#upsert()} for a single tracker on one thread.
+ * Scaling depends on the machine having a core for each shard plus the feeding thread.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class ShardedTrackerBenchmark {
+
+    private static final long EXPIRATION_INTERVAL = 60000;
+
+    @Param({"1", "2", "4", "8"})
+    public int shards;
+
+    private PacketMix mix;
+    private ShardedBeaconTracker tracker;
+    private long now;
+
+    @Setup
+    public void setup(PacketMix mix) {
+        this.mix = mix;
+        tracker = new ShardedBeaconTracker(shards, EXPIRATION_INTERVAL, new RegistryBenchmark.NullListener());
+        tracker.start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        tracker.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PacketMix.PACKET_COUNT)
+    public ShardedBeaconTracker ingest() {
+        for (int i = 0; i < PacketMix.PACKET_COUNT; i++) {
+            tracker.onAdvertisement(mix.scanRecords[i], mix.rssis[i], mix.addresses[i], now++);
+        }
+        tracker.awaitIdle();
+        return tracker;
+    }
+}
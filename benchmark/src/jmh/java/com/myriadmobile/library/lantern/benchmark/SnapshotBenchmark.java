@@ -0,0 +1,95 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern.benchmark;
+
+import com.myriadmobile.library.lantern.BeaconTracker;
+import com.myriadmobile.library.lantern.PresenceSnapshot;
+import com.myriadmobile.library.lantern.SnapshotRegion;
+import com.myriadmobile.library.lantern.TrackedBeacon;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of publishing the active beacons into a snapshot region and of polling it, which is all a
+ * bound client pays per read once the region is mapped. A direct buffer stands in for the mapped
+ * file.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class SnapshotBenchmark {
+
+    @Param({"10", "100", "500"})
+    public int beacons;
+
+    private List<TrackedBeacon> active;
+    private SnapshotRegion.Writer writer;
+    private SnapshotRegion.Reader reader;
+    private long now;
+
+    @Setup
+    public void setup(PacketMix mix) {
+        BeaconTracker tracker = new BeaconTracker(Long.MAX_VALUE / 2, new RegistryBenchmark.NullListener());
+        for (int i = 0; i < PacketMix.PACKET_COUNT && tracker.size() < beacons; i++) {
+            tracker.onAdvertisement(mix.scanRecords[i], mix.rssis[i], mix.addresses[i], i);
+        }
+        active = tracker.getBeacons();
+        ByteBuffer region = ByteBuffer.allocateDirect(SnapshotRegion.sizeFor(beacons));
+        writer = new SnapshotRegion.Writer(region);
+        reader = new SnapshotRegion.Reader(region);
+        writer.write(now, active);
+    }
+
+    @Benchmark
+    public SnapshotRegion.Writer publish() {
+        writer.write(now++, active);
+        return writer;
+    }
+
+    /**
+     * Polling while nothing has changed, which is most polls.
+     */
+    @Benchmark
+    public PresenceSnapshot pollUnchanged() {
+        return reader.read();
+    }
+
+    @Benchmark
+    public PresenceSnapshot publishAndRead() {
+        writer.write(now++, active);
+        return reader.read();
+    }
+}
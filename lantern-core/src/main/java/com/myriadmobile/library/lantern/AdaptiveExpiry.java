@@ -0,0 +1,181 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern;
+
+/**
+ * Works out how long each beacon should stay active without being seen, from how often it
+ * advertises and how many of its packets are lost, instead of one expiration interval for all of
+ * them. A beacon advertising ten times a second expires within a second or so of leaving, while
+ * one advertising every few seconds through a lossy channel stays active through its usual gaps
+ * rather than expiring and being detected again.
+ * <p/>
+ * The advertising interval and the loss are estimated online from the gaps between the packets
+ * received from a beacon. A gap is taken to be a whole number of advertising intervals, the
+ * packets in between being lost. The interval is a moving average of the gaps divided by that
+ * number, which drops straight to any gap clearly shorter than it so the occasional lost packet
+ * early on doesn't stick. The mean number of intervals per gap is 1 / (1 - loss) for independent
+ * losses, so the loss is estimated from a moving average of it. The beacon then expires once
+ * enough intervals have gone by that all its packets being lost is less likely than
+ * {@link #getMissProbability()}.
+ * <p/>
+ * Gaps that span a pause in scanning aren't samples, see
+ * {@link BeaconTracker#onScanWindowStarted(long)}, and the pause is added to every expiration so
+ * beacons don't expire while the scanner is off.
+ */
+public class AdaptiveExpiry {
+
+    /**
+     * Samples needed before the estimates are used. Until then the tracker's expiration interval
+     * is.
+     */
+    public static final int MIN_SAMPLES = 4;
+
+    /**
+     * A gap this many intervals long or longer is taken as the beacon having been out of reach,
+     * not as lost packets.
+     */
+    static final int MAX_INTERVALS_PER_GAP = 32;
+
+    /**
+     * The shortest advertising interval bluetooth allows. Shorter gaps are the same advertisement
+     * received on another channel.
+     */
+    static final long MIN_GAP = 20;
+
+    private final double alpha;
+    private final double missProbability;
+    private final long minExpiry;
+    private final long maxExpiry;
+    private long scanPause;
+
+    /**
+     * With a smoothing factor of 1/8, a one in a thousand chance of expiring a beacon that is
+     * still there, and expirations between 1 second and 5 minutes.
+     */
+    public AdaptiveExpiry() {
+        this(0.125, 0.001, 1000, 300000);
+    }
+
+    /**
+     * @param alpha           The weight of every new sample in the moving averages.
+     * @param missProbability The accepted chance of expiring a beacon that is still there.
+     * @param minExpiry       The shortest time a beacon stays active without being seen.
+     * @param maxExpiry       The longest time a beacon stays active without being seen.
+     */
+    public AdaptiveExpiry(double alpha, double missProbability, long minExpiry, long maxExpiry) {
+        if (alpha <= 0 || alpha > 1) {
+            throw new IllegalArgumentException("Alpha must be in (0, 1]");
+        }
+        if (missProbability <= 0 || missProbability >= 1) {
+            throw new IllegalArgumentException("Miss probability must be in (0, 1)");
+        }
+        if (minExpiry <= 0 || maxExpiry < minExpiry) {
+            throw new IllegalArgumentException("Expiry bounds must be positive and ordered");
+        }
+        this.alpha = alpha;
+        this.missProbability = missProbability;
+        this.minExpiry = minExpiry;
+        this.maxExpiry = maxExpiry;
+    }
+
+    public double getMissProbability() {
+        return missProbability;
+    }
+
+    public long getScanPause() {
+        return scanPause;
+    }
+
+    /**
+     * Sets how long the scanner pauses between windows while there are active beacons, 0 if it
+     * scans continuously. It is added to every expiration.
+     */
+    public void setScanPause(long scanPause) {
+        if (scanPause < 0) {
+            throw new IllegalArgumentException("Scan pause cannot be negative");
+        }
+        this.scanPause = scanPause;
+    }
+
+    /**
+     * Updates the estimates of a beacon with the gap between two of its packets.
+     *
+     * @param gap The time in milliseconds between the packets, both received in the same scan
+     *            window.
+     */
+    void onGap(TrackedBeacon beacon, long gap) {
+        if (gap < MIN_GAP) {
+            return;
+        }
+        if (beacon.intervalSamples == 0) {
+            beacon.advertisingInterval = gap;
+            beacon.intervalsPerGap = 1;
+            beacon.intervalSamples = 1;
+            return;
+        }
+        double interval = beacon.advertisingInterval;
+        if (gap < interval * 0.75) {
+            // A packet came sooner than the interval allows, so the estimate had losses in it,
+            // and the earlier gaps were more intervals long than they were counted as.
+            beacon.intervalsPerGap *= Math.round(interval / gap);
+            beacon.advertisingInterval = interval = gap;
+        }
+        long intervals = Math.max(1, Math.round(gap / interval));
+        if (intervals >= MAX_INTERVALS_PER_GAP) {
+            return;
+        }
+        beacon.intervalSamples++;
+        // A plain mean of the first samples, so the estimates don't lean on the first one.
+        double weight = Math.max(alpha, 1.0 / beacon.intervalSamples);
+        beacon.advertisingInterval = interval + weight * ((double) gap / intervals - interval);
+        beacon.intervalsPerGap += weight * (intervals - beacon.intervalsPerGap);
+    }
+
+    /**
+     * How long a beacon stays active without being seen.
+     *
+     * @param fallback The time to use until there are enough samples.
+     */
+    long expiryFor(TrackedBeacon beacon, long fallback) {
+        if (beacon.intervalSamples < MIN_SAMPLES) {
+            return fallback;
+        }
+        double loss = lossOf(beacon);
+        // Intervals to wait before all the packets in them being lost is unlikely enough.
+        double intervals = loss <= 0 ? 1 : Math.ceil(Math.log(missProbability) / Math.log(loss));
+        long expiry = (long) Math.ceil(beacon.advertisingInterval * (intervals + 1));
+        return Math.min(maxExpiry, Math.max(minExpiry, expiry)) + scanPause;
+    }
+
+    /**
+     * The estimated share of a beacon's packets that are lost, between 0 and 0.99.
+     */
+    static double lossOf(TrackedBeacon beacon) {
+        if (beacon.intervalSamples == 0) {
+            return 0;
+        }
+        return Math.min(0.99, Math.max(0, 1 - 1 / beacon.intervalsPerGap));
+    }
+}
@@ -0,0 +1,464 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * The beacons to track, by uuid, major and minor, when there are too many to list by uuid alone.
+ * Checking a frame allocates nothing and creates no Strings.
+ * <p/>
+ * A deployment only uses a few uuids, so each uuid is given an index and a beacon is packed into a
+ * single long: the index in the high bits, then major and minor. The longs are kept in an open
+ * addressing set that is at most half full. An optional Bloom filter in front of the set is several
+ * times smaller, so it stays in the cpu caches where the set doesn't, and the beacons that aren't
+ * listed are mostly turned away without touching the set. While the set fits in the caches the
+ * filter is just one more lookup, so it is left out unless asked for.
+ * <p/>
+ * Allowlists are stored in a compact binary file, big endian:
+ * <pre>
+ * file:  int magic | short version | short reserved | int uuidCount | int beaconCount
+ *        | uuid* | beacon* | int crc
+ * uuid:  long mostSignificantBits | long leastSignificantBits
+ * beacon: short uuidIndex | short major | short minor
+ * </pre>
+ * The crc is a CRC32 of everything before it.
+ */
+public class BeaconAllowlist {
+
+    /**
+     * "LNTA".
+     */
+    static final int MAGIC = 0x4c4e5441;
+
+    static final short VERSION = 1;
+
+    static final int HEADER_SIZE = 16;
+
+    static final int UUID_SIZE = 16;
+
+    static final int BEACON_SIZE = 6;
+
+    /**
+     * No Bloom filter. On the AllowlistBenchmark the filter was slower than the set alone up to
+     * 100k beacons, no faster at 1M, and made the list larger. 10 bits per beacon give about a 2%
+     * false positive rate where it does pay off.
+     */
+    public static final int DEFAULT_BLOOM_BITS_PER_BEACON = 0;
+
+    /**
+     * The most uuids a file can index.
+     */
+    static final int MAX_UUIDS = 0xffff;
+
+    private static final long EMPTY = -1;
+
+    /**
+     * Up to this many uuids are looked up by comparing them all, which beats hashing.
+     */
+    private static final int LINEAR_UUIDS = 8;
+
+    /**
+     * The set is grown to keep it at most this full.
+     */
+    private static final double MAX_LOAD = 0.5;
+
+    // Uuids, as pairs of longs in index order, and an open addressing table of their indexes.
+    private final long[] uuids;
+    private final int[] uuidTable;
+    private final int uuidMask;
+
+    private final long[] beacons;
+    private final int beaconMask;
+    private final int size;
+
+    /**
+     * All the bits of a beacon are in the same word, so checking it is a single read.
+     */
+    private final long[] bloom;
+    private final int bloomWordMask;
+    private final int bloomHashes;
+
+    private BeaconAllowlist(long[] uuids, int uuidCount, long[] packed, int count, int bloomBitsPerBeacon) {
+        if (bloomBitsPerBeacon < 0 || bloomBitsPerBeacon > 64) {
+            throw new IllegalArgumentException("Bloom filter bits per beacon must be between 0 and 64");
+        }
+        this.uuids = Arrays.copyOf(uuids, uuidCount * 2);
+        int uuidSlots = tableSize(uuidCount);
+        uuidMask = uuidSlots - 1;
+        uuidTable = new int[uuidSlots];
+        Arrays.fill(uuidTable, -1);
+        for (int i = 0; i < uuidCount; i++) {
+            int slot = uuidHash(uuids[i * 2], uuids[i * 2 + 1]) & uuidMask;
+            while (uuidTable[slot] >= 0) {
+                slot = (slot + 1) & uuidMask;
+            }
+            uuidTable[slot] = i;
+        }
+
+        int slots = tableSize(count);
+        beaconMask = slots - 1;
+        beacons = new long[slots];
+        Arrays.fill(beacons, EMPTY);
+        int added = 0;
+        for (int i = 0; i < count; i++) {
+            int slot = (int) mix(packed[i]) & beaconMask;
+            while (beacons[slot] != EMPTY && beacons[slot] != packed[i]) {
+                slot = (slot + 1) & beaconMask;
+            }
+            if (beacons[slot] == EMPTY) {
+                beacons[slot] = packed[i];
+                added++;
+            }
+        }
+        size = added;
+
+        if (bloomBitsPerBeacon > 0) {
+            long bits = (long) size * bloomBitsPerBeacon;
+            int words = 1;
+            while ((long) words * 64 < bits && words < 1 << 27) {
+                words <<= 1;
+            }
+            bloom = new long[words];
+            bloomWordMask = words - 1;
+            // At most 10 hashes fit in the 64 bits of hash a pattern is picked with.
+            bloomHashes = Math.min(10, Math.max(1, (int) Math.round(bloomBitsPerBeacon * Math.log(2))));
+            for (long beacon : beacons) {
+                if (beacon != EMPTY) {
+                    addToBloom(beacon);
+                }
+            }
+        } else {
+            bloom = null;
+            bloomWordMask = 0;
+            bloomHashes = 0;
+        }
+    }
+
+    /**
+     * Whether the beacon in a frame is on the list.
+     */
+    public boolean contains(IBeaconFrame frame) {
+        return contains(frame.uuidMostSignificantBits, frame.uuidLeastSignificantBits, frame.major, frame.minor);
+    }
+
+    /**
+     * Whether the beacon is on the list.
+     */
+    public boolean contains(long uuidMostSignificantBits, long uuidLeastSignificantBits, int major, int minor) {
+        int index = uuidIndex(uuidMostSignificantBits, uuidLeastSignificantBits);
+        if (index < 0) {
+            return false;
+        }
+        long beacon = pack(index, major, minor);
+        long hash = mix(beacon);
+        if (bloom != null && !mightContain(hash)) {
+            return false;
+        }
+        int slot = (int) hash & beaconMask;
+        while (true) {
+            long candidate = beacons[slot];
+            if (candidate == beacon) {
+                return true;
+            }
+            if (candidate == EMPTY) {
+                return false;
+            }
+            slot = (slot + 1) & beaconMask;
+        }
+    }
+
+    /**
+     * The number of beacons on the list.
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean hasBloomFilter() {
+        return bloom != null;
+    }
+
+    /**
+     * Roughly how many bytes the list takes in memory.
+     */
+    public long getMemoryBytes() {
+        long bytes = uuids.length * 8L + uuidTable.length * 4L + beacons.length * 8L;
+        return bloom != null ? bytes + bloom.length * 8L : bytes;
+    }
+
+    /**
+     * Writes the list to a file, which {@link #read(File, int)} reads back.
+     */
+    public void write(File file) throws IOException {
+        int uuidCount = uuids.length / 2;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + uuidCount * UUID_SIZE + size * BEACON_SIZE + 4);
+        buffer.putInt(MAGIC);
+        buffer.putShort(VERSION);
+        buffer.putShort((short) 0);
+        buffer.putInt(uuidCount);
+        buffer.putInt(size);
+        for (long bits : uuids) {
+            buffer.putLong(bits);
+        }
+        for (long beacon : beacons) {
+            if (beacon != EMPTY) {
+                buffer.putShort((short) (beacon >>> 32));
+                buffer.putShort((short) (beacon >>> 16));
+                buffer.putShort((short) beacon);
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue());
+
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(buffer.array());
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads a list written by {@link #write(File)}.
+     *
+     * @param bloomBitsPerBeacon The size of the Bloom filter, 0 for none.
+     * @throws IOException              If the file can't be read or isn't an allowlist.
+     * @throws IllegalArgumentException If the bits per beacon aren't between 0 and 64.
+     */
+    public static BeaconAllowlist read(File file, int bloomBitsPerBeacon) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Allowlist too large: " + file);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // Keep reading until it's all in.
+            }
+            buffer.flip();
+            return read(buffer, bloomBitsPerBeacon);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads a list from the contents of an allowlist file.
+     *
+     * @param bloomBitsPerBeacon The size of the Bloom filter, 0 for none.
+     * @throws IOException If the contents aren't an allowlist.
+     */
+    public static BeaconAllowlist read(ByteBuffer buffer, int bloomBitsPerBeacon) throws IOException {
+        ByteBuffer in = buffer.slice();
+        if (in.remaining() < HEADER_SIZE + 4 || in.getInt() != MAGIC) {
+            throw new IOException("Not an allowlist");
+        }
+        short version = in.getShort();
+        if (version != VERSION) {
+            throw new IOException("Unsupported allowlist version " + version);
+        }
+        in.getShort();
+        int uuidCount = in.getInt();
+        int count = in.getInt();
+        long length = HEADER_SIZE + (long) uuidCount * UUID_SIZE + (long) count * BEACON_SIZE + 4;
+        if (uuidCount < 0 || uuidCount > MAX_UUIDS || count < 0 || length != in.limit()) {
+            throw new IOException("Corrupt allowlist header");
+        }
+        int end = (int) length - 4;
+        CRC32 crc = new CRC32();
+        if (in.hasArray()) {
+            crc.update(in.array(), in.arrayOffset(), end);
+        } else {
+            byte[] bytes = new byte[end];
+            ByteBuffer copy = in.duplicate();
+            copy.position(0);
+            copy.get(bytes);
+            crc.update(bytes, 0, end);
+        }
+        if ((int) crc.getValue() != in.getInt(end)) {
+            throw new IOException("Allowlist checksum mismatch");
+        }
+
+        long[] uuids = new long[uuidCount * 2];
+        for (int i = 0; i < uuids.length; i++) {
+            uuids[i] = in.getLong();
+        }
+        long[] packed = new long[count];
+        for (int i = 0; i < count; i++) {
+            int index = in.getShort() & 0xffff;
+            int major = in.getShort() & 0xffff;
+            int minor = in.getShort() & 0xffff;
+            if (index >= uuidCount) {
+                throw new IOException("Corrupt allowlist beacon " + i);
+            }
+            packed[i] = pack(index, major, minor);
+        }
+        return new BeaconAllowlist(uuids, uuidCount, packed, count, bloomBitsPerBeacon);
+    }
+
+    private int uuidIndex(long mostSignificantBits, long leastSignificantBits) {
+        if (uuids.length <= LINEAR_UUIDS * 2) {
+            for (int i = 0; i < uuids.length; i += 2) {
+                if (uuids[i] == mostSignificantBits && uuids[i + 1] == leastSignificantBits) {
+                    return i / 2;
+                }
+            }
+            return -1;
+        }
+        int slot = uuidHash(mostSignificantBits, leastSignificantBits) & uuidMask;
+        while (true) {
+            int index = uuidTable[slot];
+            if (index < 0) {
+                return -1;
+            }
+            if (uuids[index * 2] == mostSignificantBits && uuids[index * 2 + 1] == leastSignificantBits) {
+                return index;
+            }
+            slot = (slot + 1) & uuidMask;
+        }
+    }
+
+    private boolean mightContain(long hash) {
+        long pattern = bloomPattern(hash);
+        return (bloom[(int) (hash >>> 32) & bloomWordMask] & pattern) == pattern;
+    }
+
+    private void addToBloom(long beacon) {
+        long hash = mix(beacon);
+        bloom[(int) (hash >>> 32) & bloomWordMask] |= bloomPattern(hash);
+    }
+
+    /**
+     * The bits of a beacon within its word, picked six bits of hash at a time.
+     */
+    private long bloomPattern(long hash) {
+        long bits = hash * 0x9e3779b97f4a7c15L;
+        long pattern = 0;
+        for (int i = 0; i < bloomHashes; i++) {
+            pattern |= 1L << (bits >>> 58);
+            bits <<= 6;
+        }
+        return pattern;
+    }
+
+    private static long pack(int uuidIndex, int major, int minor) {
+        return (long) uuidIndex << 32 | (long) (major & 0xffff) << 16 | (minor & 0xffff);
+    }
+
+    private static int uuidHash(long mostSignificantBits, long leastSignificantBits) {
+        return (int) mix(mostSignificantBits ^ leastSignificantBits * 0x9e3779b97f4a7c15L);
+    }
+
+    /**
+     * The murmur3 finalizer, so neighbouring majors and minors spread over the table.
+     */
+    private static long mix(long h) {
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+
+    private static int tableSize(int count) {
+        int slots = Integer.highestOneBit(Math.max(2, (int) Math.ceil(count / MAX_LOAD)));
+        return slots < count / MAX_LOAD ? slots << 1 : slots;
+    }
+
+    /**
+     * Collects the beacons of a list.
+     */
+    public static class Builder {
+        private long[] uuids = new long[8];
+        private int uuidCount;
+        private long[] packed = new long[64];
+        private int count;
+        private int bloomBitsPerBeacon;
+
+        /**
+         * @throws IllegalArgumentException If the uuid is malformed or there are too many uuids.
+         */
+        public Builder add(String uuid, int major, int minor) {
+            long[] bits = IBeaconFrame.parseUuid(uuid);
+            return add(bits[0], bits[1], major, minor);
+        }
+
+        /**
+         * @throws IllegalArgumentException If there are too many uuids.
+         */
+        public Builder add(long uuidMostSignificantBits, long uuidLeastSignificantBits, int major, int minor) {
+            if (major < 0 || major > 0xffff || minor < 0 || minor > 0xffff) {
+                throw new IllegalArgumentException("Major and minor must be 16 bit: " + major + ", " + minor);
+            }
+            int index = -1;
+            for (int i = uuidCount - 1; i >= 0; i--) {
+                if (uuids[i * 2] == uuidMostSignificantBits && uuids[i * 2 + 1] == uuidLeastSignificantBits) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index < 0) {
+                if (uuidCount == MAX_UUIDS) {
+                    throw new IllegalArgumentException("An allowlist holds at most " + MAX_UUIDS + " uuids");
+                }
+                if (uuidCount * 2 == uuids.length) {
+                    uuids = Arrays.copyOf(uuids, uuids.length * 2);
+                }
+                index = uuidCount++;
+                uuids[index * 2] = uuidMostSignificantBits;
+                uuids[index * 2 + 1] = uuidLeastSignificantBits;
+            }
+            if (count == packed.length) {
+                packed = Arrays.copyOf(packed, packed.length * 2);
+            }
+            packed[count++] = pack(index, major, minor);
+            return this;
+        }
+
+        /**
+         * Puts a Bloom filter in front of the set.
+         *
+         * @param bitsPerBeacon The size of the filter, see {@link #DEFAULT_BLOOM_BITS_PER_BEACON}.
+         *                      0 for none.
+         */
+        public Builder withBloomFilter(int bitsPerBeacon) {
+            this.bloomBitsPerBeacon = bitsPerBeacon;
+            return this;
+        }
+
+        public BeaconAllowlist build() {
+            return new BeaconAllowlist(uuids, uuidCount, packed, count, bloomBitsPerBeacon);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern;
+
+/**
+ * A change to the active beacons, as published by {@link BeaconStream}.
+ */
+public final class BeaconEvent {
+
+    /**
+     * A beacon that wasn't active was seen.
+     */
+    public static final int DETECTED = 0;
+
+    /**
+     * The RSSI of an active beacon changed.
+     */
+    public static final int CHANGED = 1;
+
+    /**
+     * An active beacon moved into another proximity zone.
+     */
+    public static final int MOVED = 2;
+
+    /**
+     * A beacon wasn't seen for the expiration interval.
+     */
+    public static final int EXPIRED = 3;
+
+    private final int type;
+    private final TrackedBeacon beacon;
+    private final int previousProximity;
+
+    BeaconEvent(int type, TrackedBeacon beacon, int previousProximity) {
+        this.type = type;
+        this.beacon = beacon;
+        this.previousProximity = previousProximity;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * The beacon as it was right after the change. It doesn't change afterwards.
+     */
+    public TrackedBeacon getBeacon() {
+        return beacon;
+    }
+
+    /**
+     * The zone a {@link #MOVED} beacon was in, otherwise the beacon's own proximity.
+     */
+    public int getPreviousProximity() {
+        return previousProximity;
+    }
+
+    /**
+     * The event a subscriber that hasn't seen this one yet needs to see after it, in place of
+     * both, or null if neither is needed any more.
+     */
+    BeaconEvent conflate(BeaconEvent next) {
+        if (type == DETECTED) {
+            // The subscriber never heard of the beacon, so it still has to hear it was detected.
+            return next.type == EXPIRED ? null : new BeaconEvent(DETECTED, next.beacon, next.beacon.proximity);
+        }
+        if (type == MOVED && (next.type == CHANGED || next.type == MOVED)) {
+            // Moved from where the subscriber last saw it, unless it moved back.
+            int type = previousProximity != next.beacon.proximity ? MOVED : CHANGED;
+            return new BeaconEvent(type, next.beacon, previousProximity);
+        }
+        return next;
+    }
+
+    @Override
+    public String toString() {
+        String[] names = {"DETECTED", "CHANGED", "MOVED", "EXPIRED"};
+        return names[type] + " " + beacon;
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Merges what several receivers see of the same beacons. Each beacon keeps a window of the latest
+ * RSSI samples from every receiver that sees it, and from those a best estimate of how close it is
+ * to the strongest receiver, a weighted centroid of the receivers, and a trilaterated position.
+ * The estimates are updated as each observation arrives, only redoing the share of the receiver
+ * that sent it.
+ * <p/>
+ * Like {@link BeaconTracker}, it is not thread safe and takes time as milliseconds from whatever
+ * clock the caller uses.
+ */
+public class BeaconFusion {
+
+    public static final int DEFAULT_WINDOW_SIZE = 8;
+
+    /**
+     * How long, in milliseconds, a sample counts towards the estimates.
+     */
+    public static final long DEFAULT_MAX_AGE = 5000;
+
+    private final int windowSize;
+    private final long maxAge;
+    private final Map<String, Receiver> receivers = new HashMap<String, Receiver>();
+    private final Map<BeaconKey, FusedBeacon> beacons = new HashMap<BeaconKey, FusedBeacon>();
+    private final IBeaconFrame frame = new IBeaconFrame();
+    private final IdentityStrings strings = new IdentityStrings();
+    private final BeaconKey lookupKey = new BeaconKey(0, 0, 0, 0);
+
+    public BeaconFusion() {
+        this(DEFAULT_WINDOW_SIZE, DEFAULT_MAX_AGE);
+    }
+
+    /**
+     * @param windowSize The most samples kept from each receiver for each beacon.
+     * @param maxAge     How long, in milliseconds, a sample counts towards the estimates.
+     */
+    public BeaconFusion(int windowSize, long maxAge) {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("Window size must be at least 1");
+        }
+        this.windowSize = windowSize;
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Adds a receiver at a known position, in meters.
+     *
+     * @throws IllegalArgumentException If there's already a receiver with the id.
+     */
+    public Receiver addReceiver(String id, double x, double y) {
+        if (receivers.containsKey(id)) {
+            throw new IllegalArgumentException("Receiver " + id + " was already added");
+        }
+        Receiver receiver = new Receiver(id, x, y);
+        receivers.put(id, receiver);
+        return receiver;
+    }
+
+    /**
+     * Adds a receiver whose position isn't known. It counts towards the strongest receiver, but not
+     * the centroid or position.
+     */
+    public Receiver addReceiver(String id) {
+        return addReceiver(id, Double.NaN, Double.NaN);
+    }
+
+    /**
+     * The receiver with the id, or null if it wasn't added.
+     */
+    public Receiver getReceiver(String id) {
+        return receivers.get(id);
+    }
+
+    /**
+     * Handles an advertisement a receiver got.
+     *
+     * @param receiverId The receiver, which is added without a position if it's new.
+     * @param scanRecord The raw advertisement bytes.
+     * @param rssi       The RSSI the receiver got the advertisement with.
+     * @param now        The current time in milliseconds.
+     * @return The beacon that was updated, or null if the advertisement isn't an iBeacon.
+     */
+    public FusedBeacon observe(String receiverId, byte[] scanRecord, int rssi, long now) {
+        if (!frame.parse(scanRecord)) {
+            return null;
+        }
+        return observe(receiverId, frame, rssi, now);
+    }
+
+    /**
+     * Handles an advertisement that was already decoded.
+     *
+     * @see #observe(String, byte[], int, long)
+     */
+    public FusedBeacon observe(String receiverId, IBeaconFrame frame, int rssi, long now) {
+        Receiver receiver = receivers.get(receiverId);
+        if (receiver == null) {
+            receiver = addReceiver(receiverId);
+        }
+        return observe(receiver, frame, rssi, now);
+    }
+
+    /**
+     * Handles an advertisement that was already decoded, from a receiver that was already added.
+     *
+     * @see #observe(String, byte[], int, long)
+     */
+    public FusedBeacon observe(Receiver receiver, IBeaconFrame frame, int rssi, long now) {
+        FusedBeacon beacon = beacons.get(lookupKey.set(frame));
+        if (beacon == null) {
+            beacon = new FusedBeacon(BeaconKey.of(frame), strings.uuid(frame.uuidMostSignificantBits, frame.uuidLeastSignificantBits),
+                    windowSize, maxAge);
+            beacons.put(beacon.key, beacon);
+        }
+        beacon.observe(receiver, rssi, frame.txPower, now);
+        return beacon;
+    }
+
+    /**
+     * Drops samples older than the max age, and the beacons no receiver sees anymore.
+     *
+     * @param now The current time in milliseconds.
+     * @return The beacons that were dropped.
+     */
+    public List<FusedBeacon> expire(long now) {
+        List<FusedBeacon> expired = new ArrayList<FusedBeacon>();
+        for (FusedBeacon beacon : beacons.values()) {
+            if (!beacon.evict(now)) {
+                expired.add(beacon);
+            }
+        }
+        for (FusedBeacon beacon : expired) {
+            beacons.remove(beacon.key);
+        }
+        return expired;
+    }
+
+    /**
+     * The beacon with the identity, or null if no receiver sees it.
+     */
+    public FusedBeacon get(BeaconKey key) {
+        return beacons.get(key);
+    }
+
+    public int size() {
+        return beacons.size();
+    }
+
+    /**
+     * A copy of the list of beacons some receiver sees.
+     */
+    public List<FusedBeacon> getBeacons() {
+        return new ArrayList<FusedBeacon>(beacons.values());
+    }
+}
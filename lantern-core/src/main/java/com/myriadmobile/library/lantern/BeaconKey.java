@@ -0,0 +1,110 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern;
+
+/**
+ * The identity of an iBeacon: uuid, major and minor, kept as primitives.
+ */
+public final class BeaconKey {
+
+    long uuidMostSignificantBits;
+    long uuidLeastSignificantBits;
+    int major;
+    int minor;
+
+    public BeaconKey(long uuidMostSignificantBits, long uuidLeastSignificantBits, int major, int minor) {
+        set(uuidMostSignificantBits, uuidLeastSignificantBits, major, minor);
+    }
+
+    /**
+     * The identity of the beacon in a frame.
+     */
+    public static BeaconKey of(IBeaconFrame frame) {
+        return new BeaconKey(frame.uuidMostSignificantBits, frame.uuidLeastSignificantBits, frame.major, frame.minor);
+    }
+
+    /**
+     * Only for lookup keys that never end up in a map.
+     */
+    BeaconKey set(long uuidMostSignificantBits, long uuidLeastSignificantBits, int major, int minor) {
+        this.uuidMostSignificantBits = uuidMostSignificantBits;
+        this.uuidLeastSignificantBits = uuidLeastSignificantBits;
+        this.major = major;
+        this.minor = minor;
+        return this;
+    }
+
+    BeaconKey set(IBeaconFrame frame) {
+        return set(frame.uuidMostSignificantBits, frame.uuidLeastSignificantBits, frame.major, frame.minor);
+    }
+
+    public long getUuidMostSignificantBits() {
+        return uuidMostSignificantBits;
+    }
+
+    public long getUuidLeastSignificantBits() {
+        return uuidLeastSignificantBits;
+    }
+
+    public int getMajor() {
+        return major;
+    }
+
+    public int getMinor() {
+        return minor;
+    }
+
+    /**
+     * Spreads the identity over all 64 bits, for hashing and partitioning.
+     */
+    public static long hash64(long uuidMostSignificantBits, long uuidLeastSignificantBits, int major, int minor) {
+        long h = uuidMostSignificantBits * 0x9e3779b97f4a7c15L;
+        h = (h ^ uuidLeastSignificantBits) * 0x9e3779b97f4a7c15L;
+        h = (h ^ (((long) major << 16) | minor)) * 0x9e3779b97f4a7c15L;
+        return h ^ (h >>> 32);
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) hash64(uuidMostSignificantBits, uuidLeastSignificantBits, major, minor);
+    }
+
+    @Override
+    public boolean equals(Object that) {
+        if (!(that instanceof BeaconKey)) {
+            return false;
+        }
+        BeaconKey thatKey = (BeaconKey) that;
+        return thatKey.uuidMostSignificantBits == uuidMostSignificantBits
+                && thatKey.uuidLeastSignificantBits == uuidLeastSignificantBits
+                && thatKey.major == major
+                && thatKey.minor == minor;
+    }
+
+    @Override
+    public String toString() {
+        return IBeaconFrame.formatUuid(uuidMostSignificantBits, uuidLeastSignificantBits) + " " + major + " " + minor;
+    }
+}
@@ -0,0 +1,360 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern;
+
+/**
+ * A trigger the service evaluates itself, so the app doesn't have to be woken for every event to
+ * decide whether to react, for example "when minor 12 comes into the immediate zone, fire at most
+ * once every 10 minutes". See {@link RuleEngine}.
+ * <p/>
+ * A rule is for the beacons matching its uuid, major and minor, any of which can be left out to
+ * match every value. An {@link #ENTER} rule fires when such a beacon has been in its zone or
+ * closer for the dwell time, once for every time the beacon comes in, and an {@link #EXIT} rule
+ * fires when it expires. Either only fires inside its time window, and at most once per cooldown
+ * for each beacon.
+ */
+public final class BeaconRule {
+
+    /**
+     * Fires when a beacon comes into the zone, or has stayed there for the dwell time.
+     */
+    public static final int ENTER = 0;
+
+    /**
+     * Fires when a beacon expires.
+     */
+    public static final int EXIT = 1;
+
+    /**
+     * For the major and minor, and the zone: any value.
+     */
+    public static final int ANY = -1;
+
+    private static final int MINUTES_PER_DAY = 24 * 60;
+
+    private final String id;
+    private final int trigger;
+    private final boolean hasUuid;
+    final long uuidMostSignificantBits;
+    final long uuidLeastSignificantBits;
+    final int major;
+    final int minor;
+    final int zone;
+    final long dwell;
+    final int windowStart;
+    final int windowEnd;
+    final long cooldown;
+
+    private BeaconRule(Builder builder) {
+        id = builder.id;
+        trigger = builder.trigger;
+        hasUuid = builder.hasUuid;
+        uuidMostSignificantBits = builder.uuidMostSignificantBits;
+        uuidLeastSignificantBits = builder.uuidLeastSignificantBits;
+        major = builder.major;
+        minor = builder.minor;
+        zone = builder.zone;
+        dwell = builder.dwell;
+        windowStart = builder.windowStart;
+        windowEnd = builder.windowEnd;
+        cooldown = builder.cooldown;
+    }
+
+    /**
+     * The id the rule is reported with when it fires.
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * {@link #ENTER} or {@link #EXIT}.
+     */
+    public int getTrigger() {
+        return trigger;
+    }
+
+    /**
+     * The uuid of the beacons the rule is for, or null for any uuid.
+     */
+    public String getUuid() {
+        return hasUuid ? IBeaconFrame.formatUuid(uuidMostSignificantBits, uuidLeastSignificantBits) : null;
+    }
+
+    boolean hasUuid() {
+        return hasUuid;
+    }
+
+    /**
+     * The major of the beacons the rule is for, or {@link #ANY}.
+     */
+    public int getMajor() {
+        return major;
+    }
+
+    /**
+     * The minor of the beacons the rule is for, or {@link #ANY}.
+     */
+    public int getMinor() {
+        return minor;
+    }
+
+    /**
+     * The farthest zone a beacon fires an {@link #ENTER} rule in, or {@link #ANY} for any
+     * proximity, including unknown.
+     */
+    public int getZone() {
+        return zone;
+    }
+
+    /**
+     * How long, in milliseconds, a beacon has to stay in the zone before an {@link #ENTER} rule
+     * fires.
+     */
+    public long getDwell() {
+        return dwell;
+    }
+
+    /**
+     * The minute of the day, in the engine's time zone, the rule starts firing at, or
+     * {@link #ANY} for all day.
+     */
+    public int getWindowStart() {
+        return windowStart;
+    }
+
+    /**
+     * The minute of the day the rule stops firing at. Before the start means the window goes
+     * past midnight.
+     */
+    public int getWindowEnd() {
+        return windowEnd;
+    }
+
+    /**
+     * The least time, in milliseconds, between two firings for the same beacon.
+     */
+    public long getCooldown() {
+        return cooldown;
+    }
+
+    /**
+     * Whether the rule is for the beacon.
+     */
+    public boolean matches(BeaconKey key) {
+        return (!hasUuid || (key.uuidMostSignificantBits == uuidMostSignificantBits
+                && key.uuidLeastSignificantBits == uuidLeastSignificantBits))
+                && (major == ANY || key.major == major)
+                && (minor == ANY || key.minor == minor);
+    }
+
+    /**
+     * Whether the minute of the day is inside the time window.
+     */
+    boolean inWindow(int minuteOfDay) {
+        if (windowStart == ANY) {
+            return true;
+        }
+        if (windowStart <= windowEnd) {
+            return minuteOfDay >= windowStart && minuteOfDay < windowEnd;
+        }
+        return minuteOfDay >= windowStart || minuteOfDay < windowEnd;
+    }
+
+    /**
+     * Writes the rule out as a single line, which {@link #decode(String)} reads back.
+     */
+    public String encode() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(trigger).append(',').append(hasUuid ? getUuid() : "").append(',')
+                .append(major).append(',').append(minor).append(',').append(zone).append(',')
+                .append(dwell).append(',').append(windowStart).append(',').append(windowEnd)
+                .append(',').append(cooldown).append(',').append(id);
+        return builder.toString();
+    }
+
+    /**
+     * Reads a rule written out by {@link #encode()}.
+     *
+     * @throws IllegalArgumentException If the line isn't an encoded rule.
+     */
+    public static BeaconRule decode(String encoded) {
+        String[] parts = encoded != null ? encoded.split(",", 10) : new String[0];
+        if (parts.length != 10) {
+            throw new IllegalArgumentException("Not a beacon rule: " + encoded);
+        }
+        try {
+            Builder builder = new Builder(parts[9], Integer.parseInt(parts[0]))
+                    .withUuid(parts[1].isEmpty() ? null : parts[1])
+                    .withMajor(Integer.parseInt(parts[2]))
+                    .withMinor(Integer.parseInt(parts[3]))
+                    .withZone(Integer.parseInt(parts[4]))
+                    .withDwell(Long.parseLong(parts[5]))
+                    .withCooldown(Long.parseLong(parts[8]));
+            int windowStart = Integer.parseInt(parts[6]);
+            if (windowStart != ANY) {
+                builder.withTimeWindow(windowStart, Integer.parseInt(parts[7]));
+            }
+            return builder.build();
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a beacon rule: " + encoded, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return encode();
+    }
+
+    @Override
+    public boolean equals(Object that) {
+        return that instanceof BeaconRule && ((BeaconRule) that).encode().equals(encode());
+    }
+
+    @Override
+    public int hashCode() {
+        return encode().hashCode();
+    }
+
+    public static class Builder {
+        private final String id;
+        private final int trigger;
+        private boolean hasUuid;
+        private long uuidMostSignificantBits;
+        private long uuidLeastSignificantBits;
+        private int major = ANY;
+        private int minor = ANY;
+        private int zone = ANY;
+        private long dwell;
+        private int windowStart = ANY;
+        private int windowEnd = ANY;
+        private long cooldown;
+
+        /**
+         * @param id      The id of the rule, which can't contain a line break.
+         * @param trigger {@link #ENTER} or {@link #EXIT}.
+         */
+        public Builder(String id, int trigger) {
+            if (id == null || id.indexOf('\n') >= 0) {
+                throw new IllegalArgumentException("Rule ids cannot be null or contain a line break");
+            }
+            if (trigger != ENTER && trigger != EXIT) {
+                throw new IllegalArgumentException("Unknown trigger " + trigger);
+            }
+            this.id = id;
+            this.trigger = trigger;
+        }
+
+        /**
+         * @param uuid The uuid of the beacons, or null for any uuid.
+         */
+        public Builder withUuid(String uuid) {
+            hasUuid = uuid != null;
+            if (hasUuid) {
+                long[] bits = IBeaconFrame.parseUuid(uuid);
+                uuidMostSignificantBits = bits[0];
+                uuidLeastSignificantBits = bits[1];
+            } else {
+                uuidMostSignificantBits = 0;
+                uuidLeastSignificantBits = 0;
+            }
+            return this;
+        }
+
+        /**
+         * @param major The major of the beacons, or {@link #ANY}.
+         */
+        public Builder withMajor(int major) {
+            if (major < ANY || major > 65535) {
+                throw new IllegalArgumentException("Major out of range: " + major);
+            }
+            this.major = major;
+            return this;
+        }
+
+        /**
+         * @param minor The minor of the beacons, or {@link #ANY}.
+         */
+        public Builder withMinor(int minor) {
+            if (minor < ANY || minor > 65535) {
+                throw new IllegalArgumentException("Minor out of range: " + minor);
+            }
+            this.minor = minor;
+            return this;
+        }
+
+        /**
+         * @param zone The farthest zone to fire in, numbered from 1 for the closest like the
+         *             proximities, or {@link #ANY}.
+         */
+        public Builder withZone(int zone) {
+            if (zone < ANY || zone == 0) {
+                throw new IllegalArgumentException("Zones are numbered from 1");
+            }
+            this.zone = zone;
+            return this;
+        }
+
+        /**
+         * How long, in milliseconds, a beacon has to stay in the zone first.
+         */
+        public Builder withDwell(long milliseconds) {
+            if (milliseconds < 0) {
+                throw new IllegalArgumentException("Dwell cannot be negative");
+            }
+            dwell = milliseconds;
+            return this;
+        }
+
+        /**
+         * Only fires from the start minute of the day up to the end one, which can be past
+         * midnight.
+         */
+        public Builder withTimeWindow(int startMinuteOfDay, int endMinuteOfDay) {
+            if (startMinuteOfDay < 0 || startMinuteOfDay >= MINUTES_PER_DAY
+                    || endMinuteOfDay < 0 || endMinuteOfDay >= MINUTES_PER_DAY) {
+                throw new IllegalArgumentException("Minutes of the day must be between 0 and 1439");
+            }
+            windowStart = startMinuteOfDay;
+            windowEnd = endMinuteOfDay;
+            return this;
+        }
+
+        /**
+         * The least time, in milliseconds, between two firings for the same beacon.
+         */
+        public Builder withCooldown(long milliseconds) {
+            if (milliseconds < 0) {
+                throw new IllegalArgumentException("Cooldown cannot be negative");
+            }
+            cooldown = milliseconds;
+            return this;
+        }
+
+        public BeaconRule build() {
+            return new BeaconRule(this);
+        }
+    }
+}
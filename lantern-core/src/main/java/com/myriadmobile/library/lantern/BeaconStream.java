@@ -0,0 +1,564 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the changes to the active beacons as Reactive Streams, so they can be windowed,
+ * debounced and joined with operators from any Reactive Streams library, off the main thread.
+ * <p/>
+ * The stream is a tracker listener: the tracker's thread only copies the beacon and queues the
+ * event for each subscriber, and the subscribers are called on the executor, never more than
+ * they requested. Without subscribers a change in signal costs nothing, and the stream only
+ * keeps which beacons are active; set a {@link Source} so the first snapshot subscriber gets
+ * their current signal too. Every subscriber has a bounded buffer, and what happens when it fills up is
+ * chosen per publisher:
+ * <ul>
+ * <li>{@link Overflow#DROP_OLDEST} drops the oldest events.</li>
+ * <li>{@link Overflow#CONFLATE_PER_BEACON} keeps one pending event per beacon, merging later
+ * ones into it, and only drops events when more beacons than the buffer size are pending.</li>
+ * <li>{@link #snapshots()} publishes the latest snapshot of the active beacons instead of
+ * events, so a slow subscriber skips straight to the current state.</li>
+ * </ul>
+ */
+public class BeaconStream implements BeaconTracker.ProximityListener {
+
+    public enum Overflow {
+        DROP_OLDEST,
+        CONFLATE_PER_BEACON
+    }
+
+    /**
+     * Copies the active beacons of the tracker the stream listens to.
+     */
+    public interface Source {
+
+        /**
+         * Called when a snapshot subscriber arrives, on its thread.
+         *
+         * @return Copies of the active beacons, taken holding whatever the tracker is guarded by.
+         */
+        List<TrackedBeacon> copyActiveBeacons();
+    }
+
+    public static final int DEFAULT_BUFFER_SIZE = 256;
+
+    private final Executor executor;
+    private final CopyOnWriteArrayList<EventSubscription> eventSubscriptions = new CopyOnWriteArrayList<EventSubscription>();
+    private final CopyOnWriteArrayList<SnapshotSubscription> snapshotSubscriptions = new CopyOnWriteArrayList<SnapshotSubscription>();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Copies of the active beacons for snapshots. Guarded by itself.
+     */
+    private final LinkedHashMap<BeaconKey, TrackedBeacon> active = new LinkedHashMap<BeaconKey, TrackedBeacon>();
+
+    /**
+     * Bumped on every change to the active beacons. Guarded by the active beacons.
+     */
+    private long version;
+
+    /**
+     * Bumped on every event that reaches the active beacons, so a refresh from the source can
+     * tell one slipped in while it copied. Only written on the tracker's thread.
+     */
+    private volatile long changes;
+    private volatile Source source;
+    private volatile boolean completed;
+
+    /**
+     * @param executor Calls the subscribers. Each subscriber is only ever called from one task
+     *                 at a time, so a thread pool is fine.
+     */
+    public BeaconStream(Executor executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("Executor cannot be null");
+        }
+        this.executor = executor;
+    }
+
+    /**
+     * The changes to the active beacons, from when a subscriber subscribes.
+     *
+     * @param bufferSize How many events, or with {@link Overflow#CONFLATE_PER_BEACON} how many
+     *                   beacons, can wait for each subscriber.
+     */
+    public Publisher<BeaconEvent> events(final Overflow overflow, final int bufferSize) {
+        if (overflow == null) {
+            throw new IllegalArgumentException("Overflow cannot be null");
+        }
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("Buffer size must be at least 1");
+        }
+        return new Publisher<BeaconEvent>() {
+            @Override
+            public void subscribe(Subscriber<? super BeaconEvent> subscriber) {
+                if (subscriber == null) {
+                    throw new NullPointerException("Subscriber cannot be null");
+                }
+                EventSubscription subscription = overflow == Overflow.DROP_OLDEST
+                        ? new DropOldestSubscription(subscriber, bufferSize)
+                        : new ConflatingSubscription(subscriber, bufferSize);
+                eventSubscriptions.add(subscription);
+                // Read after adding, so either this sees it or complete() sees the subscription.
+                subscription.start(completed);
+            }
+        };
+    }
+
+    /**
+     * Snapshots of the active beacons. A subscriber first gets the current snapshot, and then,
+     * whenever it requests more, the latest one if anything changed since the last it got.
+     */
+    public Publisher<PresenceSnapshot> snapshots() {
+        return new Publisher<PresenceSnapshot>() {
+            @Override
+            public void subscribe(Subscriber<? super PresenceSnapshot> subscriber) {
+                if (subscriber == null) {
+                    throw new NullPointerException("Subscriber cannot be null");
+                }
+                SnapshotSubscription subscription = new SnapshotSubscription(subscriber);
+                boolean first = snapshotSubscriptions.isEmpty();
+                snapshotSubscriptions.add(subscription);
+                if (first) {
+                    // Signal changes weren't kept while nobody subscribed.
+                    refresh();
+                }
+                // Read after adding, so either this sees it or complete() sees the subscription.
+                subscription.start(completed);
+            }
+        };
+    }
+
+    /**
+     * Where a snapshot subscriber arriving with none before it gets the active beacons from.
+     * Without one, it gets the beacons as they were last detected or moved.
+     */
+    public void setSource(Source source) {
+        this.source = source;
+    }
+
+    /**
+     * The number of events dropped because a subscriber's buffer was full.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    @Override
+    public void onBeaconDetected(TrackedBeacon beacon) {
+        publish(BeaconEvent.DETECTED, beacon, beacon.proximity);
+    }
+
+    @Override
+    public void onBeaconChanged(TrackedBeacon beacon) {
+        publish(BeaconEvent.CHANGED, beacon, beacon.proximity);
+    }
+
+    @Override
+    public void onProximityChanged(TrackedBeacon beacon, int previousProximity) {
+        publish(BeaconEvent.MOVED, beacon, previousProximity);
+    }
+
+    @Override
+    public void onBeaconExpired(TrackedBeacon beacon) {
+        publish(BeaconEvent.EXPIRED, beacon, beacon.proximity);
+    }
+
+    /**
+     * Forgets the active beacons without publishing that they expired, like
+     * {@link BeaconTracker#clear()}.
+     */
+    public void clear() {
+        synchronized (active) {
+            active.clear();
+            version++;
+        }
+        for (SnapshotSubscription subscription : snapshotSubscriptions) {
+            subscription.schedule();
+        }
+    }
+
+    /**
+     * Completes every subscriber once it has been sent what is waiting for it. Later
+     * subscribers are completed right away.
+     */
+    public void complete() {
+        completed = true;
+        for (EventSubscription subscription : eventSubscriptions) {
+            subscription.complete();
+        }
+        for (SnapshotSubscription subscription : snapshotSubscriptions) {
+            subscription.complete();
+        }
+    }
+
+    private void publish(int type, TrackedBeacon beacon, int previousProximity) {
+        if (completed) {
+            return;
+        }
+        boolean events = !eventSubscriptions.isEmpty();
+        boolean snapshots = !snapshotSubscriptions.isEmpty();
+        if (type == BeaconEvent.CHANGED && !events && !snapshots) {
+            // The common case by far, once per advertisement. Nobody would see the copy.
+            return;
+        }
+        changes++;
+        if (type == BeaconEvent.EXPIRED) {
+            synchronized (active) {
+                active.remove(beacon.key);
+                version++;
+            }
+        }
+        TrackedBeacon copy = null;
+        if (type != BeaconEvent.EXPIRED && (type != BeaconEvent.CHANGED || snapshots)) {
+            copy = new TrackedBeacon(beacon);
+            synchronized (active) {
+                active.put(copy.key, copy);
+                version++;
+            }
+        }
+        if (events) {
+            if (copy == null) {
+                copy = new TrackedBeacon(beacon);
+            }
+            BeaconEvent event = new BeaconEvent(type, copy, previousProximity);
+            for (EventSubscription subscription : eventSubscriptions) {
+                subscription.offer(event);
+            }
+        }
+        for (SnapshotSubscription subscription : snapshotSubscriptions) {
+            subscription.schedule();
+        }
+    }
+
+    /**
+     * Replaces the active beacons with the source's, unless an event keeps getting in between
+     * the copy and the replacement. The events since then are in them either way.
+     */
+    private void refresh() {
+        Source source = this.source;
+        if (source == null) {
+            return;
+        }
+        for (int attempt = 0; attempt < 3; attempt++) {
+            long before = changes;
+            List<TrackedBeacon> beacons = source.copyActiveBeacons();
+            synchronized (active) {
+                if (changes != before) {
+                    continue;
+                }
+                active.clear();
+                for (TrackedBeacon beacon : beacons) {
+                    active.put(beacon.key, beacon);
+                }
+                version++;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sends a subscriber what it requested, from one task on the executor at a time.
+     */
+    private abstract class StreamSubscription<T> implements Subscription, Runnable {
+
+        final Subscriber<? super T> subscriber;
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger work = new AtomicInteger();
+        private boolean subscribed;
+        private volatile boolean cancelled;
+        private volatile boolean completing;
+        private volatile IllegalArgumentException badRequest;
+
+        StreamSubscription(Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        /**
+         * Calls onSubscribe from the executor, so it can't overlap with onNext.
+         */
+        void start(boolean completed) {
+            if (completed) {
+                // Not the other way, complete() may have got to it first.
+                completing = true;
+            }
+            schedule();
+        }
+
+        void complete() {
+            completing = true;
+            schedule();
+        }
+
+        void schedule() {
+            if (work.getAndIncrement() == 0) {
+                executor.execute(this);
+            }
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                badRequest = new IllegalArgumentException("Requested " + n + ", must be positive");
+            } else {
+                long current;
+                long next;
+                do {
+                    current = requested.get();
+                    next = current + n < 0 ? Long.MAX_VALUE : current + n;
+                } while (!requested.compareAndSet(current, next));
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            remove();
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                drain();
+                missed = work.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void drain() {
+            if (cancelled) {
+                return;
+            }
+            if (!subscribed) {
+                subscribed = true;
+                subscriber.onSubscribe(this);
+            }
+            if (badRequest != null) {
+                cancel();
+                subscriber.onError(badRequest);
+                return;
+            }
+            long demand = requested.get();
+            long sent = 0;
+            while (sent != demand && !cancelled) {
+                T next = poll();
+                if (next == null) {
+                    break;
+                }
+                try {
+                    subscriber.onNext(next);
+                } catch (RuntimeException e) {
+                    // A subscriber that throws is broken, stop sending to it.
+                    cancel();
+                    return;
+                }
+                sent++;
+            }
+            if (sent != 0 && demand != Long.MAX_VALUE) {
+                requested.addAndGet(-sent);
+            }
+            if (completing && !cancelled && isEmpty()) {
+                cancel();
+                subscriber.onComplete();
+            }
+        }
+
+        /**
+         * The next item for the subscriber, or null if there is nothing waiting.
+         */
+        abstract T poll();
+
+        abstract boolean isEmpty();
+
+        abstract void remove();
+    }
+
+    private abstract class EventSubscription extends StreamSubscription<BeaconEvent> {
+
+        EventSubscription(Subscriber<? super BeaconEvent> subscriber) {
+            super(subscriber);
+        }
+
+        void offer(BeaconEvent event) {
+            synchronized (this) {
+                if (add(event)) {
+                    dropped.incrementAndGet();
+                }
+            }
+            schedule();
+        }
+
+        /**
+         * Buffers the event. Called holding the subscription.
+         *
+         * @return Whether an event was dropped to make room.
+         */
+        abstract boolean add(BeaconEvent event);
+
+        @Override
+        void remove() {
+            eventSubscriptions.remove(this);
+        }
+    }
+
+    private class DropOldestSubscription extends EventSubscription {
+
+        private final ArrayDeque<BeaconEvent> buffer;
+        private final int bufferSize;
+
+        DropOldestSubscription(Subscriber<? super BeaconEvent> subscriber, int bufferSize) {
+            super(subscriber);
+            this.bufferSize = bufferSize;
+            buffer = new ArrayDeque<BeaconEvent>(Math.min(bufferSize, 16));
+        }
+
+        @Override
+        boolean add(BeaconEvent event) {
+            boolean full = buffer.size() == bufferSize;
+            if (full) {
+                buffer.pollFirst();
+            }
+            buffer.addLast(event);
+            return full;
+        }
+
+        @Override
+        synchronized BeaconEvent poll() {
+            return buffer.pollFirst();
+        }
+
+        @Override
+        synchronized boolean isEmpty() {
+            return buffer.isEmpty();
+        }
+    }
+
+    private class ConflatingSubscription extends EventSubscription {
+
+        private final LinkedHashMap<BeaconKey, BeaconEvent> pending = new LinkedHashMap<BeaconKey, BeaconEvent>();
+        private final int bufferSize;
+
+        ConflatingSubscription(Subscriber<? super BeaconEvent> subscriber, int bufferSize) {
+            super(subscriber);
+            this.bufferSize = bufferSize;
+        }
+
+        @Override
+        boolean add(BeaconEvent event) {
+            BeaconKey key = event.getBeacon().key;
+            BeaconEvent previous = pending.get(key);
+            if (previous != null) {
+                BeaconEvent conflated = previous.conflate(event);
+                if (conflated == null) {
+                    pending.remove(key);
+                } else {
+                    pending.put(key, conflated);
+                }
+                return false;
+            }
+            pending.put(key, event);
+            if (pending.size() > bufferSize) {
+                Iterator<BeaconEvent> eldest = pending.values().iterator();
+                eldest.next();
+                eldest.remove();
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        synchronized BeaconEvent poll() {
+            Iterator<Map.Entry<BeaconKey, BeaconEvent>> first = pending.entrySet().iterator();
+            if (!first.hasNext()) {
+                return null;
+            }
+            BeaconEvent event = first.next().getValue();
+            first.remove();
+            return event;
+        }
+
+        @Override
+        synchronized boolean isEmpty() {
+            return pending.isEmpty();
+        }
+    }
+
+    private class SnapshotSubscription extends StreamSubscription<PresenceSnapshot> {
+
+        /**
+         * The version of the last snapshot sent. Only touched on the executor.
+         */
+        private long sentVersion = -1;
+
+        SnapshotSubscription(Subscriber<? super PresenceSnapshot> subscriber) {
+            super(subscriber);
+        }
+
+        @Override
+        PresenceSnapshot poll() {
+            List<TrackedBeacon> beacons;
+            synchronized (active) {
+                if (version == sentVersion) {
+                    return null;
+                }
+                sentVersion = version;
+                beacons = new ArrayList<TrackedBeacon>(active.values());
+            }
+            long time = 0;
+            for (TrackedBeacon beacon : beacons) {
+                time = Math.max(time, beacon.lastSeen);
+            }
+            return new PresenceSnapshot(time, beacons);
+        }
+
+        @Override
+        boolean isEmpty() {
+            synchronized (active) {
+                return version == sentVersion;
+            }
+        }
+
+        @Override
+        void remove() {
+            snapshotSubscriptions.remove(this);
+        }
+    }
+}
@@ -0,0 +1,383 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps track of the beacons that are currently active. Every advertisement is decoded, checked
+ * against the uuid filter and upserted into the active beacons, and beacons that haven't been seen
+ * for the expiration interval are expired. The listener hears about every beacon that is detected,
+ * whose RSSI changes, or that expires.
+ * <p/>
+ * Decoding and updating a beacon that is already active allocates nothing. The uuid and address
+ * Strings come from {@link IdentityStrings}, so the active beacons share one instance of each.
+ * The tracker is not thread safe, it is meant to be fed from one thread. Time is whatever clock
+ * the caller passes in, in milliseconds.
+ */
+public class BeaconTracker {
+
+    /**
+     * Hears about changes to the active beacons.
+     */
+    public interface Listener {
+
+        /**
+         * A beacon that wasn't active was seen.
+         */
+        void onBeaconDetected(TrackedBeacon beacon);
+
+        /**
+         * The RSSI of an active beacon changed, meaning the distance is likely different.
+         */
+        void onBeaconChanged(TrackedBeacon beacon);
+
+        /**
+         * A beacon wasn't seen for the expiration interval, and is no longer active.
+         */
+        void onBeaconExpired(TrackedBeacon beacon);
+    }
+
+    /**
+     * A listener that also hears about beacons moving between proximity zones. Unlike RSSI
+     * changes, which come with nearly every packet, these only come when a beacon has really
+     * moved, past the zone margins and for the minimum dwell time.
+     */
+    public interface ProximityListener extends Listener {
+
+        /**
+         * An active beacon moved into another proximity zone.
+         *
+         * @param previousProximity The zone it was in.
+         */
+        void onProximityChanged(TrackedBeacon beacon, int previousProximity);
+    }
+
+    private final Listener listener;
+    private final ProximityListener proximityListener;
+    private final Map<BeaconKey, TrackedBeacon> beacons = new HashMap<BeaconKey, TrackedBeacon>();
+    private final IBeaconFrame frame = new IBeaconFrame();
+    private final BeaconKey lookupKey = new BeaconKey(0, 0, 0, 0);
+    private final IdentityStrings strings = new IdentityStrings();
+    private AdaptiveExpiry adaptiveExpiry;
+    private RssiHistory rssiHistory;
+    private long expirationInterval;
+
+    /**
+     * When the current scan window started. Gaps from before it span a pause in scanning.
+     */
+    private long windowStart = Long.MIN_VALUE;
+    private ProximityZones zones = ProximityZones.DEFAULT;
+
+    /**
+     * The uuids to let through, or null to let everything through.
+     */
+    private UuidFilter uuidFilter;
+
+    /**
+     * The beacons to let through, or null to let everything through.
+     */
+    private BeaconAllowlist allowlist;
+
+    /**
+     * @param expirationInterval The time in milliseconds that a beacon will remain active since
+     *                           the last time it was detected.
+     * @param listener           Hears about changes to the active beacons, and about beacons
+     *                           changing zones if it is a {@link ProximityListener}.
+     */
+    public BeaconTracker(long expirationInterval, Listener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("Listener cannot be null");
+        }
+        this.expirationInterval = expirationInterval;
+        this.listener = listener;
+        proximityListener = listener instanceof ProximityListener ? (ProximityListener) listener : null;
+    }
+
+    public long getExpirationInterval() {
+        return expirationInterval;
+    }
+
+    /**
+     * Changes the expiration interval. Beacons that are already active keep their expiration time
+     * until they are seen again.
+     */
+    public void setExpirationInterval(long expirationInterval) {
+        this.expirationInterval = expirationInterval;
+    }
+
+    public AdaptiveExpiry getAdaptiveExpiry() {
+        return adaptiveExpiry;
+    }
+
+    /**
+     * Expires every beacon after a time worked out from its own advertising interval and packet
+     * loss, see {@link AdaptiveExpiry}. The expiration interval is still used for beacons that
+     * haven't been seen often enough to tell. Null expires every beacon after the expiration
+     * interval.
+     */
+    public void setAdaptiveExpiry(AdaptiveExpiry adaptiveExpiry) {
+        this.adaptiveExpiry = adaptiveExpiry;
+    }
+
+    public RssiHistory getRssiHistory() {
+        return rssiHistory;
+    }
+
+    /**
+     * Records the RSSI of every advertisement received into the history, null records nothing.
+     */
+    public void setRssiHistory(RssiHistory rssiHistory) {
+        this.rssiHistory = rssiHistory;
+    }
+
+    /**
+     * Tells the tracker that the scanner started again after a pause, so the gap since the last
+     * packet of every beacon isn't taken as its advertising interval.
+     *
+     * @param now The current time in milliseconds.
+     */
+    public void onScanWindowStarted(long now) {
+        windowStart = now;
+    }
+
+    public ProximityZones getProximityZones() {
+        return zones;
+    }
+
+    /**
+     * Changes the zones the proximity of beacons is computed with. Beacons that are already
+     * active move into the new zones when they are seen again.
+     */
+    public void setProximityZones(ProximityZones zones) {
+        if (zones == null) {
+            throw new IllegalArgumentException("Zones cannot be null");
+        }
+        this.zones = zones;
+    }
+
+    /**
+     * Only track beacons with one of these uuids. If null or empty, all beacons are tracked.
+     *
+     * @throws IllegalArgumentException If a uuid is malformed.
+     */
+    public void setUuidFilter(String... uuids) {
+        uuidFilter = UuidFilter.of(uuids);
+    }
+
+    public BeaconAllowlist getAllowlist() {
+        return allowlist;
+    }
+
+    /**
+     * Only track the beacons on the list, on top of the uuid filter. Null tracks all of them.
+     */
+    public void setAllowlist(BeaconAllowlist allowlist) {
+        this.allowlist = allowlist;
+    }
+
+    /**
+     * Handles an advertisement.
+     *
+     * @param scanRecord The raw advertisement bytes.
+     * @param rssi       The RSSI the advertisement was received with.
+     * @param address    The mac address of the sender, may be null.
+     * @param now        The current time in milliseconds.
+     * @return The beacon that was updated, or null if the advertisement isn't an iBeacon or
+     * didn't pass the filter.
+     */
+    public TrackedBeacon onAdvertisement(byte[] scanRecord, int rssi, String address, long now) {
+        if (!frame.parse(scanRecord)) {
+            return null;
+        }
+        return onFrame(frame, rssi, address, now);
+    }
+
+    /**
+     * Handles an advertisement that was already decoded.
+     *
+     * @see #onAdvertisement(byte[], int, String, long)
+     */
+    public TrackedBeacon onFrame(IBeaconFrame frame, int rssi, String address, long now) {
+        if (!passes(frame)) {
+            return null;
+        }
+        return track(frame, rssi, address, now);
+    }
+
+    /**
+     * Whether the frame passes the uuid filter and the allowlist.
+     */
+    private boolean passes(IBeaconFrame frame) {
+        UuidFilter filter = uuidFilter;
+        if (filter != null && !filter.matches(frame)) {
+            return false;
+        }
+        BeaconAllowlist allowlist = this.allowlist;
+        return allowlist == null || allowlist.contains(frame);
+    }
+
+    /**
+     * Upserts the beacon in a frame that already passed the filter.
+     */
+    private TrackedBeacon track(IBeaconFrame frame, int rssi, String address, long now) {
+        TrackedBeacon beacon = beacons.get(lookupKey.set(frame));
+        if (beacon == null) {
+            beacon = new TrackedBeacon(BeaconKey.of(frame), strings.uuid(frame.uuidMostSignificantBits, frame.uuidLeastSignificantBits));
+            beacon.firstSeen = now;
+            update(beacon, frame.txPower, rssi, address, now, true);
+            beacons.put(beacon.key, beacon);
+            listener.onBeaconDetected(beacon);
+        } else {
+            boolean changed = beacon.rssi != rssi;
+            int previousProximity = beacon.proximity;
+            update(beacon, frame.txPower, rssi, address, now, false);
+            if (changed) {
+                listener.onBeaconChanged(beacon);
+            }
+            if (beacon.proximity != previousProximity && proximityListener != null) {
+                proximityListener.onProximityChanged(beacon, previousProximity);
+            }
+        }
+        return beacon;
+    }
+
+    /**
+     * Expires every beacon whose expiration time has passed.
+     *
+     * @param now The current time in milliseconds.
+     * @return The earliest expiration time of the beacons still active, or Long.MAX_VALUE if
+     * there are none.
+     */
+    public long expire(long now) {
+        long next = Long.MAX_VALUE;
+        List<TrackedBeacon> expired = null;
+        Iterator<TrackedBeacon> iterator = beacons.values().iterator();
+        while (iterator.hasNext()) {
+            TrackedBeacon beacon = iterator.next();
+            if (beacon.expirationTime <= now) {
+                iterator.remove();
+                if (expired == null) {
+                    expired = new ArrayList<TrackedBeacon>();
+                }
+                expired.add(beacon);
+            } else if (beacon.expirationTime < next) {
+                next = beacon.expirationTime;
+            }
+        }
+        // Tell the listener once the map is consistent, in case it looks at the tracker.
+        if (expired != null) {
+            for (TrackedBeacon beacon : expired) {
+                listener.onBeaconExpired(beacon);
+            }
+        }
+        return next;
+    }
+
+    /**
+     * The active beacon with the identity, or null if it isn't active.
+     */
+    public TrackedBeacon get(BeaconKey key) {
+        return beacons.get(key);
+    }
+
+    /**
+     * The number of active beacons.
+     */
+    public int size() {
+        return beacons.size();
+    }
+
+    /**
+     * A copy of the list of active beacons.
+     */
+    public List<TrackedBeacon> getBeacons() {
+        return new ArrayList<TrackedBeacon>(beacons.values());
+    }
+
+    /**
+     * Forgets every active beacon, without expiring them.
+     */
+    public void clear() {
+        beacons.clear();
+    }
+
+    private void update(TrackedBeacon beacon, int txPower, int rssi, String address, long now, boolean isNew) {
+        if (isNew) {
+            beacon.txPower = txPower;
+            beacon.rssi = rssi;
+            beacon.distance = Distance.estimate(txPower, rssi);
+            beacon.proximity = zones.zoneFor(beacon.distance);
+            beacon.pendingProximity = beacon.proximity;
+        } else if (beacon.rssi != rssi || beacon.txPower != txPower) {
+            beacon.txPower = txPower;
+            beacon.rssi = rssi;
+            beacon.distance = Distance.estimate(txPower, rssi);
+            updateProximity(beacon, now);
+        } else if (beacon.pendingProximity != beacon.proximity) {
+            // Same distance, but it may have dwelled long enough in the new zone.
+            updateProximity(beacon, now);
+        }
+        if (address != null && !address.equals(beacon.bluetoothAddress)) {
+            beacon.bluetoothAddress = strings.address(address);
+        }
+        if (rssiHistory != null) {
+            rssiHistory.add(beacon, rssi, now);
+        }
+        AdaptiveExpiry adaptive = adaptiveExpiry;
+        if (adaptive == null) {
+            beacon.expirationTime = now + expirationInterval;
+        } else {
+            if (!isNew && beacon.lastSeen >= windowStart) {
+                adaptive.onGap(beacon, now - beacon.lastSeen);
+            }
+            beacon.expirationTime = now + adaptive.expiryFor(beacon, expirationInterval);
+        }
+        beacon.lastSeen = now;
+    }
+
+    /**
+     * Moves the beacon into the zone its distance is in, once it has been there for the minimum
+     * dwell time.
+     */
+    private void updateProximity(TrackedBeacon beacon, long now) {
+        int zone = zones.next(beacon.proximity, beacon.distance);
+        if (zone == beacon.proximity) {
+            beacon.pendingProximity = zone;
+            return;
+        }
+        if (zone != beacon.pendingProximity) {
+            beacon.pendingProximity = zone;
+            beacon.pendingSince = now;
+        }
+        if (now - beacon.pendingSince >= zones.getMinDwell()) {
+            beacon.proximity = zone;
+        }
+    }
+}
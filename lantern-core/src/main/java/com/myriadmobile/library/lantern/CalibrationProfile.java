@@ -0,0 +1,166 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The curve that turns an RSSI into a distance for one kind of device. Beyond the calibrated tx
+ * power, the distance is {@code coefficient * (rssi / txPower) ^ exponent + intercept}.
+ * <p/>
+ * Since RSSI and tx power are both small integers, the distances for every RSSI are computed once
+ * per tx power, the first time a beacon with that tx power is seen, and looked up from then on.
+ * The tables are shared by every beacon, and safe to use from any thread.
+ */
+public final class CalibrationProfile {
+
+    /**
+     * The curve fitted on a Nexus 4, which the library always used.
+     */
+    public static final CalibrationProfile DEFAULT = new CalibrationProfile("default", 0.89976, 7.7095, 0.111);
+
+    private static final int MIN_VALUE = Byte.MIN_VALUE;
+    private static final int TABLE_SIZE = 256;
+
+    private final String name;
+    private final double coefficient;
+    private final double exponent;
+    private final double intercept;
+
+    /**
+     * The distance for every RSSI, by tx power. Both are offset by {@link #MIN_VALUE}.
+     */
+    private final AtomicReferenceArray<double[]> tables = new AtomicReferenceArray<double[]>(TABLE_SIZE);
+
+    public CalibrationProfile(String name, double coefficient, double exponent, double intercept) {
+        if (name == null) {
+            throw new IllegalArgumentException("Name cannot be null");
+        }
+        this.name = name;
+        this.coefficient = coefficient;
+        this.exponent = exponent;
+        this.intercept = intercept;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public double getCoefficient() {
+        return coefficient;
+    }
+
+    public double getExponent() {
+        return exponent;
+    }
+
+    public double getIntercept() {
+        return intercept;
+    }
+
+    /**
+     * Computes the distance with the curve.
+     *
+     * @param txPower The calibrated tx power of a beacon.
+     * @param rssi    The RSSI of a beacon.
+     * @return The distance in meters, or -1 if the RSSI is unknown.
+     */
+    public double estimate(int txPower, double rssi) {
+        if (rssi == 0) {
+            return -1.0;
+        }
+
+        double ratio = rssi * 1.0 / txPower;
+        if (ratio < 1.0) {
+            return Math.pow(ratio, 10);
+        } else {
+            return coefficient * Math.pow(ratio, exponent) + intercept;
+        }
+    }
+
+    /**
+     * Looks the distance up, computing the table for the tx power if it's the first time.
+     * The result is the same as {@link #estimate(int, double)}.
+     */
+    public double lookup(int txPower, int rssi) {
+        int rssiIndex = rssi - MIN_VALUE;
+        int txPowerIndex = txPower - MIN_VALUE;
+        if (rssiIndex < 0 || rssiIndex >= TABLE_SIZE || txPowerIndex < 0 || txPowerIndex >= TABLE_SIZE) {
+            return estimate(txPower, rssi);
+        }
+        double[] table = tables.get(txPowerIndex);
+        if (table == null) {
+            table = buildTable(txPower);
+            // Another thread may have built it too, either one will do.
+            tables.compareAndSet(txPowerIndex, null, table);
+        }
+        return table[rssiIndex];
+    }
+
+    /**
+     * Writes the profile out as a single line, which {@link #decode(String)} reads back.
+     */
+    public String encode() {
+        return coefficient + "," + exponent + "," + intercept + "," + name;
+    }
+
+    /**
+     * Reads a profile written out by {@link #encode()}.
+     *
+     * @throws IllegalArgumentException If the line isn't an encoded profile.
+     */
+    public static CalibrationProfile decode(String encoded) {
+        String[] parts = encoded != null ? encoded.split(",", 4) : new String[0];
+        if (parts.length != 4) {
+            throw new IllegalArgumentException("Not a calibration profile: " + encoded);
+        }
+        try {
+            return new CalibrationProfile(parts[3], Double.parseDouble(parts[0]), Double.parseDouble(parts[1]),
+                    Double.parseDouble(parts[2]));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a calibration profile: " + encoded, e);
+        }
+    }
+
+    /**
+     * Whether the table for the tx power was built.
+     */
+    boolean hasTable(int txPower) {
+        return tables.get(txPower - MIN_VALUE) != null;
+    }
+
+    private double[] buildTable(int txPower) {
+        double[] table = new double[TABLE_SIZE];
+        for (int i = 0; i < TABLE_SIZE; i++) {
+            table[i] = estimate(txPower, i + MIN_VALUE);
+        }
+        return table;
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + coefficient + ", " + exponent + ", " + intercept + ")";
+    }
+}
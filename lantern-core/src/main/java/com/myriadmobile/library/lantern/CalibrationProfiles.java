@@ -0,0 +1,88 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The calibration profiles known for each device model. Radios and antennas differ enough between
+ * handsets that one curve puts beacons in the wrong proximity on many of them, so a profile
+ * fitted on the model with {@link CalibrationSession} should be registered for it. Models without
+ * one get {@link CalibrationProfile#DEFAULT}. Safe to use from any thread.
+ */
+public final class CalibrationProfiles {
+
+    private static final Map<String, CalibrationProfile> profiles = new HashMap<String, CalibrationProfile>();
+
+    private CalibrationProfiles() {
+
+    }
+
+    /**
+     * Registers the profile for a device model, replacing the one it had.
+     *
+     * @param model The model, as in {@code android.os.Build.MODEL}. Case and surrounding
+     *              whitespace don't matter.
+     */
+    public static void register(String model, CalibrationProfile profile) {
+        if (profile == null) {
+            throw new IllegalArgumentException("Profile cannot be null");
+        }
+        synchronized (profiles) {
+            profiles.put(normalize(model), profile);
+        }
+    }
+
+    /**
+     * Forgets the profile for a device model.
+     */
+    public static void unregister(String model) {
+        synchronized (profiles) {
+            profiles.remove(normalize(model));
+        }
+    }
+
+    /**
+     * The profile registered for the device model, or the default one.
+     */
+    public static CalibrationProfile forModel(String model) {
+        if (model == null) {
+            return CalibrationProfile.DEFAULT;
+        }
+        synchronized (profiles) {
+            CalibrationProfile profile = profiles.get(normalize(model));
+            return profile != null ? profile : CalibrationProfile.DEFAULT;
+        }
+    }
+
+    private static String normalize(String model) {
+        if (model == null) {
+            throw new IllegalArgumentException("Model cannot be null");
+        }
+        return model.trim().toLowerCase(Locale.US);
+    }
+}
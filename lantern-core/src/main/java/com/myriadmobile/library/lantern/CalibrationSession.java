@@ -0,0 +1,303 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern;
+
+/**
+ * Walks through calibrating the distance curve for a device. A beacon is put at each of a series
+ * of known distances from the device in turn, and the RSSI of its packets is collected at each.
+ * The curve of {@link CalibrationProfile} is then fitted to the mean RSSI at every distance.
+ * <pre>
+ * CalibrationSession session = new CalibrationSession(Build.MODEL);
+ * // Show "Put the beacon at " + session.getCurrentDistance() + " meters".
+ * // For every packet from the beacon:
+ * if (session.addSample(beacon.getTxPower(), beacon.getRssi())) {
+ *     session.nextStep();
+ * }
+ * // Once session.isComplete():
+ * CalibrationProfiles.register(Build.MODEL, session.fit());
+ * </pre>
+ * Only distances where the RSSI is below the tx power are used, since the curve only covers
+ * those, so distances under a meter don't help.
+ */
+public class CalibrationSession {
+
+    public static final int DEFAULT_SAMPLES_PER_STEP = 30;
+
+    /**
+     * The distances in meters the beacon is put at, by default.
+     */
+    public static final double[] DEFAULT_DISTANCES = {1.5, 2, 3, 5, 8};
+
+    /**
+     * The number of intercepts tried before narrowing in on the best one.
+     */
+    private static final int INTERCEPT_STEPS = 64;
+
+    private final String name;
+    private final double[] distances;
+    private final int samplesPerStep;
+    private final long[] rssiSums;
+    private final int[] sampleCounts;
+    private int txPower;
+    private int step;
+
+    public CalibrationSession(String name) {
+        this(name, DEFAULT_DISTANCES, DEFAULT_SAMPLES_PER_STEP);
+    }
+
+    /**
+     * @param name           The name of the fitted profile, usually the device model.
+     * @param distances      The distances in meters the beacon is put at, in order.
+     * @param samplesPerStep The number of packets to collect at each distance.
+     */
+    public CalibrationSession(String name, double[] distances, int samplesPerStep) {
+        if (distances == null || distances.length < 3) {
+            throw new IllegalArgumentException("At least three distances are needed to fit the curve");
+        }
+        if (samplesPerStep < 1) {
+            throw new IllegalArgumentException("Samples per step must be at least 1");
+        }
+        for (double distance : distances) {
+            if (!(distance > 0)) {
+                throw new IllegalArgumentException("Distances must be positive");
+            }
+        }
+        this.name = name;
+        this.distances = distances.clone();
+        this.samplesPerStep = samplesPerStep;
+        rssiSums = new long[distances.length];
+        sampleCounts = new int[distances.length];
+    }
+
+    /**
+     * The index of the distance the beacon should be at now.
+     */
+    public int getStep() {
+        return step;
+    }
+
+    public int getStepCount() {
+        return distances.length;
+    }
+
+    /**
+     * The distance in meters the beacon should be at now.
+     */
+    public double getCurrentDistance() {
+        checkNotComplete();
+        return distances[step];
+    }
+
+    /**
+     * The number of packets collected at the current distance.
+     */
+    public int getSampleCount() {
+        checkNotComplete();
+        return sampleCounts[step];
+    }
+
+    /**
+     * Adds a packet received with the beacon at the current distance.
+     *
+     * @param txPower The calibrated tx power the beacon advertises.
+     * @param rssi    The RSSI the packet was received with.
+     * @return Whether enough packets were collected at the current distance to move on.
+     * @throws IllegalArgumentException If the tx power isn't the same as in earlier packets, which
+     *                                  means they came from another beacon.
+     */
+    public boolean addSample(int txPower, int rssi) {
+        checkNotComplete();
+        if (txPower == 0 || rssi == 0) {
+            // No measurement.
+            return sampleCounts[step] >= samplesPerStep;
+        }
+        if (this.txPower == 0) {
+            this.txPower = txPower;
+        } else if (this.txPower != txPower) {
+            throw new IllegalArgumentException("Expected tx power " + this.txPower + " but was " + txPower);
+        }
+        rssiSums[step] += rssi;
+        sampleCounts[step]++;
+        return sampleCounts[step] >= samplesPerStep;
+    }
+
+    /**
+     * Moves on to the next distance.
+     *
+     * @throws IllegalStateException If no packets were collected at the current distance.
+     */
+    public void nextStep() {
+        checkNotComplete();
+        if (sampleCounts[step] == 0) {
+            throw new IllegalStateException("No samples at " + distances[step] + " meters");
+        }
+        step++;
+    }
+
+    /**
+     * Whether every distance was done.
+     */
+    public boolean isComplete() {
+        return step == distances.length;
+    }
+
+    /**
+     * Fits the curve to the distances that have packets, which can be done before the session is
+     * complete.
+     *
+     * @throws IllegalStateException If there aren't at least three distances with packets that
+     *                               are further away than the tx power is measured at.
+     */
+    public CalibrationProfile fit() {
+        double[] fitDistances = new double[distances.length];
+        double[] ratios = new double[distances.length];
+        int count = 0;
+        for (int i = 0; i < distances.length; i++) {
+            if (sampleCounts[i] == 0) {
+                continue;
+            }
+            double ratio = ((double) rssiSums[i] / sampleCounts[i]) / txPower;
+            if (ratio >= 1) {
+                fitDistances[count] = distances[i];
+                ratios[count] = ratio;
+                count++;
+            }
+        }
+        return fit(name, trim(fitDistances, count), trim(ratios, count));
+    }
+
+    /**
+     * Fits {@code distance = coefficient * ratio ^ exponent + intercept} to the points by least
+     * squares on the distance. For a given intercept the rest is a straight line in log space, so
+     * the intercept is searched for between zero and the closest distance, solving the line at each.
+     *
+     * @param name      The name of the profile.
+     * @param distances The known distances in meters.
+     * @param ratios    The mean RSSI at each distance divided by the tx power, at least 1.
+     * @throws IllegalStateException If there are fewer than three distinct points.
+     */
+    static CalibrationProfile fit(String name, double[] distances, double[] ratios) {
+        if (distances.length < 3 || distinct(ratios) < 3) {
+            throw new IllegalStateException("Need samples at three distances beyond the tx power to fit the curve");
+        }
+        double minDistance = Double.MAX_VALUE;
+        for (double distance : distances) {
+            minDistance = Math.min(minDistance, distance);
+        }
+        // The intercept has to stay under the closest distance for the log to exist.
+        double upper = minDistance * (1 - 1e-6);
+        double[] line = new double[2];
+
+        double bestIntercept = 0;
+        double bestError = Double.MAX_VALUE;
+        for (int i = 0; i <= INTERCEPT_STEPS; i++) {
+            double intercept = upper * i / INTERCEPT_STEPS;
+            double error = error(distances, ratios, intercept, line);
+            if (error < bestError) {
+                bestError = error;
+                bestIntercept = intercept;
+            }
+        }
+
+        // Golden section search around the best step.
+        double step = upper / INTERCEPT_STEPS;
+        double low = Math.max(0, bestIntercept - step);
+        double high = Math.min(upper, bestIntercept + step);
+        double golden = (Math.sqrt(5) - 1) / 2;
+        for (int i = 0; i < 60; i++) {
+            double a = high - golden * (high - low);
+            double b = low + golden * (high - low);
+            if (error(distances, ratios, a, line) < error(distances, ratios, b, line)) {
+                high = b;
+            } else {
+                low = a;
+            }
+        }
+        double intercept = (low + high) / 2;
+        if (error(distances, ratios, intercept, line) > bestError) {
+            intercept = bestIntercept;
+        }
+        error(distances, ratios, intercept, line);
+        return new CalibrationProfile(name, Math.exp(line[0]), line[1], intercept);
+    }
+
+    /**
+     * Fits the line in log space for the intercept, and returns the squared error on the distance.
+     *
+     * @param line Receives the log of the coefficient and the exponent.
+     */
+    private static double error(double[] distances, double[] ratios, double intercept, double[] line) {
+        int n = distances.length;
+        double sumX = 0;
+        double sumY = 0;
+        double sumXX = 0;
+        double sumXY = 0;
+        for (int i = 0; i < n; i++) {
+            double x = Math.log(ratios[i]);
+            double y = Math.log(distances[i] - intercept);
+            sumX += x;
+            sumY += y;
+            sumXX += x * x;
+            sumXY += x * y;
+        }
+        double slope = (n * sumXY - sumX * sumY) / (n * sumXX - sumX * sumX);
+        double offset = (sumY - slope * sumX) / n;
+        line[0] = offset;
+        line[1] = slope;
+        double coefficient = Math.exp(offset);
+        double error = 0;
+        for (int i = 0; i < n; i++) {
+            double difference = coefficient * Math.pow(ratios[i], slope) + intercept - distances[i];
+            error += difference * difference;
+        }
+        return error;
+    }
+
+    private static int distinct(double[] values) {
+        int count = 0;
+        for (int i = 0; i < values.length; i++) {
+            boolean seen = false;
+            for (int j = 0; j < i && !seen; j++) {
+                seen = values[j] == values[i];
+            }
+            if (!seen) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static double[] trim(double[] values, int length) {
+        double[] trimmed = new double[length];
+        System.arraycopy(values, 0, trimmed, 0, length);
+        return trimmed;
+    }
+
+    private void checkNotComplete() {
+        if (isComplete()) {
+            throw new IllegalStateException("The session is complete");
+        }
+    }
+}
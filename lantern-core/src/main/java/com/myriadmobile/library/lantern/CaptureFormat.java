@@ -0,0 +1,133 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Layout of the binary capture files written by {@link CaptureRecorder}.
+ * <p/>
+ * A file starts with the magic number and the format version, followed by records. Every record
+ * is length prefixed, so a reader can skip records it doesn't understand and can tell a record
+ * that was cut short by a crash from the end of the file. All values are big endian.
+ * <pre>
+ * file:   int magic | short version | short reserved | record*
+ * record: int length | long timestampNanos | byte rssi | byte flags | 6 bytes address | scan record
+ * </pre>
+ * The length covers everything after the length field itself.
+ */
+final class CaptureFormat {
+
+    /**
+     * "LNTC".
+     */
+    static final int MAGIC = 0x4c4e5443;
+
+    static final short VERSION = 1;
+
+    static final int FILE_HEADER_SIZE = 8;
+
+    /**
+     * Size of a record without the scan record, including the length field.
+     */
+    static final int RECORD_HEADER_SIZE = 20;
+
+    /**
+     * Size of the fixed part of a record that the length field covers.
+     */
+    static final int RECORD_FIXED_SIZE = RECORD_HEADER_SIZE - 4;
+
+    /**
+     * Set in the flags when the record has an address.
+     */
+    static final int FLAG_HAS_ADDRESS = 0x01;
+
+    static final String FILE_EXTENSION = ".lntc";
+
+    private CaptureFormat() {
+
+    }
+
+    static void writeFileHeader(ByteBuffer buffer) {
+        buffer.putInt(MAGIC);
+        buffer.putShort(VERSION);
+        buffer.putShort((short) 0);
+    }
+
+    /**
+     * Writes a record. The buffer must have room for {@link #RECORD_HEADER_SIZE} plus the scan
+     * record.
+     *
+     * @param address The address packed with {@link #addressToLong(String)}, or -1 if unknown.
+     */
+    static void writeRecord(ByteBuffer buffer, long timestampNanos, int rssi, long address, byte[] scanRecord) {
+        buffer.putInt(RECORD_FIXED_SIZE + scanRecord.length);
+        buffer.putLong(timestampNanos);
+        buffer.put((byte) rssi);
+        buffer.put((byte) (address >= 0 ? FLAG_HAS_ADDRESS : 0));
+        long packed = address >= 0 ? address : 0;
+        for (int shift = 40; shift >= 0; shift -= 8) {
+            buffer.put((byte) (packed >>> shift));
+        }
+        buffer.put(scanRecord);
+    }
+
+    /**
+     * Packs a mac address like "00:11:22:AA:BB:CC" into the low 48 bits of a long.
+     *
+     * @return The packed address, or -1 if the address is null or malformed.
+     */
+    static long addressToLong(String address) {
+        if (address == null || address.length() != 17) {
+            return -1;
+        }
+        long packed = 0;
+        for (int i = 0; i < 6; i++) {
+            int high = Character.digit(address.charAt(i * 3), 16);
+            int low = Character.digit(address.charAt(i * 3 + 1), 16);
+            if (high < 0 || low < 0 || (i < 5 && address.charAt(i * 3 + 2) != ':')) {
+                return -1;
+            }
+            packed = (packed << 8) | (high << 4) | low;
+        }
+        return packed;
+    }
+
+    /**
+     * Unpacks a mac address packed with {@link #addressToLong(String)}.
+     */
+    static String longToAddress(long packed) {
+        char[] chars = new char[17];
+        for (int i = 0; i < 6; i++) {
+            int b = (int) (packed >>> (40 - i * 8)) & 0xff;
+            chars[i * 3] = Character.toUpperCase(Beacon.hexArray[b >>> 4]);
+            chars[i * 3 + 1] = Character.toUpperCase(Beacon.hexArray[b & 0x0f]);
+            if (i < 5) {
+                chars[i * 3 + 2] = ':';
+            }
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads back the capture files written by {@link CaptureRecorder}, one record at a time.
+ * Several files are read one after another, so a whole rotated capture can be read in order.
+ * <pre>
+ * CaptureReader reader = new CaptureReader(CaptureReader.listCaptureFiles(directory));
+ * try {
+ *     for (CaptureRecord record : reader) {
+ *         // Do something.
+ *     }
+ * } finally {
+ *     reader.close();
+ * }
+ * </pre>
+ * A record cut short at the end of a file, which is what a crash while recording leaves
+ * behind, is treated as the end of that file.
+ */
+public class CaptureReader implements Iterator<CaptureRecord>, Iterable<CaptureRecord>, Closeable {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final File[] files;
+    private int fileIndex;
+    private FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private boolean endOfFile;
+    private CaptureRecord next;
+
+    public CaptureReader(File... files) {
+        this.files = files;
+        buffer.limit(0);
+    }
+
+    /**
+     * Lists the capture files in a directory, in the order they were written.
+     */
+    public static File[] listCaptureFiles(File directory) {
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(CaptureFormat.FILE_EXTENSION);
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                return lhs.getName().compareTo(rhs.getName());
+            }
+        });
+        return files;
+    }
+
+    /**
+     * Whether a file starts like a capture file.
+     */
+    public static boolean isCaptureFile(File file) {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            byte[] magic = new byte[4];
+            return in.read(magic) == 4 && ByteBuffer.wrap(magic).getInt() == CaptureFormat.MAGIC;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Only read from.
+                }
+            }
+        }
+    }
+
+    @Override
+    public Iterator<CaptureRecord> iterator() {
+        return this;
+    }
+
+    /**
+     * @throws IllegalStateException If a file could not be read, or is not a capture file.
+     */
+    @Override
+    public boolean hasNext() {
+        if (next == null) {
+            try {
+                next = readNext();
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not read capture", e);
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public CaptureRecord next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        CaptureRecord record = next;
+        next = null;
+        return record;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+        fileIndex = files.length;
+    }
+
+    private CaptureRecord readNext() throws IOException {
+        while (true) {
+            if (channel == null) {
+                if (fileIndex >= files.length) {
+                    return null;
+                }
+                openFile(files[fileIndex++]);
+            }
+            if (!fill(4)) {
+                nextFile();
+                continue;
+            }
+            int length = buffer.getInt(buffer.position());
+            if (length < CaptureFormat.RECORD_FIXED_SIZE || length > buffer.capacity() - 4) {
+                throw new IOException("Corrupt capture record of length " + length);
+            }
+            if (!fill(4 + length)) {
+                nextFile();
+                continue;
+            }
+            buffer.getInt();
+            long timestampNanos = buffer.getLong();
+            int rssi = buffer.get();
+            int flags = buffer.get();
+            long address = 0;
+            for (int i = 0; i < 6; i++) {
+                address = (address << 8) | (buffer.get() & 0xff);
+            }
+            byte[] scanRecord = new byte[length - CaptureFormat.RECORD_FIXED_SIZE];
+            buffer.get(scanRecord);
+            return new CaptureRecord(timestampNanos, rssi,
+                    (flags & CaptureFormat.FLAG_HAS_ADDRESS) != 0 ? CaptureFormat.longToAddress(address) : null,
+                    scanRecord);
+        }
+    }
+
+    private void openFile(File file) throws IOException {
+        channel = new FileInputStream(file).getChannel();
+        buffer.clear();
+        buffer.limit(0);
+        endOfFile = false;
+        if (!fill(CaptureFormat.FILE_HEADER_SIZE) || buffer.getInt() != CaptureFormat.MAGIC) {
+            throw new IOException(file + " is not a capture file");
+        }
+        short version = buffer.getShort();
+        buffer.getShort();
+        if (version != CaptureFormat.VERSION) {
+            throw new IOException(file + " has unsupported capture version " + version);
+        }
+    }
+
+    private void nextFile() throws IOException {
+        channel.close();
+        channel = null;
+    }
+
+    /**
+     * Reads until there are at least the given number of bytes in the buffer.
+     *
+     * @return False if the file ended first.
+     */
+    private boolean fill(int bytes) throws IOException {
+        while (buffer.remaining() < bytes) {
+            if (endOfFile) {
+                return false;
+            }
+            buffer.compact();
+            if (channel.read(buffer) < 0) {
+                endOfFile = true;
+            }
+            buffer.flip();
+        }
+        return true;
+    }
+}
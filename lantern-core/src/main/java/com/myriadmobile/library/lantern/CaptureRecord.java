@@ -0,0 +1,58 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern;
+
+/**
+ * One advertisement read back from a capture file.
+ */
+public class CaptureRecord {
+
+    /**
+     * When the advertisement was received, in elapsed nanoseconds.
+     */
+    public final long timestampNanos;
+
+    /**
+     * RSSI the advertisement was received with.
+     */
+    public final int rssi;
+
+    /**
+     * Mac address of the sender, or null if it wasn't known.
+     */
+    public final String address;
+
+    /**
+     * The raw advertisement bytes.
+     */
+    public final byte[] scanRecord;
+
+    public CaptureRecord(long timestampNanos, int rssi, String address, byte[] scanRecord) {
+        this.timestampNanos = timestampNanos;
+        this.rssi = rssi;
+        this.address = address;
+        this.scanRecord = scanRecord;
+    }
+}
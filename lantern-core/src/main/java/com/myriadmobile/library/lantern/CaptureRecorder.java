@@ -0,0 +1,295 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Records raw advertisements to binary capture files, so field problems can be reproduced with
+ * the exact packet stream. See {@link CaptureFormat} for the layout and {@link CaptureReader}
+ * to read them back.
+ * <p/>
+ * {@link #record(long, int, String, byte[])} is meant to be called straight from the scan
+ * callback, so it never touches the disk. Records are copied into one of two preallocated direct
+ * buffers, and a background thread writes full buffers out through a {@link FileChannel}. If the
+ * writer falls so far behind that both buffers are full, records are dropped and counted rather
+ * than blocking the callback. Files are rotated once they reach the max file size, and the
+ * oldest ones are deleted once there are more than the max number of files.
+ */
+public class CaptureRecorder implements Closeable {
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    public static final long DEFAULT_MAX_FILE_SIZE = 4 * 1024 * 1024;
+
+    public static final int DEFAULT_MAX_FILES = 8;
+
+    /**
+     * How long a partly filled buffer can wait before it is written out.
+     */
+    public static final long FLUSH_INTERVAL = 1000;
+
+    private final File directory;
+    private final long maxFileSize;
+    private final int maxFiles;
+
+    /**
+     * Files written by this recorder are named with its start time and a sequence number, so
+     * they sort in the order they were written.
+     */
+    private final long startTime = System.currentTimeMillis();
+    private int fileSequence;
+
+    private final Object lock = new Object();
+
+    /**
+     * The buffer records are being copied into.
+     */
+    private ByteBuffer active;
+
+    /**
+     * The idle buffer, or null while the writer has it.
+     */
+    private ByteBuffer spare;
+
+    /**
+     * The buffer handed to the writer, or null if there is none waiting.
+     */
+    private ByteBuffer full;
+
+    private boolean closed;
+    private IOException failure;
+    private long recordCount;
+    private long droppedCount;
+
+    private final Thread writer;
+    private FileChannel channel;
+    private long fileSize;
+
+    public CaptureRecorder(File directory) throws IOException {
+        this(directory, DEFAULT_BUFFER_SIZE, DEFAULT_MAX_FILE_SIZE, DEFAULT_MAX_FILES);
+    }
+
+    /**
+     * @param directory   The directory the capture files are written to.
+     * @param bufferSize  The size of each of the two buffers.
+     * @param maxFileSize The size a file is rotated at.
+     * @param maxFiles    The number of files to keep, older ones are deleted.
+     */
+    public CaptureRecorder(File directory, int bufferSize, long maxFileSize, int maxFiles) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create capture directory " + directory);
+        }
+        if (maxFileSize < CaptureFormat.FILE_HEADER_SIZE + bufferSize) {
+            throw new IllegalArgumentException("Max file size must fit at least one buffer");
+        }
+        this.directory = directory;
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = Math.max(1, maxFiles);
+        active = ByteBuffer.allocateDirect(bufferSize);
+        spare = ByteBuffer.allocateDirect(bufferSize);
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "lantern-capture");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Records an advertisement. Never blocks on the disk.
+     *
+     * @return False if the record was dropped.
+     */
+    public boolean record(long timestampNanos, int rssi, String address, byte[] scanRecord) {
+        long packedAddress = CaptureFormat.addressToLong(address);
+        int size = CaptureFormat.RECORD_HEADER_SIZE + scanRecord.length;
+        synchronized (lock) {
+            if (closed || size > active.capacity()) {
+                droppedCount++;
+                return false;
+            }
+            if (active.remaining() < size) {
+                if (spare == null) {
+                    // The writer still has the other buffer.
+                    droppedCount++;
+                    return false;
+                }
+                full = active;
+                active = spare;
+                spare = null;
+                lock.notifyAll();
+            }
+            CaptureFormat.writeRecord(active, timestampNanos, rssi, packedAddress, scanRecord);
+            recordCount++;
+        }
+        return true;
+    }
+
+    /**
+     * The number of records accepted so far.
+     */
+    public long getRecordCount() {
+        synchronized (lock) {
+            return recordCount;
+        }
+    }
+
+    /**
+     * The number of records dropped because the writer couldn't keep up.
+     */
+    public long getDroppedCount() {
+        synchronized (lock) {
+            return droppedCount;
+        }
+    }
+
+    /**
+     * The error that stopped the recorder, or null if there was none.
+     */
+    public IOException getFailure() {
+        synchronized (lock) {
+            return failure;
+        }
+    }
+
+    /**
+     * Writes out what is left in the buffers and closes the current file.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            lock.notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        IOException error = getFailure();
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                ByteBuffer toWrite;
+                synchronized (lock) {
+                    while (full == null) {
+                        if (closed) {
+                            if (active.position() == 0) {
+                                return;
+                            }
+                            full = active;
+                            active = spare;
+                            spare = null;
+                        } else {
+                            lock.wait(FLUSH_INTERVAL);
+                            if (full == null && active.position() > 0 && spare != null) {
+                                full = active;
+                                active = spare;
+                                spare = null;
+                            }
+                        }
+                    }
+                    toWrite = full;
+                }
+                toWrite.flip();
+                write(toWrite);
+                toWrite.clear();
+                synchronized (lock) {
+                    full = null;
+                    spare = toWrite;
+                }
+            }
+        } catch (IOException e) {
+            synchronized (lock) {
+                failure = e;
+                closed = true;
+            }
+        } catch (InterruptedException e) {
+            synchronized (lock) {
+                closed = true;
+            }
+        } finally {
+            closeChannel();
+        }
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        if (channel == null || fileSize + buffer.remaining() > maxFileSize) {
+            rotate();
+        }
+        while (buffer.hasRemaining()) {
+            fileSize += channel.write(buffer);
+        }
+    }
+
+    private void rotate() throws IOException {
+        closeChannel();
+        File file = new File(directory, String.format("lantern-%d-%05d%s", startTime, fileSequence++,
+                CaptureFormat.FILE_EXTENSION));
+        channel = new FileOutputStream(file).getChannel();
+        ByteBuffer header = ByteBuffer.allocate(CaptureFormat.FILE_HEADER_SIZE);
+        CaptureFormat.writeFileHeader(header);
+        header.flip();
+        fileSize = 0;
+        while (header.hasRemaining()) {
+            fileSize += channel.write(header);
+        }
+        deleteOldFiles();
+    }
+
+    private void deleteOldFiles() {
+        File[] files = CaptureReader.listCaptureFiles(directory);
+        for (int i = 0; i < files.length - maxFiles; i++) {
+            files[i].delete();
+        }
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing left to do with it.
+            }
+            channel = null;
+        }
+    }
+}
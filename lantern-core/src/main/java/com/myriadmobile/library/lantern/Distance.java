@@ -0,0 +1,113 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern;
+
+/**
+ * Estimates how far away a beacon is from its RSSI.
+ */
+public final class Distance {
+
+    private Distance() {
+
+    }
+
+    private static volatile CalibrationProfile profile = CalibrationProfile.DEFAULT;
+    private static volatile ProximityZones zones = ProximityZones.DEFAULT;
+
+    /**
+     * The curve distances are estimated with.
+     */
+    public static CalibrationProfile getProfile() {
+        return profile;
+    }
+
+    /**
+     * Changes the curve distances are estimated with, for every beacon from then on.
+     */
+    public static void setProfile(CalibrationProfile profile) {
+        if (profile == null) {
+            throw new IllegalArgumentException("Profile cannot be null");
+        }
+        Distance.profile = profile;
+    }
+
+    /**
+     * The zones proximities are named and computed with.
+     */
+    public static ProximityZones getZones() {
+        return zones;
+    }
+
+    /**
+     * Changes the zones proximities are named and computed with.
+     */
+    public static void setZones(ProximityZones zones) {
+        if (zones == null) {
+            throw new IllegalArgumentException("Zones cannot be null");
+        }
+        Distance.zones = zones;
+    }
+
+    /**
+     * Estimates the distance of a beacon.
+     *
+     * @param rssi    The RSSI of a beacon.
+     * @param txPower The calibrated tx power of a beacon.
+     * @return The distance calculated of the beacon.
+     */
+    public static double estimate(int txPower, double rssi) {
+        return profile.estimate(txPower, rssi);
+    }
+
+    /**
+     * Estimates the distance of a beacon from a whole RSSI, which is looked up rather than
+     * computed.
+     *
+     * @see #estimate(int, double)
+     */
+    public static double estimate(int txPower, int rssi) {
+        return profile.lookup(txPower, rssi);
+    }
+
+    /**
+     * Finds the proximity value of a beacon, without hysteresis.
+     *
+     * @param distance The distance of the beacon.
+     * @return The proximity that was calculated.
+     */
+    public static int toProximity(double distance) {
+        return zones.zoneFor(distance);
+    }
+
+    /**
+     * Returns the proximity as a human readable string, the name of its zone.
+     *
+     * @param proximity The proximity of the beacon.
+     * @return The human readable proximity.
+     */
+    public static String proximityToString(int proximity) {
+        return zones.getName(proximity);
+    }
+}
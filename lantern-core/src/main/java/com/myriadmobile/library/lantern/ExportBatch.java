@@ -0,0 +1,354 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A batch of beacon events as {@link ExportQueue} uploads it, and the layout of the events in the
+ * queue's segment files.
+ * <p/>
+ * In a segment every event is a fixed 32 byte record, so a record cut short by a crash is easy to
+ * tell. A batch is made compact for the trip: every uuid is written once, events refer to it by
+ * index, times are the difference from the event before, and numbers are varints, which takes an
+ * event from 32 bytes to about 10. The body can be gzipped on top. All values are big endian:
+ * <pre>
+ * record: byte type | byte proximity | byte rssi | byte reserved | long time | long uuidMsb
+ *         | long uuidLsb | short major | short minor
+ * batch:  int magic | byte version | byte flags | varint count | body, gzipped if flagged
+ * body:   varint uuids | (long uuidMsb | long uuidLsb) * uuids | event * count
+ * event:  byte type | zigzag varint timeDelta | varint uuidIndex | varint major | varint minor
+ *         | byte rssi | byte proximity
+ * </pre>
+ * The types are those of {@link BeaconEvent}.
+ */
+public final class ExportBatch {
+
+    /**
+     * "LNTX".
+     */
+    static final int MAGIC = 0x4c4e5458;
+
+    static final byte VERSION = 1;
+
+    static final int FLAG_GZIP = 0x01;
+
+    public static final String CONTENT_TYPE = "application/x-lantern-events";
+
+    static final int RECORD_SIZE = 32;
+
+    /**
+     * The fewest bytes an event takes in a batch body, with every varint a single byte.
+     */
+    static final int MIN_EVENT_SIZE = 7;
+
+    private final int[] types;
+    private final long[] times;
+    private final BeaconKey[] keys;
+    private final int[] rssis;
+    private final int[] proximities;
+
+    private ExportBatch(int count) {
+        types = new int[count];
+        times = new long[count];
+        keys = new BeaconKey[count];
+        rssis = new int[count];
+        proximities = new int[count];
+    }
+
+    public int size() {
+        return types.length;
+    }
+
+    /**
+     * One of the {@link BeaconEvent} types.
+     */
+    public int getType(int index) {
+        return types[index];
+    }
+
+    /**
+     * When the beacon was last seen, in milliseconds since the epoch.
+     */
+    public long getTime(int index) {
+        return times[index];
+    }
+
+    public BeaconKey getKey(int index) {
+        return keys[index];
+    }
+
+    public int getRssi(int index) {
+        return rssis[index];
+    }
+
+    public int getProximity(int index) {
+        return proximities[index];
+    }
+
+    static void writeRecord(ByteBuffer buffer, int type, TrackedBeacon beacon) {
+        BeaconKey key = beacon.getKey();
+        buffer.put((byte) type);
+        buffer.put((byte) beacon.proximity);
+        buffer.put((byte) Math.max(Byte.MIN_VALUE, Math.min(Byte.MAX_VALUE, beacon.rssi)));
+        buffer.put((byte) 0);
+        buffer.putLong(beacon.lastSeen);
+        buffer.putLong(key.uuidMostSignificantBits);
+        buffer.putLong(key.uuidLeastSignificantBits);
+        buffer.putShort((short) key.getMajor());
+        buffer.putShort((short) key.getMinor());
+    }
+
+    /**
+     * Encodes segment records into a batch.
+     *
+     * @param records  Holds the records from its position to its limit.
+     * @param compress Whether to gzip the body.
+     */
+    static byte[] encode(ByteBuffer records, boolean compress) {
+        int count = records.remaining() / RECORD_SIZE;
+        int start = records.position();
+        Map<Uuid, Integer> indexes = new HashMap<Uuid, Integer>();
+        List<Uuid> uuids = new ArrayList<Uuid>();
+        Uuid lookup = new Uuid(0, 0);
+        int[] uuidIndexes = new int[count];
+        for (int i = 0; i < count; i++) {
+            int offset = start + i * RECORD_SIZE;
+            lookup.set(records.getLong(offset + 12), records.getLong(offset + 20));
+            Integer index = indexes.get(lookup);
+            if (index == null) {
+                index = uuids.size();
+                Uuid uuid = new Uuid(lookup.high, lookup.low);
+                uuids.add(uuid);
+                indexes.put(uuid, index);
+            }
+            uuidIndexes[i] = index;
+        }
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream(16 + uuids.size() * 16 + count * 12);
+        writeVarint(body, uuids.size());
+        for (Uuid uuid : uuids) {
+            writeLong(body, uuid.high);
+            writeLong(body, uuid.low);
+        }
+        long previousTime = 0;
+        for (int i = 0; i < count; i++) {
+            int offset = start + i * RECORD_SIZE;
+            long time = records.getLong(offset + 4);
+            body.write(records.get(offset));
+            long delta = time - previousTime;
+            writeVarint(body, (delta << 1) ^ (delta >> 63));
+            previousTime = time;
+            writeVarint(body, uuidIndexes[i]);
+            writeVarint(body, records.getShort(offset + 28) & 0xffff);
+            writeVarint(body, records.getShort(offset + 30) & 0xffff);
+            body.write(records.get(offset + 2));
+            body.write(records.get(offset + 1));
+        }
+
+        ByteArrayOutputStream batch = new ByteArrayOutputStream(body.size() + 16);
+        writeInt(batch, MAGIC);
+        batch.write(VERSION);
+        batch.write(compress ? FLAG_GZIP : 0);
+        writeVarint(batch, count);
+        try {
+            if (compress) {
+                GZIPOutputStream gzip = new GZIPOutputStream(batch);
+                body.writeTo(gzip);
+                gzip.finish();
+            } else {
+                body.writeTo(batch);
+            }
+        } catch (IOException e) {
+            // Only written to memory.
+            throw new IllegalStateException(e);
+        }
+        return batch.toByteArray();
+    }
+
+    /**
+     * Reads a batch back, such as on the server.
+     *
+     * @throws IOException If the bytes aren't a batch or are cut short.
+     */
+    public static ExportBatch decode(byte[] bytes) throws IOException {
+        InputStream in = new ByteArrayInputStream(bytes);
+        if (readInt(in) != MAGIC) {
+            throw new IOException("Not an export batch");
+        }
+        int version = readByte(in);
+        if (version != VERSION) {
+            throw new IOException("Unknown export batch version " + version);
+        }
+        int flags = readByte(in);
+        long count = readVarint(in);
+        if ((flags & FLAG_GZIP) != 0) {
+            in = new GZIPInputStream(in);
+        }
+        // Compressed, a batch can hold more events than it has bytes, so the count is checked
+        // against the body once it is inflated.
+        byte[] body = readAll(in);
+        if (count < 0 || count > body.length / MIN_EVENT_SIZE) {
+            throw new IOException("Bad export batch size " + count);
+        }
+        in = new ByteArrayInputStream(body);
+        long uuidCount = readVarint(in);
+        if (uuidCount < 0 || uuidCount > count) {
+            throw new IOException("Bad export batch uuid count " + uuidCount);
+        }
+        long[] uuids = new long[(int) uuidCount * 2];
+        for (int i = 0; i < uuids.length; i++) {
+            uuids[i] = readLong(in);
+        }
+        ExportBatch batch = new ExportBatch((int) count);
+        long time = 0;
+        for (int i = 0; i < count; i++) {
+            batch.types[i] = readByte(in);
+            long delta = readVarint(in);
+            time += (delta >>> 1) ^ -(delta & 1);
+            batch.times[i] = time;
+            long uuid = readVarint(in);
+            if (uuid < 0 || uuid >= uuidCount) {
+                throw new IOException("Bad uuid index " + uuid);
+            }
+            int major = (int) readVarint(in);
+            int minor = (int) readVarint(in);
+            batch.keys[i] = new BeaconKey(uuids[(int) uuid * 2], uuids[(int) uuid * 2 + 1], major, minor);
+            batch.rssis[i] = (byte) readByte(in);
+            batch.proximities[i] = (byte) readByte(in);
+        }
+        return batch;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeVarint(OutputStream out, long value) {
+        try {
+            while ((value & ~0x7fL) != 0) {
+                out.write((int) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            out.write((int) value);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            out.write(value >>> shift);
+        }
+    }
+
+    private static void writeLong(ByteArrayOutputStream out, long value) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out.write((int) (value >>> shift));
+        }
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int value = in.read();
+        if (value < 0) {
+            throw new IOException("Export batch cut short");
+        }
+        return value;
+    }
+
+    private static int readInt(InputStream in) throws IOException {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            value = (value << 8) | readByte(in);
+        }
+        return value;
+    }
+
+    private static long readLong(InputStream in) throws IOException {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | readByte(in);
+        }
+        return value;
+    }
+
+    private static long readVarint(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte(in);
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Bad varint in export batch");
+    }
+
+    /**
+     * The bits of a uuid, mutable so looking one up allocates nothing.
+     */
+    private static final class Uuid {
+
+        private long high;
+        private long low;
+
+        Uuid(long high, long low) {
+            set(high, low);
+        }
+
+        void set(long high, long low) {
+            this.high = high;
+            this.low = low;
+        }
+
+        @Override
+        public int hashCode() {
+            long h = high * 31 + low;
+            return (int) (h ^ (h >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object that) {
+            return that instanceof Uuid && ((Uuid) that).high == high && ((Uuid) that).low == low;
+        }
+    }
+}
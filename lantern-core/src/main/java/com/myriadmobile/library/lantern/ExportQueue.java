@@ -0,0 +1,629 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+
+/**
+ * Ships beacon events to a backend in batches, instead of one call per event, without losing
+ * them to a crash or a dead network on the way.
+ * <p/>
+ * Events are appended to segment files in a directory, at most {@link Builder#withMaxBatchSize}
+ * events to a segment. A segment is sealed once it is full or its first event is older than the
+ * max batch age, and sealed segments are encoded into an {@link ExportBatch} and handed to the
+ * {@link ExportUploader} in order, each deleted once it is accepted. A failed upload is retried
+ * after a backoff that doubles up to a maximum, and a rejected one is dropped. Segments left
+ * behind by a crash are sent when the queue is opened again, cut off at their last whole event.
+ * <p/>
+ * Appending never touches the disk: events are copied into memory and a background thread writes
+ * them out and uploads. If the events on disk and in memory would pass the max queue size, new
+ * events are dropped and counted rather than blocking, or growing without bound while the
+ * backend is unreachable.
+ * <pre>
+ * segment: int magic | short version | short reserved | record*
+ * </pre>
+ * See {@link ExportBatch} for the records.
+ */
+public class ExportQueue implements BeaconTracker.ProximityListener, Closeable {
+
+    /**
+     * "LNTQ".
+     */
+    static final int MAGIC = 0x4c4e5451;
+
+    static final short VERSION = 1;
+
+    static final int SEGMENT_HEADER_SIZE = 8;
+
+    static final String SEGMENT_EXTENSION = ".lntq";
+
+    /**
+     * The fewest events held in memory between writes, so a burst isn't dropped while the
+     * writer is busy uploading.
+     */
+    static final int MIN_BUFFERED_EVENTS = 256;
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 500;
+
+    public static final long DEFAULT_MAX_BATCH_AGE = 60000;
+
+    public static final long DEFAULT_MAX_QUEUE_BYTES = 4 * 1024 * 1024;
+
+    public static final long DEFAULT_MIN_BACKOFF = 1000;
+
+    public static final long DEFAULT_MAX_BACKOFF = 5 * 60 * 1000;
+
+    private final File directory;
+    private final ExportUploader uploader;
+    private final int maxBatchSize;
+    private final long maxBatchAge;
+    private final boolean compress;
+    private final long maxQueueBytes;
+    private final long minBackoff;
+    private final long maxBackoff;
+    private final boolean rssiChanges;
+
+    private final Object lock = new Object();
+
+    /**
+     * Events appended but not written out yet, and the buffer the writer swaps in for it.
+     */
+    private ByteBuffer pending;
+    private ByteBuffer spare;
+
+    /**
+     * The bytes of every segment on disk, plus the pending events.
+     */
+    private long queuedBytes;
+    private boolean flushRequested;
+    private boolean closed;
+    private long droppedEvents;
+    private long uploadedEvents;
+    private long uploadedBatches;
+    private long rejectedBatches;
+    private long failedUploads;
+
+    // Only touched by the writer thread.
+    private final Deque<File> sealed = new ArrayDeque<File>();
+    private long nextSequence;
+    private RandomAccessFile openSegment;
+    private File openFile;
+    private int openEvents;
+    private long openSince;
+    private long retryAt;
+    private long backoff;
+
+    private final Thread writer;
+
+    private ExportQueue(Builder builder) throws IOException {
+        directory = builder.directory;
+        uploader = builder.uploader;
+        maxBatchSize = builder.maxBatchSize;
+        maxBatchAge = builder.maxBatchAge;
+        compress = builder.compress;
+        maxQueueBytes = builder.maxQueueBytes;
+        minBackoff = builder.minBackoff;
+        maxBackoff = builder.maxBackoff;
+        rssiChanges = builder.rssiChanges;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create export directory " + directory);
+        }
+        int buffered = (int) Math.min(maxQueueBytes / ExportBatch.RECORD_SIZE,
+                Math.max(maxBatchSize, MIN_BUFFERED_EVENTS));
+        pending = ByteBuffer.allocate(buffered * ExportBatch.RECORD_SIZE);
+        spare = ByteBuffer.allocate(buffered * ExportBatch.RECORD_SIZE);
+        backoff = minBackoff;
+        recover();
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "lantern-export");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues an event. Never blocks on the disk or the network.
+     *
+     * @param type One of the {@link BeaconEvent} types.
+     * @return False if the event was dropped because the queue is full.
+     */
+    public boolean append(int type, TrackedBeacon beacon) {
+        synchronized (lock) {
+            if (closed || pending.remaining() < ExportBatch.RECORD_SIZE
+                    || queuedBytes + ExportBatch.RECORD_SIZE > maxQueueBytes) {
+                droppedEvents++;
+                return false;
+            }
+            ExportBatch.writeRecord(pending, type, beacon);
+            queuedBytes += ExportBatch.RECORD_SIZE;
+            lock.notifyAll();
+        }
+        return true;
+    }
+
+    @Override
+    public void onBeaconDetected(TrackedBeacon beacon) {
+        append(BeaconEvent.DETECTED, beacon);
+    }
+
+    /**
+     * Only queued if RSSI changes were asked for, see {@link Builder#withRssiChanges(boolean)}.
+     */
+    @Override
+    public void onBeaconChanged(TrackedBeacon beacon) {
+        if (rssiChanges) {
+            append(BeaconEvent.CHANGED, beacon);
+        }
+    }
+
+    @Override
+    public void onProximityChanged(TrackedBeacon beacon, int previousProximity) {
+        append(BeaconEvent.MOVED, beacon);
+    }
+
+    @Override
+    public void onBeaconExpired(TrackedBeacon beacon) {
+        append(BeaconEvent.EXPIRED, beacon);
+    }
+
+    /**
+     * Seals the events queued so far into a batch and uploads everything waiting straight away,
+     * without waiting for the batch to fill or for the backoff after a failure.
+     */
+    public void flush() {
+        synchronized (lock) {
+            flushRequested = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * The bytes of the events waiting to be uploaded.
+     */
+    public long getQueuedBytes() {
+        synchronized (lock) {
+            return queuedBytes;
+        }
+    }
+
+    /**
+     * The number of events dropped because the queue was full.
+     */
+    public long getDroppedEvents() {
+        synchronized (lock) {
+            return droppedEvents;
+        }
+    }
+
+    public long getUploadedEvents() {
+        synchronized (lock) {
+            return uploadedEvents;
+        }
+    }
+
+    public long getUploadedBatches() {
+        synchronized (lock) {
+            return uploadedBatches;
+        }
+    }
+
+    /**
+     * The number of batches the uploader rejected, which were dropped.
+     */
+    public long getRejectedBatches() {
+        synchronized (lock) {
+            return rejectedBatches;
+        }
+    }
+
+    /**
+     * The number of uploads that failed and were retried.
+     */
+    public long getFailedUploads() {
+        synchronized (lock) {
+            return failedUploads;
+        }
+    }
+
+    /**
+     * Writes out the events in memory and stops. Whatever wasn't uploaded is sent once a queue
+     * is opened on the directory again.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            lock.notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queues the segments left in the directory, cutting off any event half written.
+     */
+    private void recover() throws IOException {
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(SEGMENT_EXTENSION);
+            }
+        });
+        if (files == null) {
+            throw new IOException("Could not list export directory " + directory);
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                return lhs.getName().compareTo(rhs.getName());
+            }
+        });
+        for (File file : files) {
+            nextSequence = Math.max(nextSequence, sequenceOf(file) + 1);
+            RandomAccessFile segment = new RandomAccessFile(file, "rw");
+            long length;
+            try {
+                length = segment.length();
+                if (length >= SEGMENT_HEADER_SIZE && segment.readInt() == MAGIC) {
+                    length -= (length - SEGMENT_HEADER_SIZE) % ExportBatch.RECORD_SIZE;
+                    segment.setLength(length);
+                } else {
+                    length = 0;
+                }
+            } finally {
+                segment.close();
+            }
+            if (length <= SEGMENT_HEADER_SIZE) {
+                // Nothing in it, or not a segment at all.
+                if (!file.delete()) {
+                    throw new IOException("Could not delete " + file);
+                }
+                continue;
+            }
+            sealed.add(file);
+            queuedBytes += length - SEGMENT_HEADER_SIZE;
+        }
+    }
+
+    private static long sequenceOf(File file) {
+        String name = file.getName();
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SEGMENT_EXTENSION.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            ByteBuffer toWrite;
+            boolean flush;
+            boolean stop;
+            synchronized (lock) {
+                while (!closed && !flushRequested && pending.position() == 0) {
+                    long now = System.currentTimeMillis();
+                    long wake = Long.MAX_VALUE;
+                    if (openEvents > 0) {
+                        wake = openSince + maxBatchAge;
+                    }
+                    if (!sealed.isEmpty()) {
+                        wake = Math.min(wake, retryAt);
+                    }
+                    if (wake <= now) {
+                        break;
+                    }
+                    try {
+                        lock.wait(wake == Long.MAX_VALUE ? 0 : wake - now);
+                    } catch (InterruptedException e) {
+                        closed = true;
+                    }
+                }
+                toWrite = pending;
+                pending = spare;
+                spare = null;
+                flush = flushRequested;
+                flushRequested = false;
+                stop = closed;
+            }
+            toWrite.flip();
+            try {
+                write(toWrite);
+                if (flush || stop) {
+                    seal();
+                }
+                if (flush) {
+                    retryAt = 0;
+                }
+            } catch (IOException e) {
+                // The events that couldn't be written are lost, like the ones dropped.
+                synchronized (lock) {
+                    int lost = toWrite.remaining() / ExportBatch.RECORD_SIZE;
+                    droppedEvents += lost;
+                    queuedBytes -= lost * ExportBatch.RECORD_SIZE;
+                }
+                closeSegment();
+            }
+            toWrite.clear();
+            synchronized (lock) {
+                spare = toWrite;
+            }
+            if (stop) {
+                closeSegment();
+                return;
+            }
+            if (openEvents > 0 && System.currentTimeMillis() - openSince >= maxBatchAge) {
+                seal();
+            }
+            uploadWaiting();
+        }
+    }
+
+    /**
+     * Appends the records to the open segment, sealing it whenever it fills up.
+     */
+    private void write(ByteBuffer records) throws IOException {
+        while (records.hasRemaining()) {
+            if (openSegment == null) {
+                openFile = new File(directory, String.format("%019d", nextSequence++) + SEGMENT_EXTENSION);
+                openSegment = new RandomAccessFile(openFile, "rw");
+                openSegment.setLength(0);
+                openSegment.writeInt(MAGIC);
+                openSegment.writeShort(VERSION);
+                openSegment.writeShort(0);
+                openSince = System.currentTimeMillis();
+            }
+            int count = Math.min(records.remaining() / ExportBatch.RECORD_SIZE, maxBatchSize - openEvents);
+            int length = count * ExportBatch.RECORD_SIZE;
+            openSegment.getChannel().write((ByteBuffer) records.slice().limit(length));
+            records.position(records.position() + length);
+            openEvents += count;
+            if (openEvents >= maxBatchSize) {
+                seal();
+            }
+        }
+    }
+
+    /**
+     * Closes the open segment and queues it for upload.
+     */
+    private void seal() {
+        if (openSegment == null) {
+            return;
+        }
+        File file = openFile;
+        boolean empty = openEvents == 0;
+        closeSegment();
+        if (empty) {
+            file.delete();
+        } else {
+            sealed.add(file);
+        }
+    }
+
+    private void closeSegment() {
+        if (openSegment != null) {
+            try {
+                openSegment.getFD().sync();
+                openSegment.close();
+            } catch (IOException e) {
+                // Whatever made it to the file is recovered on the next start.
+            }
+        }
+        openSegment = null;
+        openFile = null;
+        openEvents = 0;
+    }
+
+    /**
+     * Uploads the sealed segments in order, until one fails.
+     */
+    private void uploadWaiting() {
+        while (!sealed.isEmpty() && System.currentTimeMillis() >= retryAt) {
+            synchronized (lock) {
+                if (closed) {
+                    return;
+                }
+            }
+            File file = sealed.peek();
+            ByteBuffer records;
+            try {
+                records = readRecords(file);
+            } catch (IOException e) {
+                // Gone or unreadable, so it can't ever be sent.
+                dropSegment(file, 0, false);
+                continue;
+            }
+            int events = records.remaining() / ExportBatch.RECORD_SIZE;
+            try {
+                uploader.upload(ExportBatch.encode(records, compress), events);
+                backoff = minBackoff;
+                dropSegment(file, events, true);
+            } catch (ExportUploader.RejectedException e) {
+                dropSegment(file, events, false);
+            } catch (IOException e) {
+                synchronized (lock) {
+                    failedUploads++;
+                }
+                retryAt = System.currentTimeMillis() + backoff;
+                backoff = Math.min(maxBackoff, backoff * 2);
+                return;
+            } catch (RuntimeException e) {
+                // A broken uploader is retried like a failed upload.
+                synchronized (lock) {
+                    failedUploads++;
+                }
+                retryAt = System.currentTimeMillis() + backoff;
+                backoff = Math.min(maxBackoff, backoff * 2);
+                return;
+            }
+        }
+    }
+
+    private void dropSegment(File file, int events, boolean uploaded) {
+        sealed.remove();
+        long length = file.length();
+        file.delete();
+        synchronized (lock) {
+            queuedBytes -= Math.max(0, length - SEGMENT_HEADER_SIZE);
+            if (uploaded) {
+                uploadedEvents += events;
+                uploadedBatches++;
+            } else {
+                rejectedBatches++;
+            }
+        }
+    }
+
+    private static ByteBuffer readRecords(File file) throws IOException {
+        RandomAccessFile segment = new RandomAccessFile(file, "r");
+        try {
+            long length = segment.length() - SEGMENT_HEADER_SIZE;
+            length -= length % ExportBatch.RECORD_SIZE;
+            if (length < 0 || length > Integer.MAX_VALUE) {
+                throw new IOException("Bad segment " + file);
+            }
+            byte[] records = new byte[(int) length];
+            segment.seek(SEGMENT_HEADER_SIZE);
+            segment.readFully(records);
+            return ByteBuffer.wrap(records);
+        } finally {
+            segment.close();
+        }
+    }
+
+    public static class Builder {
+        private final File directory;
+        private final ExportUploader uploader;
+        private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+        private long maxBatchAge = DEFAULT_MAX_BATCH_AGE;
+        private boolean compress = true;
+        private long maxQueueBytes = DEFAULT_MAX_QUEUE_BYTES;
+        private long minBackoff = DEFAULT_MIN_BACKOFF;
+        private long maxBackoff = DEFAULT_MAX_BACKOFF;
+        private boolean rssiChanges;
+
+        /**
+         * @param directory The directory the segments are kept in, only used by this queue.
+         */
+        public Builder(File directory, ExportUploader uploader) {
+            if (directory == null || uploader == null) {
+                throw new IllegalArgumentException("Directory and uploader cannot be null");
+            }
+            this.directory = directory;
+            this.uploader = uploader;
+        }
+
+        /**
+         * The most events in a batch.
+         */
+        public Builder withMaxBatchSize(int events) {
+            if (events <= 0) {
+                throw new IllegalArgumentException("Batch size must be positive");
+            }
+            maxBatchSize = events;
+            return this;
+        }
+
+        /**
+         * How long, in milliseconds, an event can wait for its batch to fill before it is sent
+         * anyway.
+         */
+        public Builder withMaxBatchAge(long milliseconds) {
+            if (milliseconds < 0) {
+                throw new IllegalArgumentException("Batch age cannot be negative");
+            }
+            maxBatchAge = milliseconds;
+            return this;
+        }
+
+        /**
+         * Whether to gzip the batches, which it does by default.
+         */
+        public Builder withCompression(boolean compress) {
+            this.compress = compress;
+            return this;
+        }
+
+        /**
+         * The most bytes of events to keep waiting, on disk and in memory. Events past that are
+         * dropped.
+         */
+        public Builder withMaxQueueBytes(long bytes) {
+            if (bytes < ExportBatch.RECORD_SIZE) {
+                throw new IllegalArgumentException("Queue must hold at least one event");
+            }
+            maxQueueBytes = bytes;
+            return this;
+        }
+
+        /**
+         * How long to wait after a failed upload, doubling with every failure in a row.
+         */
+        public Builder withRetryBackoff(long minMilliseconds, long maxMilliseconds) {
+            if (minMilliseconds < 0 || maxMilliseconds < minMilliseconds) {
+                throw new IllegalArgumentException("Backoff must not be negative and ordered");
+            }
+            minBackoff = minMilliseconds;
+            maxBackoff = maxMilliseconds;
+            return this;
+        }
+
+        /**
+         * Whether to queue every RSSI change, not only detections, moves and expirations. Off
+         * by default, since they outnumber the rest by far.
+         */
+        public Builder withRssiChanges(boolean rssiChanges) {
+            this.rssiChanges = rssiChanges;
+            return this;
+        }
+
+        /**
+         * Opens the queue, which starts sending any segments left in the directory.
+         *
+         * @throws IOException If the directory can't be created or read.
+         */
+        public ExportQueue build() throws IOException {
+            return new ExportQueue(this);
+        }
+    }
+}
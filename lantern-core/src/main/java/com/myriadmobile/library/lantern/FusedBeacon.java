@@ -0,0 +1,420 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern;
+
+import java.util.Arrays;
+
+/**
+ * What every receiver currently sees of one beacon, and the estimates fused from it.
+ * <p/>
+ * Each receiver that saw the beacon has a window of its latest RSSI samples. When a sample
+ * arrives only that receiver's share is redone: its mean RSSI and distance, its weight in the
+ * centroid sums, and its row in the least squares sums used for trilateration. The position is
+ * solved from those sums when asked for. Readings are only valid on the thread feeding
+ * {@link BeaconFusion}.
+ */
+public class FusedBeacon {
+
+    /**
+     * The number of updates after which the sums are rebuilt, so rounding errors from taking
+     * shares out and putting them back in don't add up.
+     */
+    private static final int REBUILD_INTERVAL = 4096;
+
+    /**
+     * The closest distance weights are computed for, so a receiver right next to the beacon
+     * doesn't take over the weighting completely.
+     */
+    private static final double MIN_WEIGHT_DISTANCE = 0.1;
+
+    final BeaconKey key;
+    final String uuid;
+    int txPower;
+    long lastSeen;
+
+    private final int windowSize;
+    private final long maxAge;
+    private Receiver[] receivers = new Receiver[4];
+    private RssiWindow[] windows = new RssiWindow[4];
+    private double[] means = new double[4];
+    private double[] distances = new double[4];
+    private double[] weights = new double[4];
+    private int count;
+    private int strongest = -1;
+    private int updates;
+
+    // Centroid sums of weight, weight * x and weight * y.
+    private double weightSum;
+    private double weightedX;
+    private double weightedY;
+    private int positionedCount;
+
+    // The weighted least squares normal equations for [x, y, x^2 + y^2], with each receiver
+    // contributing the row [-2 xi, -2 yi, 1] = di^2 - xi^2 - yi^2. The symmetric matrix is
+    // kept as its upper triangle.
+    private final double[] normal = new double[6];
+    private final double[] rhs = new double[3];
+    private boolean solved;
+    private boolean hasPosition;
+    private double positionX;
+    private double positionY;
+
+    FusedBeacon(BeaconKey key, String uuid, int windowSize, long maxAge) {
+        this.key = key;
+        this.uuid = uuid;
+        this.windowSize = windowSize;
+        this.maxAge = maxAge;
+    }
+
+    public BeaconKey getKey() {
+        return key;
+    }
+
+    public String getUuid() {
+        return uuid;
+    }
+
+    public int getMajor() {
+        return key.getMajor();
+    }
+
+    public int getMinor() {
+        return key.getMinor();
+    }
+
+    public int getTxPower() {
+        return txPower;
+    }
+
+    /**
+     * When the latest sample from any receiver arrived.
+     */
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    /**
+     * The number of receivers that currently see the beacon.
+     */
+    public int getReceiverCount() {
+        return count;
+    }
+
+    public Receiver getReceiver(int index) {
+        checkIndex(index);
+        return receivers[index];
+    }
+
+    /**
+     * The mean RSSI over the window of a receiver.
+     */
+    public double getRssi(int index) {
+        checkIndex(index);
+        return means[index];
+    }
+
+    /**
+     * The distance from a receiver, estimated from its mean RSSI.
+     */
+    public double getDistance(int index) {
+        checkIndex(index);
+        return distances[index];
+    }
+
+    public int getSampleCount(int index) {
+        checkIndex(index);
+        return windows[index].size();
+    }
+
+    /**
+     * The receiver with the strongest mean RSSI, or null if no receiver sees the beacon.
+     */
+    public Receiver getStrongestReceiver() {
+        return strongest < 0 ? null : receivers[strongest];
+    }
+
+    /**
+     * The mean RSSI at the strongest receiver.
+     */
+    public double getRssi() {
+        return strongest < 0 ? Double.NaN : means[strongest];
+    }
+
+    /**
+     * The distance from the strongest receiver.
+     */
+    public double getDistance() {
+        return strongest < 0 ? Double.NaN : distances[strongest];
+    }
+
+    /**
+     * The proximity to the strongest receiver.
+     */
+    public int getProximity() {
+        return strongest < 0 ? Beacon.PROXIMITY_UNKNOWN
+                : Distance.toProximity(distances[strongest]);
+    }
+
+    /**
+     * Whether a receiver with a known position sees the beacon, so there's a centroid.
+     */
+    public boolean hasCentroid() {
+        return positionedCount > 0;
+    }
+
+    /**
+     * The centroid of the receivers that see the beacon, weighted by the inverse square of the
+     * distance from each.
+     */
+    public double getCentroidX() {
+        return positionedCount > 0 ? weightedX / weightSum : Double.NaN;
+    }
+
+    public double getCentroidY() {
+        return positionedCount > 0 ? weightedY / weightSum : Double.NaN;
+    }
+
+    /**
+     * Whether the position could be trilaterated, which takes at least three receivers with known
+     * positions that aren't on one line.
+     */
+    public boolean hasPosition() {
+        solve();
+        return hasPosition;
+    }
+
+    /**
+     * The trilaterated position, or NaN if there is none.
+     */
+    public double getPositionX() {
+        solve();
+        return hasPosition ? positionX : Double.NaN;
+    }
+
+    public double getPositionY() {
+        solve();
+        return hasPosition ? positionY : Double.NaN;
+    }
+
+    /**
+     * Adds a sample from a receiver and redoes that receiver's share of the estimates.
+     */
+    void observe(Receiver receiver, int rssi, int txPower, long now) {
+        int slot = slotOf(receiver);
+        if (slot < 0) {
+            slot = addSlot(receiver);
+        }
+        boolean evicted = evictOthers(slot, now);
+        if (txPower != this.txPower) {
+            // Every distance depends on it.
+            this.txPower = txPower;
+            evicted = true;
+        }
+        lastSeen = now;
+        windows[slot].add(rssi, now);
+        if (evicted || ++updates >= REBUILD_INTERVAL) {
+            rebuild();
+            return;
+        }
+        remove(slot);
+        measure(slot);
+        add(slot);
+        if (strongest == slot) {
+            // It may have gotten weaker than another receiver.
+            findStrongest();
+        } else if (strongest < 0 || means[slot] >= means[strongest]) {
+            strongest = slot;
+        }
+    }
+
+    /**
+     * Drops the samples that are too old.
+     *
+     * @return Whether any receiver still sees the beacon.
+     */
+    boolean evict(long now) {
+        if (evictOthers(-1, now)) {
+            rebuild();
+        }
+        return count > 0;
+    }
+
+    private boolean evictOthers(int keep, long now) {
+        boolean evicted = false;
+        for (int i = 0; i < count; i++) {
+            if (i != keep && windows[i].evict(now)) {
+                evicted = true;
+            }
+        }
+        return evicted;
+    }
+
+    private int slotOf(Receiver receiver) {
+        for (int i = 0; i < count; i++) {
+            if (receivers[i] == receiver) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int addSlot(Receiver receiver) {
+        if (count == receivers.length) {
+            int capacity = count * 2;
+            receivers = Arrays.copyOf(receivers, capacity);
+            windows = Arrays.copyOf(windows, capacity);
+            means = Arrays.copyOf(means, capacity);
+            distances = Arrays.copyOf(distances, capacity);
+            weights = Arrays.copyOf(weights, capacity);
+        }
+        receivers[count] = receiver;
+        windows[count] = new RssiWindow(windowSize, maxAge);
+        means[count] = Double.NaN;
+        distances[count] = Double.NaN;
+        weights[count] = 0;
+        return count++;
+    }
+
+    /**
+     * Drops the receivers with empty windows and adds every share up again.
+     */
+    private void rebuild() {
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            if (!windows[i].isEmpty()) {
+                receivers[kept] = receivers[i];
+                windows[kept] = windows[i];
+                kept++;
+            }
+        }
+        for (int i = kept; i < count; i++) {
+            receivers[i] = null;
+            windows[i] = null;
+        }
+        count = kept;
+        weightSum = 0;
+        weightedX = 0;
+        weightedY = 0;
+        positionedCount = 0;
+        Arrays.fill(normal, 0);
+        Arrays.fill(rhs, 0);
+        for (int i = 0; i < count; i++) {
+            measure(i);
+            add(i);
+        }
+        findStrongest();
+        updates = 0;
+    }
+
+    private void measure(int slot) {
+        means[slot] = windows[slot].mean();
+        distances[slot] = Distance.estimate(txPower, means[slot]);
+        double distance = Math.max(distances[slot], MIN_WEIGHT_DISTANCE);
+        weights[slot] = 1 / (distance * distance);
+    }
+
+    private void add(int slot) {
+        share(slot, 1);
+    }
+
+    private void remove(int slot) {
+        share(slot, -1);
+    }
+
+    private void share(int slot, int sign) {
+        Receiver receiver = receivers[slot];
+        if (!receiver.hasPosition() || Double.isNaN(means[slot])) {
+            return;
+        }
+        double w = weights[slot] * sign;
+        double x = receiver.x;
+        double y = receiver.y;
+        weightSum += w;
+        weightedX += w * x;
+        weightedY += w * y;
+        positionedCount += sign;
+
+        double a0 = -2 * x;
+        double a1 = -2 * y;
+        double b = distances[slot] * distances[slot] - x * x - y * y;
+        normal[0] += w * a0 * a0;
+        normal[1] += w * a0 * a1;
+        normal[2] += w * a0;
+        normal[3] += w * a1 * a1;
+        normal[4] += w * a1;
+        normal[5] += w;
+        rhs[0] += w * a0 * b;
+        rhs[1] += w * a1 * b;
+        rhs[2] += w * b;
+        solved = false;
+    }
+
+    private void findStrongest() {
+        strongest = -1;
+        for (int i = 0; i < count; i++) {
+            if (strongest < 0 || means[i] > means[strongest]) {
+                strongest = i;
+            }
+        }
+    }
+
+    private void solve() {
+        if (solved) {
+            return;
+        }
+        solved = true;
+        hasPosition = false;
+        if (positionedCount < 3) {
+            return;
+        }
+        double m00 = normal[0], m01 = normal[1], m02 = normal[2];
+        double m11 = normal[3], m12 = normal[4], m22 = normal[5];
+        double c00 = m11 * m22 - m12 * m12;
+        double c01 = m02 * m12 - m01 * m22;
+        double c02 = m01 * m12 - m02 * m11;
+        double determinant = m00 * c00 + m01 * c01 + m02 * c02;
+        double scale = Math.abs(m00 * m11 * m22);
+        if (Math.abs(determinant) <= 1e-9 * scale || determinant == 0) {
+            // The receivers are on one line.
+            return;
+        }
+        double c11 = m00 * m22 - m02 * m02;
+        double c12 = m01 * m02 - m00 * m12;
+        positionX = (c00 * rhs[0] + c01 * rhs[1] + c02 * rhs[2]) / determinant;
+        positionY = (c01 * rhs[0] + c11 * rhs[1] + c12 * rhs[2]) / determinant;
+        hasPosition = true;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Receiver " + index + " of " + count);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return key + " seen by " + count + " receivers";
+    }
+}
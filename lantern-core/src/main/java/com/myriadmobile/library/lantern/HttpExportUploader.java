@@ -0,0 +1,113 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * POSTs every batch to a url, with the {@link ExportBatch#CONTENT_TYPE} content type and the
+ * number of events in the {@link #EVENT_COUNT_HEADER} header. A 2xx response means the batch was
+ * accepted. Server errors, 408 and 429 are retried, any other response rejects the batch.
+ */
+public class HttpExportUploader implements ExportUploader {
+
+    public static final String EVENT_COUNT_HEADER = "X-Lantern-Event-Count";
+
+    public static final int DEFAULT_TIMEOUT = 15000;
+
+    private final URL url;
+    private final int timeout;
+
+    public HttpExportUploader(URL url) {
+        this(url, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * @param timeout The connect and read timeout in milliseconds.
+     */
+    public HttpExportUploader(URL url, int timeout) {
+        if (url == null) {
+            throw new IllegalArgumentException("Url cannot be null");
+        }
+        this.url = url;
+        this.timeout = timeout;
+    }
+
+    public URL getUrl() {
+        return url;
+    }
+
+    @Override
+    public void upload(byte[] batch, int events) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try {
+            connection.setRequestMethod("POST");
+            connection.setConnectTimeout(timeout);
+            connection.setReadTimeout(timeout);
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(batch.length);
+            connection.setRequestProperty("Content-Type", ExportBatch.CONTENT_TYPE);
+            connection.setRequestProperty(EVENT_COUNT_HEADER, Integer.toString(events));
+            OutputStream out = connection.getOutputStream();
+            try {
+                out.write(batch);
+            } finally {
+                out.close();
+            }
+            int status = connection.getResponseCode();
+            drain(status < 400 ? connection.getInputStream() : connection.getErrorStream());
+            if (status >= 200 && status < 300) {
+                return;
+            }
+            if (status >= 500 || status == 408 || status == 429) {
+                throw new IOException("Upload failed with " + status);
+            }
+            throw new RejectedException("Upload rejected with " + status);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Reads the response out and closes it.
+     */
+    private static void drain(InputStream in) throws IOException {
+        if (in == null) {
+            return;
+        }
+        try {
+            byte[] buffer = new byte[512];
+            while (in.read(buffer) >= 0) {
+                // Discarded.
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
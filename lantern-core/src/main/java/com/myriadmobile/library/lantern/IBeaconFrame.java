@@ -0,0 +1,173 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern;
+
+/**
+ * The fields of an iBeacon advertisement, decoded straight from the raw bytes. A frame is meant
+ * to be reused for every packet, so decoding allocates nothing. The uuid is kept as two longs and
+ * only turned into a String when asked for.
+ */
+public class IBeaconFrame {
+
+    /**
+     * Length of the iBeacon payload from the 0x02 0x15 prefix to the tx power, inclusive.
+     */
+    private static final int PAYLOAD_LENGTH = 23;
+
+    /**
+     * High 64 bits of the uuid.
+     */
+    public long uuidMostSignificantBits;
+
+    /**
+     * Low 64 bits of the uuid.
+     */
+    public long uuidLeastSignificantBits;
+
+    /**
+     * 16 bit integer major of beacon.
+     */
+    public int major;
+
+    /**
+     * 16 bit integer minor of beacon.
+     */
+    public int minor;
+
+    /**
+     * Calibrated tx power of beacon.
+     */
+    public int txPower;
+
+    /**
+     * Decodes an advertisement into this frame.
+     *
+     * @param scanData The data obtained from the scan.
+     * @return False if the advertisement isn't an iBeacon, in which case the frame is left as it was.
+     */
+    public boolean parse(byte[] scanData) {
+        if (scanData == null) {
+            return false;
+        }
+        return parse(scanData, 0, scanData.length);
+    }
+
+    /**
+     * Decodes an advertisement that is part of a larger buffer into this frame.
+     *
+     * @param data   The buffer holding the advertisement.
+     * @param offset Where the advertisement starts in the buffer.
+     * @param length The length of the advertisement.
+     * @return False if the advertisement isn't an iBeacon, in which case the frame is left as it was.
+     */
+    public boolean parse(byte[] data, int offset, int length) {
+        int startByte = offset + 2;
+        int end = offset + length;
+        boolean patternFound = false;
+        while (startByte <= offset + 5 && startByte + 4 + PAYLOAD_LENGTH - 2 <= end) {
+            if (((int) data[startByte + 2] & 0xff) == 0x02 && ((int) data[startByte + 3] & 0xff) == 0x15) {
+                patternFound = true;
+                break;
+            }
+            startByte++;
+        }
+        if (!patternFound) {
+            return false;
+        }
+
+        uuidMostSignificantBits = readLong(data, startByte + 4);
+        uuidLeastSignificantBits = readLong(data, startByte + 12);
+        major = (data[startByte + 20] & 0xff) * 0x100 + (data[startByte + 21] & 0xff);
+        minor = (data[startByte + 22] & 0xff) * 0x100 + (data[startByte + 23] & 0xff);
+        txPower = (int) data[startByte + 24]; // this one is signed
+        return true;
+    }
+
+    /**
+     * Whether the frame has the given uuid.
+     */
+    public boolean hasUuid(long mostSignificantBits, long leastSignificantBits) {
+        return uuidMostSignificantBits == mostSignificantBits && uuidLeastSignificantBits == leastSignificantBits;
+    }
+
+    /**
+     * Formats the uuid, lower case and with dashes.
+     */
+    public String getUuid() {
+        return formatUuid(uuidMostSignificantBits, uuidLeastSignificantBits);
+    }
+
+    /**
+     * Formats a uuid, lower case and with dashes.
+     */
+    public static String formatUuid(long mostSignificantBits, long leastSignificantBits) {
+        char[] chars = new char[36];
+        int position = 0;
+        for (int i = 0; i < 32; i++) {
+            if (i == 8 || i == 12 || i == 16 || i == 20) {
+                chars[position++] = '-';
+            }
+            long bits = i < 16 ? mostSignificantBits : leastSignificantBits;
+            int shift = 60 - (i % 16) * 4;
+            chars[position++] = Beacon.hexArray[(int) (bits >>> shift) & 0x0f];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Parses a uuid with or without dashes, in any case.
+     *
+     * @return The high and low 64 bits of the uuid.
+     * @throws IllegalArgumentException If the uuid is malformed.
+     */
+    public static long[] parseUuid(String uuid) {
+        long[] bits = new long[2];
+        int digits = 0;
+        for (int i = 0; i < uuid.length(); i++) {
+            char c = uuid.charAt(i);
+            if (c == '-') {
+                continue;
+            }
+            int value = Character.digit(c, 16);
+            if (value < 0 || digits >= 32) {
+                throw new IllegalArgumentException("Malformed uuid: " + uuid);
+            }
+            bits[digits / 16] = (bits[digits / 16] << 4) | value;
+            digits++;
+        }
+        if (digits != 32) {
+            throw new IllegalArgumentException("Malformed uuid: " + uuid);
+        }
+        return bits;
+    }
+
+    private static long readLong(byte[] data, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (data[offset + i] & 0xff);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Hands out one String instance per uuid and per mac address, so the beacons kept around don't
+ * each hold their own copy. A venue has a handful of uuids and a few hundred beacons, yet every
+ * beacon detected formats its uuid again and the scanner creates a new address String for every
+ * packet.
+ * <p/>
+ * Uuids and addresses are looked up by their bits, without creating a String, and the least
+ * recently used ones are forgotten once there are more than the capacity of each. Not thread safe.
+ */
+public class IdentityStrings {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final Map<Bits, String> uuids;
+    private final Map<Bits, String> addresses;
+    private final Bits lookupKey = new Bits();
+    private long hits;
+    private long misses;
+
+    public IdentityStrings() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity The number of uuids, and separately of addresses, to remember.
+     */
+    public IdentityStrings(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        uuids = new LruMap(capacity);
+        addresses = new LruMap(capacity);
+    }
+
+    /**
+     * The uuid with these bits, lower case and with dashes.
+     */
+    public String uuid(long mostSignificantBits, long leastSignificantBits) {
+        String uuid = uuids.get(lookupKey.set(mostSignificantBits, leastSignificantBits));
+        if (uuid != null) {
+            hits++;
+            return uuid;
+        }
+        misses++;
+        uuid = IBeaconFrame.formatUuid(mostSignificantBits, leastSignificantBits);
+        uuids.put(new Bits().set(mostSignificantBits, leastSignificantBits), uuid);
+        return uuid;
+    }
+
+    /**
+     * The address packed into the low 48 bits, formatted like "00:11:22:AA:BB:CC".
+     *
+     * @return The address, or null if the packed address is negative, meaning there is none.
+     */
+    public String address(long packed) {
+        if (packed < 0) {
+            return null;
+        }
+        String address = addresses.get(lookupKey.set(packed, 0));
+        if (address != null) {
+            hits++;
+            return address;
+        }
+        misses++;
+        address = CaptureFormat.longToAddress(packed);
+        addresses.put(new Bits().set(packed, 0), address);
+        return address;
+    }
+
+    /**
+     * The instance kept for an address equal to this one. The first instance seen becomes the
+     * one kept, so it is returned as is on a miss, as is an address that isn't like
+     * "00:11:22:AA:BB:CC".
+     */
+    public String address(String address) {
+        long packed = CaptureFormat.addressToLong(address);
+        if (packed < 0) {
+            return address;
+        }
+        String kept = addresses.get(lookupKey.set(packed, 0));
+        if (kept != null && kept.equals(address)) {
+            hits++;
+            return kept;
+        }
+        // Also a miss when only the case differs, the latest spelling is kept then.
+        misses++;
+        addresses.put(new Bits().set(packed, 0), address);
+        return address;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * The number of uuids and addresses remembered.
+     */
+    public int size() {
+        return uuids.size() + addresses.size();
+    }
+
+    public void clear() {
+        uuids.clear();
+        addresses.clear();
+    }
+
+    /**
+     * Up to 128 bits, mutable so lookups don't allocate. Only the keys put in a map are never
+     * changed again.
+     */
+    private static final class Bits {
+        long high;
+        long low;
+
+        Bits set(long high, long low) {
+            this.high = high;
+            this.low = low;
+            return this;
+        }
+
+        @Override
+        public int hashCode() {
+            long h = (high * 0x9e3779b97f4a7c15L ^ low) * 0x9e3779b97f4a7c15L;
+            return (int) (h ^ (h >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object that) {
+            if (!(that instanceof Bits)) {
+                return false;
+            }
+            Bits thatBits = (Bits) that;
+            return thatBits.high == high && thatBits.low == low;
+        }
+    }
+
+    private static final class LruMap extends LinkedHashMap<Bits, String> {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        LruMap(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Bits, String> eldest) {
+            return size() > capacity;
+        }
+    }
+}
@@ -0,0 +1,549 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the app's content for beacons, whatever it maps a uuid, major and minor to, so it is
+ * fetched once instead of on every detection.
+ * <p/>
+ * Metadata comes from the app's {@link Loader}, run on a background executor. Concurrent requests
+ * for a beacon that is being loaded share that load. Loaded metadata is kept for the ttl, and a
+ * beacon the loader has nothing for for the negative ttl, so unknown beacons aren't asked about
+ * over and over. Failures aren't kept. Past the max entries, the least recently used go first.
+ * <p/>
+ * Added as a listener to the tracker, the cache starts loading beacons as they are detected. When
+ * the first beacon of a uuid and major comes into range and the loader is a {@link RegionLoader},
+ * the metadata of the whole region is fetched in one go, so its other beacons are ready before
+ * they are seen. Beacons of the region requested meanwhile wait for it, and are only loaded one by
+ * one if it fails or doesn't have them.
+ */
+public class MetadataCache<T> implements BeaconTracker.ProximityListener, Closeable {
+
+    /**
+     * Fetches the metadata of beacons. Called on the cache's executor.
+     */
+    public interface Loader<T> {
+
+        /**
+         * @return The metadata, or null if there is none for the beacon.
+         * @throws IOException If it couldn't be fetched, to try again next time.
+         */
+        T load(BeaconKey key) throws IOException;
+    }
+
+    /**
+     * A loader that can fetch every beacon of a uuid and major at once.
+     */
+    public interface RegionLoader<T> extends Loader<T> {
+
+        Map<BeaconKey, T> loadRegion(long uuidMostSignificantBits, long uuidLeastSignificantBits, int major)
+                throws IOException;
+    }
+
+    /**
+     * Gets the result of {@link #get(BeaconKey, Callback)}, on the caller's thread if the
+     * metadata was cached, otherwise on the executor.
+     */
+    public interface Callback<T> {
+
+        /**
+         * @param metadata The metadata, or null if there is none for the beacon.
+         */
+        void onLoaded(BeaconKey key, T metadata);
+
+        void onFailed(BeaconKey key, IOException e);
+    }
+
+    public static final int DEFAULT_MAX_ENTRIES = 1024;
+
+    public static final long DEFAULT_TTL = 60 * 60 * 1000;
+
+    public static final long DEFAULT_NEGATIVE_TTL = 5 * 60 * 1000;
+
+    public static final int DEFAULT_LOAD_THREADS = 2;
+
+    private final Loader<T> loader;
+    private final Executor executor;
+    private final ExecutorService ownExecutor;
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+
+    private final Object lock = new Object();
+    private final Map<BeaconKey, Cached<T>> entries;
+    private final Map<BeaconKey, Load> loading = new HashMap<BeaconKey, Load>();
+
+    /**
+     * The regions being fetched, and the loads waiting for each.
+     */
+    private final Map<BeaconKey, List<Load>> loadingRegions = new HashMap<BeaconKey, List<Load>>();
+    private final BeaconKey regionLookupKey = new BeaconKey(0, 0, 0, 0);
+
+    /**
+     * The number of active beacons in each region, keyed with {@link BeaconRule#ANY} minors.
+     */
+    private final Map<BeaconKey, int[]> activeRegions = new HashMap<BeaconKey, int[]>();
+    private long hits;
+    private long misses;
+    private long loads;
+    private long evictions;
+
+    private MetadataCache(Builder<T> builder) {
+        loader = builder.loader;
+        ttlNanos = TimeUnit.MILLISECONDS.toNanos(builder.ttl);
+        negativeTtlNanos = TimeUnit.MILLISECONDS.toNanos(builder.negativeTtl);
+        final int maxEntries = builder.maxEntries;
+        entries = new LinkedHashMap<BeaconKey, Cached<T>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<BeaconKey, Cached<T>> eldest) {
+                if (size() > maxEntries) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+        if (builder.executor != null) {
+            executor = builder.executor;
+            ownExecutor = null;
+        } else {
+            ownExecutor = Executors.newFixedThreadPool(DEFAULT_LOAD_THREADS, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "lantern-metadata");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            executor = ownExecutor;
+        }
+    }
+
+    /**
+     * The cached metadata of the beacon, without loading it. Null if there is none, or it isn't
+     * cached.
+     */
+    public T getIfPresent(BeaconKey key) {
+        synchronized (lock) {
+            Cached<T> entry = fresh(key, System.nanoTime());
+            return entry != null ? entry.value : null;
+        }
+    }
+
+    /**
+     * Whether the beacon's metadata, or the lack of it, is cached.
+     */
+    public boolean contains(BeaconKey key) {
+        synchronized (lock) {
+            return fresh(key, System.nanoTime()) != null;
+        }
+    }
+
+    /**
+     * Hands the beacon's metadata to the callback, loading it if it isn't cached.
+     *
+     * @param callback May be null, to only load it into the cache.
+     */
+    public void get(BeaconKey key, Callback<T> callback) {
+        Cached<T> entry;
+        Load load = null;
+        boolean start = false;
+        synchronized (lock) {
+            entry = fresh(key, System.nanoTime());
+            if (entry != null) {
+                hits++;
+            } else {
+                misses++;
+                load = loading.get(key);
+                if (load == null) {
+                    load = new Load(key);
+                    loading.put(key, load);
+                    List<Load> waiting = loadingRegions.get(regionLookupKey.set(key.uuidMostSignificantBits,
+                            key.uuidLeastSignificantBits, key.major, BeaconRule.ANY));
+                    if (waiting != null) {
+                        waiting.add(load);
+                    } else {
+                        start = true;
+                    }
+                }
+                if (callback != null) {
+                    load.callbacks.add(callback);
+                }
+            }
+        }
+        if (entry != null) {
+            if (callback != null) {
+                callback.onLoaded(key, entry.value);
+            }
+        } else if (start) {
+            start(load);
+        }
+    }
+
+    /**
+     * The beacon's metadata, waiting for it to load if it isn't cached.
+     *
+     * @return The metadata, or null if there is none for the beacon.
+     * @throws IOException If it couldn't be loaded.
+     */
+    public T load(BeaconKey key) throws IOException, InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final Object[] result = new Object[1];
+        final IOException[] error = new IOException[1];
+        get(key, new Callback<T>() {
+            @Override
+            public void onLoaded(BeaconKey key, T metadata) {
+                result[0] = metadata;
+                done.countDown();
+            }
+
+            @Override
+            public void onFailed(BeaconKey key, IOException e) {
+                error[0] = e;
+                done.countDown();
+            }
+        });
+        done.await();
+        if (error[0] != null) {
+            throw error[0];
+        }
+        @SuppressWarnings("unchecked")
+        T metadata = (T) result[0];
+        return metadata;
+    }
+
+    /**
+     * Drops the beacon's metadata, so the next request loads it again.
+     */
+    public void invalidate(BeaconKey key) {
+        synchronized (lock) {
+            entries.remove(key);
+        }
+    }
+
+    public void clear() {
+        synchronized (lock) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * The number of cached entries, including beacons without metadata and expired entries
+     * that weren't evicted yet.
+     */
+    public int size() {
+        synchronized (lock) {
+            return entries.size();
+        }
+    }
+
+    public long getHits() {
+        synchronized (lock) {
+            return hits;
+        }
+    }
+
+    public long getMisses() {
+        synchronized (lock) {
+            return misses;
+        }
+    }
+
+    /**
+     * The number of times the loader was called, for single beacons or regions.
+     */
+    public long getLoads() {
+        synchronized (lock) {
+            return loads;
+        }
+    }
+
+    public long getEvictions() {
+        synchronized (lock) {
+            return evictions;
+        }
+    }
+
+    @Override
+    public void onBeaconDetected(TrackedBeacon beacon) {
+        BeaconKey key = beacon.getKey();
+        BeaconKey region = new BeaconKey(key.uuidMostSignificantBits, key.uuidLeastSignificantBits, key.major,
+                BeaconRule.ANY);
+        boolean entered;
+        synchronized (lock) {
+            int[] active = activeRegions.get(region);
+            entered = active == null;
+            if (entered) {
+                active = new int[1];
+                activeRegions.put(region, active);
+            }
+            active[0]++;
+        }
+        if (entered && loader instanceof RegionLoader) {
+            // Before the beacon itself, so it waits for the region instead of being loaded twice.
+            prefetchRegion(region);
+        }
+        get(key, null);
+    }
+
+    @Override
+    public void onBeaconChanged(TrackedBeacon beacon) {
+    }
+
+    @Override
+    public void onProximityChanged(TrackedBeacon beacon, int previousProximity) {
+    }
+
+    @Override
+    public void onBeaconExpired(TrackedBeacon beacon) {
+        BeaconKey key = beacon.getKey();
+        BeaconKey region = new BeaconKey(key.uuidMostSignificantBits, key.uuidLeastSignificantBits, key.major,
+                BeaconRule.ANY);
+        synchronized (lock) {
+            int[] active = activeRegions.get(region);
+            if (active != null && --active[0] <= 0) {
+                activeRegions.remove(region);
+            }
+        }
+    }
+
+    /**
+     * Stops the executor the cache made itself, if it wasn't given one.
+     */
+    @Override
+    public void close() {
+        if (ownExecutor != null) {
+            ownExecutor.shutdown();
+        }
+    }
+
+    private void prefetchRegion(final BeaconKey region) {
+        synchronized (lock) {
+            if (loadingRegions.containsKey(region)) {
+                return;
+            }
+            loadingRegions.put(region, new ArrayList<Load>(1));
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Map<BeaconKey, T> metadata = null;
+                    try {
+                        synchronized (lock) {
+                            loads++;
+                        }
+                        metadata = ((RegionLoader<T>) loader).loadRegion(region.uuidMostSignificantBits,
+                                region.uuidLeastSignificantBits, region.major);
+                    } catch (IOException e) {
+                        // The beacons are still loaded one by one as they are seen.
+                    } catch (RuntimeException e) {
+                        // Same as a failure.
+                    }
+                    finishRegion(region, metadata);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            finishRegion(region, null);
+        }
+    }
+
+    /**
+     * Caches a fetched region, and finishes the loads that waited for it.
+     *
+     * @param metadata The region's metadata, or null if it couldn't be fetched.
+     */
+    private void finishRegion(BeaconKey region, Map<BeaconKey, T> metadata) {
+        List<Load> waiting;
+        synchronized (lock) {
+            waiting = loadingRegions.remove(region);
+            if (metadata != null) {
+                long now = System.nanoTime();
+                for (Map.Entry<BeaconKey, T> entry : metadata.entrySet()) {
+                    if (entry.getValue() != null) {
+                        put(entry.getKey(), entry.getValue(), now);
+                    }
+                }
+            }
+        }
+        for (Load load : waiting) {
+            T value = metadata != null ? metadata.get(load.key) : null;
+            if (value != null) {
+                load.finish(value, null);
+            } else {
+                // Not in the region, which doesn't mean the beacon has nothing.
+                start(load);
+            }
+        }
+    }
+
+    private void start(Load load) {
+        try {
+            executor.execute(load);
+        } catch (RejectedExecutionException e) {
+            load.finish(null, new IOException("Metadata cache is closed"));
+        }
+    }
+
+    /**
+     * The entry of the beacon if it hasn't expired, removing it if it has. Guarded by the lock.
+     */
+    private Cached<T> fresh(BeaconKey key, long now) {
+        Cached<T> entry = entries.get(key);
+        if (entry != null && now - entry.expiresAt >= 0) {
+            entries.remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Guarded by the lock.
+     */
+    private void put(BeaconKey key, T value, long now) {
+        entries.put(key, new Cached<T>(value, now + (value != null ? ttlNanos : negativeTtlNanos)));
+    }
+
+    private static final class Cached<T> {
+
+        final T value;
+
+        /**
+         * In {@link System#nanoTime()} time.
+         */
+        final long expiresAt;
+
+        Cached(T value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * A load in flight, and the callbacks waiting for it.
+     */
+    private final class Load implements Runnable {
+
+        final BeaconKey key;
+        final List<Callback<T>> callbacks = new ArrayList<Callback<T>>(1);
+
+        Load(BeaconKey key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            synchronized (lock) {
+                loads++;
+            }
+            try {
+                finish(loader.load(key), null);
+            } catch (IOException e) {
+                finish(null, e);
+            } catch (RuntimeException e) {
+                finish(null, new IOException("Loader failed", e));
+            }
+        }
+
+        void finish(T value, IOException error) {
+            synchronized (lock) {
+                loading.remove(key);
+                if (error == null) {
+                    put(key, value, System.nanoTime());
+                }
+            }
+            // No callback can be added once it is out of the loading map.
+            for (Callback<T> callback : callbacks) {
+                if (error == null) {
+                    callback.onLoaded(key, value);
+                } else {
+                    callback.onFailed(key, error);
+                }
+            }
+        }
+    }
+
+    public static class Builder<T> {
+        private final Loader<T> loader;
+        private Executor executor;
+        private int maxEntries = DEFAULT_MAX_ENTRIES;
+        private long ttl = DEFAULT_TTL;
+        private long negativeTtl = DEFAULT_NEGATIVE_TTL;
+
+        public Builder(Loader<T> loader) {
+            if (loader == null) {
+                throw new IllegalArgumentException("Loader cannot be null");
+            }
+            this.loader = loader;
+        }
+
+        /**
+         * Runs the loads on the executor, instead of {@link #DEFAULT_LOAD_THREADS} threads of the
+         * cache's own.
+         */
+        public Builder<T> withExecutor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        public Builder<T> withMaxEntries(int maxEntries) {
+            if (maxEntries <= 0) {
+                throw new IllegalArgumentException("Max entries must be positive");
+            }
+            this.maxEntries = maxEntries;
+            return this;
+        }
+
+        /**
+         * How long, in milliseconds, to keep metadata, and to remember beacons without any.
+         */
+        public Builder<T> withTtl(long milliseconds, long negativeMilliseconds) {
+            if (milliseconds < 0 || negativeMilliseconds < 0) {
+                throw new IllegalArgumentException("Ttl cannot be negative");
+            }
+            ttl = milliseconds;
+            negativeTtl = negativeMilliseconds;
+            return this;
+        }
+
+        public MetadataCache<T> build() {
+            return new MetadataCache<T>(this);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The beacons that were active at some point, copied so they don't change as the tracker goes on.
+ */
+public class PresenceSnapshot {
+
+    private final long time;
+    private final List<TrackedBeacon> beacons;
+
+    PresenceSnapshot(long time, List<TrackedBeacon> beacons) {
+        this.time = time;
+        this.beacons = Collections.unmodifiableList(beacons);
+    }
+
+    /**
+     * When the snapshot was taken, in {@link System#currentTimeMillis()} time. A merged snapshot
+     * has the time of its oldest part.
+     */
+    public long getTime() {
+        return time;
+    }
+
+    public List<TrackedBeacon> getBeacons() {
+        return beacons;
+    }
+
+    public int size() {
+        return beacons.size();
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits distances into named proximity zones, such as "Immediate", "Near" and "Far". Each zone
+ * covers the distances below its upper bound, and the outer zone covers everything beyond the
+ * last bound, so a distance right on the last bound is still in the zone inside it. Zones are numbered from 1, closest first, and 0 is the unknown proximity, so the
+ * {@link #DEFAULT} zones match the proximity constants of {@link Beacon}.
+ * <p/>
+ * A beacon sitting on a boundary would flip between the zones on either side with every packet.
+ * To avoid that, moving into a closer zone takes being closer than its bound by the enter margin,
+ * and moving out takes being further than the bound by the exit margin, both as a fraction of
+ * the bound. On top of that, a beacon has to stay in its new zone for the minimum dwell time
+ * before it counts as having moved.
+ */
+public final class ProximityZones {
+
+    public static final int UNKNOWN = Beacon.PROXIMITY_UNKNOWN;
+
+    /**
+     * Immediate under half a meter, near up to four meters and far beyond, with a margin of 10%
+     * and no minimum dwell.
+     */
+    public static final ProximityZones DEFAULT = new Builder()
+            .addZone("Immediate", 0.5)
+            .addZone("Near", 4.0)
+            .setOuterZone("Far")
+            .withMargins(0.1, 0.1)
+            .build();
+
+    private static final String UNKNOWN_NAME = "Unknown";
+
+    private final String[] names;
+    private final double[] bounds;
+    private final double enterMargin;
+    private final double exitMargin;
+    private final long minDwell;
+
+    private ProximityZones(Builder builder) {
+        int count = builder.names.size();
+        names = new String[count + 2];
+        bounds = new double[count + 2];
+        names[UNKNOWN] = UNKNOWN_NAME;
+        for (int i = 0; i < count; i++) {
+            names[i + 1] = builder.names.get(i);
+            bounds[i + 1] = builder.bounds.get(i);
+        }
+        names[count + 1] = builder.outerZone;
+        bounds[count + 1] = Double.POSITIVE_INFINITY;
+        enterMargin = builder.enterMargin;
+        exitMargin = builder.exitMargin;
+        minDwell = builder.minDwell;
+    }
+
+    /**
+     * The number of zones, including the outer one.
+     */
+    public int size() {
+        return names.length - 1;
+    }
+
+    /**
+     * The name of a zone, or "Unknown".
+     */
+    public String getName(int proximity) {
+        if (proximity <= UNKNOWN || proximity >= names.length) {
+            return UNKNOWN_NAME;
+        }
+        return names[proximity];
+    }
+
+    /**
+     * The distance a zone ends at, infinite for the outer zone.
+     */
+    public double getUpperBound(int proximity) {
+        if (proximity <= UNKNOWN || proximity >= names.length) {
+            throw new IllegalArgumentException("No zone " + proximity);
+        }
+        return bounds[proximity];
+    }
+
+    public double getEnterMargin() {
+        return enterMargin;
+    }
+
+    public double getExitMargin() {
+        return exitMargin;
+    }
+
+    /**
+     * How long, in milliseconds, a beacon has to stay in a new zone before it counts as moved.
+     */
+    public long getMinDwell() {
+        return minDwell;
+    }
+
+    /**
+     * The zone a distance is in, without any hysteresis.
+     */
+    public int zoneFor(double distance) {
+        if (distance < 0 || Double.isNaN(distance)) {
+            return UNKNOWN;
+        }
+        int last = bounds.length - 2;
+        int zone = 1;
+        while (zone < last && distance >= bounds[zone]) {
+            zone++;
+        }
+        if (zone == last && distance > bounds[zone]) {
+            zone++;
+        }
+        return zone;
+    }
+
+    /**
+     * The zone a beacon is in after moving to a distance, taking the margins into account.
+     *
+     * @param current The zone the beacon was in.
+     */
+    public int next(int current, double distance) {
+        int zone = zoneFor(distance);
+        if (current == UNKNOWN || zone == UNKNOWN || zone == current) {
+            return zone;
+        }
+        if (zone < current) {
+            return Math.min(current, zoneFor(distance / (1 - enterMargin)));
+        }
+        return Math.max(current, zoneFor(distance / (1 + exitMargin)));
+    }
+
+    /**
+     * Writes the zones out as a single line, which {@link #decode(String)} reads back.
+     */
+    public String encode() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(enterMargin).append(',').append(exitMargin).append(',').append(minDwell);
+        for (int i = 1; i < names.length - 1; i++) {
+            builder.append('|').append(names[i]).append(':').append(bounds[i]);
+        }
+        builder.append('|').append(names[names.length - 1]);
+        return builder.toString();
+    }
+
+    /**
+     * Reads zones written out by {@link #encode()}.
+     *
+     * @throws IllegalArgumentException If the line isn't encoded zones.
+     */
+    public static ProximityZones decode(String encoded) {
+        String[] parts = encoded != null ? encoded.split("\\|", -1) : new String[0];
+        if (parts.length < 2) {
+            throw new IllegalArgumentException("Not proximity zones: " + encoded);
+        }
+        try {
+            String[] settings = parts[0].split(",");
+            if (settings.length != 3) {
+                throw new IllegalArgumentException("Not proximity zones: " + encoded);
+            }
+            Builder builder = new Builder()
+                    .withMargins(Double.parseDouble(settings[0]), Double.parseDouble(settings[1]))
+                    .withMinDwell(Long.parseLong(settings[2]));
+            for (int i = 1; i < parts.length - 1; i++) {
+                int separator = parts[i].lastIndexOf(':');
+                if (separator < 0) {
+                    throw new IllegalArgumentException("Not proximity zones: " + encoded);
+                }
+                builder.addZone(parts[i].substring(0, separator), Double.parseDouble(parts[i].substring(separator + 1)));
+            }
+            return builder.setOuterZone(parts[parts.length - 1]).build();
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not proximity zones: " + encoded, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return encode();
+    }
+
+    public static class Builder {
+        private final List<String> names = new ArrayList<String>();
+        private final List<Double> bounds = new ArrayList<Double>();
+        private String outerZone;
+        private double enterMargin;
+        private double exitMargin;
+        private long minDwell;
+
+        /**
+         * Adds the next zone out.
+         *
+         * @param name       The name of the zone, which can't contain '|'.
+         * @param upperBound The distance in meters the zone ends at, further than the last zone's.
+         */
+        public Builder addZone(String name, double upperBound) {
+            checkName(name);
+            if (!(upperBound > (bounds.isEmpty() ? 0 : bounds.get(bounds.size() - 1)))
+                    || Double.isInfinite(upperBound)) {
+                throw new IllegalArgumentException("Zone " + name + " must end further than the zone before it");
+            }
+            names.add(name);
+            bounds.add(upperBound);
+            return this;
+        }
+
+        /**
+         * Names the zone beyond the last bound.
+         */
+        public Builder setOuterZone(String name) {
+            checkName(name);
+            outerZone = name;
+            return this;
+        }
+
+        /**
+         * How far past a bound, as a fraction of the bound, a beacon has to be to move into a
+         * closer zone, and to move out into a further one.
+         */
+        public Builder withMargins(double enterMargin, double exitMargin) {
+            if (enterMargin < 0 || enterMargin >= 1 || exitMargin < 0) {
+                throw new IllegalArgumentException("Margins must be positive, and the enter margin under 1");
+            }
+            this.enterMargin = enterMargin;
+            this.exitMargin = exitMargin;
+            return this;
+        }
+
+        /**
+         * How long, in milliseconds, a beacon has to stay in a new zone before it counts as moved.
+         */
+        public Builder withMinDwell(long milliseconds) {
+            if (milliseconds < 0) {
+                throw new IllegalArgumentException("Minimum dwell cannot be negative");
+            }
+            minDwell = milliseconds;
+            return this;
+        }
+
+        public ProximityZones build() {
+            if (outerZone == null) {
+                throw new IllegalStateException("The outer zone needs a name");
+            }
+            return new ProximityZones(this);
+        }
+
+        private static void checkName(String name) {
+            if (name == null || name.indexOf('|') >= 0) {
+                throw new IllegalArgumentException("Zone names cannot be null or contain '|'");
+            }
+        }
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+/**
+ * Replays recorded advertisements from a file, so the pipeline can be exercised and benchmarked
+ * without a radio. This only uses plain Java, so it runs on any JVM.
+ * <p/>
+ * Every line of the file is one advertisement, made of the receive timestamp in nanoseconds,
+ * the RSSI, the mac address (or "-" if unknown) and the raw advertisement bytes in hex,
+ * separated by whitespace. Blank lines and lines starting with "#" are skipped.
+ * <pre>
+ * 1000000000 -67 00:11:22:33:44:55 0201061aff4c000215...
+ * </pre>
+ * Binary captures written by {@link CaptureRecorder} are replayed as well, and are told apart
+ * from text files by their header.
+ * <p/>
+ * Advertisements are delivered on a background thread, spaced out like they were recorded
+ * but sped up by the replay speed. Stopping the scan pauses the replay, and starting it again
+ * continues where it left off. A looping replay of a file without any advertisements finishes
+ * like one that doesn't loop, rather than reading the file over and over.
+ */
+public class ReplayScanSource implements ScanSource {
+
+    /**
+     * Replay speed that delivers advertisements as fast as the listener takes them.
+     */
+    public static final double SPEED_UNLIMITED = 0;
+
+    private final File file;
+    private final double speed;
+    private boolean looping;
+    private Listener listener;
+
+    private BufferedReader reader;
+    private CaptureReader captureReader;
+    private Thread thread;
+    private volatile boolean running;
+    private volatile boolean finished;
+
+    /**
+     * Timestamp of the last delivered advertisement, used to space out the next one.
+     */
+    private long lastTimestamp = -1;
+
+    /**
+     * Whether an advertisement was read since the file was last opened.
+     */
+    private boolean readAny;
+
+    /**
+     * The next advertisement to be delivered.
+     */
+    private byte[] pendingRecord;
+    private int pendingRssi;
+    private String pendingAddress;
+    private long pendingTimestamp;
+
+    /**
+     * @param file  The recording to replay.
+     * @param speed How many times faster than real time to replay, or {@link #SPEED_UNLIMITED}.
+     */
+    public ReplayScanSource(File file, double speed) {
+        if (file == null) {
+            throw new IllegalArgumentException("File cannot be null");
+        }
+        if (speed < 0) {
+            throw new IllegalArgumentException("Speed cannot be negative");
+        }
+        this.file = file;
+        this.speed = speed;
+    }
+
+    /**
+     * Whether to start over from the beginning of the file once the end is reached.
+     */
+    public void setLooping(boolean looping) {
+        this.looping = looping;
+    }
+
+    /**
+     * Whether the whole file has been replayed.
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public synchronized boolean startScan() {
+        if (running) {
+            return true;
+        }
+        if (finished) {
+            return false;
+        }
+        running = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                replay();
+            }
+        }, "lantern-replay");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    @Override
+    public void stopScan() {
+        Thread replayThread;
+        synchronized (this) {
+            running = false;
+            replayThread = thread;
+            thread = null;
+        }
+        if (replayThread != null && replayThread != Thread.currentThread()) {
+            replayThread.interrupt();
+            try {
+                replayThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Waits until the whole file has been replayed, or the replay is stopped.
+     */
+    public void awaitFinished() throws InterruptedException {
+        Thread replayThread;
+        synchronized (this) {
+            replayThread = thread;
+        }
+        if (replayThread != null) {
+            replayThread.join();
+        }
+    }
+
+    private void replay() {
+        try {
+            while (running) {
+                if (pendingRecord == null && !readNext()) {
+                    continue;
+                }
+                if (!waitFor(pendingTimestamp)) {
+                    // Stopped while waiting, the pending advertisement goes out once resumed.
+                    return;
+                }
+                byte[] scanRecord = pendingRecord;
+                pendingRecord = null;
+                listener.onAdvertisement(scanRecord, pendingRssi, pendingAddress, pendingTimestamp);
+            }
+        } catch (IOException e) {
+            closeReaders();
+            running = false;
+            finished = true;
+            listener.onScanFailed(ScanController.SCAN_FAILED_INTERNAL_ERROR);
+        }
+    }
+
+    /**
+     * Reads the next line of the file into the pending advertisement.
+     *
+     * @return False if the line had no advertisement on it, or the end of the file was reached.
+     */
+    private boolean readNext() throws IOException {
+        if (reader == null && captureReader == null) {
+            if (CaptureReader.isCaptureFile(file)) {
+                captureReader = new CaptureReader(file);
+            } else {
+                reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            }
+        }
+        if (captureReader != null) {
+            boolean hasNext;
+            try {
+                hasNext = captureReader.hasNext();
+            } catch (IllegalStateException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+            if (hasNext) {
+                CaptureRecord record = captureReader.next();
+                pendingTimestamp = record.timestampNanos;
+                pendingRssi = record.rssi;
+                pendingAddress = record.address;
+                pendingRecord = record.scanRecord;
+                readAny = true;
+                return true;
+            }
+            captureReader.close();
+            captureReader = null;
+            endOfFile();
+            return false;
+        }
+        String line = reader.readLine();
+        if (line == null) {
+            reader.close();
+            reader = null;
+            endOfFile();
+            return false;
+        }
+        line = line.trim();
+        if (line.length() == 0 || line.charAt(0) == '#') {
+            return false;
+        }
+        String[] fields = line.split("\\s+");
+        if (fields.length != 4) {
+            throw new IOException("Malformed replay line: " + line);
+        }
+        try {
+            pendingTimestamp = Long.parseLong(fields[0]);
+            pendingRssi = Integer.parseInt(fields[1]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed replay line: " + line);
+        }
+        pendingAddress = "-".equals(fields[2]) ? null : fields[2];
+        pendingRecord = hexToBytes(fields[3]);
+        readAny = true;
+        return true;
+    }
+
+    private void endOfFile() {
+        lastTimestamp = -1;
+        if (!looping || !readAny) {
+            finished = true;
+            running = false;
+        }
+        readAny = false;
+    }
+
+    /**
+     * Sleeps until the advertisement with the given timestamp is due.
+     *
+     * @return False if the replay was stopped while waiting.
+     */
+    private boolean waitFor(long timestamp) {
+        if (lastTimestamp >= 0 && speed != SPEED_UNLIMITED && timestamp > lastTimestamp) {
+            long delayNanos = (long) ((timestamp - lastTimestamp) / speed);
+            try {
+                Thread.sleep(delayNanos / 1000000, (int) (delayNanos % 1000000));
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        lastTimestamp = timestamp;
+        return running;
+    }
+
+    /**
+     * Converts hex to bytes.
+     *
+     * @param hex The hex to be converted.
+     * @return The bytes that were converted from the hex.
+     */
+    static byte[] hexToBytes(String hex) throws IOException {
+        if (hex.length() % 2 != 0) {
+            throw new IOException("Odd number of hex digits: " + hex);
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(i * 2), 16);
+            int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new IOException("Invalid hex digit: " + hex);
+            }
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return bytes;
+    }
+
+    private void closeReaders() {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                // Nothing left to do with it.
+            }
+            reader = null;
+        }
+        if (captureReader != null) {
+            try {
+                captureReader.close();
+            } catch (IOException e) {
+                // Nothing left to do with it.
+            }
+            captureReader = null;
+        }
+    }
+}
@@ -0,0 +1,347 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The latest RSSI samples of every beacon, kept in fixed rings so the memory used doesn't grow
+ * with uptime: a set number of samples for each of a set number of beacons, all in one
+ * {@code long[]} of times and one {@code byte[]} of RSSIs. Once every ring is taken, a new beacon
+ * gets the ring of the beacon heard from longest ago. A beacon's ring outlives its expiration
+ * until then, so its history can still be looked at.
+ * <p/>
+ * The samples of a range of time are found with a binary search, and counted, visited and
+ * aggregated in place, without being copied. The history is thread safe, so the app can query it
+ * while the tracker adds to it.
+ */
+public class RssiHistory {
+
+    /**
+     * Gets the samples of a range, oldest first.
+     */
+    public interface SampleVisitor {
+
+        void onSample(long time, int rssi);
+    }
+
+    /**
+     * The aggregates of the samples in a range, see {@link #summarize}.
+     */
+    public static final class Summary {
+
+        int count;
+        int min;
+        int max;
+        double mean;
+
+        public int getCount() {
+            return count;
+        }
+
+        public int getMin() {
+            return min;
+        }
+
+        public int getMax() {
+            return max;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+    }
+
+    public static final int DEFAULT_BEACONS = 128;
+    public static final int DEFAULT_SAMPLES_PER_BEACON = 64;
+
+    private final int samplesPerBeacon;
+    private final long[] times;
+    private final byte[] rssis;
+    private final int[] starts;
+    private final int[] sizes;
+    private final BeaconKey[] owners;
+    private final Map<BeaconKey, Integer> slots;
+    private final int[] histogram = new int[256];
+    private int used;
+
+    public RssiHistory() {
+        this(DEFAULT_BEACONS, DEFAULT_SAMPLES_PER_BEACON);
+    }
+
+    public RssiHistory(int beacons, int samplesPerBeacon) {
+        if (beacons <= 0 || samplesPerBeacon <= 0) {
+            throw new IllegalArgumentException("Beacons and samples per beacon must be positive");
+        }
+        this.samplesPerBeacon = samplesPerBeacon;
+        times = new long[beacons * samplesPerBeacon];
+        rssis = new byte[beacons * samplesPerBeacon];
+        starts = new int[beacons];
+        sizes = new int[beacons];
+        owners = new BeaconKey[beacons];
+        slots = new HashMap<BeaconKey, Integer>(beacons * 2);
+    }
+
+    public int getBeacons() {
+        return owners.length;
+    }
+
+    public int getSamplesPerBeacon() {
+        return samplesPerBeacon;
+    }
+
+    /**
+     * The bytes taken by the samples, which is all the history ever takes apart from the index
+     * of its beacons.
+     */
+    public int getMemoryBytes() {
+        return times.length * 9;
+    }
+
+    /**
+     * Adds a sample, dropping the beacon's oldest one if its ring is full. A sample older than the
+     * beacon's latest, like one from a batch delivered late, is taken at the latest one's time,
+     * so the rings stay in order.
+     */
+    synchronized void add(TrackedBeacon beacon, int rssi, long time) {
+        int slot = beacon.historySlot;
+        if (slot < 0 || owners[slot] != beacon.key) {
+            slot = slotFor(beacon.key);
+            beacon.historySlot = slot;
+        }
+        int base = slot * samplesPerBeacon;
+        int size = sizes[slot];
+        if (size > 0) {
+            time = Math.max(time, times[base + (starts[slot] + size - 1) % samplesPerBeacon]);
+        }
+        int index;
+        if (size == samplesPerBeacon) {
+            index = starts[slot];
+            starts[slot] = (index + 1) % samplesPerBeacon;
+        } else {
+            index = (starts[slot] + size) % samplesPerBeacon;
+            sizes[slot] = size + 1;
+        }
+        times[base + index] = time;
+        rssis[base + index] = (byte) Math.max(Byte.MIN_VALUE, Math.min(Byte.MAX_VALUE, rssi));
+    }
+
+    /**
+     * The beacon's ring, emptied if it's new: a free one, or else the one of the beacon heard
+     * from longest ago.
+     */
+    private int slotFor(BeaconKey key) {
+        Integer existing = slots.get(key);
+        if (existing != null) {
+            // Another instance of a beacon that expired and came back.
+            owners[existing] = key;
+            return existing;
+        }
+        int slot;
+        if (used < owners.length) {
+            slot = used++;
+        } else {
+            slot = 0;
+            long oldest = Long.MAX_VALUE;
+            for (int i = 0; i < owners.length; i++) {
+                long latest = sizes[i] == 0 ? Long.MIN_VALUE : times[i * samplesPerBeacon + (starts[i] + sizes[i] - 1) % samplesPerBeacon];
+                if (latest < oldest) {
+                    oldest = latest;
+                    slot = i;
+                }
+            }
+            slots.remove(owners[slot]);
+        }
+        owners[slot] = key;
+        starts[slot] = 0;
+        sizes[slot] = 0;
+        slots.put(key, slot);
+        return slot;
+    }
+
+    /**
+     * The number of samples kept for the beacon.
+     */
+    public synchronized int size(BeaconKey key) {
+        Integer slot = slots.get(key);
+        return slot != null ? sizes[slot] : 0;
+    }
+
+    /**
+     * The number of samples of the beacon between the times, both included.
+     */
+    public synchronized int count(BeaconKey key, long from, long to) {
+        Integer slot = slots.get(key);
+        if (slot == null) {
+            return 0;
+        }
+        return Math.max(0, upperBound(slot, to) - lowerBound(slot, from));
+    }
+
+    /**
+     * Hands the samples of the beacon between the times, both included, to the visitor, oldest
+     * first. The visitor is called holding the history's lock.
+     *
+     * @return The number of samples visited.
+     */
+    public synchronized int forEach(BeaconKey key, long from, long to, SampleVisitor visitor) {
+        Integer slot = slots.get(key);
+        if (slot == null) {
+            return 0;
+        }
+        int base = slot * samplesPerBeacon;
+        int start = starts[slot];
+        int lo = lowerBound(slot, from);
+        int hi = upperBound(slot, to);
+        for (int i = lo; i < hi; i++) {
+            int index = base + (start + i) % samplesPerBeacon;
+            visitor.onSample(times[index], rssis[index]);
+        }
+        return Math.max(0, hi - lo);
+    }
+
+    /**
+     * Works out the count, min, max and mean RSSI of the samples of the beacon between the
+     * times, both included.
+     *
+     * @param summary Where the aggregates go, so it can be reused.
+     * @return Whether there were any samples. If not, the summary is left alone.
+     */
+    public synchronized boolean summarize(BeaconKey key, long from, long to, Summary summary) {
+        Integer slot = slots.get(key);
+        if (slot == null) {
+            return false;
+        }
+        int base = slot * samplesPerBeacon;
+        int start = starts[slot];
+        int lo = lowerBound(slot, from);
+        int hi = upperBound(slot, to);
+        if (hi <= lo) {
+            return false;
+        }
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        long sum = 0;
+        for (int i = lo; i < hi; i++) {
+            int rssi = rssis[base + (start + i) % samplesPerBeacon];
+            min = Math.min(min, rssi);
+            max = Math.max(max, rssi);
+            sum += rssi;
+        }
+        summary.count = hi - lo;
+        summary.min = min;
+        summary.max = max;
+        summary.mean = (double) sum / summary.count;
+        return true;
+    }
+
+    /**
+     * The nearest rank percentile of the RSSI of the samples of the beacon between the times,
+     * both included, counted out of a histogram rather than sorted.
+     *
+     * @param percentile Between 0 and 100, 50 being the median.
+     * @return The RSSI, or {@link Integer#MIN_VALUE} if there are no samples.
+     */
+    public synchronized int percentile(BeaconKey key, long from, long to, double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100");
+        }
+        Integer slot = slots.get(key);
+        if (slot == null) {
+            return Integer.MIN_VALUE;
+        }
+        int base = slot * samplesPerBeacon;
+        int start = starts[slot];
+        int lo = lowerBound(slot, from);
+        int hi = upperBound(slot, to);
+        if (hi <= lo) {
+            return Integer.MIN_VALUE;
+        }
+        for (int i = lo; i < hi; i++) {
+            histogram[rssis[base + (start + i) % samplesPerBeacon] - Byte.MIN_VALUE]++;
+        }
+        int rank = Math.max(1, (int) Math.ceil(percentile / 100 * (hi - lo)));
+        int result = Integer.MIN_VALUE;
+        for (int i = 0, seen = 0; i < histogram.length; i++) {
+            seen += histogram[i];
+            if (seen >= rank && result == Integer.MIN_VALUE) {
+                result = i + Byte.MIN_VALUE;
+            }
+            histogram[i] = 0;
+        }
+        return result;
+    }
+
+    /**
+     * Forgets every sample.
+     */
+    public synchronized void clear() {
+        slots.clear();
+        for (int i = 0; i < owners.length; i++) {
+            owners[i] = null;
+            sizes[i] = 0;
+        }
+        used = 0;
+    }
+
+    /**
+     * The position in the beacon's ring of the first sample at or after the time.
+     */
+    private int lowerBound(int slot, long time) {
+        int base = slot * samplesPerBeacon;
+        int start = starts[slot];
+        int lo = 0;
+        int hi = sizes[slot];
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (times[base + (start + mid) % samplesPerBeacon] < time) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * The position in the beacon's ring of the first sample after the time.
+     */
+    private int upperBound(int slot, long time) {
+        int base = slot * samplesPerBeacon;
+        int start = starts[slot];
+        int lo = 0;
+        int hi = sizes[slot];
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (times[base + (start + mid) % samplesPerBeacon] <= time) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern;
+
+/**
+ * The latest RSSI samples one receiver got from one beacon, bounded by count and by age, with a
+ * running sum so the mean is kept up to date as samples come and go.
+ */
+class RssiWindow {
+
+    private final int[] rssis;
+    private final long[] times;
+    private final long maxAge;
+    private int start;
+    private int size;
+    private long sum;
+
+    RssiWindow(int capacity, long maxAge) {
+        rssis = new int[capacity];
+        times = new long[capacity];
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Adds a sample, dropping the oldest one if the window is full.
+     */
+    void add(int rssi, long now) {
+        evict(now);
+        if (size == rssis.length) {
+            sum -= rssis[start];
+            start = (start + 1) % rssis.length;
+            size--;
+        }
+        int end = (start + size) % rssis.length;
+        rssis[end] = rssi;
+        times[end] = now;
+        sum += rssi;
+        size++;
+    }
+
+    /**
+     * Drops the samples older than the max age.
+     *
+     * @return Whether any samples were dropped.
+     */
+    boolean evict(long now) {
+        boolean evicted = false;
+        while (size > 0 && now - times[start] > maxAge) {
+            sum -= rssis[start];
+            start = (start + 1) % rssis.length;
+            size--;
+            evicted = true;
+        }
+        return evicted;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    double mean() {
+        return size == 0 ? Double.NaN : (double) sum / size;
+    }
+
+    long lastTime() {
+        return size == 0 ? Long.MIN_VALUE : times[(start + size - 1) % rssis.length];
+    }
+}
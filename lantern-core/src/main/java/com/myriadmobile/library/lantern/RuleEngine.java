@@ -0,0 +1,420 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Evaluates {@link BeaconRule}s against the tracker's changes, so apps only hear about the
+ * changes they would have reacted to.
+ * <p/>
+ * The rules are indexed by the parts of the identity they name: one map for the rules naming
+ * uuid, major and minor, another for the ones naming only the uuid and so on. A change only looks
+ * up the beacon in the maps some rule uses, at most eight, and only evaluates the rules found, so
+ * it costs the same with ten rules or ten thousand, except for the rules that do match.
+ * <p/>
+ * The tracker only reports a beacon when it changes, so for dwell times to be noticed while a
+ * beacon sits still, {@link #check(long)} has to be called every so often. It also forgets the
+ * beacons that left while a rule was cooling down for them, once the cooldown is over. Like the
+ * tracker, the engine isn't thread safe.
+ */
+public class RuleEngine implements BeaconTracker.ProximityListener {
+
+    /**
+     * Gets the rules that fired.
+     */
+    public interface Listener {
+
+        void onRuleFired(BeaconRule rule, TrackedBeacon beacon, long time);
+    }
+
+    private static final int HAS_UUID = 1;
+    private static final int HAS_MAJOR = 2;
+    private static final int HAS_MINOR = 4;
+
+    private final BeaconRule[] rules;
+    private final RuleIndex enterRules;
+    private final RuleIndex exitRules;
+    private final int zones;
+    private final TimeZone timeZone;
+    private final Listener listener;
+
+    /**
+     * For every rule, when it last fired for each beacon: the time the beacon came into the
+     * zone, and the time it fired.
+     */
+    private final List<Map<BeaconKey, long[]>> fired;
+
+    /**
+     * The firings of beacons that expired inside the rule's cooldown, to forget once it is over.
+     */
+    private final List<Cooldown> cooldowns = new ArrayList<Cooldown>();
+    private final Map<BeaconKey, Presence> active = new HashMap<BeaconKey, Presence>();
+    private final BeaconKey lookupKey = new BeaconKey(0, 0, 0, 0);
+
+    /**
+     * @param zones    The zones the tracker reports proximities in.
+     * @param timeZone The time zone of the rules' time windows.
+     */
+    public RuleEngine(List<BeaconRule> rules, ProximityZones zones, TimeZone timeZone, Listener listener) {
+        if (rules == null || zones == null || timeZone == null || listener == null) {
+            throw new IllegalArgumentException("Rules, zones, time zone and listener cannot be null");
+        }
+        this.rules = rules.toArray(new BeaconRule[rules.size()]);
+        this.zones = zones.size();
+        this.timeZone = timeZone;
+        this.listener = listener;
+        enterRules = new RuleIndex(this.rules, BeaconRule.ENTER);
+        exitRules = new RuleIndex(this.rules, BeaconRule.EXIT);
+        fired = new ArrayList<Map<BeaconKey, long[]>>(this.rules.length);
+        for (int i = 0; i < this.rules.length; i++) {
+            fired.add(new HashMap<BeaconKey, long[]>());
+        }
+    }
+
+    public int getRuleCount() {
+        return rules.length;
+    }
+
+    /**
+     * Whether any rule has a dwell time, so needs {@link #check(long)} to be called.
+     */
+    public boolean hasDwellRules() {
+        for (BeaconRule rule : rules) {
+            if (rule.getTrigger() == BeaconRule.ENTER && rule.dwell > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether any rule has a cooldown, so needs {@link #check(long)} to be called to forget the
+     * beacons that left.
+     */
+    public boolean hasCooldowns() {
+        for (BeaconRule rule : rules) {
+            if (rule.cooldown > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The number of rules a beacon would evaluate, found through the index.
+     */
+    public int countCandidates(BeaconKey key) {
+        return enterRules.count(key, lookupKey) + exitRules.count(key, lookupKey);
+    }
+
+    @Override
+    public void onBeaconDetected(TrackedBeacon beacon) {
+        Presence presence = new Presence(beacon, zones);
+        active.put(beacon.getKey(), presence);
+        presence.update(beacon.proximity, beacon.getLastSeen());
+        evaluateEnter(presence, beacon.getLastSeen());
+    }
+
+    @Override
+    public void onBeaconChanged(TrackedBeacon beacon) {
+        Presence presence = presenceOf(beacon);
+        presence.update(beacon.proximity, beacon.getLastSeen());
+        evaluateEnter(presence, beacon.getLastSeen());
+    }
+
+    @Override
+    public void onProximityChanged(TrackedBeacon beacon, int previousProximity) {
+        onBeaconChanged(beacon);
+    }
+
+    @Override
+    public void onBeaconExpired(TrackedBeacon beacon) {
+        active.remove(beacon.getKey());
+        long time = beacon.getLastSeen();
+        BeaconKey key = beacon.getKey();
+        for (int i = 0; i < exitRules.masks.length; i++) {
+            int[] matching = exitRules.maps.get(i).get(exitRules.lookup(i, key, lookupKey));
+            if (matching != null) {
+                for (int rule : matching) {
+                    fire(rule, beacon, 0, time);
+                    forget(rule, key, time);
+                }
+            }
+        }
+        // Only the cooldowns of the enter rules still matter.
+        for (int i = 0; i < enterRules.masks.length; i++) {
+            int[] matching = enterRules.maps.get(i).get(enterRules.lookup(i, key, lookupKey));
+            if (matching != null) {
+                for (int rule : matching) {
+                    forget(rule, key, time);
+                }
+            }
+        }
+    }
+
+    /**
+     * Fires the enter rules whose dwell time has passed by now, for beacons that haven't changed
+     * since, and forgets the firings of beacons that left whose cooldown is over.
+     */
+    public void check(long now) {
+        for (Presence presence : active.values()) {
+            evaluateEnter(presence, now);
+        }
+        for (int i = cooldowns.size() - 1; i >= 0; i--) {
+            Cooldown cooldown = cooldowns.get(i);
+            if (now < cooldown.until) {
+                continue;
+            }
+            // A beacon that came back is forgotten when it leaves again, and if the rule fired for
+            // it since, that firing's own cooldown is waiting too.
+            long[] last = fired.get(cooldown.rule).get(cooldown.key);
+            if (last != null && !active.containsKey(cooldown.key)
+                    && now - last[1] >= rules[cooldown.rule].cooldown) {
+                fired.get(cooldown.rule).remove(cooldown.key);
+            }
+            Cooldown lastCooldown = cooldowns.remove(cooldowns.size() - 1);
+            if (i < cooldowns.size()) {
+                cooldowns.set(i, lastCooldown);
+            }
+        }
+    }
+
+    /**
+     * The number of firings remembered for cooldowns, over all rules and beacons.
+     */
+    int countFirings() {
+        int count = 0;
+        for (Map<BeaconKey, long[]> map : fired) {
+            count += map.size();
+        }
+        return count;
+    }
+
+    /**
+     * Forgets when the rule fired for a beacon that left, now if its cooldown is over, or else in
+     * the first check after it is.
+     */
+    private void forget(int rule, BeaconKey key, long time) {
+        long[] last = fired.get(rule).get(key);
+        if (last == null) {
+            return;
+        }
+        long until = last[1] + rules[rule].cooldown;
+        if (time >= until) {
+            fired.get(rule).remove(key);
+        } else {
+            cooldowns.add(new Cooldown(rule, key, until));
+        }
+    }
+
+    private Presence presenceOf(TrackedBeacon beacon) {
+        Presence presence = active.get(beacon.getKey());
+        if (presence == null) {
+            // The tracker was cleared without expiring it.
+            presence = new Presence(beacon, zones);
+            active.put(beacon.getKey(), presence);
+        }
+        return presence;
+    }
+
+    private void evaluateEnter(Presence presence, long time) {
+        BeaconKey key = presence.beacon.getKey();
+        for (int i = 0; i < enterRules.masks.length; i++) {
+            int[] matching = enterRules.maps.get(i).get(enterRules.lookup(i, key, lookupKey));
+            if (matching == null) {
+                continue;
+            }
+            for (int rule : matching) {
+                BeaconRule beaconRule = rules[rule];
+                long since = presence.since[beaconRule.zone == BeaconRule.ANY ? 0 : Math.min(beaconRule.zone, zones)];
+                if (since >= 0 && time - since >= beaconRule.dwell) {
+                    fire(rule, presence.beacon, since, time);
+                }
+            }
+        }
+    }
+
+    /**
+     * Fires the rule if it is in its time window, out of its cooldown, and hasn't fired for the
+     * beacon since it came in.
+     */
+    private void fire(int rule, TrackedBeacon beacon, long since, long time) {
+        BeaconRule beaconRule = rules[rule];
+        if (!beaconRule.inWindow(minuteOfDay(time))) {
+            return;
+        }
+        long[] last = fired.get(rule).get(beacon.getKey());
+        if (last == null) {
+            last = new long[2];
+            fired.get(rule).put(beacon.getKey(), last);
+        } else if ((beaconRule.getTrigger() == BeaconRule.ENTER && last[0] == since)
+                || time - last[1] < beaconRule.cooldown) {
+            return;
+        }
+        last[0] = since;
+        last[1] = time;
+        listener.onRuleFired(beaconRule, beacon, time);
+    }
+
+    private int minuteOfDay(long time) {
+        long minutes = (time + timeZone.getOffset(time)) / 60000;
+        return (int) (((minutes % (24 * 60)) + 24 * 60) % (24 * 60));
+    }
+
+    /**
+     * A firing to forget once the rule's cooldown is over.
+     */
+    private static final class Cooldown {
+
+        final int rule;
+        final BeaconKey key;
+        final long until;
+
+        Cooldown(int rule, BeaconKey key, long until) {
+            this.rule = rule;
+            this.key = key;
+            this.until = until;
+        }
+    }
+
+    /**
+     * Since when an active beacon has been in each zone or closer.
+     */
+    private static final class Presence {
+
+        final TrackedBeacon beacon;
+
+        /**
+         * Indexed by zone, -1 when the beacon is farther out. The first is since when it has been
+         * active at all.
+         */
+        final long[] since;
+
+        Presence(TrackedBeacon beacon, int zones) {
+            this.beacon = beacon;
+            since = new long[zones + 1];
+            for (int i = 1; i < since.length; i++) {
+                since[i] = -1;
+            }
+            since[0] = beacon.getLastSeen();
+        }
+
+        void update(int proximity, long time) {
+            for (int zone = 1; zone < since.length; zone++) {
+                if (proximity > 0 && proximity <= zone) {
+                    if (since[zone] < 0) {
+                        since[zone] = time;
+                    }
+                } else {
+                    since[zone] = -1;
+                }
+            }
+        }
+    }
+
+    /**
+     * The rules with one trigger, in a map for each combination of the identity parts they name.
+     * Parts a rule doesn't name are zero in its keys, or {@link BeaconRule#ANY}.
+     */
+    private static final class RuleIndex {
+
+        final int[] masks;
+        final List<Map<BeaconKey, int[]>> maps;
+
+        RuleIndex(BeaconRule[] rules, int trigger) {
+            List<Map<BeaconKey, List<Integer>>> byMask = new ArrayList<Map<BeaconKey, List<Integer>>>(8);
+            for (int mask = 0; mask < 8; mask++) {
+                byMask.add(null);
+            }
+            for (int i = 0; i < rules.length; i++) {
+                BeaconRule rule = rules[i];
+                if (rule.getTrigger() != trigger) {
+                    continue;
+                }
+                int mask = (rule.hasUuid() ? HAS_UUID : 0)
+                        | (rule.major != BeaconRule.ANY ? HAS_MAJOR : 0)
+                        | (rule.minor != BeaconRule.ANY ? HAS_MINOR : 0);
+                if (byMask.get(mask) == null) {
+                    byMask.set(mask, new HashMap<BeaconKey, List<Integer>>());
+                }
+                BeaconKey key = new BeaconKey(rule.uuidMostSignificantBits, rule.uuidLeastSignificantBits,
+                        rule.major, rule.minor);
+                List<Integer> matching = byMask.get(mask).get(key);
+                if (matching == null) {
+                    matching = new ArrayList<Integer>(1);
+                    byMask.get(mask).put(key, matching);
+                }
+                matching.add(i);
+            }
+            int used = 0;
+            for (Map<BeaconKey, List<Integer>> map : byMask) {
+                used += map != null ? 1 : 0;
+            }
+            masks = new int[used];
+            maps = new ArrayList<Map<BeaconKey, int[]>>(used);
+            for (int mask = 0; mask < byMask.size(); mask++) {
+                Map<BeaconKey, List<Integer>> rulesByKey = byMask.get(mask);
+                if (rulesByKey == null) {
+                    continue;
+                }
+                Map<BeaconKey, int[]> map = new HashMap<BeaconKey, int[]>(rulesByKey.size() * 2);
+                for (Map.Entry<BeaconKey, List<Integer>> entry : rulesByKey.entrySet()) {
+                    int[] matching = new int[entry.getValue().size()];
+                    for (int j = 0; j < matching.length; j++) {
+                        matching[j] = entry.getValue().get(j);
+                    }
+                    map.put(entry.getKey(), matching);
+                }
+                masks[maps.size()] = mask;
+                maps.add(map);
+            }
+        }
+
+        /**
+         * Sets the lookup key to the parts of the beacon's identity the i-th map is keyed on.
+         */
+        BeaconKey lookup(int i, BeaconKey key, BeaconKey lookupKey) {
+            int mask = masks[i];
+            boolean uuid = (mask & HAS_UUID) != 0;
+            return lookupKey.set(uuid ? key.uuidMostSignificantBits : 0, uuid ? key.uuidLeastSignificantBits : 0,
+                    (mask & HAS_MAJOR) != 0 ? key.major : BeaconRule.ANY,
+                    (mask & HAS_MINOR) != 0 ? key.minor : BeaconRule.ANY);
+        }
+
+        int count(BeaconKey key, BeaconKey lookupKey) {
+            int count = 0;
+            for (int i = 0; i < masks.length; i++) {
+                int[] matching = maps.get(i).get(lookup(i, key, lookupKey));
+                count += matching != null ? matching.length : 0;
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern;
+
+/**
+ * State machine that drives the scan duty cycle. It toggles between scanning and waiting,
+ * and recovers from scan failures and bluetooth being turned off by backing off and retrying,
+ * instead of carrying on as if the scanner was still working.
+ */
+public class ScanController {
+
+    /**
+     * The controller is not running.
+     */
+    public static final int STATE_STOPPED = 0;
+
+    /**
+     * A scan window is open.
+     */
+    public static final int STATE_SCANNING = 1;
+
+    /**
+     * Waiting in the interval between scans.
+     */
+    public static final int STATE_WAITING = 2;
+
+    /**
+     * A scan failed, waiting to retry.
+     */
+    public static final int STATE_RECOVERING = 3;
+
+    /**
+     * Bluetooth is off, waiting for it to be turned back on.
+     */
+    public static final int STATE_BLUETOOTH_OFF = 4;
+
+    /**
+     * Mirrors {@code ScanCallback.SCAN_FAILED_ALREADY_STARTED}.
+     */
+    public static final int SCAN_FAILED_ALREADY_STARTED = 1;
+
+    /**
+     * Mirrors {@code ScanCallback.SCAN_FAILED_APPLICATION_REGISTRATION_FAILED}.
+     */
+    public static final int SCAN_FAILED_APPLICATION_REGISTRATION_FAILED = 2;
+
+    /**
+     * Mirrors {@code ScanCallback.SCAN_FAILED_INTERNAL_ERROR}.
+     */
+    public static final int SCAN_FAILED_INTERNAL_ERROR = 3;
+
+    /**
+     * Mirrors {@code ScanCallback.SCAN_FAILED_FEATURE_UNSUPPORTED}.
+     */
+    public static final int SCAN_FAILED_FEATURE_UNSUPPORTED = 4;
+
+    /**
+     * Used when the scanner refused to start without giving a reason.
+     */
+    public static final int SCAN_FAILED_START_REJECTED = -1;
+
+    /**
+     * The first retry delay after a failure.
+     */
+    public static final long DEFAULT_INITIAL_BACKOFF = 1000;
+
+    /**
+     * The retry delay never grows past this.
+     */
+    public static final long DEFAULT_MAX_BACKOFF = 30000;
+
+    /**
+     * Runs the controller's delayed steps, on Android backed by a Handler.
+     */
+    public interface Scheduler {
+
+        void postDelayed(Runnable runnable, long delayMillis);
+
+        void removeCallbacks(Runnable runnable);
+    }
+
+    /**
+     * Receives state changes and tells the controller whether to use the fast scan interval.
+     */
+    public interface Callback {
+
+        void onStateChanged(int state);
+
+        boolean hasActiveBeacons();
+    }
+
+    private final ScanSource scanner;
+    private final Scheduler scheduler;
+    private final Callback callback;
+
+    private long scanTime;
+    private long scanInterval;
+    private long fastScanInterval;
+    private long initialBackoff = DEFAULT_INITIAL_BACKOFF;
+    private long maxBackoff = DEFAULT_MAX_BACKOFF;
+
+    private int state = STATE_STOPPED;
+
+    /**
+     * Number of failures since the last scan window that completed cleanly.
+     */
+    private int consecutiveFailures;
+
+    /**
+     * Whether bluetooth is currently on.
+     */
+    private boolean bluetoothEnabled = true;
+
+    private final Runnable stepRunnable = new Runnable() {
+        @Override
+        public void run() {
+            step();
+        }
+    };
+
+    public ScanController(ScanSource scanner, Scheduler scheduler, Callback callback,
+                          long scanTime, long scanInterval, long fastScanInterval) {
+        if (scanner == null || scheduler == null || callback == null) {
+            throw new IllegalArgumentException("Scanner, scheduler and callback cannot be null");
+        }
+        this.scanner = scanner;
+        this.scheduler = scheduler;
+        this.callback = callback;
+        this.scanTime = scanTime;
+        this.scanInterval = scanInterval;
+        this.fastScanInterval = fastScanInterval;
+    }
+
+    /**
+     * Sets the retry delays used after a failure. The delay doubles with every consecutive
+     * failure, starting at the initial delay and capped at the max delay.
+     */
+    public void setBackoff(long initialBackoff, long maxBackoff) {
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = Math.max(initialBackoff, maxBackoff);
+    }
+
+    /**
+     * Changes the duty cycle without stopping. A scan window that is open keeps its length. While
+     * waiting between windows, the wait starts over with the new interval, or, if the intervals
+     * got shorter, the next window opens right away.
+     */
+    public void setDutyCycle(long scanTime, long scanInterval, long fastScanInterval) {
+        boolean faster = scanInterval < this.scanInterval || fastScanInterval < this.fastScanInterval;
+        this.scanTime = scanTime;
+        this.scanInterval = scanInterval;
+        this.fastScanInterval = fastScanInterval;
+        if (state == STATE_WAITING) {
+            scheduler.removeCallbacks(stepRunnable);
+            if (faster) {
+                openWindow();
+            } else {
+                scheduler.postDelayed(stepRunnable, callback.hasActiveBeacons() ? fastScanInterval : scanInterval);
+            }
+        }
+    }
+
+    public int getState() {
+        return state;
+    }
+
+    public int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    /**
+     * Starts the duty cycle with a scan window, or waits for bluetooth if it is off.
+     */
+    public void start() {
+        scheduler.removeCallbacks(stepRunnable);
+        consecutiveFailures = 0;
+        if (bluetoothEnabled) {
+            openWindow();
+        } else {
+            setState(STATE_BLUETOOTH_OFF);
+        }
+    }
+
+    /**
+     * Stops the duty cycle and the scanner.
+     */
+    public void stop() {
+        scheduler.removeCallbacks(stepRunnable);
+        if (state == STATE_SCANNING) {
+            scanner.stopScan();
+        }
+        setState(STATE_STOPPED);
+    }
+
+    /**
+     * Called when the scanner reports that a scan failed. The scan is torn down and retried after
+     * a backoff delay. An already started scan is retried right away the first time, since
+     * stopping it is usually enough to clear it.
+     *
+     * @param errorCode One of the SCAN_FAILED_* codes.
+     */
+    public void onScanFailed(int errorCode) {
+        if (state == STATE_STOPPED || state == STATE_BLUETOOTH_OFF) {
+            return;
+        }
+        recover(errorCode);
+    }
+
+    private void recover(int errorCode) {
+        scheduler.removeCallbacks(stepRunnable);
+        scanner.stopScan();
+        consecutiveFailures++;
+        long delay;
+        if (errorCode == SCAN_FAILED_ALREADY_STARTED && consecutiveFailures == 1) {
+            delay = 0;
+        } else {
+            delay = getBackoffDelay();
+        }
+        setState(STATE_RECOVERING);
+        scheduler.postDelayed(stepRunnable, delay);
+    }
+
+    /**
+     * Called when the bluetooth adapter is turned on or off. Turning it off parks the controller
+     * until it comes back, at which point scanning resumes straight away.
+     */
+    public void onBluetoothStateChanged(boolean enabled) {
+        if (bluetoothEnabled == enabled) {
+            return;
+        }
+        bluetoothEnabled = enabled;
+        if (state == STATE_STOPPED) {
+            return;
+        }
+        scheduler.removeCallbacks(stepRunnable);
+        if (enabled) {
+            consecutiveFailures = 0;
+            openWindow();
+        } else {
+            if (state == STATE_SCANNING) {
+                scanner.stopScan();
+            }
+            setState(STATE_BLUETOOTH_OFF);
+        }
+    }
+
+    /**
+     * The delay before the next retry, based on the number of consecutive failures.
+     */
+    long getBackoffDelay() {
+        long delay = initialBackoff;
+        for (int i = 1; i < consecutiveFailures && delay < maxBackoff; i++) {
+            delay *= 2;
+        }
+        return Math.min(delay, maxBackoff);
+    }
+
+    private void step() {
+        if (state == STATE_SCANNING) {
+            // The window finished without the scanner complaining.
+            consecutiveFailures = 0;
+            scanner.stopScan();
+            setState(STATE_WAITING);
+            scheduler.postDelayed(stepRunnable, callback.hasActiveBeacons() ? fastScanInterval : scanInterval);
+        } else if (state == STATE_WAITING || state == STATE_RECOVERING) {
+            openWindow();
+        }
+    }
+
+    private void openWindow() {
+        if (scanner.startScan()) {
+            setState(STATE_SCANNING);
+            scheduler.postDelayed(stepRunnable, scanTime);
+        } else {
+            recover(SCAN_FAILED_START_REJECTED);
+        }
+    }
+
+    /**
+     * Every scan window is reported, since whether it is a fast scan can change between windows.
+     */
+    private void setState(int newState) {
+        if (state != newState || newState == STATE_SCANNING) {
+            state = newState;
+            callback.onStateChanged(newState);
+        }
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Lets several clients share one scanner. Each client registers the foreground, background and
+ * idle profiles it needs, and the scanner runs with all of them merged: the uuids of every
+ * client's filter, the shortest waits and report delay, the longest scan window and the most
+ * aggressive scan mode. The tracker's changes then go to each client only for the beacons its own
+ * filter lets through.
+ * <p/>
+ * Registering and unregistering are thread safe. The changes have to come from one thread at a
+ * time, as they do from a {@link BeaconTracker}.
+ */
+public class ScanMultiplexer implements BeaconTracker.ProximityListener {
+
+    /**
+     * Hears about the merged profiles changing, as clients come and go.
+     */
+    public interface Listener {
+
+        void onProfilesChanged(ScanMultiplexer multiplexer);
+    }
+
+    /**
+     * A registered client, which gets the changes to the beacons its filter lets through.
+     */
+    public static final class Client {
+
+        private final ScanProfile[] profiles;
+        private final UuidFilter[] filters;
+        private final BeaconTracker.ProximityListener listener;
+
+        private Client(ScanProfile[] profiles, BeaconTracker.ProximityListener listener) {
+            this.profiles = profiles;
+            this.listener = listener;
+            filters = new UuidFilter[profiles.length];
+            for (int i = 0; i < profiles.length; i++) {
+                filters[i] = UuidFilter.of(profiles[i].getUuidFilter());
+            }
+        }
+
+        /**
+         * The client's profile for {@link ScanProfileSelector#FOREGROUND},
+         * {@link ScanProfileSelector#BACKGROUND} or {@link ScanProfileSelector#IDLE}.
+         */
+        public ScanProfile getProfile(int selected) {
+            return profiles[selected];
+        }
+
+        private boolean accepts(int selected, TrackedBeacon beacon) {
+            UuidFilter filter = filters[selected];
+            return filter == null || filter.matches(beacon.getKey());
+        }
+    }
+
+    private static final Client[] NO_CLIENTS = new Client[0];
+
+    /**
+     * Copied on every change, so the changes can be fanned out without a lock.
+     */
+    private volatile Client[] clients = NO_CLIENTS;
+    private volatile int selected = ScanProfileSelector.FOREGROUND;
+    private Listener listener;
+
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Adds a client, and tells the listener if the merged profiles changed.
+     *
+     * @param listener Gets the changes to the beacons the client's profile for the selected
+     *                 state lets through.
+     */
+    public Client register(ScanProfile foreground, ScanProfile background, ScanProfile idle,
+                           BeaconTracker.ProximityListener listener) {
+        if (foreground == null || background == null || idle == null || listener == null) {
+            throw new IllegalArgumentException("Profiles and listener cannot be null");
+        }
+        Client client = new Client(new ScanProfile[]{foreground, background, idle}, listener);
+        Listener notify;
+        synchronized (this) {
+            ScanProfile[] before = getProfiles();
+            Client[] next = Arrays.copyOf(clients, clients.length + 1);
+            next[clients.length] = client;
+            clients = next;
+            notify = Arrays.equals(before, getProfiles()) ? null : this.listener;
+        }
+        if (notify != null) {
+            notify.onProfilesChanged(this);
+        }
+        return client;
+    }
+
+    /**
+     * Removes a client, and tells the listener if the merged profiles changed.
+     *
+     * @return Whether the client was registered.
+     */
+    public boolean unregister(Client client) {
+        Listener notify;
+        synchronized (this) {
+            int index = Arrays.asList(clients).indexOf(client);
+            if (index < 0) {
+                return false;
+            }
+            ScanProfile[] before = getProfiles();
+            Client[] next = new Client[clients.length - 1];
+            System.arraycopy(clients, 0, next, 0, index);
+            System.arraycopy(clients, index + 1, next, index, next.length - index);
+            clients = next;
+            notify = next.length == 0 || Arrays.equals(before, getProfiles()) ? null : this.listener;
+        }
+        if (notify != null) {
+            notify.onProfilesChanged(this);
+        }
+        return true;
+    }
+
+    public int size() {
+        return clients.length;
+    }
+
+    /**
+     * The requirements of every client merged, for {@link ScanProfileSelector#FOREGROUND},
+     * {@link ScanProfileSelector#BACKGROUND} or {@link ScanProfileSelector#IDLE}, or null if there
+     * are no clients.
+     */
+    public ScanProfile getProfile(int selected) {
+        Client[] clients = this.clients;
+        if (clients.length == 0) {
+            return null;
+        }
+        List<ScanProfile> profiles = new ArrayList<ScanProfile>(clients.length);
+        for (Client client : clients) {
+            profiles.add(client.profiles[selected]);
+        }
+        return merge(profiles);
+    }
+
+    private ScanProfile[] getProfiles() {
+        return new ScanProfile[]{getProfile(ScanProfileSelector.FOREGROUND),
+                getProfile(ScanProfileSelector.BACKGROUND), getProfile(ScanProfileSelector.IDLE)};
+    }
+
+    /**
+     * Sets which of their profiles the clients' filters are taken from, as the scanner switches
+     * profiles.
+     */
+    public void setSelected(int selected) {
+        if (selected < ScanProfileSelector.FOREGROUND || selected > ScanProfileSelector.IDLE) {
+            throw new IllegalArgumentException("Unknown profile " + selected);
+        }
+        this.selected = selected;
+    }
+
+    /**
+     * One profile that scans for everything the profiles need: the uuids of every filter, or none
+     * if one of them tracks every beacon, the shortest waits and report delay, the longest scan
+     * window and the most aggressive scan mode. It's named after the profiles, joined by '+'.
+     */
+    public static ScanProfile merge(List<ScanProfile> profiles) {
+        if (profiles.isEmpty()) {
+            throw new IllegalArgumentException("Nothing to merge");
+        }
+        if (profiles.size() == 1) {
+            return profiles.get(0);
+        }
+        Set<String> names = new LinkedHashSet<String>();
+        Set<String> uuids = new LinkedHashSet<String>();
+        boolean everyUuid = false;
+        int scanMode = ScanProfile.SCAN_MODE_LOW_POWER;
+        long scanTime = 0;
+        long scanInterval = Long.MAX_VALUE;
+        long fastScanInterval = Long.MAX_VALUE;
+        long reportDelay = Long.MAX_VALUE;
+        for (ScanProfile profile : profiles) {
+            names.add(profile.getName());
+            String[] filter = profile.getUuidFilter();
+            if (filter == null) {
+                everyUuid = true;
+            } else {
+                for (String uuid : filter) {
+                    uuids.add(uuid.toLowerCase(Locale.US));
+                }
+            }
+            scanMode = Math.max(scanMode, profile.getScanMode());
+            scanTime = Math.max(scanTime, profile.getScanTime());
+            scanInterval = Math.min(scanInterval, profile.getScanInterval());
+            fastScanInterval = Math.min(fastScanInterval, profile.getFastScanInterval());
+            reportDelay = Math.min(reportDelay, profile.getReportDelay());
+        }
+        StringBuilder name = new StringBuilder();
+        for (String part : names) {
+            name.append(name.length() == 0 ? "" : "+").append(part);
+        }
+        return new ScanProfile.Builder(name.toString())
+                .withScanMode(scanMode)
+                .withDutyCycle(scanTime, scanInterval, fastScanInterval)
+                .withReportDelay(reportDelay)
+                .withUuidFilter(everyUuid ? null : uuids.toArray(new String[uuids.size()]))
+                .build();
+    }
+
+    @Override
+    public void onBeaconDetected(TrackedBeacon beacon) {
+        int selected = this.selected;
+        for (Client client : clients) {
+            if (client.accepts(selected, beacon)) {
+                client.listener.onBeaconDetected(beacon);
+            }
+        }
+    }
+
+    @Override
+    public void onBeaconChanged(TrackedBeacon beacon) {
+        int selected = this.selected;
+        for (Client client : clients) {
+            if (client.accepts(selected, beacon)) {
+                client.listener.onBeaconChanged(beacon);
+            }
+        }
+    }
+
+    @Override
+    public void onProximityChanged(TrackedBeacon beacon, int previousProximity) {
+        int selected = this.selected;
+        for (Client client : clients) {
+            if (client.accepts(selected, beacon)) {
+                client.listener.onProximityChanged(beacon, previousProximity);
+            }
+        }
+    }
+
+    /**
+     * Goes to every client that could have been told about the beacon, whatever profile is
+     * selected now, so none of them is left with a beacon that never expires.
+     */
+    @Override
+    public void onBeaconExpired(TrackedBeacon beacon) {
+        for (Client client : clients) {
+            if (client.accepts(ScanProfileSelector.FOREGROUND, beacon)
+                    || client.accepts(ScanProfileSelector.BACKGROUND, beacon)
+                    || client.accepts(ScanProfileSelector.IDLE, beacon)) {
+                client.listener.onBeaconExpired(beacon);
+            }
+        }
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern;
+
+import java.util.Arrays;
+
+/**
+ * A named set of scan settings: the scan mode, the duty cycle, the uuid filter and how long the
+ * scanner may batch results before reporting them. The service switches between the
+ * {@link #FOREGROUND}, {@link #BACKGROUND} and {@link #IDLE} profiles as the app is shown and
+ * hidden and the device goes idle, see {@link ScanProfileSelector}.
+ */
+public final class ScanProfile {
+
+    /**
+     * Mirrors {@code ScanSettings.SCAN_MODE_LOW_POWER}.
+     */
+    public static final int SCAN_MODE_LOW_POWER = 0;
+
+    /**
+     * Mirrors {@code ScanSettings.SCAN_MODE_BALANCED}.
+     */
+    public static final int SCAN_MODE_BALANCED = 1;
+
+    /**
+     * Mirrors {@code ScanSettings.SCAN_MODE_LOW_LATENCY}.
+     */
+    public static final int SCAN_MODE_LOW_LATENCY = 2;
+
+    /**
+     * While the app is visible: scan often and report every packet straight away.
+     */
+    public static final ScanProfile FOREGROUND = new Builder("foreground")
+            .withScanMode(SCAN_MODE_LOW_LATENCY)
+            .withDutyCycle(5000, 20000, 5000)
+            .build();
+
+    /**
+     * While the app is hidden: scan less often, and let the scanner batch results.
+     */
+    public static final ScanProfile BACKGROUND = new Builder("background")
+            .withScanMode(SCAN_MODE_BALANCED)
+            .withDutyCycle(5000, 60000, 15000)
+            .withReportDelay(5000)
+            .build();
+
+    /**
+     * While the device is idle: short, rare, low power scans.
+     */
+    public static final ScanProfile IDLE = new Builder("idle")
+            .withScanMode(SCAN_MODE_LOW_POWER)
+            .withDutyCycle(2000, 300000, 60000)
+            .withReportDelay(2000)
+            .build();
+
+    private final String name;
+    private final int scanMode;
+    private final long scanTime;
+    private final long scanInterval;
+    private final long fastScanInterval;
+    private final long reportDelay;
+    private final String[] uuidFilter;
+
+    private ScanProfile(Builder builder) {
+        name = builder.name;
+        scanMode = builder.scanMode;
+        scanTime = builder.scanTime;
+        scanInterval = builder.scanInterval;
+        fastScanInterval = builder.fastScanInterval;
+        reportDelay = builder.reportDelay;
+        uuidFilter = builder.uuidFilter;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * One of the SCAN_MODE_* constants. Only used by the Lollipop scanner.
+     */
+    public int getScanMode() {
+        return scanMode;
+    }
+
+    public long getScanTime() {
+        return scanTime;
+    }
+
+    public long getScanInterval() {
+        return scanInterval;
+    }
+
+    public long getFastScanInterval() {
+        return fastScanInterval;
+    }
+
+    /**
+     * How long, in milliseconds, the scanner may hold results before reporting them, 0 to
+     * report them as they come. Only used by the Lollipop scanner, and only if the chip
+     * supports batching.
+     */
+    public long getReportDelay() {
+        return reportDelay;
+    }
+
+    /**
+     * The uuids this profile tracks, or null for all of them.
+     */
+    public String[] getUuidFilter() {
+        return uuidFilter != null ? uuidFilter.clone() : null;
+    }
+
+    /**
+     * A builder starting from this profile's settings.
+     */
+    public Builder buildUpon() {
+        return new Builder(name)
+                .withScanMode(scanMode)
+                .withDutyCycle(scanTime, scanInterval, fastScanInterval)
+                .withReportDelay(reportDelay)
+                .withUuidFilter(uuidFilter);
+    }
+
+    /**
+     * Writes the profile out as a single line, which {@link #decode(String)} reads back.
+     */
+    public String encode() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(scanMode).append(',').append(scanTime).append(',').append(scanInterval)
+                .append(',').append(fastScanInterval).append(',').append(reportDelay).append(',');
+        if (uuidFilter != null) {
+            for (int i = 0; i < uuidFilter.length; i++) {
+                builder.append(i == 0 ? "" : ";").append(uuidFilter[i]);
+            }
+        }
+        return builder.append(',').append(name).toString();
+    }
+
+    /**
+     * Reads a profile written out by {@link #encode()}.
+     *
+     * @throws IllegalArgumentException If the line isn't an encoded profile.
+     */
+    public static ScanProfile decode(String encoded) {
+        String[] parts = encoded != null ? encoded.split(",", 7) : new String[0];
+        if (parts.length != 7) {
+            throw new IllegalArgumentException("Not a scan profile: " + encoded);
+        }
+        try {
+            return new Builder(parts[6])
+                    .withScanMode(Integer.parseInt(parts[0]))
+                    .withDutyCycle(Long.parseLong(parts[1]), Long.parseLong(parts[2]), Long.parseLong(parts[3]))
+                    .withReportDelay(Long.parseLong(parts[4]))
+                    .withUuidFilter(parts[5].isEmpty() ? null : parts[5].split(";"))
+                    .build();
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a scan profile: " + encoded, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return encode();
+    }
+
+    @Override
+    public boolean equals(Object that) {
+        return that instanceof ScanProfile && ((ScanProfile) that).encode().equals(encode());
+    }
+
+    @Override
+    public int hashCode() {
+        return encode().hashCode();
+    }
+
+    public static class Builder {
+        private final String name;
+        private int scanMode = SCAN_MODE_LOW_LATENCY;
+        private long scanTime = 5000;
+        private long scanInterval = 20000;
+        private long fastScanInterval = 5000;
+        private long reportDelay;
+        private String[] uuidFilter;
+
+        /**
+         * @param name The name of the profile, which can't contain ','.
+         */
+        public Builder(String name) {
+            if (name == null || name.indexOf(',') >= 0) {
+                throw new IllegalArgumentException("Profile names cannot be null or contain ','");
+            }
+            this.name = name;
+        }
+
+        public Builder withScanMode(int scanMode) {
+            if (scanMode < SCAN_MODE_LOW_POWER || scanMode > SCAN_MODE_LOW_LATENCY) {
+                throw new IllegalArgumentException("Unknown scan mode " + scanMode);
+            }
+            this.scanMode = scanMode;
+            return this;
+        }
+
+        /**
+         * @param scanTime         How long every scan window lasts.
+         * @param scanInterval     The wait between windows while no beacons are active.
+         * @param fastScanInterval The wait between windows while there are active beacons.
+         */
+        public Builder withDutyCycle(long scanTime, long scanInterval, long fastScanInterval) {
+            if (scanTime <= 0 || scanInterval < 0 || fastScanInterval < 0) {
+                throw new IllegalArgumentException("Scan time must be positive and intervals not negative");
+            }
+            this.scanTime = scanTime;
+            this.scanInterval = scanInterval;
+            this.fastScanInterval = fastScanInterval;
+            return this;
+        }
+
+        public Builder withReportDelay(long milliseconds) {
+            if (milliseconds < 0) {
+                throw new IllegalArgumentException("Report delay cannot be negative");
+            }
+            reportDelay = milliseconds;
+            return this;
+        }
+
+        /**
+         * Only track beacons with one of these uuids. Null or empty tracks all of them.
+         *
+         * @throws IllegalArgumentException If a uuid is malformed.
+         */
+        public Builder withUuidFilter(String... uuids) {
+            if (uuids == null || uuids.length == 0) {
+                uuidFilter = null;
+            } else {
+                UuidFilter.of(uuids);
+                uuidFilter = Arrays.copyOf(uuids, uuids.length);
+            }
+            return this;
+        }
+
+        public ScanProfile build() {
+            return new ScanProfile(this);
+        }
+    }
+}
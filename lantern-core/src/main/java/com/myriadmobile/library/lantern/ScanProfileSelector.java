@@ -0,0 +1,145 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern;
+
+/**
+ * Picks the scan profile from whether the app is visible and whether the device is idle: the
+ * foreground profile while the app is visible, the idle profile while the device is idle, and the
+ * background profile otherwise.
+ */
+public class ScanProfileSelector {
+
+    /**
+     * Which of the profiles is selected, see {@link #getSelected()}.
+     */
+    public static final int FOREGROUND = 0;
+    public static final int BACKGROUND = 1;
+    public static final int IDLE = 2;
+
+    /**
+     * Hears about the profile changing.
+     */
+    public interface Listener {
+
+        void onProfileChanged(ScanProfile profile);
+    }
+
+    private ScanProfile foreground;
+    private ScanProfile background;
+    private ScanProfile idle;
+    private final Listener listener;
+    private boolean visible;
+    private boolean deviceIdle;
+    private int selected;
+    private ScanProfile profile;
+
+    /**
+     * Starts out as if the app was visible and the device awake, so with the foreground profile.
+     */
+    public ScanProfileSelector(ScanProfile foreground, ScanProfile background, ScanProfile idle, Listener listener) {
+        if (foreground == null || background == null || idle == null || listener == null) {
+            throw new IllegalArgumentException("Profiles and listener cannot be null");
+        }
+        this.foreground = foreground;
+        this.background = background;
+        this.idle = idle;
+        this.listener = listener;
+        visible = true;
+        profile = foreground;
+    }
+
+    public ScanProfile getProfile() {
+        return profile;
+    }
+
+    /**
+     * {@link #FOREGROUND}, {@link #BACKGROUND} or {@link #IDLE}.
+     */
+    public int getSelected() {
+        return selected;
+    }
+
+    /**
+     * Replaces the profiles, such as when another client's requirements are merged in. The
+     * listener only hears about it if the selected profile's settings changed.
+     */
+    public void setProfiles(ScanProfile foreground, ScanProfile background, ScanProfile idle) {
+        if (foreground == null || background == null || idle == null) {
+            throw new IllegalArgumentException("Profiles cannot be null");
+        }
+        this.foreground = foreground;
+        this.background = background;
+        this.idle = idle;
+        ScanProfile previous = profile;
+        profile = profileFor(selected);
+        if (!profile.equals(previous)) {
+            listener.onProfileChanged(profile);
+        }
+    }
+
+    public boolean isVisible() {
+        return visible;
+    }
+
+    public boolean isDeviceIdle() {
+        return deviceIdle;
+    }
+
+    public void setVisible(boolean visible) {
+        this.visible = visible;
+        select();
+    }
+
+    public void setDeviceIdle(boolean deviceIdle) {
+        this.deviceIdle = deviceIdle;
+        select();
+    }
+
+    private void select() {
+        if (visible) {
+            selected = FOREGROUND;
+        } else if (deviceIdle) {
+            selected = IDLE;
+        } else {
+            selected = BACKGROUND;
+        }
+        ScanProfile next = profileFor(selected);
+        if (next != profile) {
+            profile = next;
+            listener.onProfileChanged(next);
+        }
+    }
+
+    private ScanProfile profileFor(int selected) {
+        switch (selected) {
+            case BACKGROUND:
+                return background;
+            case IDLE:
+                return idle;
+            default:
+                return foreground;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern;
+
+/**
+ * A source of bluetooth low energy advertisements. This hides whether they come from the
+ * radio through the old or the Lollipop api, or from a recording, so the rest of the pipeline
+ * doesn't have to care.
+ */
+public interface ScanSource {
+
+    /**
+     * Receives the advertisements and failures of a scan source.
+     */
+    interface Listener {
+
+        /**
+         * Called for every advertisement received.
+         *
+         * @param scanRecord      The raw advertisement bytes.
+         * @param rssi            The RSSI the advertisement was received with.
+         * @param address         The mac address of the sender, may be null.
+         * @param timestampNanos  When the advertisement was received, in elapsed nanoseconds.
+         */
+        void onAdvertisement(byte[] scanRecord, int rssi, String address, long timestampNanos);
+
+        /**
+         * Called when a running scan failed.
+         *
+         * @param errorCode One of the ScanController.SCAN_FAILED_* codes.
+         */
+        void onScanFailed(int errorCode);
+    }
+
+    /**
+     * Sets the listener advertisements are delivered to. Must be called before starting a scan.
+     */
+    void setListener(Listener listener);
+
+    /**
+     * Starts a scan.
+     *
+     * @return False if the scan could not be started.
+     */
+    boolean startScan();
+
+    /**
+     * Stops the scan. Does nothing if there is no scan running.
+     */
+    void stopScan();
+}
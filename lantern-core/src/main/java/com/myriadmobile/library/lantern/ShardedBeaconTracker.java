@@ -0,0 +1,500 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Spreads the work of a {@link BeaconTracker} over several threads, for gateways that take in
+ * more packets than one thread can upsert and expire. Beacons are partitioned by the hash of
+ * their identity across shards, each with its own tracker and worker thread, so a beacon is
+ * always handled by the same worker and workers never share state.
+ * <p/>
+ * Packets are decoded and filtered on the feeding thread, and handed to the shard in a lock free
+ * single producer, single consumer queue, so they must all be fed from the same thread. Every
+ * shard publishes a copy of its beacons periodically, which are merged into one
+ * {@link PresenceSnapshot} when asked for.
+ * <p/>
+ * The listener is called on the worker threads, by several of them at once, so it has to be
+ * thread safe.
+ */
+public class ShardedBeaconTracker implements Closeable {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 4096;
+
+    /**
+     * How often, in milliseconds, each shard publishes a copy of its beacons.
+     */
+    public static final long DEFAULT_SNAPSHOT_INTERVAL = 1000;
+
+    // An entry is the uuid bits, the major, minor, tx power and RSSI packed together, the address
+    // and the time.
+    private static final int ENTRY_SIZE = 5;
+
+    /**
+     * The most entries a worker handles before checking for expiration and snapshot requests.
+     */
+    private static final int MAX_DRAIN = 256;
+
+    private final Shard[] shards;
+    private final IBeaconFrame frame = new IBeaconFrame();
+    private final Object snapshotLock = new Object();
+    private PresenceSnapshot[] mergedParts;
+    private PresenceSnapshot merged;
+    private UuidFilter uuidFilter;
+    private boolean started;
+    private boolean closed;
+    private volatile long stallCount;
+
+    public ShardedBeaconTracker(int shardCount, long expirationInterval, BeaconTracker.Listener listener) {
+        this(shardCount, DEFAULT_QUEUE_CAPACITY, expirationInterval, DEFAULT_SNAPSHOT_INTERVAL, listener);
+    }
+
+    /**
+     * @param shardCount         The number of worker threads, usually the number of cores.
+     * @param queueCapacity      The number of packets that can wait for each worker before feeding
+     *                           it blocks.
+     * @param expirationInterval The time in milliseconds that a beacon will remain active since
+     *                           the last time it was detected.
+     * @param snapshotInterval   How often, in milliseconds, each shard publishes a copy of its
+     *                           beacons.
+     * @param listener           Hears about changes to the active beacons, on the worker threads.
+     */
+    public ShardedBeaconTracker(int shardCount, int queueCapacity, long expirationInterval,
+                                long snapshotInterval, BeaconTracker.Listener listener) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("Shard count must be at least 1");
+        }
+        if (listener == null) {
+            throw new IllegalArgumentException("Listener cannot be null");
+        }
+        shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(i, queueCapacity, snapshotInterval, new BeaconTracker(expirationInterval, listener));
+        }
+        mergedParts = new PresenceSnapshot[shardCount];
+    }
+
+    /**
+     * Only track beacons with one of these uuids. If null or empty, all beacons are tracked. Must
+     * be called on the feeding thread.
+     *
+     * @throws IllegalArgumentException If a uuid is malformed.
+     */
+    public void setUuidFilter(String... uuids) {
+        uuidFilter = UuidFilter.of(uuids);
+    }
+
+    /**
+     * Computes proximity with these zones in every shard. Listeners that are a
+     * {@link BeaconTracker.ProximityListener} hear about zone changes on the shard threads. Must
+     * be called before {@link #start()}.
+     */
+    public void setProximityZones(ProximityZones zones) {
+        if (started) {
+            throw new IllegalStateException("The tracker is already started");
+        }
+        for (Shard shard : shards) {
+            shard.tracker.setProximityZones(zones);
+        }
+    }
+
+    /**
+     * Starts the worker threads.
+     */
+    public void start() {
+        if (closed) {
+            throw new IllegalStateException("The tracker is closed");
+        }
+        if (started) {
+            return;
+        }
+        started = true;
+        for (Shard shard : shards) {
+            shard.thread.start();
+        }
+    }
+
+    /**
+     * Handles an advertisement.
+     *
+     * @param scanRecord The raw advertisement bytes.
+     * @param rssi       The RSSI the advertisement was received with.
+     * @param address    The mac address of the sender, may be null.
+     * @param now        The current time in milliseconds.
+     * @return False if the advertisement isn't an iBeacon or didn't pass the filter.
+     */
+    public boolean onAdvertisement(byte[] scanRecord, int rssi, String address, long now) {
+        if (!frame.parse(scanRecord)) {
+            return false;
+        }
+        return onFrame(frame, rssi, CaptureFormat.addressToLong(address), now);
+    }
+
+    /**
+     * Handles an advertisement that is part of a larger buffer.
+     *
+     * @param address The mac address of the sender packed into the low 48 bits, most significant
+     *                byte first, or -1 if unknown.
+     * @see #onAdvertisement(byte[], int, String, long)
+     */
+    public boolean onAdvertisement(byte[] data, int offset, int length, int rssi, long address, long now) {
+        if (!frame.parse(data, offset, length)) {
+            return false;
+        }
+        return onFrame(frame, rssi, address, now);
+    }
+
+    /**
+     * Handles an advertisement that was already decoded. Blocks while the shard's queue is full.
+     *
+     * @see #onAdvertisement(byte[], int, int, int, long, long)
+     */
+    public boolean onFrame(IBeaconFrame frame, int rssi, long address, long now) {
+        if (!started || closed) {
+            throw new IllegalStateException("The tracker isn't running");
+        }
+        UuidFilter filter = uuidFilter;
+        if (filter != null && !filter.matches(frame)) {
+            return false;
+        }
+        long hash = BeaconKey.hash64(frame.uuidMostSignificantBits, frame.uuidLeastSignificantBits,
+                frame.major, frame.minor);
+        Shard shard = shards[shardFor(hash, shards.length)];
+        SpscRing ring = shard.ring;
+        int index = ring.claim();
+        if (index < 0) {
+            stallCount++;
+            index = waitForRoom(shard);
+        }
+        long[] entries = ring.entries();
+        entries[index] = frame.uuidMostSignificantBits;
+        entries[index + 1] = frame.uuidLeastSignificantBits;
+        entries[index + 2] = ((long) frame.major << 32) | ((long) frame.minor << 16)
+                | ((frame.txPower & 0xff) << 8) | (rssi & 0xff);
+        entries[index + 3] = address;
+        entries[index + 4] = now;
+        ring.publish();
+        return true;
+    }
+
+    /**
+     * Expires every beacon whose expiration time has passed. The shards do it on their own
+     * threads, after handling the packets fed before the call. Can be called from any thread.
+     *
+     * @param now The current time in milliseconds.
+     */
+    public void expire(long now) {
+        for (Shard shard : shards) {
+            // Only ever raised, also when another thread requests a later time at once.
+            AtomicLong request = shard.expirationRequest;
+            long current;
+            do {
+                current = request.get();
+            } while (now > current && !request.compareAndSet(current, now));
+        }
+    }
+
+    /**
+     * Waits until the workers have handled every packet fed so far. Must be called on the feeding
+     * thread.
+     */
+    public void awaitIdle() {
+        for (Shard shard : shards) {
+            int spins = 0;
+            while (shard.ring.consumed() != shard.ring.published()) {
+                checkAlive(shard);
+                backOff(spins++);
+            }
+        }
+    }
+
+    /**
+     * The latest copies the shards published, merged. At most the snapshot interval old while the
+     * tracker is running, and up to date once it is closed.
+     */
+    public PresenceSnapshot getSnapshot() {
+        synchronized (snapshotLock) {
+            boolean changed = merged == null;
+            for (int i = 0; i < shards.length && !changed; i++) {
+                changed = shards[i].snapshot != mergedParts[i];
+            }
+            if (changed) {
+                List<TrackedBeacon> beacons = new ArrayList<TrackedBeacon>();
+                long time = Long.MAX_VALUE;
+                for (int i = 0; i < shards.length; i++) {
+                    PresenceSnapshot part = shards[i].snapshot;
+                    mergedParts[i] = part;
+                    beacons.addAll(part.getBeacons());
+                    time = Math.min(time, part.getTime());
+                }
+                merged = new PresenceSnapshot(time, beacons);
+            }
+            return merged;
+        }
+    }
+
+    /**
+     * Asks every shard for a new copy of its beacons, waits for them, and merges them.
+     */
+    public PresenceSnapshot refreshSnapshot() {
+        if (started && !closed) {
+            PresenceSnapshot[] before = new PresenceSnapshot[shards.length];
+            for (int i = 0; i < shards.length; i++) {
+                before[i] = shards[i].snapshot;
+                shards[i].snapshotRequested = true;
+            }
+            for (int i = 0; i < shards.length; i++) {
+                int spins = 0;
+                while (shards[i].snapshot == before[i] && shards[i].thread.isAlive()) {
+                    backOff(spins++);
+                }
+            }
+        }
+        return getSnapshot();
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * The number of times feeding a packet had to wait for room in a shard's queue.
+     */
+    public long getStallCount() {
+        return stallCount;
+    }
+
+    /**
+     * The first exception the listener threw, or null if there was none. The workers keep going
+     * after the listener throws.
+     */
+    public RuntimeException getFailure() {
+        for (Shard shard : shards) {
+            if (shard.failure != null) {
+                return shard.failure;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Lets the workers handle the remaining packets, and waits for them to stop.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (!started) {
+            return;
+        }
+        for (Shard shard : shards) {
+            shard.running = false;
+        }
+        boolean interrupted = false;
+        for (Shard shard : shards) {
+            while (shard.thread.isAlive()) {
+                try {
+                    shard.thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static int shardFor(long hash, int shardCount) {
+        return (int) ((hash >>> 1) % shardCount);
+    }
+
+    private static int waitForRoom(Shard shard) {
+        int spins = 0;
+        int index;
+        while ((index = shard.ring.claim()) < 0) {
+            checkAlive(shard);
+            backOff(spins++);
+        }
+        return index;
+    }
+
+    private static void checkAlive(Shard shard) {
+        if (!shard.thread.isAlive()) {
+            throw new IllegalStateException("Worker " + shard.thread.getName() + " stopped");
+        }
+    }
+
+    /**
+     * Spins, then yields, then sleeps a little, the longer the wait goes on.
+     */
+    private static void backOff(int spins) {
+        if (spins < 64) {
+            return;
+        }
+        if (spins < 128) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(Shard.IDLE_PARK_NANOS);
+        }
+    }
+
+    private static class Shard implements Runnable {
+
+        private static final long IDLE_PARK_NANOS = 100000;
+
+        /**
+         * The size of the cache of formatted addresses, a power of two.
+         */
+        private static final int ADDRESS_CACHE_SIZE = 1024;
+
+        final SpscRing ring;
+        final BeaconTracker tracker;
+        final Thread thread;
+        private final long snapshotIntervalNanos;
+        private final IBeaconFrame frame = new IBeaconFrame();
+        private final long[] cachedAddresses = new long[ADDRESS_CACHE_SIZE];
+        private final String[] cachedAddressStrings = new String[ADDRESS_CACHE_SIZE];
+        private long expiredAt = Long.MIN_VALUE;
+
+        volatile boolean running = true;
+        final AtomicLong expirationRequest = new AtomicLong(Long.MIN_VALUE);
+        volatile boolean snapshotRequested;
+        volatile PresenceSnapshot snapshot = new PresenceSnapshot(System.currentTimeMillis(),
+                new ArrayList<TrackedBeacon>());
+        volatile RuntimeException failure;
+
+        Shard(int index, int queueCapacity, long snapshotInterval, BeaconTracker tracker) {
+            this.tracker = tracker;
+            ring = new SpscRing(queueCapacity, ENTRY_SIZE);
+            snapshotIntervalNanos = snapshotInterval * 1000000;
+            thread = new Thread(this, "lantern-shard-" + index);
+            thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            long nextSnapshot = System.nanoTime() + snapshotIntervalNanos;
+            int idle = 0;
+            while (true) {
+                // Read before draining, so packets fed before close are never left behind.
+                boolean stopping = !running;
+                long expiration = expirationRequest.get();
+                int drained = drain();
+                if (expiration > expiredAt) {
+                    // Packets fed before the request may refresh beacons, handle them first.
+                    while (drain() > 0) {
+                        drained++;
+                    }
+                    expire(expiration);
+                    expiredAt = expiration;
+                }
+                long nanos = System.nanoTime();
+                if (snapshotRequested || nanos - nextSnapshot >= 0) {
+                    snapshotRequested = false;
+                    publishSnapshot();
+                    nextSnapshot = nanos + snapshotIntervalNanos;
+                }
+                if (drained > 0) {
+                    idle = 0;
+                } else if (stopping) {
+                    publishSnapshot();
+                    return;
+                } else {
+                    backOff(idle++);
+                }
+            }
+        }
+
+        private int drain() {
+            int count = Math.min(ring.available(), MAX_DRAIN);
+            if (count == 0) {
+                return 0;
+            }
+            long[] entries = ring.entries();
+            int index = ring.peekIndex();
+            for (int i = 0; i < count; i++, index += ENTRY_SIZE) {
+                long packed = entries[index + 2];
+                frame.uuidMostSignificantBits = entries[index];
+                frame.uuidLeastSignificantBits = entries[index + 1];
+                frame.major = (int) (packed >>> 32) & 0xffff;
+                frame.minor = (int) (packed >>> 16) & 0xffff;
+                frame.txPower = (byte) (packed >>> 8);
+                int rssi = (byte) packed;
+                try {
+                    tracker.onFrame(frame, rssi, addressString(entries[index + 3]), entries[index + 4]);
+                } catch (RuntimeException e) {
+                    fail(e);
+                }
+            }
+            ring.release(count);
+            return count;
+        }
+
+        private void expire(long now) {
+            try {
+                tracker.expire(now);
+            } catch (RuntimeException e) {
+                fail(e);
+            }
+        }
+
+        private void publishSnapshot() {
+            List<TrackedBeacon> beacons = tracker.getBeacons();
+            for (int i = 0; i < beacons.size(); i++) {
+                beacons.set(i, new TrackedBeacon(beacons.get(i)));
+            }
+            snapshot = new PresenceSnapshot(System.currentTimeMillis(), beacons);
+        }
+
+        private void fail(RuntimeException e) {
+            if (failure == null) {
+                failure = e;
+            }
+        }
+
+        // Beacons keep advertising from the same address, so avoid formatting it every time.
+        private String addressString(long address) {
+            if (address < 0) {
+                return null;
+            }
+            int slot = (int) (address ^ address >>> 16) & (ADDRESS_CACHE_SIZE - 1);
+            String cached = cachedAddressStrings[slot];
+            if (cached == null || cachedAddresses[slot] != address) {
+                cached = CaptureFormat.longToAddress(address);
+                cachedAddresses[slot] = address;
+                cachedAddressStrings[slot] = cached;
+            }
+            return cached;
+        }
+    }
+}
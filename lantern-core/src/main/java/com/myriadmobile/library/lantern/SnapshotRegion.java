@@ -0,0 +1,316 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Layout of the active beacons in a shared memory region, written by one process and polled by
+ * others without any IPC. Every beacon takes the same number of bytes, so publishing and reading
+ * a snapshot is a single pass over the region. All values are big endian.
+ * <pre>
+ * header: int magic | short version | short entrySize | long sequence | long time | int count | int crc
+ * entry:  long uuidMsb | long uuidLsb | long address | long firstSeen | long lastSeen
+ *         | long expirationTime | double distance | short major | short minor
+ *         | byte txPower | byte rssi | byte proximity | byte reserved
+ * </pre>
+ * The sequence is odd while the writer is updating the region. A reader copies the region out
+ * and only keeps the copy if the sequence was the same, and even, before and after, and the
+ * checksum over the time, count and entries matches. The checksum catches copies that the
+ * sequence alone wouldn't on processors that reorder memory accesses, since there is no way to
+ * put a memory barrier between two processes sharing a mapped buffer here.
+ */
+public final class SnapshotRegion {
+
+    /**
+     * "LNTS".
+     */
+    static final int MAGIC = 0x4c4e5453;
+
+    static final short VERSION = 1;
+
+    static final int HEADER_SIZE = 32;
+
+    static final int ENTRY_SIZE = 64;
+
+    static final int SEQUENCE_OFFSET = 8;
+
+    static final int TIME_OFFSET = 16;
+
+    static final int COUNT_OFFSET = 24;
+
+    static final int CRC_OFFSET = 28;
+
+    private SnapshotRegion() {
+
+    }
+
+    /**
+     * The size of a region that holds up to the given number of beacons.
+     */
+    public static int sizeFor(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Capacity cannot be negative");
+        }
+        return HEADER_SIZE + capacity * ENTRY_SIZE;
+    }
+
+    /**
+     * The number of beacons a region of this size holds.
+     */
+    public static int capacityOf(ByteBuffer region) {
+        return Math.max(0, (region.capacity() - HEADER_SIZE) / ENTRY_SIZE);
+    }
+
+    /**
+     * Publishes snapshots into a region. Only one writer can use a region at a time.
+     */
+    public static class Writer {
+
+        private final ByteBuffer region;
+        private final int capacity;
+        private final CRC32 crc = new CRC32();
+        private final byte[] scratch;
+        private long sequence;
+        private int dropped;
+
+        /**
+         * Writes an empty snapshot into the region. If the region already holds snapshots, the
+         * sequence carries on from them, so readers still mapping it don't mistake the new
+         * snapshots for ones they have already read.
+         */
+        public Writer(ByteBuffer region) {
+            if (region.capacity() < HEADER_SIZE) {
+                throw new IllegalArgumentException("Region is too small: " + region.capacity());
+            }
+            this.region = region;
+            capacity = capacityOf(region);
+            scratch = new byte[HEADER_SIZE + capacity * ENTRY_SIZE];
+            sequence = region.getInt(0) == MAGIC ? (region.getLong(SEQUENCE_OFFSET) + 1) & ~1L : 0;
+            region.putLong(SEQUENCE_OFFSET, sequence + 1);
+            region.putInt(0, MAGIC);
+            region.putShort(4, VERSION);
+            region.putShort(6, (short) ENTRY_SIZE);
+            region.putLong(SEQUENCE_OFFSET, sequence);
+            write(0, new ArrayList<TrackedBeacon>(0));
+        }
+
+        public int getCapacity() {
+            return capacity;
+        }
+
+        /**
+         * The number of beacons left out of the last snapshot because the region was full.
+         */
+        public int getDropped() {
+            return dropped;
+        }
+
+        /**
+         * Publishes the beacons. Beyond the capacity of the region, beacons are left out.
+         *
+         * @param time When the snapshot was taken, in {@link System#currentTimeMillis()} time.
+         */
+        public void write(long time, Collection<TrackedBeacon> beacons) {
+            // Encode into the scratch copy first, so the region is only odd for one bulk copy.
+            ByteBuffer out = ByteBuffer.wrap(scratch);
+            out.position(HEADER_SIZE);
+            int count = 0;
+            for (TrackedBeacon beacon : beacons) {
+                if (count == capacity) {
+                    break;
+                }
+                writeEntry(out, beacon);
+                count++;
+            }
+            dropped = beacons.size() - count;
+            out.putLong(TIME_OFFSET, time);
+            out.putInt(COUNT_OFFSET, count);
+            int end = HEADER_SIZE + count * ENTRY_SIZE;
+            crc.reset();
+            crc.update(scratch, TIME_OFFSET, CRC_OFFSET - TIME_OFFSET);
+            crc.update(scratch, HEADER_SIZE, end - HEADER_SIZE);
+            out.putInt(CRC_OFFSET, (int) crc.getValue());
+
+            region.putLong(SEQUENCE_OFFSET, ++sequence);
+            ByteBuffer target = region.duplicate();
+            target.position(TIME_OFFSET);
+            target.put(scratch, TIME_OFFSET, end - TIME_OFFSET);
+            region.putLong(SEQUENCE_OFFSET, ++sequence);
+        }
+
+        private static void writeEntry(ByteBuffer out, TrackedBeacon beacon) {
+            BeaconKey key = beacon.key;
+            out.putLong(key.getUuidMostSignificantBits());
+            out.putLong(key.getUuidLeastSignificantBits());
+            out.putLong(CaptureFormat.addressToLong(beacon.bluetoothAddress));
+            out.putLong(beacon.firstSeen);
+            out.putLong(beacon.lastSeen);
+            out.putLong(beacon.expirationTime);
+            out.putDouble(beacon.distance);
+            out.putShort((short) key.getMajor());
+            out.putShort((short) key.getMinor());
+            out.put((byte) beacon.txPower);
+            out.put((byte) beacon.rssi);
+            out.put((byte) beacon.proximity);
+            out.put((byte) 0);
+        }
+    }
+
+    /**
+     * Polls snapshots out of a region, such as one mapped read-only from another process.
+     */
+    public static class Reader {
+
+        /**
+         * How many times to try for a consistent copy while the writer is busy before giving up
+         * and returning the previous snapshot.
+         */
+        static final int MAX_ATTEMPTS = 64;
+
+        private final ByteBuffer region;
+        private final CRC32 crc = new CRC32();
+        private final byte[] scratch;
+        private final IdentityStrings strings = new IdentityStrings();
+        private long lastSequence = -1;
+        private PresenceSnapshot last = new PresenceSnapshot(0, new ArrayList<TrackedBeacon>(0));
+        private int retries;
+
+        public Reader(ByteBuffer region) {
+            this.region = region.duplicate();
+            scratch = new byte[region.capacity()];
+        }
+
+        /**
+         * Whether the writer has published since the last {@link #read()}.
+         */
+        public boolean hasChanged() {
+            return region.getLong(SEQUENCE_OFFSET) != lastSequence;
+        }
+
+        /**
+         * The number of copies thrown away because the writer was busy or the copy was torn.
+         */
+        public int getRetries() {
+            return retries;
+        }
+
+        /**
+         * The latest snapshot in the region. When nothing was published since the last call,
+         * the same snapshot is returned without copying anything.
+         *
+         * @throws IllegalStateException If the region wasn't written by a {@link Writer}.
+         */
+        public PresenceSnapshot read() {
+            if (region.capacity() < HEADER_SIZE || region.getInt(0) != MAGIC) {
+                throw new IllegalStateException("Not a snapshot region");
+            }
+            if (region.getShort(4) != VERSION || region.getShort(6) != ENTRY_SIZE) {
+                throw new IllegalStateException("Unsupported snapshot version " + region.getShort(4));
+            }
+            for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+                long sequence = region.getLong(SEQUENCE_OFFSET);
+                if (sequence == lastSequence) {
+                    return last;
+                }
+                if ((sequence & 1) == 0) {
+                    PresenceSnapshot snapshot = copy();
+                    if (snapshot != null && region.getLong(SEQUENCE_OFFSET) == sequence) {
+                        lastSequence = sequence;
+                        last = snapshot;
+                        return snapshot;
+                    }
+                }
+                retries++;
+                Thread.yield();
+            }
+            return last;
+        }
+
+        /**
+         * Copies the region out and decodes it, or returns null if the copy is torn.
+         */
+        private PresenceSnapshot copy() {
+            int count = region.getInt(COUNT_OFFSET);
+            if (count < 0 || HEADER_SIZE + (long) count * ENTRY_SIZE > scratch.length) {
+                return null;
+            }
+            int end = HEADER_SIZE + count * ENTRY_SIZE;
+            ByteBuffer source = region.duplicate();
+            source.position(0);
+            source.get(scratch, 0, end);
+            ByteBuffer in = ByteBuffer.wrap(scratch);
+            if (in.getInt(COUNT_OFFSET) != count) {
+                return null;
+            }
+            crc.reset();
+            crc.update(scratch, TIME_OFFSET, CRC_OFFSET - TIME_OFFSET);
+            crc.update(scratch, HEADER_SIZE, end - HEADER_SIZE);
+            if ((int) crc.getValue() != in.getInt(CRC_OFFSET)) {
+                return null;
+            }
+            long time = in.getLong(TIME_OFFSET);
+            List<TrackedBeacon> beacons = new ArrayList<TrackedBeacon>(count);
+            in.position(HEADER_SIZE);
+            for (int i = 0; i < count; i++) {
+                beacons.add(readEntry(in));
+            }
+            return new PresenceSnapshot(time, beacons);
+        }
+
+        private TrackedBeacon readEntry(ByteBuffer in) {
+            long msb = in.getLong();
+            long lsb = in.getLong();
+            long address = in.getLong();
+            long firstSeen = in.getLong();
+            long lastSeen = in.getLong();
+            long expirationTime = in.getLong();
+            double distance = in.getDouble();
+            int major = in.getShort() & 0xffff;
+            int minor = in.getShort() & 0xffff;
+            int txPower = in.get();
+            int rssi = in.get();
+            int proximity = in.get();
+            in.get();
+
+            // Snapshots mostly hold the same beacons as the last one, so reuse their Strings.
+            TrackedBeacon beacon = new TrackedBeacon(new BeaconKey(msb, lsb, major, minor), strings.uuid(msb, lsb));
+            beacon.bluetoothAddress = strings.address(address);
+            beacon.firstSeen = firstSeen;
+            beacon.lastSeen = lastSeen;
+            beacon.expirationTime = expirationTime;
+            beacon.distance = distance;
+            beacon.txPower = txPower;
+            beacon.rssi = rssi;
+            beacon.proximity = proximity;
+            beacon.pendingProximity = proximity;
+            return beacon;
+        }
+    }
+}
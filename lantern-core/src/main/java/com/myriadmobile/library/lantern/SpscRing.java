@@ -0,0 +1,140 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded, lock free queue from exactly one producer thread to exactly one consumer thread.
+ * Each entry is a fixed number of longs stored inline in one array, so nothing is allocated per
+ * entry and the consumer reads entries in place.
+ * <p/>
+ * The producer publishes an entry by advancing the tail with an ordered store after writing it,
+ * and the consumer frees entries by advancing the head the same way. Each side keeps a cached copy
+ * of the other side's index, so it only reads the shared one when it seems to have run out.
+ */
+final class SpscRing {
+
+    // The head and tail live in one array, far enough apart not to share a cache line.
+    private static final int HEAD = 8;
+    private static final int TAIL = 24;
+
+    private final long[] entries;
+    private final int stride;
+    private final int mask;
+    private final AtomicLongArray indexes = new AtomicLongArray(32);
+
+    // Producer side.
+    private long producerTail;
+    private long cachedHead;
+
+    // Consumer side.
+    private long consumerHead;
+    private long cachedTail;
+
+    /**
+     * @param capacity The number of entries, rounded up to a power of two.
+     * @param stride   The number of longs in an entry.
+     */
+    SpscRing(int capacity, int stride) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.stride = stride;
+        this.mask = size - 1;
+        entries = new long[size * stride];
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Producer only. The index in {@link #entries()} to write the next entry at, or -1 if the ring
+     * is full. The entry is published by {@link #publish()}.
+     */
+    int claim() {
+        if (producerTail - cachedHead > mask) {
+            cachedHead = indexes.get(HEAD);
+            if (producerTail - cachedHead > mask) {
+                return -1;
+            }
+        }
+        return (int) (producerTail & mask) * stride;
+    }
+
+    /**
+     * Producer only. Makes the claimed entry visible to the consumer.
+     */
+    void publish() {
+        indexes.lazySet(TAIL, ++producerTail);
+    }
+
+    /**
+     * Producer only. The number of entries published so far.
+     */
+    long published() {
+        return producerTail;
+    }
+
+    /**
+     * Consumer only. The number of entries that can be read, at most up to the end of the array so
+     * they can be read from {@link #peekIndex()} on.
+     */
+    int available() {
+        if (consumerHead == cachedTail) {
+            cachedTail = indexes.get(TAIL);
+            if (consumerHead == cachedTail) {
+                return 0;
+            }
+        }
+        long untilWrap = (mask + 1) - (consumerHead & mask);
+        return (int) Math.min(cachedTail - consumerHead, untilWrap);
+    }
+
+    /**
+     * Consumer only. The index in {@link #entries()} of the oldest unread entry.
+     */
+    int peekIndex() {
+        return (int) (consumerHead & mask) * stride;
+    }
+
+    /**
+     * Consumer only. Frees entries that were read, so the producer can reuse them.
+     */
+    void release(int count) {
+        consumerHead += count;
+        indexes.lazySet(HEAD, consumerHead);
+    }
+
+    /**
+     * The number of entries the consumer has released, from any thread.
+     */
+    long consumed() {
+        return indexes.get(HEAD);
+    }
+
+    long[] entries() {
+        return entries;
+    }
+}
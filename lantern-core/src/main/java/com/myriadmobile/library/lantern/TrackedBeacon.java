@@ -0,0 +1,179 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern;
+
+/**
+ * The state {@link BeaconTracker} keeps for a beacon that is currently active. It is updated in
+ * place as packets from the beacon arrive, so it should only be read on the thread feeding the
+ * tracker, or copied.
+ */
+public class TrackedBeacon {
+
+    final BeaconKey key;
+    final String uuid;
+    int txPower;
+    int rssi;
+    double distance;
+    int proximity;
+    String bluetoothAddress;
+    long firstSeen;
+    long lastSeen;
+    long expirationTime;
+
+    /**
+     * The zone the beacon seems to be moving into, and since when.
+     */
+    int pendingProximity;
+    long pendingSince;
+
+    /**
+     * The estimates of {@link AdaptiveExpiry}: the advertising interval in milliseconds, the mean
+     * number of intervals between received packets, and how many gaps went into them.
+     */
+    double advertisingInterval;
+    double intervalsPerGap;
+    int intervalSamples;
+
+    /**
+     * The beacon's ring in the {@link RssiHistory}, -1 until it has one.
+     */
+    int historySlot = -1;
+
+    TrackedBeacon(BeaconKey key, String uuid) {
+        this.key = key;
+        this.uuid = uuid;
+    }
+
+    /**
+     * A copy that won't change as the original is updated.
+     */
+    TrackedBeacon(TrackedBeacon other) {
+        this(other.key, other.uuid);
+        txPower = other.txPower;
+        rssi = other.rssi;
+        distance = other.distance;
+        proximity = other.proximity;
+        bluetoothAddress = other.bluetoothAddress;
+        firstSeen = other.firstSeen;
+        lastSeen = other.lastSeen;
+        expirationTime = other.expirationTime;
+        pendingProximity = other.pendingProximity;
+        pendingSince = other.pendingSince;
+        advertisingInterval = other.advertisingInterval;
+        intervalsPerGap = other.intervalsPerGap;
+        intervalSamples = other.intervalSamples;
+    }
+
+    public BeaconKey getKey() {
+        return key;
+    }
+
+    public String getUuid() {
+        return uuid;
+    }
+
+    public int getMajor() {
+        return key.major;
+    }
+
+    public int getMinor() {
+        return key.minor;
+    }
+
+    public int getTxPower() {
+        return txPower;
+    }
+
+    public int getRssi() {
+        return rssi;
+    }
+
+    public double getDistance() {
+        return distance;
+    }
+
+    public int getProximity() {
+        return proximity;
+    }
+
+    public String getBluetoothAddress() {
+        return bluetoothAddress;
+    }
+
+    /**
+     * When the first packet of this stay was received.
+     */
+    public long getFirstSeen() {
+        return firstSeen;
+    }
+
+    /**
+     * When the latest packet was received.
+     */
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    public long getExpirationTime() {
+        return expirationTime;
+    }
+
+    /**
+     * The estimated advertising interval in milliseconds, or 0 if it isn't known yet. Only
+     * estimated when the tracker uses {@link AdaptiveExpiry}.
+     */
+    public double getAdvertisingInterval() {
+        return intervalSamples > 0 ? advertisingInterval : 0;
+    }
+
+    /**
+     * The estimated share of packets from the beacon that are lost, between 0 and 0.99. Only
+     * estimated when the tracker uses {@link AdaptiveExpiry}.
+     */
+    public double getPacketLoss() {
+        return AdaptiveExpiry.lossOf(this);
+    }
+
+    /**
+     * Copies the state into a beacon object.
+     */
+    public <B extends Beacon> B copyTo(B beacon) {
+        beacon.uuid = uuid;
+        beacon.major = key.major;
+        beacon.minor = key.minor;
+        beacon.txPower = txPower;
+        beacon.rssi = rssi;
+        beacon.distance = distance;
+        beacon.proximity = proximity;
+        beacon.bluetoothAddress = bluetoothAddress;
+        beacon.expirationTime = expirationTime;
+        return beacon;
+    }
+
+    @Override
+    public String toString() {
+        return key + " rssi " + rssi;
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern;
+
+/**
+ * The uuids to let through, kept as pairs of high and low bits so a frame can be checked without
+ * creating its uuid String.
+ */
+final class UuidFilter {
+
+    private final long[] bits;
+
+    /**
+     * @throws IllegalArgumentException If a uuid is malformed.
+     */
+    private UuidFilter(String... uuids) {
+        bits = new long[uuids.length * 2];
+        for (int i = 0; i < uuids.length; i++) {
+            long[] uuid = IBeaconFrame.parseUuid(uuids[i]);
+            bits[i * 2] = uuid[0];
+            bits[i * 2 + 1] = uuid[1];
+        }
+    }
+
+    /**
+     * A filter for the uuids, or null if null or empty, meaning everything is let through.
+     *
+     * @throws IllegalArgumentException If a uuid is malformed.
+     */
+    static UuidFilter of(String... uuids) {
+        if (uuids == null || uuids.length == 0) {
+            return null;
+        }
+        return new UuidFilter(uuids);
+    }
+
+    boolean matches(IBeaconFrame frame) {
+        for (int i = 0; i < bits.length; i += 2) {
+            if (frame.hasUuid(bits[i], bits[i + 1])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean matches(BeaconKey key) {
+        for (int i = 0; i < bits.length; i += 2) {
+            if (key.uuidMostSignificantBits == bits[i] && key.uuidLeastSignificantBits == bits[i + 1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
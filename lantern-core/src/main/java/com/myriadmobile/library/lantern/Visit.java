@@ -0,0 +1,107 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern;
+
+/**
+ * A stretch of time a beacon was active, from when it was detected until it was last seen before
+ * expiring, with the closest zone it came to and how long it spent in every zone. Visits are put
+ * together by {@link VisitAggregator}.
+ */
+public final class Visit {
+
+    final BeaconKey key;
+    final long firstSeen;
+    long lastSeen;
+    int peakProximity;
+    final long[] dwell;
+
+    /**
+     * The zone the beacon is in while the visit is open, and since when.
+     */
+    int zone;
+    long zoneSince;
+
+    /**
+     * @param zones The number of zones, not counting the unknown proximity.
+     */
+    Visit(BeaconKey key, long firstSeen, long lastSeen, int peakProximity, int zones) {
+        this.key = key;
+        this.firstSeen = firstSeen;
+        this.lastSeen = lastSeen;
+        this.peakProximity = peakProximity;
+        dwell = new long[zones + 1];
+    }
+
+    public BeaconKey getKey() {
+        return key;
+    }
+
+    public long getFirstSeen() {
+        return firstSeen;
+    }
+
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    public long getDuration() {
+        return lastSeen - firstSeen;
+    }
+
+    /**
+     * The closest zone the beacon was in, or {@link ProximityZones#UNKNOWN} if its proximity was
+     * never known.
+     */
+    public int getPeakProximity() {
+        return peakProximity;
+    }
+
+    /**
+     * The number of zones, not counting the unknown proximity.
+     */
+    public int getZones() {
+        return dwell.length - 1;
+    }
+
+    /**
+     * How long, in milliseconds, the beacon spent in a zone, or with an unknown proximity for
+     * {@link ProximityZones#UNKNOWN}.
+     */
+    public long getDwell(int proximity) {
+        return proximity >= 0 && proximity < dwell.length ? dwell[proximity] : 0;
+    }
+
+    /**
+     * Whether a proximity is closer than another, an unknown one being the furthest.
+     */
+    static boolean isCloser(int proximity, int than) {
+        return proximity != ProximityZones.UNKNOWN && (than == ProximityZones.UNKNOWN || proximity < than);
+    }
+
+    @Override
+    public String toString() {
+        return key + " " + firstSeen + "-" + lastSeen + " peak " + peakProximity;
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Turns the tracker's changes into visits as they happen, instead of every detection and
+ * expiration being shipped off to be stitched together somewhere else. A visit opens when a
+ * beacon is detected, keeps count of the time spent in every zone as the beacon moves, and
+ * closes when it expires. Closed visits go to the sink, and are rolled up by the minute and the
+ * hour they started in.
+ * <p/>
+ * A rollup goes to the sink once its beacon can't have any more visits that started in it, that
+ * is once the minute or hour is over and the beacon has no open visit that started in it, so
+ * every rollup is only written once. Like the tracker, the aggregator isn't thread safe.
+ */
+public class VisitAggregator implements BeaconTracker.ProximityListener {
+
+    /**
+     * Gets the closed visits and the finished rollups.
+     */
+    public interface Sink {
+
+        void onVisitClosed(Visit visit);
+
+        void onRollup(VisitRollup rollup);
+    }
+
+    private final Sink sink;
+    private final int zones;
+    private final Map<BeaconKey, Visit> open = new HashMap<BeaconKey, Visit>();
+    private final Map<RollupKey, VisitRollup> rollups = new LinkedHashMap<RollupKey, VisitRollup>();
+    private final RollupKey lookupKey = new RollupKey(0, 0, null);
+
+    /**
+     * @param zones The zones the tracker reports proximities in.
+     */
+    public VisitAggregator(ProximityZones zones, Sink sink) {
+        if (zones == null || sink == null) {
+            throw new IllegalArgumentException("Zones and sink cannot be null");
+        }
+        this.zones = zones.size();
+        this.sink = sink;
+    }
+
+    /**
+     * The number of visits still open.
+     */
+    public int getOpenVisits() {
+        return open.size();
+    }
+
+    /**
+     * The number of rollups waiting for their minute or hour to finish.
+     */
+    public int getPendingRollups() {
+        return rollups.size();
+    }
+
+    @Override
+    public void onBeaconDetected(TrackedBeacon beacon) {
+        Visit visit = open.get(beacon.getKey());
+        if (visit != null) {
+            // The tracker was cleared without expiring it.
+            close(visit);
+        }
+        openVisit(beacon);
+    }
+
+    @Override
+    public void onBeaconChanged(TrackedBeacon beacon) {
+        visitOf(beacon).lastSeen = beacon.getLastSeen();
+    }
+
+    @Override
+    public void onProximityChanged(TrackedBeacon beacon, int previousProximity) {
+        Visit visit = visitOf(beacon);
+        long now = beacon.getLastSeen();
+        visit.lastSeen = now;
+        moveTo(visit, beacon.proximity, now);
+    }
+
+    @Override
+    public void onBeaconExpired(TrackedBeacon beacon) {
+        Visit visit = visitOf(beacon);
+        visit.lastSeen = beacon.getLastSeen();
+        close(visit);
+    }
+
+    /**
+     * Hands the rollups that are finished by now to the sink.
+     */
+    public void flush(long now) {
+        Iterator<VisitRollup> iterator = rollups.values().iterator();
+        while (iterator.hasNext()) {
+            VisitRollup rollup = iterator.next();
+            long end = rollup.bucketStart + rollup.resolution;
+            Visit visit = open.get(rollup.key);
+            if (end <= now && (visit == null || visit.firstSeen >= end)) {
+                iterator.remove();
+                sink.onRollup(rollup);
+            }
+        }
+    }
+
+    /**
+     * Closes every open visit at the time its beacon was last seen, and hands every rollup to the
+     * sink, such as when scanning stops.
+     */
+    public void closeAll() {
+        for (Visit visit : open.values().toArray(new Visit[open.size()])) {
+            close(visit);
+        }
+        for (VisitRollup rollup : rollups.values()) {
+            sink.onRollup(rollup);
+        }
+        rollups.clear();
+    }
+
+    private Visit openVisit(TrackedBeacon beacon) {
+        Visit visit = new Visit(beacon.getKey(), beacon.getFirstSeen(), beacon.getLastSeen(), beacon.proximity, zones);
+        visit.zone = beacon.proximity;
+        visit.zoneSince = beacon.getFirstSeen();
+        open.put(visit.key, visit);
+        return visit;
+    }
+
+    /**
+     * The open visit of a beacon, opened now if the aggregator missed its detection.
+     */
+    private Visit visitOf(TrackedBeacon beacon) {
+        Visit visit = open.get(beacon.getKey());
+        return visit != null ? visit : openVisit(beacon);
+    }
+
+    private void moveTo(Visit visit, int zone, long now) {
+        addDwell(visit, now);
+        visit.zone = zone;
+        visit.zoneSince = now;
+        if (Visit.isCloser(zone, visit.peakProximity)) {
+            visit.peakProximity = zone;
+        }
+    }
+
+    private void addDwell(Visit visit, long now) {
+        if (visit.zone >= 0 && visit.zone < visit.dwell.length && now > visit.zoneSince) {
+            visit.dwell[visit.zone] += now - visit.zoneSince;
+        }
+    }
+
+    private void close(Visit visit) {
+        addDwell(visit, visit.lastSeen);
+        visit.zoneSince = visit.lastSeen;
+        open.remove(visit.key);
+        rollUp(visit, VisitRollup.MINUTE);
+        rollUp(visit, VisitRollup.HOUR);
+        sink.onVisitClosed(visit);
+    }
+
+    private void rollUp(Visit visit, long resolution) {
+        long bucketStart = visit.firstSeen - floorMod(visit.firstSeen, resolution);
+        lookupKey.set(resolution, bucketStart, visit.key);
+        VisitRollup rollup = rollups.get(lookupKey);
+        if (rollup == null) {
+            rollup = new VisitRollup(resolution, bucketStart, visit.key);
+            rollups.put(new RollupKey(resolution, bucketStart, visit.key), rollup);
+        }
+        rollup.add(visit);
+    }
+
+    private static long floorMod(long value, long divisor) {
+        long mod = value % divisor;
+        return mod < 0 ? mod + divisor : mod;
+    }
+
+    /**
+     * Identifies a rollup, mutable so looking one up allocates nothing.
+     */
+    private static final class RollupKey {
+
+        private long resolution;
+        private long bucketStart;
+        private BeaconKey key;
+
+        RollupKey(long resolution, long bucketStart, BeaconKey key) {
+            set(resolution, bucketStart, key);
+        }
+
+        void set(long resolution, long bucketStart, BeaconKey key) {
+            this.resolution = resolution;
+            this.bucketStart = bucketStart;
+            this.key = key;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (bucketStart ^ (bucketStart >>> 32)) * 31 + (int) resolution + key.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object that) {
+            if (!(that instanceof RollupKey)) {
+                return false;
+            }
+            RollupKey other = (RollupKey) that;
+            return other.resolution == resolution && other.bucketStart == bucketStart && other.key.equals(key);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern;
+
+/**
+ * The visits of one beacon that started in one minute or hour: how many there were, how long
+ * they lasted altogether, and the closest zone any of them came to.
+ */
+public final class VisitRollup {
+
+    public static final long MINUTE = 60 * 1000;
+
+    public static final long HOUR = 60 * MINUTE;
+
+    final long resolution;
+    final long bucketStart;
+    final BeaconKey key;
+    int visits;
+    long dwell;
+    int peakProximity;
+
+    VisitRollup(long resolution, long bucketStart, BeaconKey key) {
+        this.resolution = resolution;
+        this.bucketStart = bucketStart;
+        this.key = key;
+        peakProximity = ProximityZones.UNKNOWN;
+    }
+
+    /**
+     * {@link #MINUTE} or {@link #HOUR}.
+     */
+    public long getResolution() {
+        return resolution;
+    }
+
+    /**
+     * The start of the minute or hour, in milliseconds since the epoch.
+     */
+    public long getBucketStart() {
+        return bucketStart;
+    }
+
+    public BeaconKey getKey() {
+        return key;
+    }
+
+    public int getVisits() {
+        return visits;
+    }
+
+    /**
+     * The total length of the visits in milliseconds, some of which may run past the bucket.
+     */
+    public long getDwell() {
+        return dwell;
+    }
+
+    public int getPeakProximity() {
+        return peakProximity;
+    }
+
+    void add(Visit visit) {
+        visits++;
+        dwell += visit.getDuration();
+        if (Visit.isCloser(visit.peakProximity, peakProximity)) {
+            peakProximity = visit.peakProximity;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return key + " " + bucketStart + "+" + resolution + " visits " + visits + " dwell " + dwell;
+    }
+}
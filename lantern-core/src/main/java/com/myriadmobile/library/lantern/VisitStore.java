@@ -0,0 +1,365 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Appends the closed visits and the rollups of a {@link VisitAggregator} to two files in a
+ * directory, so hosts can ship the rollups, or the visits, instead of every raw event.
+ * <p/>
+ * Records are encoded into memory as they come, which never touches the disk, and
+ * {@link #flush()} appends them and syncs the files, meant to be called off the main thread
+ * every now and then. If the records waiting pass {@link #MAX_PENDING_BYTES}, because flushing
+ * keeps failing, new ones are dropped and counted. A record cut short by a crash is cut off when
+ * the store is opened again. Both files have the same layout, all values big endian:
+ * <pre>
+ * file:   int magic | short version | short reserved | record*
+ * record: int length | byte type | visit or rollup
+ * visit:  long uuidMsb | long uuidLsb | short major | short minor | long firstSeen | long lastSeen
+ *         | byte peakProximity | byte zones | int dwellMillis * (zones + 1)
+ * rollup: long resolution | long bucketStart | long uuidMsb | long uuidLsb | short major
+ *         | short minor | int visits | long dwellMillis | byte peakProximity
+ * </pre>
+ * The length covers everything after the length field itself, and the dwell of every zone
+ * starts with the unknown proximity.
+ */
+public class VisitStore implements VisitAggregator.Sink, Flushable, Closeable {
+
+    /**
+     * "LNTV".
+     */
+    static final int MAGIC = 0x4c4e5456;
+
+    static final short VERSION = 1;
+
+    static final int FILE_HEADER_SIZE = 8;
+
+    static final byte TYPE_VISIT = 1;
+
+    static final byte TYPE_ROLLUP = 2;
+
+    public static final String VISITS_FILE = "visits.lntv";
+
+    public static final String ROLLUPS_FILE = "rollups.lntv";
+
+    public static final int MAX_PENDING_BYTES = 1024 * 1024;
+
+    private final File visitsFile;
+    private final File rollupsFile;
+
+    private ByteArrayOutputStream pendingVisits = new ByteArrayOutputStream();
+    private ByteArrayOutputStream pendingRollups = new ByteArrayOutputStream();
+    private long droppedCount;
+
+    /**
+     * Held while writing, so flushing from two threads doesn't interleave.
+     */
+    private final Object writeLock = new Object();
+
+    /**
+     * Opens the store, creating the directory and the files if needed.
+     *
+     * @throws IOException If a file isn't a visit file or can't be read.
+     */
+    public VisitStore(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create visit directory " + directory);
+        }
+        visitsFile = new File(directory, VISITS_FILE);
+        rollupsFile = new File(directory, ROLLUPS_FILE);
+        recover(visitsFile);
+        recover(rollupsFile);
+    }
+
+    public File getVisitsFile() {
+        return visitsFile;
+    }
+
+    public File getRollupsFile() {
+        return rollupsFile;
+    }
+
+    /**
+     * The number of records dropped because too many were waiting to be flushed.
+     */
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    @Override
+    public synchronized void onVisitClosed(Visit visit) {
+        if (pendingVisits.size() >= MAX_PENDING_BYTES) {
+            droppedCount++;
+            return;
+        }
+        int zones = visit.getZones();
+        ByteBuffer record = ByteBuffer.allocate(4 + 1 + 38 + 4 * (zones + 1));
+        record.putInt(record.capacity() - 4);
+        record.put(TYPE_VISIT);
+        putKey(record, visit.key);
+        record.putLong(visit.firstSeen);
+        record.putLong(visit.lastSeen);
+        record.put((byte) visit.peakProximity);
+        record.put((byte) zones);
+        for (int i = 0; i <= zones; i++) {
+            record.putInt((int) Math.min(Integer.MAX_VALUE, visit.dwell[i]));
+        }
+        pendingVisits.write(record.array(), 0, record.capacity());
+    }
+
+    @Override
+    public synchronized void onRollup(VisitRollup rollup) {
+        if (pendingRollups.size() >= MAX_PENDING_BYTES) {
+            droppedCount++;
+            return;
+        }
+        ByteBuffer record = ByteBuffer.allocate(4 + 1 + 49);
+        record.putInt(record.capacity() - 4);
+        record.put(TYPE_ROLLUP);
+        record.putLong(rollup.resolution);
+        record.putLong(rollup.bucketStart);
+        putKey(record, rollup.key);
+        record.putInt(rollup.visits);
+        record.putLong(rollup.dwell);
+        record.put((byte) rollup.peakProximity);
+        pendingRollups.write(record.array(), 0, record.capacity());
+    }
+
+    private static void putKey(ByteBuffer record, BeaconKey key) {
+        record.putLong(key.uuidMostSignificantBits);
+        record.putLong(key.uuidLeastSignificantBits);
+        record.putShort((short) key.getMajor());
+        record.putShort((short) key.getMinor());
+    }
+
+    /**
+     * Appends the records waiting to the files and syncs them. Records that couldn't be written
+     * are kept for the next flush.
+     */
+    @Override
+    public void flush() throws IOException {
+        synchronized (writeLock) {
+            byte[] visits;
+            byte[] rollups;
+            synchronized (this) {
+                visits = pendingVisits.toByteArray();
+                rollups = pendingRollups.toByteArray();
+                pendingVisits = new ByteArrayOutputStream();
+                pendingRollups = new ByteArrayOutputStream();
+            }
+            try {
+                append(visitsFile, visits);
+            } catch (IOException e) {
+                requeue(visits, rollups);
+                throw e;
+            }
+            try {
+                append(rollupsFile, rollups);
+            } catch (IOException e) {
+                requeue(new byte[0], rollups);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Puts records that couldn't be written back in front of the ones that came since.
+     */
+    private synchronized void requeue(byte[] visits, byte[] rollups) {
+        pendingVisits = prepend(visits, pendingVisits);
+        pendingRollups = prepend(rollups, pendingRollups);
+    }
+
+    private static ByteArrayOutputStream prepend(byte[] bytes, ByteArrayOutputStream pending) {
+        ByteArrayOutputStream joined = new ByteArrayOutputStream(bytes.length + pending.size());
+        joined.write(bytes, 0, bytes.length);
+        joined.write(pending.toByteArray(), 0, pending.size());
+        return joined;
+    }
+
+    private static void append(File file, byte[] bytes) throws IOException {
+        if (bytes.length == 0) {
+            return;
+        }
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(bytes);
+            out.getFD().sync();
+        } catch (IOException e) {
+            // Cut off whatever part of a record made it, so the next append lines up.
+            recover(file);
+            throw e;
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Flushes what is waiting.
+     */
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+
+    /**
+     * Writes the header of a new file, or cuts off a record left half written at the end.
+     */
+    private static void recover(File file) throws IOException {
+        RandomAccessFile access = new RandomAccessFile(file, "rw");
+        try {
+            if (access.length() < FILE_HEADER_SIZE) {
+                access.setLength(0);
+                access.writeInt(MAGIC);
+                access.writeShort(VERSION);
+                access.writeShort(0);
+                return;
+            }
+            if (access.readInt() != MAGIC) {
+                throw new IOException("Not a visit file: " + file);
+            }
+            long end = FILE_HEADER_SIZE;
+            long length = access.length();
+            while (end + 4 <= length) {
+                access.seek(end);
+                int recordLength = access.readInt();
+                if (recordLength <= 0 || end + 4 + recordLength > length) {
+                    break;
+                }
+                end += 4 + recordLength;
+            }
+            if (end < length) {
+                access.setLength(end);
+            }
+        } finally {
+            access.close();
+        }
+    }
+
+    /**
+     * Reads the visits of a visits file, up to a record cut short at the end.
+     *
+     * @throws IOException If the file isn't a visit file or can't be read.
+     */
+    public static List<Visit> readVisits(File file) throws IOException {
+        List<Visit> visits = new ArrayList<Visit>();
+        ByteBuffer buffer = read(file);
+        while (nextRecord(buffer, TYPE_VISIT)) {
+            BeaconKey key = getKey(buffer);
+            long firstSeen = buffer.getLong();
+            long lastSeen = buffer.getLong();
+            int peakProximity = buffer.get();
+            int zones = buffer.get() & 0xff;
+            Visit visit = new Visit(key, firstSeen, lastSeen, peakProximity, zones);
+            for (int i = 0; i <= zones; i++) {
+                visit.dwell[i] = buffer.getInt();
+            }
+            visits.add(visit);
+        }
+        return visits;
+    }
+
+    /**
+     * Reads the rollups of a rollups file, up to a record cut short at the end.
+     *
+     * @throws IOException If the file isn't a visit file or can't be read.
+     */
+    public static List<VisitRollup> readRollups(File file) throws IOException {
+        List<VisitRollup> rollups = new ArrayList<VisitRollup>();
+        ByteBuffer buffer = read(file);
+        while (nextRecord(buffer, TYPE_ROLLUP)) {
+            long resolution = buffer.getLong();
+            long bucketStart = buffer.getLong();
+            VisitRollup rollup = new VisitRollup(resolution, bucketStart, getKey(buffer));
+            rollup.visits = buffer.getInt();
+            rollup.dwell = buffer.getLong();
+            rollup.peakProximity = buffer.get();
+            rollups.add(rollup);
+        }
+        return rollups;
+    }
+
+    private static ByteBuffer read(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < bytes.length) {
+                int count = in.read(bytes, read, bytes.length - read);
+                if (count < 0) {
+                    break;
+                }
+                read += count;
+            }
+        } finally {
+            in.close();
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (bytes.length < FILE_HEADER_SIZE || buffer.getInt() != MAGIC) {
+            throw new IOException("Not a visit file: " + file);
+        }
+        buffer.position(FILE_HEADER_SIZE);
+        return buffer;
+    }
+
+    /**
+     * Moves to the next record of the type, skipping others.
+     *
+     * @return False at the end, or at a record cut short.
+     */
+    private static boolean nextRecord(ByteBuffer buffer, byte type) {
+        while (buffer.remaining() >= 5) {
+            int length = buffer.getInt();
+            if (length <= 0 || length > buffer.remaining()) {
+                return false;
+            }
+            int next = buffer.position() + length;
+            if (buffer.get() == type) {
+                return true;
+            }
+            buffer.position(next);
+        }
+        return false;
+    }
+
+    private static BeaconKey getKey(ByteBuffer buffer) {
+        long uuidMostSignificantBits = buffer.getLong();
+        long uuidLeastSignificantBits = buffer.getLong();
+        int major = buffer.getShort() & 0xffff;
+        int minor = buffer.getShort() & 0xffff;
+        return new BeaconKey(uuidMostSignificantBits, uuidLeastSignificantBits, major, minor);
+    }
+}
@@ -0,0 +1,143 @@
+package com.myriadmobile.library.lantern;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds the tracker simulated beacons: packets sent every advertising interval plus the random
+ * delay bluetooth adds, each one lost with a fixed probability.
+ */
+public class AdaptiveExpiryTest {
+
+    private static final long EXPIRATION_INTERVAL = 60000;
+
+    private BeaconTrackerTest.RecordingListener listener;
+    private BeaconTracker tracker;
+    private Random random;
+    private long now;
+
+    @Before
+    public void setUp() {
+        listener = new BeaconTrackerTest.RecordingListener();
+        tracker = new BeaconTracker(EXPIRATION_INTERVAL, listener);
+        tracker.setAdaptiveExpiry(new AdaptiveExpiry());
+        random = new Random(7);
+    }
+
+    @Test
+    public void estimatesIntervalAndLoss() {
+        TrackedBeacon beacon = advertise(2, 100, 0.2, 2000);
+        assertEquals(105, beacon.getAdvertisingInterval(), 5);
+        assertEquals(0.2, beacon.getPacketLoss(), 0.05);
+
+        beacon = advertise(3, 1000, 0.5, 2000);
+        assertEquals(1005, beacon.getAdvertisingInterval(), 50);
+        assertEquals(0.5, beacon.getPacketLoss(), 0.08);
+    }
+
+    @Test
+    public void fastBeaconExpiresSoonAfterLeaving() {
+        TrackedBeacon beacon = advertise(2, 100, 0.1, 500);
+        long left = beacon.getLastSeen();
+        assertTrue(beacon.getExpirationTime() - left <= 1000);
+
+        tracker.expire(left + 999);
+        assertEquals(0, listener.expired.size());
+        tracker.expire(left + 1000);
+        assertEquals(1, listener.expired.size());
+    }
+
+    @Test
+    public void slowLossyBeaconDoesNotFlap() {
+        // With a fixed 10 second expiry, five lost packets in a row expire it.
+        tracker = new BeaconTracker(10000, listener);
+        advertiseFor(2000, 0.5, 3600000);
+        int fixedDetections = listener.detected.size();
+
+        listener = new BeaconTrackerTest.RecordingListener();
+        tracker = new BeaconTracker(10000, listener);
+        tracker.setAdaptiveExpiry(new AdaptiveExpiry());
+        advertiseFor(2000, 0.5, 3600000);
+
+        assertTrue("fixed expiry flapped " + fixedDetections + " times", fixedDetections > 20);
+        // Eleven lost in a row still happens now and then over an hour, and early on the
+        // estimates are rough.
+        assertTrue("adaptive expiry flapped " + listener.detected.size() + " times vs " + fixedDetections,
+                listener.detected.size() * 5 < fixedDetections);
+    }
+
+    @Test
+    public void usesExpirationIntervalUntilEnoughSamples() {
+        TrackedBeacon beacon = null;
+        for (int i = 0; i < AdaptiveExpiry.MIN_SAMPLES; i++) {
+            beacon = tracker.onAdvertisement(Packets.iBeacon(1, 2), -70, null, now += 100);
+            assertEquals(now + EXPIRATION_INTERVAL, beacon.getExpirationTime());
+        }
+        beacon = tracker.onAdvertisement(Packets.iBeacon(1, 2), -70, null, now += 100);
+        assertEquals(now + 1000, beacon.getExpirationTime());
+    }
+
+    @Test
+    public void recoversFromEarlyLosses() {
+        tracker.onAdvertisement(Packets.iBeacon(1, 2), -70, null, now);
+        // The second packet was lost, so the first gap is two intervals.
+        TrackedBeacon beacon = tracker.onAdvertisement(Packets.iBeacon(1, 2), -70, null, now += 400);
+        for (int i = 0; i < 20; i++) {
+            beacon = tracker.onAdvertisement(Packets.iBeacon(1, 2), -70, null, now += 200);
+        }
+        assertEquals(200, beacon.getAdvertisingInterval(), 1);
+        // One packet lost out of twenty two.
+        assertEquals(0.03, beacon.getPacketLoss(), 0.02);
+    }
+
+    @Test
+    public void ignoresScanPausesAndChannelRepeats() {
+        tracker.getAdaptiveExpiry().setScanPause(5000);
+        TrackedBeacon beacon = null;
+        for (int i = 0; i < 10; i++) {
+            beacon = tracker.onAdvertisement(Packets.iBeacon(1, 2), -70, null, now += 300);
+            // The same advertisement on the next channel.
+            tracker.onAdvertisement(Packets.iBeacon(1, 2), -70, null, now += 2);
+        }
+        now += 5000;
+        tracker.onScanWindowStarted(now);
+        beacon = tracker.onAdvertisement(Packets.iBeacon(1, 2), -70, null, now += 50);
+
+        assertEquals(300, beacon.getAdvertisingInterval(), 3);
+        assertEquals(0, beacon.getPacketLoss(), 0.01);
+        assertEquals(now + 1000 + 5000, beacon.getExpirationTime());
+    }
+
+    /**
+     * Sends packets from a beacon, and returns it after the last one received.
+     */
+    private TrackedBeacon advertise(int minor, long interval, double loss, int packets) {
+        TrackedBeacon beacon = null;
+        for (int i = 0; i < packets; i++) {
+            now += interval + random.nextInt(11);
+            if (random.nextDouble() >= loss) {
+                beacon = tracker.onAdvertisement(Packets.iBeacon(1, minor), -70, null, now);
+            }
+        }
+        return beacon;
+    }
+
+    /**
+     * Sends packets from one beacon for a while, expiring beacons as the service would.
+     */
+    private void advertiseFor(long interval, double loss, long duration) {
+        long end = now + duration;
+        while (now < end) {
+            now += interval + random.nextInt(11);
+            tracker.expire(now);
+            if (random.nextDouble() >= loss) {
+                tracker.onAdvertisement(Packets.iBeacon(1, 2), -70, null, now);
+            }
+        }
+    }
+}
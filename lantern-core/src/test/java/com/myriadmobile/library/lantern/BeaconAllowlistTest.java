@@ -0,0 +1,117 @@
+package com.myriadmobile.library.lantern;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BeaconAllowlistTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void containsListedBeacons() {
+        BeaconAllowlist allowlist = new BeaconAllowlist.Builder()
+                .add(Packets.UUID, 1, 2)
+                .add(Packets.UUID, 1, 2)
+                .add(Packets.OTHER_UUID.toUpperCase(), 65535, 0)
+                .build();
+
+        assertEquals(2, allowlist.size());
+        long[] uuid = IBeaconFrame.parseUuid(Packets.UUID);
+        long[] other = IBeaconFrame.parseUuid(Packets.OTHER_UUID);
+        assertTrue(allowlist.contains(uuid[0], uuid[1], 1, 2));
+        assertTrue(allowlist.contains(other[0], other[1], 65535, 0));
+        assertFalse(allowlist.contains(uuid[0], uuid[1], 2, 1));
+        assertFalse(allowlist.contains(other[0], other[1], 1, 2));
+        assertFalse(allowlist.contains(uuid[1], uuid[0], 1, 2));
+    }
+
+    @Test
+    public void emptyListContainsNothing() {
+        BeaconAllowlist allowlist = new BeaconAllowlist.Builder().build();
+        BeaconTracker tracker = new BeaconTracker(60000, new BeaconTrackerTest.RecordingListener());
+        tracker.setAllowlist(allowlist);
+
+        assertEquals(0, allowlist.size());
+        assertFalse(allowlist.hasBloomFilter());
+        assertNull(tracker.onAdvertisement(Packets.iBeacon(1, 2), -70, null, 0));
+    }
+
+    @Test
+    public void bloomFilterHasNoFalseNegatives() {
+        BeaconAllowlist.Builder builder = new BeaconAllowlist.Builder().withBloomFilter(10);
+        for (int i = 0; i < 20000; i += 2) {
+            builder.add(Packets.UUID, i / 100, i % 100);
+        }
+        BeaconAllowlist allowlist = builder.build();
+        assertTrue(allowlist.hasBloomFilter());
+
+        long[] uuid = IBeaconFrame.parseUuid(Packets.UUID);
+        for (int i = 0; i < 20000; i++) {
+            assertEquals(i % 2 == 0, allowlist.contains(uuid[0], uuid[1], i / 100, i % 100));
+        }
+    }
+
+    @Test
+    public void writeAndRead() throws IOException {
+        BeaconAllowlist.Builder builder = new BeaconAllowlist.Builder();
+        for (int i = 0; i < 1000; i++) {
+            builder.add(i % 3 == 0 ? Packets.UUID : Packets.OTHER_UUID, i, 1000 - i);
+        }
+        File file = folder.newFile("beacons.lnta");
+        builder.build().write(file);
+        assertEquals(BeaconAllowlist.HEADER_SIZE + 2 * BeaconAllowlist.UUID_SIZE
+                + 1000 * BeaconAllowlist.BEACON_SIZE + 4, file.length());
+
+        BeaconAllowlist read = BeaconAllowlist.read(file, 0);
+        assertEquals(1000, read.size());
+        assertFalse(read.hasBloomFilter());
+        long[] uuid = IBeaconFrame.parseUuid(Packets.UUID);
+        long[] other = IBeaconFrame.parseUuid(Packets.OTHER_UUID);
+        for (int i = 0; i < 1000; i++) {
+            long[] listed = i % 3 == 0 ? uuid : other;
+            assertTrue(read.contains(listed[0], listed[1], i, 1000 - i));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsCorruptFiles() throws IOException {
+        File file = folder.newFile("beacons.lnta");
+        new BeaconAllowlist.Builder().add(Packets.UUID, 1, 2).build().write(file);
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.seek(BeaconAllowlist.HEADER_SIZE + BeaconAllowlist.UUID_SIZE + 3);
+            out.write(7);
+        } finally {
+            out.close();
+        }
+        BeaconAllowlist.read(file, 0);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws IOException {
+        BeaconAllowlist.read(ByteBuffer.wrap(new byte[64]), 0);
+    }
+
+    @Test
+    public void trackerOnlyTracksListedBeacons() {
+        BeaconTracker tracker = new BeaconTracker(60000, new BeaconTrackerTest.RecordingListener());
+        tracker.onAdvertisement(Packets.iBeacon(1, 3), -70, null, 0);
+        tracker.setAllowlist(new BeaconAllowlist.Builder().add(Packets.UUID, 1, 2).build());
+
+        assertEquals(2, tracker.onAdvertisement(Packets.iBeacon(1, 2), -70, null, 10).getMinor());
+        assertNull(tracker.onAdvertisement(Packets.iBeacon(1, 3), -70, null, 10));
+        assertNull(tracker.onAdvertisement(Packets.iBeacon(Packets.OTHER_UUID, 1, 2, -59), -70, null, 10));
+    }
+}
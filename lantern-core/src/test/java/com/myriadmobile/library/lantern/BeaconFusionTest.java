@@ -0,0 +1,212 @@
+package com.myriadmobile.library.lantern;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BeaconFusionTest {
+
+    private static final int TX_POWER = -59;
+
+    private BeaconFusion fusion;
+
+    @Before
+    public void setUp() {
+        fusion = new BeaconFusion(8, 5000);
+    }
+
+    @Test
+    public void keepsSamplesPerReceiver() {
+        fusion.observe("a", Packets.iBeacon(1, 2), -60, 0);
+        fusion.observe("a", Packets.iBeacon(1, 2), -70, 10);
+        FusedBeacon beacon = fusion.observe("b", Packets.iBeacon(1, 2), -80, 20);
+
+        assertEquals(1, fusion.size());
+        assertEquals(2, beacon.getReceiverCount());
+        assertEquals(-65, beacon.getRssi(0), 0);
+        assertEquals(2, beacon.getSampleCount(0));
+        assertEquals(-80, beacon.getRssi(1), 0);
+        assertEquals(Distance.estimate(TX_POWER, -65), beacon.getDistance(0), 1e-9);
+        assertEquals(20, beacon.getLastSeen());
+    }
+
+    @Test
+    public void followsStrongestReceiver() {
+        fusion.observe("a", Packets.iBeacon(1, 2), -70, 0);
+        FusedBeacon beacon = fusion.observe("b", Packets.iBeacon(1, 2), -60, 0);
+        assertSame(fusion.getReceiver("b"), beacon.getStrongestReceiver());
+        assertEquals(Distance.toProximity(Distance.estimate(TX_POWER, -60)), beacon.getProximity());
+
+        // B's mean drops below A's.
+        fusion.observe("b", Packets.iBeacon(1, 2), -90, 10);
+        assertSame(fusion.getReceiver("a"), beacon.getStrongestReceiver());
+        assertEquals(-70, beacon.getRssi(), 0);
+    }
+
+    @Test
+    public void centroidLeansTowardsCloserReceiver() {
+        fusion.addReceiver("a", 0, 0);
+        fusion.addReceiver("b", 10, 0);
+        fusion.observe("a", Packets.iBeacon(1, 2), -62, 0);
+        FusedBeacon beacon = fusion.observe("b", Packets.iBeacon(1, 2), -80, 0);
+
+        assertTrue(beacon.hasCentroid());
+        assertTrue(beacon.getCentroidX() < 5);
+        assertEquals(0, beacon.getCentroidY(), 1e-9);
+        assertFalse(beacon.hasPosition());
+    }
+
+    @Test
+    public void trilateratesPosition() {
+        fusion.addReceiver("a", 0, 0);
+        fusion.addReceiver("b", 10, 0);
+        fusion.addReceiver("c", 0, 10);
+        fusion.addReceiver("d", 10, 10);
+        double x = 3;
+        double y = 4;
+        FusedBeacon beacon = null;
+        for (String id : new String[]{"a", "b", "c", "d"}) {
+            Receiver receiver = fusion.getReceiver(id);
+            double distance = Math.hypot(x - receiver.getX(), y - receiver.getY());
+            beacon = fusion.observe(id, Packets.iBeacon(1, 2), rssiFor(distance), 0);
+        }
+
+        assertTrue(beacon.hasPosition());
+        assertEquals(x, beacon.getPositionX(), 0.6);
+        assertEquals(y, beacon.getPositionY(), 0.6);
+        assertSame(fusion.getReceiver("a"), beacon.getStrongestReceiver());
+    }
+
+    @Test
+    public void noPositionFromReceiversOnOneLine() {
+        fusion.addReceiver("a", 0, 0);
+        fusion.addReceiver("b", 5, 0);
+        fusion.addReceiver("c", 10, 0);
+        fusion.observe("a", Packets.iBeacon(1, 2), -70, 0);
+        fusion.observe("b", Packets.iBeacon(1, 2), -65, 0);
+        FusedBeacon beacon = fusion.observe("c", Packets.iBeacon(1, 2), -75, 0);
+
+        assertFalse(beacon.hasPosition());
+        assertTrue(Double.isNaN(beacon.getPositionX()));
+        assertTrue(beacon.hasCentroid());
+    }
+
+    @Test
+    public void receiversWithoutPositionOnlyCountForStrongest() {
+        fusion.addReceiver("a", 0, 0);
+        fusion.observe("phone", Packets.iBeacon(1, 2), -50, 0);
+        FusedBeacon beacon = fusion.observe("a", Packets.iBeacon(1, 2), -70, 0);
+
+        assertSame(fusion.getReceiver("phone"), beacon.getStrongestReceiver());
+        assertEquals(0, beacon.getCentroidX(), 1e-9);
+    }
+
+    @Test
+    public void incrementalEstimatesMatchRecomputing() {
+        String[] ids = {"a", "b", "c", "d", "e"};
+        double[][] positions = {{0, 0}, {12, 0}, {0, 9}, {12, 9}, {6, 4}};
+        for (int i = 0; i < ids.length; i++) {
+            fusion.addReceiver(ids[i], positions[i][0], positions[i][1]);
+        }
+        Random random = new Random(3);
+        List<List<Integer>> samples = new ArrayList<List<Integer>>();
+        for (int i = 0; i < ids.length; i++) {
+            samples.add(new ArrayList<Integer>());
+        }
+        FusedBeacon beacon = null;
+        for (int n = 0; n < 500; n++) {
+            int r = random.nextInt(ids.length);
+            int rssi = -50 - random.nextInt(40);
+            samples.get(r).add(rssi);
+            beacon = fusion.observe(ids[r], Packets.iBeacon(1, 2), rssi, n);
+
+            // Recompute from the last 8 samples of every receiver.
+            double weightSum = 0;
+            double weightedX = 0;
+            double strongest = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < ids.length; i++) {
+                List<Integer> own = samples.get(i);
+                if (own.isEmpty()) {
+                    continue;
+                }
+                double sum = 0;
+                int count = Math.min(8, own.size());
+                for (int j = own.size() - count; j < own.size(); j++) {
+                    sum += own.get(j);
+                }
+                double mean = sum / count;
+                double distance = Math.max(Distance.estimate(TX_POWER, mean), 0.1);
+                double weight = 1 / (distance * distance);
+                weightSum += weight;
+                weightedX += weight * positions[i][0];
+                strongest = Math.max(strongest, mean);
+            }
+            assertEquals(weightedX / weightSum, beacon.getCentroidX(), 1e-9);
+            assertEquals(strongest, beacon.getRssi(), 1e-9);
+        }
+    }
+
+    @Test
+    public void oldSamplesAgeOut() {
+        fusion.observe("a", Packets.iBeacon(1, 2), -60, 0);
+        FusedBeacon beacon = fusion.observe("b", Packets.iBeacon(1, 2), -70, 4000);
+        assertEquals(2, beacon.getReceiverCount());
+
+        // A's sample is too old by the time B's next one arrives.
+        fusion.observe("b", Packets.iBeacon(1, 2), -70, 6000);
+        assertEquals(1, beacon.getReceiverCount());
+        assertSame(fusion.getReceiver("b"), beacon.getStrongestReceiver());
+
+        assertTrue(fusion.expire(9000).isEmpty());
+        List<FusedBeacon> expired = fusion.expire(11001);
+        assertEquals(1, expired.size());
+        assertEquals(0, fusion.size());
+        assertNull(fusion.get(beacon.getKey()));
+    }
+
+    @Test
+    public void windowKeepsLatestSamples() {
+        RssiWindow window = new RssiWindow(3, 1000);
+        window.add(-60, 0);
+        window.add(-70, 10);
+        window.add(-80, 20);
+        window.add(-90, 30);
+        assertEquals(3, window.size());
+        assertEquals(-80, window.mean(), 0);
+        assertTrue(window.evict(1025));
+        assertEquals(1, window.size());
+        assertEquals(30, window.lastTime());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDuplicateReceiver() {
+        fusion.addReceiver("a", 0, 0);
+        fusion.addReceiver("a", 1, 1);
+    }
+
+    /**
+     * The RSSI that the distance formula turns into the distance.
+     */
+    private static int rssiFor(double distance) {
+        double low = -120;
+        double high = -1;
+        for (int i = 0; i < 60; i++) {
+            double middle = (low + high) / 2;
+            if (Distance.estimate(TX_POWER, middle) > distance) {
+                low = middle;
+            } else {
+                high = middle;
+            }
+        }
+        return (int) Math.round(low);
+    }
+}
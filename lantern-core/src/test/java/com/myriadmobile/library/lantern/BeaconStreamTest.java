@@ -0,0 +1,280 @@
+package com.myriadmobile.library.lantern;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BeaconStreamTest {
+
+    private BeaconStream stream;
+    private BeaconTracker tracker;
+
+    @Before
+    public void setUp() {
+        // Runs the subscribers right away, on the tracker's thread.
+        stream = new BeaconStream(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        tracker = new BeaconTracker(60000, stream);
+    }
+
+    @Test
+    public void onlySendsWhatWasRequested() {
+        RecordingSubscriber<BeaconEvent> subscriber = new RecordingSubscriber<BeaconEvent>();
+        stream.events(BeaconStream.Overflow.DROP_OLDEST, 16).subscribe(subscriber);
+        assertTrue(subscriber.subscribed);
+
+        see(1, -70, 0);
+        see(2, -70, 0);
+        see(1, -71, 10);
+        assertEquals(0, subscriber.items.size());
+
+        subscriber.subscription.request(2);
+        assertEquals(2, subscriber.items.size());
+        assertEquals(BeaconEvent.DETECTED, subscriber.items.get(0).getType());
+        assertEquals(1, subscriber.items.get(0).getBeacon().getMinor());
+        assertEquals(-70, subscriber.items.get(0).getBeacon().getRssi());
+
+        subscriber.subscription.request(5);
+        assertEquals(3, subscriber.items.size());
+        assertEquals(BeaconEvent.CHANGED, subscriber.items.get(2).getType());
+        see(2, -72, 20);
+        assertEquals(4, subscriber.items.size());
+    }
+
+    @Test
+    public void dropsTheOldestEvents() {
+        RecordingSubscriber<BeaconEvent> subscriber = new RecordingSubscriber<BeaconEvent>();
+        stream.events(BeaconStream.Overflow.DROP_OLDEST, 2).subscribe(subscriber);
+        for (int minor = 0; minor < 5; minor++) {
+            see(minor, -70, 0);
+        }
+        assertEquals(3, stream.getDropped());
+        subscriber.subscription.request(Long.MAX_VALUE);
+        assertEquals(2, subscriber.items.size());
+        assertEquals(3, subscriber.items.get(0).getBeacon().getMinor());
+        assertEquals(4, subscriber.items.get(1).getBeacon().getMinor());
+    }
+
+    @Test
+    public void conflatesPerBeacon() {
+        RecordingSubscriber<BeaconEvent> subscriber = new RecordingSubscriber<BeaconEvent>();
+        stream.events(BeaconStream.Overflow.CONFLATE_PER_BEACON, 8).subscribe(subscriber);
+        see(1, -70, 0);
+        see(2, -70, 0);
+        subscriber.subscription.request(2);
+        for (int rssi = -71; rssi > -80; rssi--) {
+            see(1, rssi, 80 + rssi);
+            see(2, rssi, 80 + rssi);
+        }
+        // Detected and expired before the subscriber heard of it.
+        see(3, -70, 100);
+        tracker.expire(60100);
+        assertEquals(0, stream.getDropped());
+
+        subscriber.subscription.request(Long.MAX_VALUE);
+        assertEquals(4, subscriber.items.size());
+        assertEquals(BeaconEvent.EXPIRED, subscriber.items.get(2).getType());
+        assertEquals(BeaconEvent.EXPIRED, subscriber.items.get(3).getType());
+
+        see(1, -70, 70000);
+        see(1, -71, 70010);
+        assertEquals(6, subscriber.items.size());
+        assertEquals(BeaconEvent.DETECTED, subscriber.items.get(4).getType());
+        assertEquals(BeaconEvent.CHANGED, subscriber.items.get(5).getType());
+    }
+
+    @Test
+    public void keepsTheFirstEventOfABeacon() {
+        RecordingSubscriber<BeaconEvent> subscriber = new RecordingSubscriber<BeaconEvent>();
+        stream.events(BeaconStream.Overflow.CONFLATE_PER_BEACON, 8).subscribe(subscriber);
+        see(1, -70, 0);
+        see(1, -75, 10);
+        subscriber.subscription.request(1);
+        assertEquals(1, subscriber.items.size());
+        assertEquals(BeaconEvent.DETECTED, subscriber.items.get(0).getType());
+        assertEquals(-75, subscriber.items.get(0).getBeacon().getRssi());
+    }
+
+    @Test
+    public void sendsTheLatestSnapshot() {
+        see(1, -70, 0);
+        RecordingSubscriber<PresenceSnapshot> subscriber = new RecordingSubscriber<PresenceSnapshot>();
+        stream.snapshots().subscribe(subscriber);
+        subscriber.subscription.request(1);
+        assertEquals(1, subscriber.items.get(0).size());
+
+        for (int minor = 2; minor < 10; minor++) {
+            see(minor, -70, minor);
+        }
+        subscriber.subscription.request(5);
+        assertEquals(2, subscriber.items.size());
+        assertEquals(9, subscriber.items.get(1).size());
+
+        // Still has demand, so the next change goes straight out.
+        tracker.expire(60000);
+        assertEquals(3, subscriber.items.size());
+        assertEquals(8, subscriber.items.get(2).size());
+    }
+
+    @Test
+    public void keepsOnlyPresenceWithoutSubscribers() {
+        see(1, -70, 0);
+        see(2, -70, 0);
+        see(1, -71, 10);
+        tracker.expire(60005);
+        RecordingSubscriber<PresenceSnapshot> subscriber = new RecordingSubscriber<PresenceSnapshot>();
+        stream.snapshots().subscribe(subscriber);
+        subscriber.subscription.request(1);
+        // Beacon 2 expired, and the change in signal wasn't copied.
+        assertEquals(1, subscriber.items.get(0).size());
+        assertEquals(-70, subscriber.items.get(0).getBeacons().get(0).getRssi());
+    }
+
+    @Test
+    public void refreshesFromTheSourceOnTheFirstSnapshotSubscriber() {
+        stream.setSource(new BeaconStream.Source() {
+            @Override
+            public List<TrackedBeacon> copyActiveBeacons() {
+                List<TrackedBeacon> beacons = tracker.getBeacons();
+                for (int i = 0; i < beacons.size(); i++) {
+                    beacons.set(i, new TrackedBeacon(beacons.get(i)));
+                }
+                return beacons;
+            }
+        });
+        see(1, -70, 0);
+        see(1, -71, 10);
+        RecordingSubscriber<PresenceSnapshot> subscriber = new RecordingSubscriber<PresenceSnapshot>();
+        stream.snapshots().subscribe(subscriber);
+        subscriber.subscription.request(2);
+        assertEquals(-71, subscriber.items.get(0).getBeacons().get(0).getRssi());
+
+        see(1, -72, 20);
+        assertEquals(2, subscriber.items.size());
+        assertEquals(-72, subscriber.items.get(1).getBeacons().get(0).getRssi());
+    }
+
+    @Test
+    public void rejectsNonPositiveRequests() {
+        RecordingSubscriber<BeaconEvent> subscriber = new RecordingSubscriber<BeaconEvent>();
+        stream.events(BeaconStream.Overflow.DROP_OLDEST, 4).subscribe(subscriber);
+        subscriber.subscription.request(0);
+        assertTrue(subscriber.error instanceof IllegalArgumentException);
+        see(1, -70, 0);
+        subscriber.subscription.request(1);
+        assertEquals(0, subscriber.items.size());
+    }
+
+    @Test
+    public void stopsAfterCancel() {
+        RecordingSubscriber<BeaconEvent> subscriber = new RecordingSubscriber<BeaconEvent>();
+        stream.events(BeaconStream.Overflow.DROP_OLDEST, 4).subscribe(subscriber);
+        subscriber.subscription.request(Long.MAX_VALUE);
+        see(1, -70, 0);
+        subscriber.subscription.cancel();
+        see(2, -70, 0);
+        assertEquals(1, subscriber.items.size());
+        assertEquals(0, stream.getDropped());
+    }
+
+    @Test
+    public void completesAfterTheBuffer() {
+        RecordingSubscriber<BeaconEvent> subscriber = new RecordingSubscriber<BeaconEvent>();
+        stream.events(BeaconStream.Overflow.DROP_OLDEST, 4).subscribe(subscriber);
+        see(1, -70, 0);
+        stream.complete();
+        assertFalse(subscriber.completed);
+        subscriber.subscription.request(1);
+        assertEquals(1, subscriber.items.size());
+        assertTrue(subscriber.completed);
+        assertNull(subscriber.error);
+
+        RecordingSubscriber<BeaconEvent> late = new RecordingSubscriber<BeaconEvent>();
+        stream.events(BeaconStream.Overflow.DROP_OLDEST, 4).subscribe(late);
+        assertTrue(late.subscribed);
+        assertTrue(late.completed);
+    }
+
+    @Test
+    public void completesSubscribersRacingComplete() throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            setUp();
+            final CountDownLatch go = new CountDownLatch(1);
+            Thread completer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        go.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    stream.complete();
+                }
+            });
+            completer.start();
+            RecordingSubscriber<BeaconEvent> events = new RecordingSubscriber<BeaconEvent>();
+            RecordingSubscriber<PresenceSnapshot> snapshots = new RecordingSubscriber<PresenceSnapshot>();
+            go.countDown();
+            stream.events(BeaconStream.Overflow.DROP_OLDEST, 4).subscribe(events);
+            stream.snapshots().subscribe(snapshots);
+            completer.join();
+            snapshots.subscription.request(1);
+
+            assertTrue(events.completed);
+            assertTrue(snapshots.completed);
+        }
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void rejectsNullSubscribers() {
+        stream.snapshots().subscribe(null);
+    }
+
+    private void see(int minor, int rssi, long now) {
+        tracker.onAdvertisement(Packets.iBeacon(1, minor), rssi, null, now);
+    }
+
+    static class RecordingSubscriber<T> implements Subscriber<T> {
+        final List<T> items = new ArrayList<T>();
+        Subscription subscription;
+        boolean subscribed;
+        boolean completed;
+        Throwable error;
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            this.subscription = subscription;
+            subscribed = true;
+        }
+
+        @Override
+        public void onNext(T item) {
+            items.add(item);
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            this.error = error;
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+        }
+    }
+}
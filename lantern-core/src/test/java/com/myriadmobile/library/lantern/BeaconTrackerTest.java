@@ -0,0 +1,179 @@
+package com.myriadmobile.library.lantern;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class BeaconTrackerTest {
+
+    private RecordingListener listener;
+    private BeaconTracker tracker;
+
+    @Before
+    public void setUp() {
+        listener = new RecordingListener();
+        tracker = new BeaconTracker(60000, listener);
+    }
+
+    @Test
+    public void detectsOnce() {
+        TrackedBeacon first = tracker.onAdvertisement(Packets.iBeacon(1, 2), -70, "00:11:22:33:44:55", 1000);
+        TrackedBeacon second = tracker.onAdvertisement(Packets.iBeacon(1, 2), -70, "00:11:22:33:44:55", 2000);
+        assertSame(first, second);
+        assertEquals(1, listener.detected.size());
+        assertEquals(0, listener.changed.size());
+        assertEquals(1000, second.getFirstSeen());
+        assertEquals(2000, second.getLastSeen());
+        assertEquals(62000, second.getExpirationTime());
+        assertEquals(Packets.UUID, second.getUuid());
+    }
+
+    @Test
+    public void sharesIdentityStrings() {
+        TrackedBeacon first = tracker.onAdvertisement(Packets.iBeacon(1, 2), -70, new String("00:11:22:33:44:55"), 0);
+        TrackedBeacon second = tracker.onAdvertisement(Packets.iBeacon(1, 3), -70, new String("00:11:22:33:44:56"), 0);
+        tracker.onAdvertisement(Packets.iBeacon(1, 2), -70, new String("00:11:22:33:44:56"), 10);
+        assertSame(first.getUuid(), second.getUuid());
+        assertSame(first.getBluetoothAddress(), second.getBluetoothAddress());
+    }
+
+    @Test
+    public void reportsRssiChanges() {
+        tracker.onAdvertisement(Packets.iBeacon(1, 2), -70, null, 0);
+        TrackedBeacon beacon = tracker.onAdvertisement(Packets.iBeacon(1, 2), -80, null, 10);
+        assertEquals(1, listener.changed.size());
+        assertEquals(-80, beacon.getRssi());
+        assertEquals(Distance.estimate(-59, -80), beacon.getDistance(), 0);
+    }
+
+    @Test
+    public void ignoresOtherPackets() {
+        assertNull(tracker.onAdvertisement(new byte[62], -70, null, 0));
+        assertEquals(0, tracker.size());
+    }
+
+    @Test
+    public void filtersByUuid() {
+        tracker.setUuidFilter(Packets.OTHER_UUID.toUpperCase());
+        assertNull(tracker.onAdvertisement(Packets.iBeacon(1, 2), -70, null, 0));
+        tracker.onAdvertisement(Packets.iBeacon(Packets.OTHER_UUID, 1, 2, -59), -70, null, 0);
+        assertEquals(1, tracker.size());
+
+        tracker.setUuidFilter();
+        tracker.onAdvertisement(Packets.iBeacon(1, 2), -70, null, 0);
+        assertEquals(2, tracker.size());
+    }
+
+    @Test
+    public void expires() {
+        tracker.onAdvertisement(Packets.iBeacon(1, 1), -70, null, 0);
+        tracker.onAdvertisement(Packets.iBeacon(1, 2), -70, null, 30000);
+
+        assertEquals(60000, tracker.expire(59999));
+        assertEquals(0, listener.expired.size());
+
+        assertEquals(90000, tracker.expire(60000));
+        assertEquals(1, listener.expired.size());
+        assertEquals(1, listener.expired.get(0).getMinor());
+
+        // Seen again, so the expiration moves.
+        tracker.onAdvertisement(Packets.iBeacon(1, 2), -70, null, 80000);
+        assertEquals(140000, tracker.expire(90000));
+        assertEquals(Long.MAX_VALUE, tracker.expire(140000));
+        assertEquals(0, tracker.size());
+        assertEquals(2, listener.expired.size());
+    }
+
+    @Test
+    public void redetectsAfterExpiring() {
+        tracker.onAdvertisement(Packets.iBeacon(1, 1), -70, null, 0);
+        tracker.expire(60000);
+        TrackedBeacon beacon = tracker.onAdvertisement(Packets.iBeacon(1, 1), -70, null, 70000);
+        assertEquals(2, listener.detected.size());
+        assertEquals(70000, beacon.getFirstSeen());
+    }
+
+    @Test
+    public void movesBetweenZonesAfterTheMinimumDwell() {
+        double close = Distance.estimate(-59, -65);
+        double away = Distance.estimate(-59, -75);
+        tracker.setProximityZones(new ProximityZones.Builder()
+                .addZone("Close", (close + away) / 2)
+                .setOuterZone("Away")
+                .withMinDwell(1000)
+                .build());
+
+        TrackedBeacon beacon = tracker.onAdvertisement(Packets.iBeacon(1, 1), -65, null, 0);
+        assertEquals(1, beacon.getProximity());
+
+        // Steps out, but comes back before the dwell is up.
+        tracker.onAdvertisement(Packets.iBeacon(1, 1), -75, null, 100);
+        tracker.onAdvertisement(Packets.iBeacon(1, 1), -65, null, 600);
+        tracker.onAdvertisement(Packets.iBeacon(1, 1), -75, null, 700);
+        tracker.onAdvertisement(Packets.iBeacon(1, 1), -75, null, 1500);
+        assertEquals(1, beacon.getProximity());
+        assertEquals(0, listener.moved.size());
+
+        tracker.onAdvertisement(Packets.iBeacon(1, 1), -75, null, 1700);
+        assertEquals(2, beacon.getProximity());
+        assertEquals(1, listener.moved.size());
+        assertEquals(1, (int) listener.previousProximities.get(0));
+        assertEquals(3, listener.changed.size());
+    }
+
+    @Test
+    public void ignoresJitterInsideTheMargins() {
+        tracker.setProximityZones(new ProximityZones.Builder()
+                .addZone("Close", Distance.estimate(-59, -70))
+                .setOuterZone("Away")
+                .withMargins(0.2, 0.2)
+                .build());
+
+        TrackedBeacon beacon = tracker.onAdvertisement(Packets.iBeacon(1, 1), -71, null, 0);
+        assertEquals(2, beacon.getProximity());
+        for (int i = 1; i < 20; i++) {
+            tracker.onAdvertisement(Packets.iBeacon(1, 1), i % 2 == 0 ? -71 : -69, null, i * 100);
+        }
+        assertEquals(2, beacon.getProximity());
+        assertEquals(0, listener.moved.size());
+
+        tracker.onAdvertisement(Packets.iBeacon(1, 1), -60, null, 2000);
+        assertEquals(1, beacon.getProximity());
+        assertEquals(1, listener.moved.size());
+    }
+
+    static class RecordingListener implements BeaconTracker.ProximityListener {
+        final List<TrackedBeacon> detected = new ArrayList<TrackedBeacon>();
+        final List<TrackedBeacon> changed = new ArrayList<TrackedBeacon>();
+        final List<TrackedBeacon> expired = new ArrayList<TrackedBeacon>();
+        final List<TrackedBeacon> moved = new ArrayList<TrackedBeacon>();
+        final List<Integer> previousProximities = new ArrayList<Integer>();
+
+        @Override
+        public void onBeaconDetected(TrackedBeacon beacon) {
+            detected.add(beacon);
+        }
+
+        @Override
+        public void onBeaconChanged(TrackedBeacon beacon) {
+            changed.add(beacon);
+        }
+
+        @Override
+        public void onBeaconExpired(TrackedBeacon beacon) {
+            expired.add(beacon);
+        }
+
+        @Override
+        public void onProximityChanged(TrackedBeacon beacon, int previousProximity) {
+            moved.add(beacon);
+            previousProximities.add(previousProximity);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.myriadmobile.library.lantern;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CalibrationProfileTest {
+
+    @After
+    public void tearDown() {
+        Distance.setProfile(CalibrationProfile.DEFAULT);
+    }
+
+    @Test
+    public void lookupMatchesFormula() {
+        CalibrationProfile profile = new CalibrationProfile("test", 0.89976, 7.7095, 0.111);
+        for (int txPower = -100; txPower <= -30; txPower++) {
+            for (int rssi = -128; rssi <= 127; rssi++) {
+                assertEquals(formula(txPower, rssi), profile.lookup(txPower, rssi), 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void tablesAreBuiltLazily() {
+        CalibrationProfile profile = new CalibrationProfile("test", 1, 8, 0.1);
+        assertFalse(profile.hasTable(-59));
+        profile.lookup(-59, -70);
+        assertTrue(profile.hasTable(-59));
+        assertFalse(profile.hasTable(-65));
+    }
+
+    @Test
+    public void fallsBackOutsideTables() {
+        CalibrationProfile profile = CalibrationProfile.DEFAULT;
+        assertEquals(formula(-59, -200), profile.lookup(-59, -200), 1e-9);
+        assertEquals(formula(300, -70), profile.lookup(300, -70), 1e-9);
+        assertEquals(-1, profile.lookup(-59, 0), 0);
+    }
+
+    @Test
+    public void profileReplacesConstants() {
+        CalibrationProfile profile = new CalibrationProfile("steep", 0.5, 9, 0.2);
+        double ratio = -80.0 / -59;
+        assertEquals(0.5 * Math.pow(ratio, 9) + 0.2, profile.estimate(-59, -80), 1e-9);
+        assertEquals(profile.estimate(-59, -80), profile.lookup(-59, -80), 1e-9);
+    }
+
+    @Test
+    public void distanceUsesCurrentProfile() {
+        double before = Distance.estimate(-59, -80);
+        CalibrationProfile profile = new CalibrationProfile("steep", 0.5, 9, 0.2);
+        Distance.setProfile(profile);
+        assertEquals(profile.estimate(-59, -80), Distance.estimate(-59, -80), 0);
+        assertEquals(profile.estimate(-59, -80.5), Distance.estimate(-59, -80.5), 0);
+        Distance.setProfile(CalibrationProfile.DEFAULT);
+        assertEquals(before, Distance.estimate(-59, -80), 0);
+    }
+
+    /**
+     * The formula the library has always used.
+     */
+    private static double formula(int txPower, double rssi) {
+        if (rssi == 0) {
+            return -1.0;
+        }
+        double ratio = rssi * 1.0 / txPower;
+        if (ratio < 1.0) {
+            return Math.pow(ratio, 10);
+        }
+        return 0.89976 * Math.pow(ratio, 7.7095) + 0.111;
+    }
+}
@@ -0,0 +1,150 @@
+package com.myriadmobile.library.lantern;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CalibrationSessionTest {
+
+    private static final int TX_POWER = -59;
+
+    @After
+    public void tearDown() {
+        CalibrationProfiles.unregister("Nexus 5");
+    }
+
+    @Test
+    public void recoversExactCurve() {
+        CalibrationProfile truth = new CalibrationProfile("truth", 0.5, 8.2, 0.3);
+        double[] distances = {1.5, 2, 3, 5, 8, 12};
+        double[] ratios = new double[distances.length];
+        for (int i = 0; i < distances.length; i++) {
+            ratios[i] = ratioFor(truth, distances[i]);
+        }
+
+        CalibrationProfile fitted = CalibrationSession.fit("fitted", distances, ratios);
+
+        assertEquals("fitted", fitted.getName());
+        assertEquals(0.5, fitted.getCoefficient(), 1e-3);
+        assertEquals(8.2, fitted.getExponent(), 1e-3);
+        assertEquals(0.3, fitted.getIntercept(), 1e-3);
+    }
+
+    @Test
+    public void recoversDefaultCurve() {
+        CalibrationProfile truth = CalibrationProfile.DEFAULT;
+        double[] distances = {1.2, 2, 4, 7, 10};
+        double[] ratios = new double[distances.length];
+        for (int i = 0; i < distances.length; i++) {
+            ratios[i] = ratioFor(truth, distances[i]);
+        }
+
+        CalibrationProfile fitted = CalibrationSession.fit("fitted", distances, ratios);
+
+        assertEquals(truth.getExponent(), fitted.getExponent(), 1e-3);
+        for (double distance : distances) {
+            double ratio = ratioFor(truth, distance);
+            assertEquals(distance, fitted.estimate(TX_POWER, ratio * TX_POWER), 1e-3);
+        }
+    }
+
+    @Test
+    public void guidedSessionFitsNoisySamples() {
+        CalibrationProfile truth = new CalibrationProfile("truth", 0.7, 6.5, 0.2);
+        CalibrationSession session = new CalibrationSession("Nexus 5", new double[]{1.5, 2.5, 4, 6, 9}, 200);
+        Random random = new Random(11);
+        while (!session.isComplete()) {
+            double rssi = ratioFor(truth, session.getCurrentDistance()) * TX_POWER;
+            boolean done = false;
+            while (!done) {
+                int noisy = (int) Math.round(rssi + random.nextGaussian() * 2);
+                done = session.addSample(TX_POWER, noisy);
+            }
+            assertEquals(200, session.getSampleCount());
+            session.nextStep();
+        }
+
+        CalibrationProfile fitted = session.fit();
+
+        assertEquals("Nexus 5", fitted.getName());
+        for (double distance = 1.5; distance <= 9; distance += 0.5) {
+            double rssi = ratioFor(truth, distance) * TX_POWER;
+            assertEquals(distance, fitted.estimate(TX_POWER, rssi), distance * 0.1);
+        }
+    }
+
+    @Test
+    public void skipsDistancesInsideTxPower() {
+        CalibrationProfile truth = new CalibrationProfile("truth", 0.9, 7.7, 0.1);
+        CalibrationSession session = new CalibrationSession("test", new double[]{0.3, 2, 4, 8}, 1);
+        // Closer than a meter the RSSI is stronger than the tx power.
+        session.addSample(TX_POWER, -40);
+        session.nextStep();
+        for (double distance : new double[]{2, 4, 8}) {
+            assertEquals(distance, session.getCurrentDistance(), 0);
+            session.addSample(TX_POWER, (int) Math.round(ratioFor(truth, distance) * TX_POWER));
+            session.nextStep();
+        }
+        assertTrue(session.isComplete());
+        assertEquals(4, session.fit().estimate(TX_POWER, ratioFor(truth, 4) * TX_POWER), 0.5);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void needsThreeDistances() {
+        CalibrationSession session = new CalibrationSession("test", new double[]{2, 4, 8}, 1);
+        session.addSample(TX_POWER, -70);
+        session.nextStep();
+        session.addSample(TX_POWER, -80);
+        session.fit();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOtherBeacon() {
+        CalibrationSession session = new CalibrationSession("test");
+        session.addSample(TX_POWER, -70);
+        session.addSample(-65, -70);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void needsSamplesBeforeNextStep() {
+        new CalibrationSession("test").nextStep();
+    }
+
+    @Test
+    public void profilesAreKeyedByModel() {
+        CalibrationProfile profile = new CalibrationProfile("nexus", 0.5, 8, 0.2);
+        CalibrationProfiles.register("Nexus 5", profile);
+        assertSame(profile, CalibrationProfiles.forModel(" nexus 5"));
+        assertSame(CalibrationProfile.DEFAULT, CalibrationProfiles.forModel("Pixel"));
+        assertSame(CalibrationProfile.DEFAULT, CalibrationProfiles.forModel(null));
+    }
+
+    @Test
+    public void encodesProfile() {
+        CalibrationProfile profile = new CalibrationProfile("Galaxy S5, SM-G900", 0.42, 6.9, 0.54);
+        CalibrationProfile decoded = CalibrationProfile.decode(profile.encode());
+        assertEquals(profile.getName(), decoded.getName());
+        assertEquals(0.42, decoded.getCoefficient(), 0);
+        assertEquals(6.9, decoded.getExponent(), 0);
+        assertEquals(0.54, decoded.getIntercept(), 0);
+        assertFalse(profile == decoded);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMalformedProfile() {
+        CalibrationProfile.decode("0.5,eight,0.1,name");
+    }
+
+    /**
+     * The RSSI to tx power ratio the curve turns into the distance.
+     */
+    private static double ratioFor(CalibrationProfile profile, double distance) {
+        return Math.pow((distance - profile.getIntercept()) / profile.getCoefficient(), 1 / profile.getExponent());
+    }
+}
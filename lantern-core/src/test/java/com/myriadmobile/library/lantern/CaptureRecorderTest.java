@@ -0,0 +1,172 @@
+package com.myriadmobile.library.lantern;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CaptureRecorderTest {
+
+    /**
+     * A record of a 62 byte advertisement.
+     */
+    private static final int RECORD_SIZE = CaptureFormat.RECORD_HEADER_SIZE + 62;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsBackRotatedFiles() throws Exception {
+        File directory = folder.newFolder();
+        // Three records to a buffer, two buffers to a file.
+        int bufferSize = RECORD_SIZE * 3;
+        CaptureRecorder recorder = new CaptureRecorder(directory, bufferSize,
+                CaptureFormat.FILE_HEADER_SIZE + bufferSize * 2, 100);
+        for (int i = 0; i < 20; i++) {
+            recordWaiting(recorder, i, i % 2 == 0 ? "00:11:22:aa:bb:cc" : null, Packets.iBeacon(1, i));
+        }
+        recorder.close();
+
+        File[] files = CaptureReader.listCaptureFiles(directory);
+        assertTrue(files.length > 1);
+        List<CaptureRecord> records = readAll(files);
+        assertEquals(20, records.size());
+        for (int i = 0; i < 20; i++) {
+            CaptureRecord record = records.get(i);
+            assertEquals(i, record.timestampNanos);
+            assertEquals(-60 - i, record.rssi);
+            assertEquals(i % 2 == 0 ? "00:11:22:AA:BB:CC" : null, record.address);
+            assertArrayEquals(Packets.iBeacon(1, i), record.scanRecord);
+        }
+        assertTrue(CaptureReader.isCaptureFile(files[0]));
+        assertFalse(recorder.record(20, -60, null, Packets.iBeacon(1, 20)));
+    }
+
+    @Test
+    public void deletesTheOldestFiles() throws Exception {
+        File directory = folder.newFolder();
+        int bufferSize = RECORD_SIZE;
+        CaptureRecorder recorder = new CaptureRecorder(directory, bufferSize,
+                CaptureFormat.FILE_HEADER_SIZE + bufferSize, 2);
+        for (int i = 0; i < 10; i++) {
+            recordWaiting(recorder, i, null, Packets.iBeacon(1, i));
+        }
+        recorder.close();
+
+        File[] files = CaptureReader.listCaptureFiles(directory);
+        assertEquals(2, files.length);
+        List<CaptureRecord> records = readAll(files);
+        assertEquals(2, records.size());
+        assertEquals(8, records.get(0).timestampNanos);
+        assertEquals(9, records.get(1).timestampNanos);
+    }
+
+    @Test
+    public void dropsRecordsWhenBothBuffersAreFull() throws Exception {
+        File directory = folder.newFolder();
+        CaptureRecorder recorder = new CaptureRecorder(directory, RECORD_SIZE, 64 * 1024 * 1024, 1);
+        // Far more than the writer can take one record per write.
+        int count = 100000;
+        byte[] scanRecord = Packets.iBeacon(1, 2);
+        int accepted = 0;
+        for (int i = 0; i < count; i++) {
+            if (recorder.record(i, -60, null, scanRecord)) {
+                accepted++;
+            }
+        }
+        // Doesn't fit in a buffer at all.
+        assertFalse(recorder.record(count, -60, null, new byte[RECORD_SIZE]));
+        recorder.close();
+
+        assertTrue(recorder.getDroppedCount() > 0);
+        assertEquals(accepted, recorder.getRecordCount());
+        assertEquals(count + 1, recorder.getRecordCount() + recorder.getDroppedCount());
+        List<CaptureRecord> records = readAll(CaptureReader.listCaptureFiles(directory));
+        assertEquals(accepted, records.size());
+        for (int i = 1; i < records.size(); i++) {
+            assertTrue(records.get(i).timestampNanos > records.get(i - 1).timestampNanos);
+        }
+        assertNull(recorder.getFailure());
+    }
+
+    @Test
+    public void stopsAtARecordCutShort() throws Exception {
+        File directory = folder.newFolder();
+        CaptureRecorder recorder = new CaptureRecorder(directory);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(recorder.record(i, -60, null, Packets.iBeacon(1, i)));
+        }
+        recorder.close();
+        File file = CaptureReader.listCaptureFiles(directory)[0];
+        assertEquals(CaptureFormat.FILE_HEADER_SIZE + RECORD_SIZE * 3, file.length());
+
+        // Cut inside the last record, then inside its length field.
+        truncate(file, file.length() - 5);
+        assertEquals(2, readAll(file).size());
+        truncate(file, CaptureFormat.FILE_HEADER_SIZE + RECORD_SIZE + 2);
+        assertEquals(1, readAll(file).size());
+        truncate(file, CaptureFormat.FILE_HEADER_SIZE);
+        assertEquals(0, readAll(file).size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsOtherFiles() throws Exception {
+        File file = folder.newFile();
+        truncate(file, 64);
+        assertFalse(CaptureReader.isCaptureFile(file));
+        new CaptureReader(file).hasNext();
+    }
+
+    @Test
+    public void packsAddresses() {
+        long packed = CaptureFormat.addressToLong("00:11:22:aa:bb:CC");
+        assertEquals(0x001122aabbccL, packed);
+        assertEquals("00:11:22:AA:BB:CC", CaptureFormat.longToAddress(packed));
+        assertEquals(-1, CaptureFormat.addressToLong(null));
+        assertEquals(-1, CaptureFormat.addressToLong("00-11-22-aa-bb-cc"));
+        assertEquals(-1, CaptureFormat.addressToLong("00:11:22:aa:bb:cg"));
+    }
+
+    /**
+     * Records, waiting for the writer rather than letting the record be dropped.
+     */
+    private static void recordWaiting(CaptureRecorder recorder, long timestamp, String address, byte[] scanRecord)
+            throws InterruptedException {
+        while (!recorder.record(timestamp, -60 - (int) timestamp, address, scanRecord)) {
+            Thread.sleep(1);
+        }
+    }
+
+    private static List<CaptureRecord> readAll(File... files) throws IOException {
+        List<CaptureRecord> records = new ArrayList<CaptureRecord>();
+        CaptureReader reader = new CaptureReader(files);
+        try {
+            for (CaptureRecord record : reader) {
+                records.add(record);
+            }
+        } finally {
+            reader.close();
+        }
+        return records;
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.setLength(length);
+        } finally {
+            out.close();
+        }
+    }
+}
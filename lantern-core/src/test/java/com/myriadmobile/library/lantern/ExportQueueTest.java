@@ -0,0 +1,283 @@
+package com.myriadmobile.library.lantern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ExportQueueTest {
+
+    private static final long START = 1400000000000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+    private final List<ExportBatch> batches = new ArrayList<ExportBatch>();
+    private final LinkedList<Integer> statuses = new LinkedList<Integer>();
+    private int requests;
+    private ExportUploader uploader;
+    private BeaconTracker tracker;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/events", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = readAll(exchange.getRequestBody());
+                int status;
+                synchronized (ExportQueueTest.this) {
+                    requests++;
+                    status = statuses.isEmpty() ? 204 : statuses.remove();
+                    if (status == 204) {
+                        ExportBatch batch = ExportBatch.decode(body);
+                        assertEquals(exchange.getRequestHeaders().getFirst(HttpExportUploader.EVENT_COUNT_HEADER),
+                                String.valueOf(batch.size()));
+                        batches.add(batch);
+                    }
+                    ExportQueueTest.this.notifyAll();
+                }
+                exchange.sendResponseHeaders(status, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+        uploader = new HttpExportUploader(new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/events"));
+        tracker = new BeaconTracker(60000, new BeaconTrackerTest.RecordingListener());
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void roundTripsBatches() throws IOException {
+        ByteBuffer records = ByteBuffer.allocate(3 * ExportBatch.RECORD_SIZE);
+        ExportBatch.writeRecord(records, BeaconEvent.DETECTED, beacon(Packets.iBeacon(1, 2), -59, START));
+        ExportBatch.writeRecord(records, BeaconEvent.MOVED, beacon(Packets.iBeacon(1, 2), -40, START + 1500));
+        ExportBatch.writeRecord(records, BeaconEvent.DETECTED,
+                beacon(Packets.iBeacon(Packets.OTHER_UUID, 65535, 3, -59), -90, START + 1000));
+        records.flip();
+
+        for (boolean compress : new boolean[]{false, true}) {
+            ExportBatch batch = ExportBatch.decode(ExportBatch.encode(records.duplicate(), compress));
+            assertEquals(3, batch.size());
+            assertEquals(BeaconEvent.MOVED, batch.getType(1));
+            assertEquals(START + 1500, batch.getTime(1));
+            assertEquals(-40, batch.getRssi(1));
+            assertEquals(Beacon.PROXIMITY_IMMEDIATE, batch.getProximity(1));
+            // Times can go backwards between events.
+            assertEquals(START + 1000, batch.getTime(2));
+            assertEquals(65535, batch.getKey(2).getMajor());
+            assertEquals(-90, batch.getRssi(2));
+            assertFalse(batch.getKey(0).equals(batch.getKey(2)));
+        }
+    }
+
+    @Test
+    public void decodesBatchesSmallerThanTheirEventCount() throws IOException {
+        ByteBuffer records = ByteBuffer.allocate(500 * ExportBatch.RECORD_SIZE);
+        for (int i = 0; i < 500; i++) {
+            ExportBatch.writeRecord(records, BeaconEvent.CHANGED, beacon(Packets.iBeacon(1, 2), -59, START + i * 1000));
+        }
+        records.flip();
+        byte[] encoded = ExportBatch.encode(records, true);
+        assertTrue(encoded.length < 500);
+
+        ExportBatch batch = ExportBatch.decode(encoded);
+        assertEquals(500, batch.size());
+        assertEquals(START + 499000, batch.getTime(499));
+        assertEquals(2, batch.getKey(499).getMinor());
+    }
+
+    @Test
+    public void sendsFullBatches() throws Exception {
+        ExportQueue queue = new ExportQueue.Builder(folder.newFolder(), uploader)
+                .withMaxBatchSize(4)
+                .build();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(queue.append(BeaconEvent.DETECTED, beacon(Packets.iBeacon(1, i), -59, START + i)));
+        }
+        awaitBatches(2);
+        assertEquals(4, batches.get(0).size());
+        assertEquals(4, batches.get(1).size());
+        assertEquals(START + 4, batches.get(1).getTime(0));
+
+        // The last two wait for the batch to fill, or for a flush.
+        queue.flush();
+        awaitBatches(3);
+        assertEquals(2, batches.get(2).size());
+        queue.close();
+        assertEquals(10, queue.getUploadedEvents());
+        assertEquals(0, queue.getQueuedBytes());
+    }
+
+    @Test
+    public void sendsBatchesOnceTheyAreOld() throws Exception {
+        ExportQueue queue = new ExportQueue.Builder(folder.newFolder(), uploader)
+                .withMaxBatchAge(100)
+                .build();
+        queue.append(BeaconEvent.DETECTED, beacon(Packets.iBeacon(1, 2), -59, START));
+        awaitBatches(1);
+        assertEquals(1, batches.get(0).size());
+        queue.close();
+    }
+
+    @Test
+    public void retriesInOrderUntilAccepted() throws Exception {
+        synchronized (this) {
+            statuses.add(503);
+            statuses.add(503);
+            statuses.add(500);
+        }
+        ExportQueue queue = new ExportQueue.Builder(folder.newFolder(), uploader)
+                .withMaxBatchSize(2)
+                .withRetryBackoff(10, 40)
+                .build();
+        for (int i = 0; i < 6; i++) {
+            queue.append(BeaconEvent.DETECTED, beacon(Packets.iBeacon(1, i), -59, START + i));
+        }
+        awaitBatches(3);
+        queue.close();
+        assertEquals(3, queue.getFailedUploads());
+        assertEquals(6, requests);
+        for (int i = 0; i < 6; i++) {
+            assertEquals(i, batches.get(i / 2).getKey(i % 2).getMinor());
+        }
+    }
+
+    @Test
+    public void dropsEventsOnceFull() throws Exception {
+        // Nothing gets through, so the queue fills up.
+        synchronized (this) {
+            for (int i = 0; i < 100; i++) {
+                statuses.add(503);
+            }
+        }
+        ExportQueue queue = new ExportQueue.Builder(folder.newFolder(), uploader)
+                .withMaxBatchSize(2)
+                .withMaxQueueBytes(5 * ExportBatch.RECORD_SIZE)
+                .withRetryBackoff(60000, 60000)
+                .build();
+        int accepted = 0;
+        for (int i = 0; i < 8; i++) {
+            if (queue.append(BeaconEvent.DETECTED, beacon(Packets.iBeacon(1, i), -59, START + i))) {
+                accepted++;
+            }
+        }
+        assertEquals(5, accepted);
+        assertEquals(3, queue.getDroppedEvents());
+        assertEquals(5 * ExportBatch.RECORD_SIZE, queue.getQueuedBytes());
+        queue.close();
+    }
+
+    @Test
+    public void dropsRejectedBatches() throws Exception {
+        synchronized (this) {
+            statuses.add(400);
+        }
+        ExportQueue queue = new ExportQueue.Builder(folder.newFolder(), uploader)
+                .withMaxBatchSize(1)
+                .build();
+        queue.append(BeaconEvent.DETECTED, beacon(Packets.iBeacon(1, 1), -59, START));
+        queue.append(BeaconEvent.DETECTED, beacon(Packets.iBeacon(1, 2), -59, START));
+        awaitBatches(1);
+        queue.close();
+        assertEquals(1, queue.getRejectedBatches());
+        assertEquals(2, batches.get(0).getKey(0).getMinor());
+    }
+
+    @Test
+    public void sendsWhatWasLeftAfterACrash() throws Exception {
+        File directory = folder.newFolder();
+        synchronized (this) {
+            for (int i = 0; i < 100; i++) {
+                statuses.add(503);
+            }
+        }
+        ExportQueue queue = new ExportQueue.Builder(directory, uploader)
+                .withRetryBackoff(60000, 60000)
+                .build();
+        for (int i = 0; i < 3; i++) {
+            queue.append(BeaconEvent.DETECTED, beacon(Packets.iBeacon(1, i), -59, START + i));
+        }
+        queue.close();
+
+        // A crash halfway through the last event.
+        File[] segments = directory.listFiles();
+        assertEquals(1, segments.length);
+        RandomAccessFile segment = new RandomAccessFile(segments[0], "rw");
+        segment.setLength(segment.length() - 10);
+        segment.close();
+
+        synchronized (this) {
+            statuses.clear();
+        }
+        queue = new ExportQueue.Builder(directory, uploader).build();
+        assertEquals(2 * ExportBatch.RECORD_SIZE, queue.getQueuedBytes());
+        queue.append(BeaconEvent.EXPIRED, beacon(Packets.iBeacon(1, 0), -59, START + 10));
+        queue.flush();
+        awaitBatches(2);
+        queue.close();
+        assertEquals(2, batches.get(0).size());
+        assertEquals(1, batches.get(0).getKey(1).getMinor());
+        assertEquals(BeaconEvent.EXPIRED, batches.get(1).getType(0));
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    private TrackedBeacon beacon(byte[] scanRecord, int rssi, long time) {
+        tracker.onAdvertisement(scanRecord, rssi, null, time);
+        for (TrackedBeacon beacon : tracker.getBeacons()) {
+            IBeaconFrame frame = new IBeaconFrame();
+            frame.parse(scanRecord);
+            if (beacon.getKey().equals(BeaconKey.of(frame))) {
+                return beacon;
+            }
+        }
+        throw new AssertionError("Not tracked");
+    }
+
+    private synchronized void awaitBatches(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (batches.size() < count) {
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) {
+                throw new AssertionError("Got " + batches.size() + " of " + count + " batches");
+            }
+            wait(wait);
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,56 @@
+package com.myriadmobile.library.lantern;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IBeaconFrameTest {
+
+    @Test
+    public void parsesIBeacon() {
+        IBeaconFrame frame = new IBeaconFrame();
+        assertTrue(frame.parse(Packets.iBeacon(Packets.UUID, 513, 65535, -59)));
+        assertEquals(Packets.UUID, frame.getUuid());
+        assertEquals(513, frame.major);
+        assertEquals(65535, frame.minor);
+        assertEquals(-59, frame.txPower);
+    }
+
+    @Test
+    public void parsesWithoutFlags() {
+        // Some beacons leave out the flags, which moves the payload up.
+        byte[] record = Packets.iBeacon(1, 2);
+        byte[] shifted = new byte[record.length];
+        System.arraycopy(record, 3, shifted, 0, record.length - 3);
+        IBeaconFrame frame = new IBeaconFrame();
+        assertTrue(frame.parse(shifted));
+        assertEquals(1, frame.major);
+        assertEquals(2, frame.minor);
+        assertEquals(Packets.UUID, frame.getUuid());
+    }
+
+    @Test
+    public void rejectsOtherAndShortPackets() {
+        IBeaconFrame frame = new IBeaconFrame();
+        assertFalse(frame.parse(new byte[62]));
+        assertFalse(frame.parse(new byte[3]));
+        assertFalse(frame.parse(null));
+        byte[] record = Packets.iBeacon(1, 2);
+        byte[] truncated = new byte[29];
+        System.arraycopy(record, 0, truncated, 0, truncated.length);
+        assertFalse(frame.parse(truncated));
+    }
+
+    @Test
+    public void uuidRoundTrip() {
+        long[] bits = IBeaconFrame.parseUuid("E2C56DB5DFFB48D2B060D0F5A71096E0");
+        assertEquals(Packets.UUID, IBeaconFrame.formatUuid(bits[0], bits[1]));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMalformedUuid() {
+        IBeaconFrame.parseUuid("e2c56db5-dffb-48d2-b060");
+    }
+}
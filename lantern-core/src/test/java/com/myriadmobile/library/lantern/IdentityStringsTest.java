@@ -0,0 +1,76 @@
+package com.myriadmobile.library.lantern;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class IdentityStringsTest {
+
+    private IdentityStrings strings;
+    private long[] uuid;
+
+    @Before
+    public void setUp() {
+        strings = new IdentityStrings(2);
+        uuid = IBeaconFrame.parseUuid(Packets.UUID);
+    }
+
+    @Test
+    public void sameUuidSameInstance() {
+        String first = strings.uuid(uuid[0], uuid[1]);
+        assertEquals(Packets.UUID, first);
+        assertSame(first, strings.uuid(uuid[0], uuid[1]));
+        assertEquals(1, strings.getHits());
+        assertEquals(1, strings.getMisses());
+    }
+
+    @Test
+    public void keepsFirstAddressInstance() {
+        String address = new String("00:11:22:AA:BB:CC");
+        assertSame(address, strings.address(address));
+        assertSame(address, strings.address(new String("00:11:22:AA:BB:CC")));
+        assertSame(address, strings.address(0x001122aabbccL));
+    }
+
+    @Test
+    public void formatsPackedAddresses() {
+        String address = strings.address(0x001122aabbccL);
+        assertEquals("00:11:22:AA:BB:CC", address);
+        assertSame(address, strings.address("00:11:22:AA:BB:CC"));
+        assertNull(strings.address(-1));
+    }
+
+    @Test
+    public void passesMalformedAddressesThrough() {
+        assertNull(strings.address((String) null));
+        assertSame("not an address", strings.address("not an address"));
+        assertEquals(0, strings.size());
+    }
+
+    @Test
+    public void differentCaseIsNotShared() {
+        String upper = strings.address("00:11:22:AA:BB:CC");
+        String lower = strings.address("00:11:22:aa:bb:cc");
+        assertEquals("00:11:22:aa:bb:cc", lower);
+        assertNotSame(upper, lower);
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        String first = strings.uuid(1, 1);
+        strings.uuid(2, 2);
+        assertSame(first, strings.uuid(1, 1));
+        strings.uuid(3, 3);
+        assertEquals(2, strings.size());
+
+        // 2 was the least recently used, so it was the one forgotten.
+        assertSame(first, strings.uuid(1, 1));
+        long misses = strings.getMisses();
+        strings.uuid(2, 2);
+        assertEquals(misses + 1, strings.getMisses());
+    }
+}
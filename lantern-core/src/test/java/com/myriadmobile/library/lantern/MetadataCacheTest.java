@@ -0,0 +1,240 @@
+package com.myriadmobile.library.lantern;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MetadataCacheTest {
+
+    private final FakeLoader loader = new FakeLoader();
+    private MetadataCache<String> cache;
+
+    @After
+    public void tearDown() {
+        if (cache != null) {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void sharesOneLoadBetweenConcurrentRequests() throws Exception {
+        loader.latency = 200;
+        cache = new MetadataCache.Builder<String>(loader).build();
+        final BeaconKey key = key(1, 2);
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<String> results = new ArrayList<String>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        String metadata = cache.load(key);
+                        synchronized (results) {
+                            results.add(metadata);
+                        }
+                    } catch (Exception e) {
+                        throw new AssertionError(e);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(8, results.size());
+        for (String result : results) {
+            assertEquals("1/2", result);
+        }
+        assertEquals(1, loader.loads.get());
+
+        // Cached now.
+        assertEquals("1/2", cache.load(key));
+        assertEquals(1, loader.loads.get());
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void remembersBeaconsWithoutMetadata() throws Exception {
+        cache = new MetadataCache.Builder<String>(loader)
+                .withTtl(60000, 100)
+                .build();
+        // Minors over 1000 have nothing.
+        assertNull(cache.load(key(1, 1001)));
+        assertNull(cache.load(key(1, 1001)));
+        assertTrue(cache.contains(key(1, 1001)));
+        assertEquals(1, loader.loads.get());
+
+        Thread.sleep(150);
+        assertFalse(cache.contains(key(1, 1001)));
+        assertNull(cache.load(key(1, 1001)));
+        assertEquals(2, loader.loads.get());
+    }
+
+    @Test
+    public void expiresAndEvicts() throws Exception {
+        cache = new MetadataCache.Builder<String>(loader)
+                .withMaxEntries(2)
+                .withTtl(100, 100)
+                .build();
+        cache.load(key(1, 1));
+        cache.load(key(1, 2));
+        // Using the first makes the second the least recently used.
+        assertEquals("1/1", cache.getIfPresent(key(1, 1)));
+        cache.load(key(1, 3));
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertNull(cache.getIfPresent(key(1, 2)));
+        assertEquals("1/1", cache.getIfPresent(key(1, 1)));
+
+        Thread.sleep(150);
+        assertNull(cache.getIfPresent(key(1, 1)));
+        assertEquals("1/1", cache.load(key(1, 1)));
+        assertEquals(4, loader.loads.get());
+    }
+
+    @Test
+    public void doesNotKeepFailures() throws Exception {
+        cache = new MetadataCache.Builder<String>(loader).build();
+        loader.failures = 1;
+        try {
+            cache.load(key(1, 2));
+            fail("Expected the load to fail");
+        } catch (IOException expected) {
+        }
+        assertFalse(cache.contains(key(1, 2)));
+        assertEquals("1/2", cache.load(key(1, 2)));
+    }
+
+    @Test
+    public void prefetchesTheRegionWhenEnteringIt() throws Exception {
+        loader.latency = 50;
+        cache = new MetadataCache.Builder<String>(loader).build();
+        BeaconTracker tracker = new BeaconTracker(60000, cache);
+        tracker.onAdvertisement(Packets.iBeacon(1, 2), -59, null, 0);
+        tracker.onAdvertisement(Packets.iBeacon(1, 3), -59, null, 0);
+        // A neighbour that hasn't been seen yet.
+        awaitCached(key(1, 7));
+        assertEquals("1/7", cache.getIfPresent(key(1, 7)));
+        assertEquals(1, loader.regionLoads.get());
+        awaitCached(key(1, 3));
+
+        // Leaving and coming back fetches the region again.
+        tracker.expire(100000);
+        tracker.onAdvertisement(Packets.iBeacon(1, 2), -59, null, 100000);
+        tracker.onAdvertisement(Packets.iBeacon(2, 2), -59, null, 100000);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (loader.regionLoads.get() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(3, loader.regionLoads.get());
+    }
+
+    @Test
+    public void beaconsWaitForTheirRegion() throws Exception {
+        loader.latency = 100;
+        cache = new MetadataCache.Builder<String>(loader).build();
+        BeaconTracker tracker = new BeaconTracker(60000, cache);
+        tracker.onAdvertisement(Packets.iBeacon(1, 2), -59, null, 0);
+        // Not in what the region has, so loaded on its own once it is fetched.
+        tracker.onAdvertisement(Packets.iBeacon(1, 20), -59, null, 0);
+        assertEquals("1/2", cache.load(key(1, 2)));
+        assertEquals("1/20", cache.load(key(1, 20)));
+
+        assertEquals(1, loader.regionLoads.get());
+        assertEquals(1, loader.loads.get());
+        assertEquals(2, cache.getLoads());
+    }
+
+    @Test
+    public void loadsBeaconsOneByOneWhenTheRegionFails() throws Exception {
+        loader.latency = 50;
+        loader.regionFailures = 1;
+        cache = new MetadataCache.Builder<String>(loader).build();
+        BeaconTracker tracker = new BeaconTracker(60000, cache);
+        tracker.onAdvertisement(Packets.iBeacon(1, 2), -59, null, 0);
+        assertEquals("1/2", cache.load(key(1, 2)));
+        assertEquals(1, loader.loads.get());
+        assertFalse(cache.contains(key(1, 3)));
+    }
+
+    private void awaitCached(BeaconKey key) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!cache.contains(key)) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("Never cached " + key);
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static BeaconKey key(int major, int minor) {
+        long[] uuid = IBeaconFrame.parseUuid(Packets.UUID);
+        return new BeaconKey(uuid[0], uuid[1], major, minor);
+    }
+
+    /**
+     * Has "major/minor" for every beacon with a minor up to 1000, after the latency.
+     */
+    private static class FakeLoader implements MetadataCache.RegionLoader<String> {
+
+        final AtomicInteger loads = new AtomicInteger();
+        final AtomicInteger regionLoads = new AtomicInteger();
+        volatile long latency;
+        volatile int failures;
+        volatile int regionFailures;
+
+        @Override
+        public String load(BeaconKey key) throws IOException {
+            loads.incrementAndGet();
+            sleep();
+            if (failures > 0) {
+                failures--;
+                throw new IOException("Backend unreachable");
+            }
+            return key.getMinor() <= 1000 ? key.getMajor() + "/" + key.getMinor() : null;
+        }
+
+        @Override
+        public Map<BeaconKey, String> loadRegion(long uuidMostSignificantBits, long uuidLeastSignificantBits, int major)
+                throws IOException {
+            regionLoads.incrementAndGet();
+            sleep();
+            if (regionFailures > 0) {
+                regionFailures--;
+                throw new IOException("Backend unreachable");
+            }
+            Map<BeaconKey, String> region = new HashMap<BeaconKey, String>();
+            for (int minor = 0; minor < 10; minor++) {
+                region.put(new BeaconKey(uuidMostSignificantBits, uuidLeastSignificantBits, major, minor),
+                        major + "/" + minor);
+            }
+            return region;
+        }
+
+        private void sleep() throws IOException {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.myriadmobile.library.lantern;
+
+/**
+ * Builds advertisements for tests.
+ */
+public final class Packets {
+
+    public static final String UUID = "e2c56db5-dffb-48d2-b060-d0f5a71096e0";
+
+    public static final String OTHER_UUID = "f7826da6-4fa2-4e98-8024-bc5b71e0893e";
+
+    private Packets() {
+
+    }
+
+    /**
+     * An iBeacon advertisement padded to 62 bytes, the way Android delivers it.
+     */
+    public static byte[] iBeacon(String uuid, int major, int minor, int txPower) {
+        byte[] record = new byte[62];
+        byte[] prefix = {0x02, 0x01, 0x06, 0x1a, (byte) 0xff, 0x4c, 0x00, 0x02, 0x15};
+        System.arraycopy(prefix, 0, record, 0, prefix.length);
+        long[] bits = IBeaconFrame.parseUuid(uuid);
+        for (int i = 0; i < 16; i++) {
+            record[9 + i] = (byte) (bits[i / 8] >>> (56 - (i % 8) * 8));
+        }
+        record[25] = (byte) (major >> 8);
+        record[26] = (byte) major;
+        record[27] = (byte) (minor >> 8);
+        record[28] = (byte) minor;
+        record[29] = (byte) txPower;
+        return record;
+    }
+
+    public static byte[] iBeacon(int major, int minor) {
+        return iBeacon(UUID, major, minor, -59);
+    }
+}
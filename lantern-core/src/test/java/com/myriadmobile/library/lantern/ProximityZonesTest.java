@@ -0,0 +1,106 @@
+package com.myriadmobile.library.lantern;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class ProximityZonesTest {
+
+    private static final ProximityZones ZONES = new ProximityZones.Builder()
+            .addZone("Desk", 1.0)
+            .addZone("Room", 4.0)
+            .setOuterZone("Building")
+            .withMargins(0.1, 0.25)
+            .withMinDwell(2000)
+            .build();
+
+    @After
+    public void tearDown() {
+        Distance.setZones(ProximityZones.DEFAULT);
+    }
+
+    @Test
+    public void defaultsMatchTheProximityConstants() {
+        ProximityZones zones = ProximityZones.DEFAULT;
+        assertEquals(Beacon.PROXIMITY_IMMEDIATE, zones.zoneFor(0.2));
+        assertEquals(Beacon.PROXIMITY_NEAR, zones.zoneFor(0.5));
+        assertEquals(Beacon.PROXIMITY_NEAR, zones.zoneFor(3.9));
+        assertEquals(Beacon.PROXIMITY_NEAR, zones.zoneFor(4.0));
+        assertEquals(Beacon.PROXIMITY_FAR, zones.zoneFor(4.01));
+        assertEquals(Beacon.PROXIMITY_UNKNOWN, zones.zoneFor(-1));
+        assertEquals(Beacon.PROXIMITY_UNKNOWN, zones.zoneFor(Double.NaN));
+    }
+
+    @Test
+    public void movesOutPastTheExitMargin() {
+        assertEquals(2, ZONES.next(2, 4.5));
+        assertEquals(2, ZONES.next(2, 4.99));
+        // Right on the margin isn't past it.
+        assertEquals(2, ZONES.next(2, 5.0));
+        assertEquals(3, ZONES.next(2, 5.01));
+        // Far enough to skip a zone.
+        assertEquals(3, ZONES.next(1, 5.01));
+        assertEquals(2, ZONES.next(1, 4.9));
+    }
+
+    @Test
+    public void movesInPastTheEnterMargin() {
+        assertEquals(3, ZONES.next(3, 3.9));
+        assertEquals(3, ZONES.next(3, 3.61));
+        assertEquals(2, ZONES.next(3, 3.59));
+        assertEquals(1, ZONES.next(3, 0.89));
+        assertEquals(2, ZONES.next(3, 0.95));
+    }
+
+    @Test
+    public void staysInsideTheMargins() {
+        for (double distance = 3.7; distance < 5.0; distance += 0.05) {
+            assertEquals(2, ZONES.next(2, distance));
+        }
+        for (double distance = 3.7; distance < 5.0; distance += 0.05) {
+            if (distance >= 4.0) {
+                assertEquals(3, ZONES.next(3, distance));
+            }
+        }
+    }
+
+    @Test
+    public void unknownHasNoHysteresis() {
+        assertEquals(3, ZONES.next(ProximityZones.UNKNOWN, 4.5));
+        assertEquals(ProximityZones.UNKNOWN, ZONES.next(2, -1));
+    }
+
+    @Test
+    public void namesTheConfiguredZones() {
+        Distance.setZones(ZONES);
+        assertEquals(3, ZONES.size());
+        assertEquals("Desk", Distance.proximityToString(1));
+        assertEquals("Room", Distance.proximityToString(2));
+        assertEquals("Building", Distance.proximityToString(3));
+        assertEquals("Unknown", Distance.proximityToString(0));
+        assertEquals("Unknown", Distance.proximityToString(4));
+        assertEquals(3, Distance.toProximity(10));
+    }
+
+    @Test
+    public void encodesAndDecodes() {
+        ProximityZones decoded = ProximityZones.decode(ZONES.encode());
+        assertEquals(ZONES.encode(), decoded.encode());
+        assertEquals(3, decoded.size());
+        assertEquals("Room", decoded.getName(2));
+        assertEquals(4.0, decoded.getUpperBound(2), 0);
+        assertEquals(0.25, decoded.getExitMargin(), 0);
+        assertEquals(2000, decoded.getMinDwell());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsBoundsOutOfOrder() {
+        new ProximityZones.Builder().addZone("a", 2).addZone("b", 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsGarbage() {
+        ProximityZones.decode("0.1,0.1|Near");
+    }
+}
@@ -0,0 +1,167 @@
+package com.myriadmobile.library.lantern;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ReplayScanSourceTest {
+
+    private static final long MILLI = 1000000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final RecordingListener listener = new RecordingListener();
+
+    @Test(timeout = 10000)
+    public void replaysTheFileOnce() throws Exception {
+        File file = write("# two beacons",
+                "",
+                "1000 -67 00:11:22:33:44:55 " + hex(Packets.iBeacon(1, 1)),
+                "  2000 -70 - " + hex(Packets.iBeacon(1, 2)) + "  ");
+        ReplayScanSource source = start(file, ReplayScanSource.SPEED_UNLIMITED);
+        source.awaitFinished();
+
+        assertTrue(source.isFinished());
+        assertEquals(Arrays.asList(1000L, 2000L), listener.timestamps);
+        assertEquals(Arrays.asList(-67, -70), listener.rssis);
+        assertEquals("00:11:22:33:44:55", listener.addresses.get(0));
+        assertNull(listener.addresses.get(1));
+        assertArrayEquals(Packets.iBeacon(1, 2), listener.records.get(1));
+        // Nothing is left to replay.
+        assertFalse(source.startScan());
+        assertEquals(0, listener.failures);
+    }
+
+    @Test(timeout = 10000)
+    public void spacesAdvertisementsOutBySpeed() throws Exception {
+        File file = write("0 -67 - " + hex(Packets.iBeacon(1, 1)),
+                200 * MILLI + " -67 - " + hex(Packets.iBeacon(1, 1)),
+                400 * MILLI + " -67 - " + hex(Packets.iBeacon(1, 1)));
+        ReplayScanSource source = start(file, 4);
+        source.awaitFinished();
+
+        assertEquals(3, listener.received.size());
+        long elapsed = listener.received.get(2) - listener.received.get(0);
+        // 400ms recorded, replayed 4 times faster.
+        assertTrue("Took " + elapsed / MILLI + "ms", elapsed >= 100 * MILLI);
+        assertTrue("Took " + elapsed / MILLI + "ms", elapsed < 400 * MILLI);
+    }
+
+    @Test(timeout = 10000)
+    public void loopsUntilStopped() throws Exception {
+        File file = write("1000 -67 - " + hex(Packets.iBeacon(1, 1)),
+                "# in between",
+                "2000 -67 - " + hex(Packets.iBeacon(1, 2)));
+        listener.expected = new CountDownLatch(5);
+        ReplayScanSource source = new ReplayScanSource(file, ReplayScanSource.SPEED_UNLIMITED);
+        source.setLooping(true);
+        source.setListener(listener);
+        source.startScan();
+        assertTrue(listener.expected.await(5, TimeUnit.SECONDS));
+        source.stopScan();
+
+        assertFalse(source.isFinished());
+        List<Long> timestamps = new ArrayList<Long>(listener.timestamps);
+        assertEquals(Arrays.asList(1000L, 2000L, 1000L, 2000L, 1000L), timestamps.subList(0, 5));
+    }
+
+    @Test(timeout = 10000)
+    public void loopingFileWithoutAdvertisementsFinishes() throws Exception {
+        File file = write("# nothing recorded", "");
+        ReplayScanSource source = new ReplayScanSource(file, ReplayScanSource.SPEED_UNLIMITED);
+        source.setLooping(true);
+        source.setListener(listener);
+        assertTrue(source.startScan());
+        source.awaitFinished();
+
+        assertTrue(source.isFinished());
+        assertTrue(listener.timestamps.isEmpty());
+        assertFalse(source.startScan());
+    }
+
+    @Test(timeout = 10000)
+    public void malformedLineFailsTheScan() throws Exception {
+        File file = write("1000 -67 - " + hex(Packets.iBeacon(1, 1)), "2000 -67 " + hex(Packets.iBeacon(1, 2)));
+        ReplayScanSource source = start(file, ReplayScanSource.SPEED_UNLIMITED);
+        source.awaitFinished();
+
+        assertTrue(source.isFinished());
+        assertEquals(1, listener.timestamps.size());
+        assertEquals(1, listener.failures);
+    }
+
+    private ReplayScanSource start(File file, double speed) {
+        ReplayScanSource source = new ReplayScanSource(file, speed);
+        source.setListener(listener);
+        assertTrue(source.startScan());
+        return source;
+    }
+
+    private File write(String... lines) throws IOException {
+        File file = folder.newFile();
+        StringBuilder text = new StringBuilder();
+        for (String line : lines) {
+            text.append(line).append('\n');
+        }
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(text.toString().getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b & 0xff));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Collects what the replay thread delivers.
+     */
+    private static class RecordingListener implements ScanSource.Listener {
+
+        final List<byte[]> records = new ArrayList<byte[]>();
+        final List<Integer> rssis = new ArrayList<Integer>();
+        final List<String> addresses = new ArrayList<String>();
+        final List<Long> timestamps = new ArrayList<Long>();
+        final List<Long> received = new ArrayList<Long>();
+        volatile int failures;
+        volatile CountDownLatch expected = new CountDownLatch(0);
+
+        @Override
+        public synchronized void onAdvertisement(byte[] scanRecord, int rssi, String address, long timestampNanos) {
+            received.add(System.nanoTime());
+            records.add(scanRecord);
+            rssis.add(rssi);
+            addresses.add(address);
+            timestamps.add(timestampNanos);
+            expected.countDown();
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            failures++;
+        }
+    }
+}
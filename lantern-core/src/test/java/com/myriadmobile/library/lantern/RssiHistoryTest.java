@@ -0,0 +1,105 @@
+package com.myriadmobile.library.lantern;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RssiHistoryTest {
+
+    private RssiHistory history;
+    private BeaconTracker tracker;
+
+    @Before
+    public void setUp() {
+        history = new RssiHistory(2, 4);
+        tracker = new BeaconTracker(60000, new BeaconTrackerTest.RecordingListener());
+        tracker.setRssiHistory(history);
+    }
+
+    @Test
+    public void keepsTheLatestSamples() {
+        BeaconKey key = advertise(2, -60, 1000);
+        advertise(2, -61, 2000);
+        advertise(2, -62, 3000);
+        advertise(2, -63, 4000);
+        advertise(2, -64, 5000);
+
+        assertEquals(4, history.size(key));
+        final List<Integer> rssis = new ArrayList<Integer>();
+        assertEquals(4, history.forEach(key, Long.MIN_VALUE, Long.MAX_VALUE, new RssiHistory.SampleVisitor() {
+            @Override
+            public void onSample(long time, int rssi) {
+                rssis.add(rssi);
+            }
+        }));
+        assertEquals(-61, (int) rssis.get(0));
+        assertEquals(-64, (int) rssis.get(3));
+    }
+
+    @Test
+    public void queriesRangesOfTime() {
+        BeaconKey key = advertise(2, -70, 1000);
+        advertise(2, -50, 2000);
+        advertise(2, -60, 3000);
+        advertise(2, -80, 4000);
+
+        // The last two seconds.
+        assertEquals(3, history.count(key, 4000 - 2000, 4000));
+        assertEquals(0, history.count(key, 4001, 5000));
+        assertEquals(0, history.count(new BeaconKey(0, 0, 1, 2), 0, 5000));
+
+        RssiHistory.Summary summary = new RssiHistory.Summary();
+        assertTrue(history.summarize(key, 2000, 3500, summary));
+        assertEquals(2, summary.getCount());
+        assertEquals(-60, summary.getMin());
+        assertEquals(-50, summary.getMax());
+        assertEquals(-55, summary.getMean(), 0);
+        assertFalse(history.summarize(key, 0, 999, summary));
+
+        assertEquals(-80, history.percentile(key, 0, 5000, 0));
+        assertEquals(-70, history.percentile(key, 0, 5000, 50));
+        assertEquals(-60, history.percentile(key, 0, 5000, 75));
+        assertEquals(-50, history.percentile(key, 0, 5000, 100));
+        assertEquals(Integer.MIN_VALUE, history.percentile(key, 5000, 6000, 50));
+    }
+
+    @Test
+    public void keepsLateSamplesInOrder() {
+        BeaconKey key = advertise(2, -70, 2000);
+        advertise(2, -71, 1500);
+        assertEquals(2, history.count(key, 2000, 2000));
+    }
+
+    @Test
+    public void reusesTheRingOfTheBeaconHeardFromLongestAgo() {
+        BeaconKey first = advertise(1, -70, 1000);
+        BeaconKey second = advertise(2, -70, 2000);
+        advertise(1, -70, 3000);
+        BeaconKey third = advertise(3, -70, 4000);
+
+        assertEquals(2, history.size(first));
+        assertEquals(0, history.size(second));
+        assertEquals(1, history.size(third));
+    }
+
+    @Test
+    public void outlivesExpiration() {
+        BeaconKey key = advertise(2, -70, 1000);
+        tracker.expire(100000);
+        assertEquals(0, tracker.size());
+        assertEquals(1, history.size(key));
+
+        advertise(2, -75, 200000);
+        assertEquals(2, history.size(key));
+    }
+
+    private BeaconKey advertise(int minor, int rssi, long now) {
+        return tracker.onAdvertisement(Packets.iBeacon(1, minor), rssi, null, now).getKey();
+    }
+}
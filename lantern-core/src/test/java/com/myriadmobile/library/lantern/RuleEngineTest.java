@@ -0,0 +1,171 @@
+package com.myriadmobile.library.lantern;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+
+public class RuleEngineTest {
+
+    private static final long START = 10 * 60 * 60 * 1000L;
+
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    private final List<String> fired = new ArrayList<String>();
+    private RuleEngine engine;
+    private BeaconTracker tracker;
+
+    private void start(BeaconRule... rules) {
+        engine = new RuleEngine(Arrays.asList(rules), ProximityZones.DEFAULT, UTC, new RuleEngine.Listener() {
+            @Override
+            public void onRuleFired(BeaconRule rule, TrackedBeacon beacon, long time) {
+                fired.add(rule.getId() + " " + beacon.getKey().getMinor() + " " + (time - START));
+            }
+        });
+        tracker = new BeaconTracker(60000, engine);
+    }
+
+    @Test
+    public void firesOncePerStayAndCooldown() {
+        start(new BeaconRule.Builder("close", BeaconRule.ENTER)
+                .withMinor(12)
+                .withZone(Beacon.PROXIMITY_IMMEDIATE)
+                .withCooldown(10 * 60 * 1000)
+                .build());
+        tracker.onAdvertisement(Packets.iBeacon(1, 12), -59, null, START);
+        tracker.onAdvertisement(Packets.iBeacon(1, 12), -40, null, START + 1000);
+        tracker.onAdvertisement(Packets.iBeacon(1, 12), -41, null, START + 2000);
+        // Another beacon in the zone fires too.
+        tracker.onAdvertisement(Packets.iBeacon(2, 12), -40, null, START + 2000);
+        // Not the rule's minor.
+        tracker.onAdvertisement(Packets.iBeacon(1, 13), -40, null, START + 2000);
+        assertEquals(Arrays.asList("close 12 1000", "close 12 2000"), fired);
+
+        // Out and back in, inside the cooldown.
+        tracker.onAdvertisement(Packets.iBeacon(1, 12), -59, null, START + 3000);
+        tracker.onAdvertisement(Packets.iBeacon(1, 12), -40, null, START + 4000);
+        assertEquals(2, fired.size());
+        tracker.onAdvertisement(Packets.iBeacon(1, 12), -59, null, START + 5000);
+        tracker.onAdvertisement(Packets.iBeacon(1, 12), -40, null, START + 601000);
+        assertEquals("close 12 601000", fired.get(2));
+    }
+
+    @Test
+    public void firesOnceTheDwellTimeHasPassed() {
+        start(new BeaconRule.Builder("lingered", BeaconRule.ENTER)
+                .withUuid(Packets.UUID)
+                .withZone(Beacon.PROXIMITY_NEAR)
+                .withDwell(30000)
+                .build());
+        tracker.onAdvertisement(Packets.iBeacon(1, 2), -59, null, START);
+        // Moving closer is still in the zone.
+        tracker.onAdvertisement(Packets.iBeacon(1, 2), -40, null, START + 10000);
+        engine.check(START + 29999);
+        assertEquals(0, fired.size());
+        // The beacon hasn't changed, so only a check notices.
+        engine.check(START + 30000);
+        engine.check(START + 40000);
+        assertEquals(Arrays.asList("lingered 2 30000"), fired);
+    }
+
+    @Test
+    public void firesOnExitInsideTheTimeWindow() {
+        start(new BeaconRule.Builder("left", BeaconRule.EXIT)
+                .withUuid(Packets.UUID)
+                .withMajor(1)
+                .withTimeWindow(9 * 60, 10 * 60 + 1)
+                .build(),
+                new BeaconRule.Builder("night", BeaconRule.EXIT)
+                        .withTimeWindow(22 * 60, 6 * 60)
+                        .build());
+        tracker.onAdvertisement(Packets.iBeacon(1, 2), -59, null, START);
+        tracker.onAdvertisement(Packets.iBeacon(Packets.OTHER_UUID, 1, 3, -59), -59, null, START);
+        tracker.expire(START + 100000);
+        assertEquals(Arrays.asList("left 2 0"), fired);
+
+        // 23:00, past midnight's window start.
+        long night = START + 13 * 60 * 60 * 1000L;
+        tracker.onAdvertisement(Packets.iBeacon(1, 2), -59, null, night);
+        tracker.expire(night + 100000);
+        assertEquals("night 2 " + (night - START), fired.get(1));
+    }
+
+    @Test
+    public void forgetsBeaconsThatLeftOnceTheCooldownIsOver() {
+        start(new BeaconRule.Builder("in", BeaconRule.ENTER)
+                        .withCooldown(60000)
+                        .build(),
+                new BeaconRule.Builder("out", BeaconRule.EXIT).build(),
+                new BeaconRule.Builder("out later", BeaconRule.EXIT)
+                        .withCooldown(60000)
+                        .build());
+        for (int minor = 0; minor < 100; minor++) {
+            tracker.onAdvertisement(Packets.iBeacon(1, minor), -59, null, START + minor * 1000);
+        }
+        tracker.expire(START + 160000);
+        assertEquals(300, fired.size());
+        // Beacons leave when they were last seen, so both rules with a cooldown remember them.
+        assertEquals(200, engine.countFirings());
+        engine.check(START + 129999);
+        assertEquals(30 * 2, engine.countFirings());
+
+        // One comes back and fires again, so it is remembered while it stays.
+        tracker.onAdvertisement(Packets.iBeacon(1, 99), -59, null, START + 170000);
+        engine.check(START + 220000);
+        assertEquals(2, engine.countFirings());
+        tracker.expire(START + 500000);
+        assertEquals(2, engine.countFirings());
+        engine.check(START + 229999);
+        assertEquals(2, engine.countFirings());
+        engine.check(START + 230000);
+        assertEquals(0, engine.countFirings());
+        assertEquals(303, fired.size());
+    }
+
+    @Test
+    public void onlyEvaluatesTheRulesForTheBeacon() {
+        List<BeaconRule> rules = new ArrayList<BeaconRule>();
+        for (int i = 0; i < 10000; i++) {
+            rules.add(new BeaconRule.Builder("rule" + i, i % 2 == 0 ? BeaconRule.ENTER : BeaconRule.EXIT)
+                    .withUuid(i % 3 == 0 ? Packets.OTHER_UUID : Packets.UUID)
+                    .withMajor(i % 5)
+                    .withMinor(i)
+                    .build());
+        }
+        rules.add(new BeaconRule.Builder("anywhere", BeaconRule.ENTER).build());
+        rules.add(new BeaconRule.Builder("major", BeaconRule.EXIT).withMajor(4).build());
+        start(rules.toArray(new BeaconRule[rules.size()]));
+
+        long[] uuid = IBeaconFrame.parseUuid(Packets.UUID);
+        assertEquals(2, engine.countCandidates(new BeaconKey(uuid[0], uuid[1], 4, 9)));
+        assertEquals(3, engine.countCandidates(new BeaconKey(uuid[0], uuid[1], 4, 4)));
+        assertEquals(1, engine.countCandidates(new BeaconKey(uuid[0], uuid[1], 1, 4)));
+
+        tracker.onAdvertisement(Packets.iBeacon(4, 4), -59, null, START);
+        tracker.expire(START + 100000);
+        assertEquals(Arrays.asList("anywhere 4 0", "rule4 4 0", "major 4 0"), fired);
+    }
+
+    @Test
+    public void encodesAndDecodes() {
+        BeaconRule rule = new BeaconRule.Builder("id, with a comma", BeaconRule.ENTER)
+                .withUuid(Packets.UUID)
+                .withMinor(7)
+                .withZone(2)
+                .withDwell(5000)
+                .withTimeWindow(60, 120)
+                .withCooldown(60000)
+                .build();
+        BeaconRule decoded = BeaconRule.decode(rule.encode());
+        assertEquals(rule, decoded);
+        assertEquals("id, with a comma", decoded.getId());
+        assertEquals(Packets.UUID, decoded.getUuid());
+        assertEquals(BeaconRule.ANY, decoded.getMajor());
+        BeaconRule any = new BeaconRule.Builder("any", BeaconRule.EXIT).build();
+        assertEquals(any, BeaconRule.decode(any.encode()));
+    }
+}
@@ -0,0 +1,258 @@
+package com.myriadmobile.library.lantern;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives the scan controller with a fake scanner and a manually advanced clock.
+ */
+public class ScanControllerTest {
+
+    private FakeScanner scanner;
+    private FakeScheduler scheduler;
+    private RecordingCallback callback;
+    private ScanController controller;
+
+    @Before
+    public void setUp() {
+        scanner = new FakeScanner();
+        scheduler = new FakeScheduler();
+        callback = new RecordingCallback();
+        controller = new ScanController(scanner, scheduler, callback, 5000, 20000, 5000);
+    }
+
+    @Test
+    public void dutyCycle() {
+        controller.start();
+        assertEquals(ScanController.STATE_SCANNING, controller.getState());
+        assertTrue(scanner.scanning);
+
+        scheduler.advance(5000);
+        assertEquals(ScanController.STATE_WAITING, controller.getState());
+        assertFalse(scanner.scanning);
+
+        scheduler.advance(19999);
+        assertEquals(ScanController.STATE_WAITING, controller.getState());
+        scheduler.advance(1);
+        assertEquals(ScanController.STATE_SCANNING, controller.getState());
+        assertEquals(2, scanner.starts);
+    }
+
+    @Test
+    public void fastScanIntervalWithActiveBeacons() {
+        callback.activeBeacons = true;
+        controller.start();
+        scheduler.advance(5000 + 5000);
+        assertEquals(ScanController.STATE_SCANNING, controller.getState());
+    }
+
+    @Test
+    public void slowerDutyCycleReschedulesWait() {
+        controller.start();
+        scheduler.advance(5000);
+        controller.setDutyCycle(2000, 60000, 15000);
+        scheduler.advance(59999);
+        assertEquals(ScanController.STATE_WAITING, controller.getState());
+        scheduler.advance(1);
+        assertEquals(ScanController.STATE_SCANNING, controller.getState());
+        scheduler.advance(2000);
+        assertEquals(ScanController.STATE_WAITING, controller.getState());
+    }
+
+    @Test
+    public void fasterDutyCycleScansRightAway() {
+        controller = new ScanController(scanner, scheduler, callback, 2000, 300000, 60000);
+        controller.start();
+        scheduler.advance(2000);
+        assertEquals(ScanController.STATE_WAITING, controller.getState());
+        controller.setDutyCycle(5000, 20000, 5000);
+        assertEquals(ScanController.STATE_SCANNING, controller.getState());
+        assertEquals(2, scanner.starts);
+    }
+
+    @Test
+    public void alreadyStartedRetriesImmediately() {
+        controller.start();
+        controller.onScanFailed(ScanController.SCAN_FAILED_ALREADY_STARTED);
+        assertEquals(ScanController.STATE_RECOVERING, controller.getState());
+        assertFalse(scanner.scanning);
+
+        scheduler.advance(0);
+        assertEquals(ScanController.STATE_SCANNING, controller.getState());
+        assertTrue(scanner.scanning);
+    }
+
+    @Test
+    public void registrationFailureBacksOff() {
+        controller.setBackoff(1000, 4000);
+        controller.start();
+
+        controller.onScanFailed(ScanController.SCAN_FAILED_APPLICATION_REGISTRATION_FAILED);
+        scheduler.advance(999);
+        assertEquals(ScanController.STATE_RECOVERING, controller.getState());
+        scheduler.advance(1);
+        assertEquals(ScanController.STATE_SCANNING, controller.getState());
+
+        controller.onScanFailed(ScanController.SCAN_FAILED_APPLICATION_REGISTRATION_FAILED);
+        scheduler.advance(1999);
+        assertEquals(ScanController.STATE_RECOVERING, controller.getState());
+        scheduler.advance(1);
+        assertEquals(ScanController.STATE_SCANNING, controller.getState());
+
+        controller.onScanFailed(ScanController.SCAN_FAILED_INTERNAL_ERROR);
+        controller.onScanFailed(ScanController.SCAN_FAILED_INTERNAL_ERROR);
+        assertEquals(4000, controller.getBackoffDelay());
+    }
+
+    @Test
+    public void cleanWindowResetsBackoff() {
+        controller.start();
+        controller.onScanFailed(ScanController.SCAN_FAILED_INTERNAL_ERROR);
+        scheduler.advance(ScanController.DEFAULT_INITIAL_BACKOFF);
+        assertEquals(1, controller.getConsecutiveFailures());
+
+        scheduler.advance(5000);
+        assertEquals(ScanController.STATE_WAITING, controller.getState());
+        assertEquals(0, controller.getConsecutiveFailures());
+    }
+
+    @Test
+    public void rejectedStartIsRetried() {
+        scanner.rejectStarts = 2;
+        controller.start();
+        assertEquals(ScanController.STATE_RECOVERING, controller.getState());
+
+        scheduler.advance(ScanController.DEFAULT_INITIAL_BACKOFF);
+        assertEquals(ScanController.STATE_RECOVERING, controller.getState());
+
+        scheduler.advance(ScanController.DEFAULT_INITIAL_BACKOFF * 2);
+        assertEquals(ScanController.STATE_SCANNING, controller.getState());
+    }
+
+    @Test
+    public void bluetoothOffAndOn() {
+        controller.start();
+        controller.onBluetoothStateChanged(false);
+        assertEquals(ScanController.STATE_BLUETOOTH_OFF, controller.getState());
+        assertFalse(scanner.scanning);
+
+        // Nothing happens while bluetooth is off, and failures are ignored.
+        controller.onScanFailed(ScanController.SCAN_FAILED_INTERNAL_ERROR);
+        scheduler.advance(120000);
+        assertEquals(ScanController.STATE_BLUETOOTH_OFF, controller.getState());
+        assertEquals(1, scanner.starts);
+
+        controller.onBluetoothStateChanged(true);
+        assertEquals(ScanController.STATE_SCANNING, controller.getState());
+        assertTrue(scanner.scanning);
+    }
+
+    @Test
+    public void startWithBluetoothOff() {
+        controller.onBluetoothStateChanged(false);
+        controller.start();
+        assertEquals(ScanController.STATE_BLUETOOTH_OFF, controller.getState());
+        assertEquals(0, scanner.starts);
+        controller.onBluetoothStateChanged(true);
+        assertEquals(ScanController.STATE_SCANNING, controller.getState());
+    }
+
+    @Test
+    public void stop() {
+        controller.start();
+        controller.stop();
+        assertEquals(ScanController.STATE_STOPPED, controller.getState());
+        assertFalse(scanner.scanning);
+        scheduler.advance(60000);
+        assertEquals(1, scanner.starts);
+        assertEquals(ScanController.STATE_STOPPED, callback.states.get(callback.states.size() - 1).intValue());
+    }
+
+    private static class FakeScanner implements ScanSource {
+        boolean scanning;
+        int starts;
+        int rejectStarts;
+
+        @Override
+        public void setListener(Listener listener) {
+        }
+
+        @Override
+        public boolean startScan() {
+            if (rejectStarts > 0) {
+                rejectStarts--;
+                return false;
+            }
+            starts++;
+            scanning = true;
+            return true;
+        }
+
+        @Override
+        public void stopScan() {
+            scanning = false;
+        }
+    }
+
+    private static class FakeScheduler implements ScanController.Scheduler {
+        private long now;
+        private final List<Runnable> runnables = new ArrayList<Runnable>();
+        private final List<Long> times = new ArrayList<Long>();
+
+        @Override
+        public void postDelayed(Runnable runnable, long delayMillis) {
+            runnables.add(runnable);
+            times.add(now + delayMillis);
+        }
+
+        @Override
+        public void removeCallbacks(Runnable runnable) {
+            for (int i = runnables.size() - 1; i >= 0; i--) {
+                if (runnables.get(i) == runnable) {
+                    runnables.remove(i);
+                    times.remove(i);
+                }
+            }
+        }
+
+        void advance(long millis) {
+            long target = now + millis;
+            while (true) {
+                int next = -1;
+                for (int i = 0; i < times.size(); i++) {
+                    if (times.get(i) <= target && (next == -1 || times.get(i) < times.get(next))) {
+                        next = i;
+                    }
+                }
+                if (next == -1) {
+                    break;
+                }
+                now = times.remove(next);
+                runnables.remove(next).run();
+            }
+            now = target;
+        }
+    }
+
+    private static class RecordingCallback implements ScanController.Callback {
+        boolean activeBeacons;
+        final List<Integer> states = new ArrayList<Integer>();
+
+        @Override
+        public void onStateChanged(int state) {
+            states.add(state);
+        }
+
+        @Override
+        public boolean hasActiveBeacons() {
+            return activeBeacons;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.myriadmobile.library.lantern;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ScanMultiplexerTest {
+
+    private final List<ScanProfile> changes = new ArrayList<ScanProfile>();
+    private ScanMultiplexer multiplexer;
+
+    @Before
+    public void setUp() {
+        multiplexer = new ScanMultiplexer();
+        multiplexer.setListener(new ScanMultiplexer.Listener() {
+            @Override
+            public void onProfilesChanged(ScanMultiplexer multiplexer) {
+                changes.add(multiplexer.getProfile(ScanProfileSelector.FOREGROUND));
+            }
+        });
+    }
+
+    @Test
+    public void mergesTheTightestRequirements() {
+        ScanProfile first = new ScanProfile.Builder("first")
+                .withScanMode(ScanProfile.SCAN_MODE_BALANCED)
+                .withDutyCycle(2000, 30000, 10000)
+                .withReportDelay(5000)
+                .withUuidFilter(Packets.UUID)
+                .build();
+        ScanProfile second = new ScanProfile.Builder("second")
+                .withScanMode(ScanProfile.SCAN_MODE_LOW_POWER)
+                .withDutyCycle(5000, 60000, 2000)
+                .withReportDelay(1000)
+                .withUuidFilter(Packets.OTHER_UUID, Packets.UUID.toUpperCase())
+                .build();
+
+        ScanProfile merged = ScanMultiplexer.merge(Arrays.asList(first, second));
+        assertEquals("first+second", merged.getName());
+        assertEquals(ScanProfile.SCAN_MODE_BALANCED, merged.getScanMode());
+        assertEquals(5000, merged.getScanTime());
+        assertEquals(30000, merged.getScanInterval());
+        assertEquals(2000, merged.getFastScanInterval());
+        assertEquals(1000, merged.getReportDelay());
+        assertArrayEquals(new String[]{Packets.UUID, Packets.OTHER_UUID}, merged.getUuidFilter());
+
+        ScanProfile everything = ScanMultiplexer.merge(Arrays.asList(first, ScanProfile.FOREGROUND));
+        assertNull(everything.getUuidFilter());
+        assertSame(first, ScanMultiplexer.merge(Arrays.asList(first)));
+    }
+
+    @Test
+    public void tellsTheListenerWhenRequirementsChange() {
+        ScanMultiplexer.Client first = register(ScanProfile.FOREGROUND, null);
+        assertEquals(Arrays.asList(ScanProfile.FOREGROUND), changes);
+
+        // The same requirements again change nothing.
+        ScanMultiplexer.Client second = register(ScanProfile.FOREGROUND, null);
+        assertEquals(1, changes.size());
+
+        ScanProfile fast = ScanProfile.FOREGROUND.buildUpon().withDutyCycle(5000, 1000, 1000).build();
+        ScanMultiplexer.Client third = register(fast, null);
+        assertEquals(2, changes.size());
+        assertEquals(1000, changes.get(1).getScanInterval());
+
+        assertTrue(multiplexer.unregister(third));
+        assertEquals(3, changes.size());
+        assertEquals(20000, changes.get(2).getScanInterval());
+        assertFalse(multiplexer.unregister(third));
+
+        // The last client leaving stops the scanner instead.
+        multiplexer.unregister(second);
+        multiplexer.unregister(first);
+        assertEquals(3, changes.size());
+        assertEquals(0, multiplexer.size());
+        assertNull(multiplexer.getProfile(ScanProfileSelector.FOREGROUND));
+    }
+
+    @Test
+    public void fansOutThroughEachClientsFilter() {
+        BeaconTrackerTest.RecordingListener all = new BeaconTrackerTest.RecordingListener();
+        BeaconTrackerTest.RecordingListener some = new BeaconTrackerTest.RecordingListener();
+        register(ScanProfile.FOREGROUND, all);
+        ScanProfile filtered = ScanProfile.FOREGROUND.buildUpon().withUuidFilter(Packets.OTHER_UUID).build();
+        multiplexer.register(filtered, ScanProfile.BACKGROUND, ScanProfile.IDLE, some);
+
+        BeaconTracker tracker = new BeaconTracker(60000, multiplexer);
+        tracker.onAdvertisement(Packets.iBeacon(1, 2), -70, null, 0);
+        tracker.onAdvertisement(Packets.iBeacon(Packets.OTHER_UUID, 1, 2, -59), -70, null, 0);
+        tracker.onAdvertisement(Packets.iBeacon(Packets.OTHER_UUID, 1, 2, -59), -80, null, 10);
+
+        assertEquals(2, all.detected.size());
+        assertEquals(1, some.detected.size());
+        assertEquals(Packets.OTHER_UUID, some.detected.get(0).getUuid());
+        assertEquals(1, some.changed.size());
+
+        // In the background the second client tracks every uuid.
+        multiplexer.setSelected(ScanProfileSelector.BACKGROUND);
+        tracker.onAdvertisement(Packets.iBeacon(1, 3), -70, null, 20);
+        assertEquals(2, some.detected.size());
+
+        // Expirations reach every client that may have been told about the beacon.
+        multiplexer.setSelected(ScanProfileSelector.FOREGROUND);
+        tracker.expire(100000);
+        assertEquals(3, all.expired.size());
+        assertEquals(3, some.expired.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownProfiles() {
+        multiplexer.setSelected(3);
+    }
+
+    @Test
+    public void selectorOnlyReportsChangedSettings() {
+        final List<ScanProfile> selected = new ArrayList<ScanProfile>();
+        ScanProfileSelector selector = new ScanProfileSelector(ScanProfile.FOREGROUND,
+                ScanProfile.BACKGROUND, ScanProfile.IDLE, new ScanProfileSelector.Listener() {
+            @Override
+            public void onProfileChanged(ScanProfile profile) {
+                selected.add(profile);
+            }
+        });
+        selector.setVisible(false);
+        assertEquals(ScanProfileSelector.BACKGROUND, selector.getSelected());
+
+        selector.setProfiles(ScanProfile.FOREGROUND.buildUpon().withDutyCycle(1000, 1000, 1000).build(),
+                ScanProfile.decode(ScanProfile.BACKGROUND.encode()), ScanProfile.IDLE);
+        assertEquals(1, selected.size());
+
+        ScanProfile faster = ScanProfile.BACKGROUND.buildUpon().withDutyCycle(5000, 10000, 5000).build();
+        selector.setProfiles(ScanProfile.FOREGROUND, faster, ScanProfile.IDLE);
+        assertEquals(2, selected.size());
+        assertSame(faster, selector.getProfile());
+    }
+
+    private ScanMultiplexer.Client register(ScanProfile foreground, BeaconTracker.ProximityListener listener) {
+        return multiplexer.register(foreground, ScanProfile.BACKGROUND, ScanProfile.IDLE,
+                listener != null ? listener : new BeaconTrackerTest.RecordingListener());
+    }
+}
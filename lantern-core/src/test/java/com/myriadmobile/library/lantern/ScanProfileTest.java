@@ -0,0 +1,102 @@
+package com.myriadmobile.library.lantern;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Covers encoding the scan profiles and picking one from visibility and idle state.
+ */
+public class ScanProfileTest {
+
+    private static final String UUID_A = "2f234454-cf6d-4a0f-adf2-f4911ba9ffa6";
+    private static final String UUID_B = "e2c56db5-dffb-48d2-b060-d0f5a71096e0";
+
+    @Test
+    public void encodeRoundTrip() {
+        ScanProfile profile = new ScanProfile.Builder("store")
+                .withScanMode(ScanProfile.SCAN_MODE_BALANCED)
+                .withDutyCycle(3000, 40000, 10000)
+                .withReportDelay(1500)
+                .withUuidFilter(UUID_A, UUID_B)
+                .build();
+
+        ScanProfile decoded = ScanProfile.decode(profile.encode());
+        assertEquals(profile, decoded);
+        assertEquals("store", decoded.getName());
+        assertEquals(ScanProfile.SCAN_MODE_BALANCED, decoded.getScanMode());
+        assertEquals(40000, decoded.getScanInterval());
+        assertEquals(1500, decoded.getReportDelay());
+        assertArrayEquals(new String[]{UUID_A, UUID_B}, decoded.getUuidFilter());
+    }
+
+    @Test
+    public void presetsRoundTrip() {
+        assertEquals(ScanProfile.FOREGROUND, ScanProfile.decode(ScanProfile.FOREGROUND.encode()));
+        assertEquals(ScanProfile.BACKGROUND, ScanProfile.decode(ScanProfile.BACKGROUND.encode()));
+        assertEquals(ScanProfile.IDLE, ScanProfile.decode(ScanProfile.IDLE.encode()));
+        assertNull(ScanProfile.IDLE.getUuidFilter());
+    }
+
+    @Test
+    public void buildUponKeepsSettings() {
+        ScanProfile profile = ScanProfile.BACKGROUND.buildUpon().withUuidFilter(UUID_A).build();
+        assertEquals(ScanProfile.BACKGROUND.getScanInterval(), profile.getScanInterval());
+        assertEquals(ScanProfile.BACKGROUND.getReportDelay(), profile.getReportDelay());
+        assertArrayEquals(new String[]{UUID_A}, profile.getUuidFilter());
+        assertFalse(profile.equals(ScanProfile.BACKGROUND));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMalformedUuid() {
+        new ScanProfile.Builder("bad").withUuidFilter("not-a-uuid");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownScanMode() {
+        new ScanProfile.Builder("bad").withScanMode(3);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsGarbage() {
+        ScanProfile.decode("1,2,three,4,5,,name");
+    }
+
+    @Test
+    public void selectorFollowsVisibilityAndIdle() {
+        final List<ScanProfile> changes = new ArrayList<ScanProfile>();
+        ScanProfileSelector selector = new ScanProfileSelector(ScanProfile.FOREGROUND,
+                ScanProfile.BACKGROUND, ScanProfile.IDLE, new ScanProfileSelector.Listener() {
+            @Override
+            public void onProfileChanged(ScanProfile profile) {
+                changes.add(profile);
+            }
+        });
+        assertSame(ScanProfile.FOREGROUND, selector.getProfile());
+
+        selector.setDeviceIdle(false);
+        selector.setVisible(true);
+        assertTrue(changes.isEmpty());
+
+        selector.setVisible(false);
+        selector.setDeviceIdle(true);
+        selector.setVisible(true);
+        selector.setVisible(false);
+        selector.setDeviceIdle(false);
+
+        assertEquals(5, changes.size());
+        assertSame(ScanProfile.BACKGROUND, changes.get(0));
+        assertSame(ScanProfile.IDLE, changes.get(1));
+        assertSame(ScanProfile.FOREGROUND, changes.get(2));
+        assertSame(ScanProfile.IDLE, changes.get(3));
+        assertSame(ScanProfile.BACKGROUND, changes.get(4));
+    }
+}
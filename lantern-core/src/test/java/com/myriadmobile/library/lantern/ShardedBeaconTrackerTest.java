@@ -0,0 +1,228 @@
+package com.myriadmobile.library.lantern;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ShardedBeaconTrackerTest {
+
+    private static final int BEACONS = 200;
+
+    private ShardedBeaconTracker tracker;
+
+    @After
+    public void tearDown() {
+        if (tracker != null) {
+            tracker.close();
+        }
+    }
+
+    @Test
+    public void tracksLikeSingleTracker() {
+        ThreadRecordingListener listener = new ThreadRecordingListener();
+        tracker = new ShardedBeaconTracker(4, 60000, listener);
+        tracker.start();
+        feed(5);
+        tracker.awaitIdle();
+
+        assertEquals(BEACONS, listener.detected);
+        assertEquals(BEACONS, tracker.refreshSnapshot().size());
+        assertNull(tracker.getFailure());
+    }
+
+    @Test
+    public void beaconAlwaysHandledBySameWorker() {
+        ThreadRecordingListener listener = new ThreadRecordingListener();
+        // A tiny queue, so feeding keeps waiting on the workers.
+        tracker = new ShardedBeaconTracker(4, 4, 60000, 1000, listener);
+        tracker.start();
+        feed(20);
+        tracker.close();
+
+        assertEquals(BEACONS, listener.threads.size());
+        Set<String> workers = new HashSet<String>();
+        for (Set<String> threads : listener.threads.values()) {
+            assertEquals(1, threads.size());
+            workers.addAll(threads);
+        }
+        assertEquals(4, workers.size());
+        assertTrue(tracker.getStallCount() > 0);
+    }
+
+    @Test
+    public void expiresOnRequest() throws InterruptedException {
+        ThreadRecordingListener listener = new ThreadRecordingListener();
+        tracker = new ShardedBeaconTracker(3, 1000, listener);
+        tracker.start();
+        feed(1);
+        tracker.onAdvertisement(Packets.iBeacon(Packets.OTHER_UUID, 9, 9, -59), -70, null, 5000);
+        tracker.expire(5500);
+        tracker.awaitIdle();
+
+        // The request is handled asynchronously, after the packets fed before it.
+        long deadline = System.currentTimeMillis() + 5000;
+        while (listener.expired() < BEACONS && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(BEACONS, listener.expired());
+        PresenceSnapshot snapshot = tracker.refreshSnapshot();
+        assertEquals(1, snapshot.size());
+        assertEquals(9, snapshot.getBeacons().get(0).getMajor());
+    }
+
+    @Test
+    public void keepsTheLatestOfConcurrentExpirationRequests() throws InterruptedException {
+        ThreadRecordingListener listener = new ThreadRecordingListener();
+        tracker = new ShardedBeaconTracker(3, 1000, listener);
+        tracker.start();
+        feed(1);
+        tracker.awaitIdle();
+
+        // Earlier requests racing the latest one mustn't overwrite it.
+        Thread[] requesters = new Thread[4];
+        for (int i = 0; i < requesters.length; i++) {
+            final long now = i == 0 ? 5000 : i;
+            requesters[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 10000; j++) {
+                        tracker.expire(now);
+                    }
+                }
+            });
+            requesters[i].start();
+        }
+        for (Thread requester : requesters) {
+            requester.join();
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (listener.expired() < BEACONS && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(BEACONS, listener.expired());
+    }
+
+    @Test
+    public void filtersBeforeQueueing() {
+        ThreadRecordingListener listener = new ThreadRecordingListener();
+        tracker = new ShardedBeaconTracker(2, 60000, listener);
+        tracker.setUuidFilter(Packets.OTHER_UUID);
+        tracker.start();
+        assertTrue(!tracker.onAdvertisement(Packets.iBeacon(1, 2), -70, null, 0));
+        assertTrue(tracker.onAdvertisement(Packets.iBeacon(Packets.OTHER_UUID, 1, 2, -59), -70, null, 0));
+        assertTrue(!tracker.onAdvertisement(new byte[62], -70, null, 0));
+        tracker.close();
+
+        assertEquals(1, listener.detected);
+        assertEquals(1, tracker.getSnapshot().size());
+    }
+
+    @Test
+    public void snapshotsAreCopies() {
+        tracker = new ShardedBeaconTracker(2, 60000, new ThreadRecordingListener());
+        tracker.start();
+        tracker.onAdvertisement(Packets.iBeacon(1, 2), -70, "00:11:22:33:44:55", 0);
+        tracker.awaitIdle();
+        PresenceSnapshot first = tracker.refreshSnapshot();
+        assertSame(first, tracker.getSnapshot());
+
+        tracker.onAdvertisement(Packets.iBeacon(1, 2), -80, "00:11:22:33:44:55", 10);
+        tracker.awaitIdle();
+        PresenceSnapshot second = tracker.refreshSnapshot();
+        assertEquals(-70, first.getBeacons().get(0).getRssi());
+        assertEquals(-80, second.getBeacons().get(0).getRssi());
+        assertEquals("00:11:22:33:44:55", second.getBeacons().get(0).getBluetoothAddress());
+    }
+
+    @Test
+    public void keepsGoingWhenListenerThrows() {
+        ThreadRecordingListener listener = new ThreadRecordingListener() {
+            @Override
+            public synchronized void onBeaconDetected(TrackedBeacon beacon) {
+                super.onBeaconDetected(beacon);
+                throw new IllegalStateException("Listener failed");
+            }
+        };
+        tracker = new ShardedBeaconTracker(2, 60000, listener);
+        tracker.start();
+        feed(2);
+        tracker.close();
+
+        assertEquals(BEACONS, listener.detected);
+        assertEquals("Listener failed", tracker.getFailure().getMessage());
+    }
+
+    @Test
+    public void spreadsIdentitiesOverShards() {
+        int[] counts = new int[8];
+        for (int minor = 0; minor < 8000; minor++) {
+            long hash = BeaconKey.hash64(0xe2c56db5dffb48d2L, 0xb060d0f5a71096e0L, 1, minor);
+            counts[ShardedBeaconTracker.shardFor(hash, counts.length)]++;
+        }
+        for (int count : counts) {
+            assertTrue(count > 800 && count < 1200);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsPacketsBeforeStart() {
+        tracker = new ShardedBeaconTracker(2, 60000, new ThreadRecordingListener());
+        tracker.onAdvertisement(Packets.iBeacon(1, 2), -70, null, 0);
+    }
+
+    /**
+     * Feeds every beacon the given number of times, with a changing RSSI.
+     */
+    private void feed(int rounds) {
+        for (int round = 0; round < rounds; round++) {
+            for (int i = 0; i < BEACONS; i++) {
+                tracker.onAdvertisement(Packets.iBeacon(i / 100, i % 100), -60 - round, null, round);
+            }
+        }
+    }
+
+    static class ThreadRecordingListener implements BeaconTracker.Listener {
+        final Map<BeaconKey, Set<String>> threads = new HashMap<BeaconKey, Set<String>>();
+        int detected;
+        private int expired;
+
+        @Override
+        public synchronized void onBeaconDetected(TrackedBeacon beacon) {
+            detected++;
+            record(beacon);
+        }
+
+        @Override
+        public synchronized void onBeaconChanged(TrackedBeacon beacon) {
+            record(beacon);
+        }
+
+        @Override
+        public synchronized void onBeaconExpired(TrackedBeacon beacon) {
+            expired++;
+        }
+
+        synchronized int expired() {
+            return expired;
+        }
+
+        private void record(TrackedBeacon beacon) {
+            Set<String> names = threads.get(beacon.getKey());
+            if (names == null) {
+                names = new HashSet<String>();
+                threads.put(beacon.getKey(), names);
+            }
+            names.add(Thread.currentThread().getName());
+        }
+    }
+}
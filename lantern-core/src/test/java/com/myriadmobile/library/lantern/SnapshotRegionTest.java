@@ -0,0 +1,151 @@
+package com.myriadmobile.library.lantern;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SnapshotRegionTest {
+
+    private BeaconTracker tracker;
+    private ByteBuffer region;
+
+    @Before
+    public void setUp() {
+        tracker = new BeaconTracker(60000, new BeaconTrackerTest.RecordingListener());
+        region = ByteBuffer.allocateDirect(SnapshotRegion.sizeFor(4));
+    }
+
+    @Test
+    public void roundTrips() {
+        tracker.onAdvertisement(Packets.iBeacon(1, 2), -70, "00:11:22:AA:BB:CC", 1000);
+        tracker.onAdvertisement(Packets.iBeacon(Packets.OTHER_UUID, 65535, 3, -65), -80, null, 2000);
+        SnapshotRegion.Writer writer = new SnapshotRegion.Writer(region);
+        writer.write(2500, tracker.getBeacons());
+
+        PresenceSnapshot snapshot = new SnapshotRegion.Reader(region).read();
+        assertEquals(2500, snapshot.getTime());
+        assertEquals(2, snapshot.size());
+        for (TrackedBeacon beacon : snapshot.getBeacons()) {
+            TrackedBeacon original = tracker.get(beacon.getKey());
+            assertEquals(original.getUuid(), beacon.getUuid());
+            assertEquals(original.getMajor(), beacon.getMajor());
+            assertEquals(original.getMinor(), beacon.getMinor());
+            assertEquals(original.getTxPower(), beacon.getTxPower());
+            assertEquals(original.getRssi(), beacon.getRssi());
+            assertEquals(original.getDistance(), beacon.getDistance(), 0);
+            assertEquals(original.getProximity(), beacon.getProximity());
+            assertEquals(original.getBluetoothAddress(), beacon.getBluetoothAddress());
+            assertEquals(original.getFirstSeen(), beacon.getFirstSeen());
+            assertEquals(original.getExpirationTime(), beacon.getExpirationTime());
+        }
+    }
+
+    @Test
+    public void returnsTheSameSnapshotUntilPublished() {
+        SnapshotRegion.Writer writer = new SnapshotRegion.Writer(region);
+        SnapshotRegion.Reader reader = new SnapshotRegion.Reader(region);
+        PresenceSnapshot empty = reader.read();
+        assertEquals(0, empty.size());
+        assertFalse(reader.hasChanged());
+        assertSame(empty, reader.read());
+
+        tracker.onAdvertisement(Packets.iBeacon(1, 2), -70, null, 0);
+        writer.write(10, tracker.getBeacons());
+        assertTrue(reader.hasChanged());
+        assertEquals(1, reader.read().size());
+    }
+
+    @Test
+    public void leavesOutBeaconsPastTheCapacity() {
+        for (int i = 0; i < 6; i++) {
+            tracker.onAdvertisement(Packets.iBeacon(1, i), -70, null, 0);
+        }
+        SnapshotRegion.Writer writer = new SnapshotRegion.Writer(region);
+        writer.write(0, tracker.getBeacons());
+        assertEquals(2, writer.getDropped());
+        assertEquals(4, new SnapshotRegion.Reader(region).read().size());
+    }
+
+    @Test
+    public void keepsThePreviousSnapshotWhenTheCopyIsTorn() {
+        tracker.onAdvertisement(Packets.iBeacon(1, 2), -70, null, 0);
+        SnapshotRegion.Writer writer = new SnapshotRegion.Writer(region);
+        SnapshotRegion.Reader reader = new SnapshotRegion.Reader(region);
+        PresenceSnapshot first = reader.read();
+
+        writer.write(10, tracker.getBeacons());
+        // A write that was only partly visible when the sequence already said it was done.
+        region.put(SnapshotRegion.HEADER_SIZE + 3, (byte) (region.get(SnapshotRegion.HEADER_SIZE + 3) ^ 1));
+        assertSame(first, reader.read());
+        assertEquals(SnapshotRegion.Reader.MAX_ATTEMPTS, reader.getRetries());
+    }
+
+    @Test
+    public void continuesTheSequenceOfAnExistingRegion() {
+        SnapshotRegion.Writer writer = new SnapshotRegion.Writer(region);
+        tracker.onAdvertisement(Packets.iBeacon(1, 2), -70, null, 0);
+        writer.write(10, tracker.getBeacons());
+        SnapshotRegion.Reader reader = new SnapshotRegion.Reader(region);
+        assertEquals(1, reader.read().size());
+
+        new SnapshotRegion.Writer(region);
+        assertTrue(reader.hasChanged());
+        assertEquals(0, reader.read().size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsOtherRegions() {
+        new SnapshotRegion.Reader(ByteBuffer.allocate(SnapshotRegion.sizeFor(1))).read();
+    }
+
+    @Test
+    public void readersNeverSeeAPartialSnapshot() throws InterruptedException {
+        final SnapshotRegion.Writer writer = new SnapshotRegion.Writer(region);
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        final int rounds = 20000;
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                SnapshotRegion.Reader reader = new SnapshotRegion.Reader(region);
+                long lastTime = -1;
+                while (lastTime < rounds - 1) {
+                    PresenceSnapshot snapshot = reader.read();
+                    // Every beacon in a snapshot was last seen in the snapshot's round.
+                    for (TrackedBeacon beacon : snapshot.getBeacons()) {
+                        if (beacon.getLastSeen() != snapshot.getTime()) {
+                            failure.set("Mixed snapshot at " + snapshot.getTime());
+                            return;
+                        }
+                    }
+                    if (snapshot.getTime() < lastTime) {
+                        failure.set("Went back from " + lastTime + " to " + snapshot.getTime());
+                        return;
+                    }
+                    lastTime = snapshot.getTime();
+                }
+            }
+        });
+        reader.start();
+        List<TrackedBeacon> beacons = new ArrayList<TrackedBeacon>();
+        for (int round = 0; round < rounds; round++) {
+            beacons.clear();
+            for (int minor = 0; minor < 1 + round % 4; minor++) {
+                beacons.add(tracker.onAdvertisement(Packets.iBeacon(1, minor), -70, null, round));
+            }
+            writer.write(round, beacons);
+        }
+        reader.join(10000);
+        assertFalse(reader.isAlive());
+        assertNull(failure.get());
+    }
+}
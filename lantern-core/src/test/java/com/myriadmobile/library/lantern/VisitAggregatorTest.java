@@ -0,0 +1,186 @@
+package com.myriadmobile.library.lantern;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class VisitAggregatorTest {
+
+    private static final long START = 10 * VisitRollup.HOUR;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private RecordingSink sink;
+    private VisitAggregator aggregator;
+    private BeaconTracker tracker;
+
+    @Before
+    public void setUp() {
+        sink = new RecordingSink();
+        aggregator = new VisitAggregator(ProximityZones.DEFAULT, sink);
+        tracker = new BeaconTracker(60000, aggregator);
+    }
+
+    @Test
+    public void countsDwellPerZone() {
+        // Near, then immediate, then near again.
+        tracker.onAdvertisement(Packets.iBeacon(1, 2), -59, null, START);
+        tracker.onAdvertisement(Packets.iBeacon(1, 2), -40, null, START + 10000);
+        tracker.onAdvertisement(Packets.iBeacon(1, 2), -59, null, START + 30000);
+        tracker.onAdvertisement(Packets.iBeacon(1, 2), -60, null, START + 35000);
+        assertEquals(1, aggregator.getOpenVisits());
+        tracker.expire(START + 100000);
+
+        assertEquals(1, sink.visits.size());
+        Visit visit = sink.visits.get(0);
+        assertEquals(START, visit.getFirstSeen());
+        assertEquals(START + 35000, visit.getLastSeen());
+        assertEquals(Beacon.PROXIMITY_IMMEDIATE, visit.getPeakProximity());
+        assertEquals(20000, visit.getDwell(Beacon.PROXIMITY_IMMEDIATE));
+        assertEquals(15000, visit.getDwell(Beacon.PROXIMITY_NEAR));
+        assertEquals(0, visit.getDwell(Beacon.PROXIMITY_FAR));
+        assertEquals(0, aggregator.getOpenVisits());
+    }
+
+    @Test
+    public void rollsUpOnceTheBucketIsOver() {
+        tracker.onAdvertisement(Packets.iBeacon(1, 2), -59, null, START + 1000);
+        tracker.onAdvertisement(Packets.iBeacon(1, 3), -59, null, START + 2000);
+        tracker.expire(START + 62000);
+        tracker.onAdvertisement(Packets.iBeacon(1, 2), -80, null, START + 62000);
+
+        // Minor 2 has an open visit, but it started in the next minute.
+        aggregator.flush(START + 62000);
+        assertEquals(2, sink.rollups.size());
+        assertEquals(VisitRollup.MINUTE, sink.rollups.get(0).getResolution());
+        assertEquals(START, sink.rollups.get(0).getBucketStart());
+        assertEquals(1, sink.rollups.get(0).getVisits());
+        assertEquals(2, aggregator.getPendingRollups());
+
+        // Minor 2 could still start a visit in this hour.
+        aggregator.flush(START + VisitRollup.HOUR - 1);
+        assertEquals(2, sink.rollups.size());
+
+        tracker.expire(START + 200000);
+        aggregator.flush(START + VisitRollup.HOUR);
+        assertEquals(5, sink.rollups.size());
+        VisitRollup hour = find(VisitRollup.HOUR, 2);
+        assertEquals(2, hour.getVisits());
+        assertEquals(Beacon.PROXIMITY_NEAR, hour.getPeakProximity());
+        assertEquals(0, aggregator.getPendingRollups());
+    }
+
+    @Test
+    public void closesOpenVisitsWhenStopping() {
+        tracker.onAdvertisement(Packets.iBeacon(1, 2), -59, null, START);
+        tracker.onAdvertisement(Packets.iBeacon(1, 2), -60, null, START + 5000);
+        aggregator.closeAll();
+        assertEquals(1, sink.visits.size());
+        assertEquals(5000, sink.visits.get(0).getDuration());
+        assertEquals(2, sink.rollups.size());
+    }
+
+    @Test
+    public void storesVisitsAndRollups() throws IOException {
+        File directory = folder.newFolder();
+        VisitStore store = new VisitStore(directory);
+        aggregator = new VisitAggregator(ProximityZones.DEFAULT, store);
+        tracker = new BeaconTracker(60000, aggregator);
+        tracker.onAdvertisement(Packets.iBeacon(1, 2), -59, null, START);
+        tracker.onAdvertisement(Packets.iBeacon(1, 2), -40, null, START + 10000);
+        tracker.onAdvertisement(Packets.iBeacon(Packets.OTHER_UUID, 65535, 3, -59), -59, null, START + 20000);
+        aggregator.closeAll();
+        store.close();
+
+        List<Visit> visits = VisitStore.readVisits(store.getVisitsFile());
+        assertEquals(2, visits.size());
+        // The visits close in no particular order.
+        Visit visit = visits.get(0).getKey().getMinor() == 2 ? visits.get(0) : visits.get(1);
+        Visit other = visits.get(0) == visit ? visits.get(1) : visits.get(0);
+        assertEquals(BeaconKey.of(frame(Packets.iBeacon(1, 2))), visit.getKey());
+        assertEquals(START + 10000, visit.getLastSeen());
+        assertEquals(10000, visit.getDwell(Beacon.PROXIMITY_NEAR));
+        assertEquals(Beacon.PROXIMITY_IMMEDIATE, visit.getPeakProximity());
+        assertEquals(BeaconKey.of(frame(Packets.iBeacon(Packets.OTHER_UUID, 65535, 3, -59))), other.getKey());
+        List<VisitRollup> rollups = VisitStore.readRollups(store.getRollupsFile());
+        assertEquals(4, rollups.size());
+        long dwell = 0;
+        for (VisitRollup rollup : rollups) {
+            dwell += rollup.getDwell();
+        }
+        assertEquals(2 * 10000, dwell);
+
+        // Reopening appends.
+        store = new VisitStore(directory);
+        store.onVisitClosed(visit);
+        store.flush();
+        assertEquals(3, VisitStore.readVisits(store.getVisitsFile()).size());
+    }
+
+    @Test
+    public void cutsOffRecordsLeftHalfWritten() throws IOException {
+        File directory = folder.newFolder();
+        VisitStore store = new VisitStore(directory);
+        tracker.onAdvertisement(Packets.iBeacon(1, 2), -59, null, START);
+        tracker.onAdvertisement(Packets.iBeacon(1, 3), -59, null, START);
+        aggregator.closeAll();
+        for (Visit visit : sink.visits) {
+            store.onVisitClosed(visit);
+        }
+        store.flush();
+
+        // A crash halfway through the second record.
+        RandomAccessFile file = new RandomAccessFile(store.getVisitsFile(), "rw");
+        file.setLength(file.length() - 10);
+        file.close();
+        assertEquals(1, VisitStore.readVisits(store.getVisitsFile()).size());
+
+        store = new VisitStore(directory);
+        store.onVisitClosed(sink.visits.get(1));
+        store.close();
+        List<Visit> visits = VisitStore.readVisits(store.getVisitsFile());
+        assertEquals(2, visits.size());
+        assertEquals(3, visits.get(1).getKey().getMinor());
+    }
+
+    private static IBeaconFrame frame(byte[] scanRecord) {
+        IBeaconFrame frame = new IBeaconFrame();
+        frame.parse(scanRecord);
+        return frame;
+    }
+
+    private VisitRollup find(long resolution, int minor) {
+        for (VisitRollup rollup : sink.rollups) {
+            if (rollup.getResolution() == resolution && rollup.getKey().getMinor() == minor) {
+                return rollup;
+            }
+        }
+        throw new AssertionError("No rollup for " + minor);
+    }
+
+    static class RecordingSink implements VisitAggregator.Sink {
+
+        final List<Visit> visits = new ArrayList<Visit>();
+        final List<VisitRollup> rollups = new ArrayList<VisitRollup>();
+
+        @Override
+        public void onVisitClosed(Visit visit) {
+            visits.add(visit);
+        }
+
+        @Override
+        public void onRollup(VisitRollup rollup) {
+            rollups.add(rollup);
+        }
+    }
+}
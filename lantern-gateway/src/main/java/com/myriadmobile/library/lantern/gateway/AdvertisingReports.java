@@ -0,0 +1,153 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern.gateway;
+
+/**
+ * Decodes the LE Advertising Report and LE Extended Advertising Report events out of HCI event
+ * packets. Reports are handed over in place, without copying the advertising data.
+ */
+public final class AdvertisingReports {
+
+    /**
+     * The event code of the LE Meta event.
+     */
+    public static final int EVENT_LE_META = 0x3e;
+
+    public static final int SUBEVENT_ADVERTISING_REPORT = 0x02;
+    public static final int SUBEVENT_EXTENDED_ADVERTISING_REPORT = 0x0d;
+
+    /**
+     * The RSSI reported when the controller couldn't measure it.
+     */
+    public static final int RSSI_UNAVAILABLE = 127;
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private AdvertisingReports() {
+    }
+
+    /**
+     * Decodes the advertising reports in an event packet.
+     *
+     * @param event   The packet starting with the event code, as read by {@link HciReader}.
+     * @param length  The length of the packet.
+     * @param handler Hears about every report.
+     * @return The number of reports handed over, 0 if the packet isn't an advertising report or is
+     * malformed. Reports before the point a packet turns out to be malformed are still handed over.
+     * Reports without a measured RSSI are skipped, since they can't place the beacon.
+     */
+    public static int parse(byte[] event, int length, ReportHandler handler) {
+        if (length < 4 || (event[0] & 0xff) != EVENT_LE_META) {
+            return 0;
+        }
+        switch (event[2] & 0xff) {
+            case SUBEVENT_ADVERTISING_REPORT:
+                return parseLegacy(event, length, handler);
+            case SUBEVENT_EXTENDED_ADVERTISING_REPORT:
+                return parseExtended(event, length, handler);
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Formats a packed address like "00:11:22:AA:BB:CC".
+     */
+    public static String formatAddress(long address) {
+        char[] chars = new char[17];
+        for (int i = 0; i < 6; i++) {
+            int b = (int) (address >>> (40 - i * 8)) & 0xff;
+            chars[i * 3] = HEX[b >>> 4];
+            chars[i * 3 + 1] = HEX[b & 0x0f];
+            if (i < 5) {
+                chars[i * 3 + 2] = ':';
+            }
+        }
+        return new String(chars);
+    }
+
+    // Each report is the event type, address type, address, data length, data and RSSI. The
+    // specification lays multiple reports out field by field, but controllers and BlueZ put them
+    // one after the other, and in practice there's one report per event.
+    private static int parseLegacy(byte[] event, int length, ReportHandler handler) {
+        int reports = event[3] & 0xff;
+        int handled = 0;
+        int position = 4;
+        for (int i = 0; i < reports; i++) {
+            if (position + 9 > length) {
+                return handled;
+            }
+            long address = readAddress(event, position + 2);
+            int dataLength = event[position + 8] & 0xff;
+            int dataOffset = position + 9;
+            if (dataOffset + dataLength + 1 > length) {
+                return handled;
+            }
+            int rssi = event[dataOffset + dataLength];
+            if (rssi != RSSI_UNAVAILABLE) {
+                handler.onReport(address, rssi, event, dataOffset, dataLength);
+                handled++;
+            }
+            position = dataOffset + dataLength + 1;
+        }
+        return handled;
+    }
+
+    // Each report is the event type (2), address type, address, primary and secondary phy, sid,
+    // tx power, RSSI, periodic advertising interval (2), direct address type, direct address,
+    // data length and data.
+    private static int parseExtended(byte[] event, int length, ReportHandler handler) {
+        int reports = event[3] & 0xff;
+        int handled = 0;
+        int position = 4;
+        for (int i = 0; i < reports; i++) {
+            if (position + 24 > length) {
+                return handled;
+            }
+            long address = readAddress(event, position + 3);
+            int rssi = event[position + 13];
+            int dataLength = event[position + 23] & 0xff;
+            int dataOffset = position + 24;
+            if (dataOffset + dataLength > length) {
+                return handled;
+            }
+            if (rssi != RSSI_UNAVAILABLE) {
+                handler.onReport(address, rssi, event, dataOffset, dataLength);
+                handled++;
+            }
+            position = dataOffset + dataLength;
+        }
+        return handled;
+    }
+
+    // Addresses are little endian on the wire.
+    private static long readAddress(byte[] event, int offset) {
+        long address = 0;
+        for (int i = 5; i >= 0; i--) {
+            address = address << 8 | (event[offset + i] & 0xff);
+        }
+        return address;
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern.gateway;
+
+import com.myriadmobile.library.lantern.BeaconTracker;
+import com.myriadmobile.library.lantern.PresenceSnapshot;
+import com.myriadmobile.library.lantern.ShardedBeaconTracker;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Runs the beacon pipeline headless, over the advertising reports read from a host controller.
+ * The reports are fed into a {@link ShardedBeaconTracker}, which spreads the beacons across
+ * worker threads by identity, and the gateway expires them on a timer.
+ * <p/>
+ * The listener is called on the worker threads, by several of them at once, so it has to be
+ * thread safe. Reports are fed from one thread, either with {@link #ingest(HciReader)} or by
+ * calling {@link #onReport(long, int, byte[], int, int)} directly.
+ */
+public class Gateway implements ReportHandler, Closeable {
+
+    /**
+     * How often beacons are checked for expiration, in milliseconds.
+     */
+    private static final long EXPIRATION_CHECK_INTERVAL = 250;
+
+    private final ShardedBeaconTracker tracker;
+    private final byte[] eventBuffer = new byte[HciReader.MAX_EVENT_SIZE];
+    private Timer expirationTimer;
+    private boolean started;
+    private boolean closed;
+    private volatile long eventCount;
+    private volatile long reportCount;
+
+    public Gateway(int shardCount, long expirationInterval, BeaconTracker.Listener listener) {
+        this(shardCount, ShardedBeaconTracker.DEFAULT_QUEUE_CAPACITY, expirationInterval, listener);
+    }
+
+    /**
+     * @param shardCount         The number of worker threads, usually the number of cores.
+     * @param queueCapacity      The number of reports that can wait for each worker.
+     * @param expirationInterval The time in milliseconds that a beacon will remain active since
+     *                           the last time it was detected.
+     * @param listener           Hears about changes to the active beacons, on the worker threads.
+     */
+    public Gateway(int shardCount, int queueCapacity, long expirationInterval, BeaconTracker.Listener listener) {
+        tracker = new ShardedBeaconTracker(shardCount, queueCapacity, expirationInterval,
+                ShardedBeaconTracker.DEFAULT_SNAPSHOT_INTERVAL, listener);
+    }
+
+    /**
+     * Only track beacons with one of these uuids. If null or empty, all beacons are tracked.
+     * Must be called on the feeding thread.
+     *
+     * @throws IllegalArgumentException If a uuid is malformed.
+     */
+    public void setUuidFilter(String... uuids) {
+        tracker.setUuidFilter(uuids);
+    }
+
+    /**
+     * Starts the worker threads and the expiration timer.
+     */
+    public void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        tracker.start();
+        expirationTimer = new Timer("lantern-gateway-expiration", true);
+        expirationTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                tracker.expire(System.currentTimeMillis());
+            }
+        }, EXPIRATION_CHECK_INTERVAL, EXPIRATION_CHECK_INTERVAL);
+    }
+
+    /**
+     * Feeds every advertising report read from the reader into the gateway, until the end of the
+     * stream.
+     *
+     * @return The number of reports read.
+     */
+    public long ingest(HciReader reader) throws IOException {
+        long before = reportCount;
+        int length;
+        while ((length = reader.next(eventBuffer)) >= 0) {
+            eventCount++;
+            AdvertisingReports.parse(eventBuffer, length, this);
+        }
+        return reportCount - before;
+    }
+
+    @Override
+    public void onReport(long address, int rssi, byte[] data, int offset, int length) {
+        if (!started || closed) {
+            throw new IllegalStateException("The gateway isn't running");
+        }
+        reportCount++;
+        tracker.onAdvertisement(data, offset, length, rssi, address, System.currentTimeMillis());
+    }
+
+    /**
+     * The number of HCI events read by {@link #ingest(HciReader)}.
+     */
+    public long getEventCount() {
+        return eventCount;
+    }
+
+    /**
+     * The number of advertising reports fed into the gateway.
+     */
+    public long getReportCount() {
+        return reportCount;
+    }
+
+    public int getShardCount() {
+        return tracker.getShardCount();
+    }
+
+    /**
+     * The active beacons across every shard, as of the last snapshot the shards published.
+     */
+    public PresenceSnapshot getSnapshot() {
+        return tracker.getSnapshot();
+    }
+
+    /**
+     * The error the listener threw, or null if there was none.
+     */
+    public RuntimeException getFailure() {
+        return tracker.getFailure();
+    }
+
+    /**
+     * Lets the workers handle the remaining reports and stops them.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (expirationTimer != null) {
+            expirationTimer.cancel();
+        }
+        tracker.close();
+    }
+}
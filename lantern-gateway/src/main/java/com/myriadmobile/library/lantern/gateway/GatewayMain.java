@@ -0,0 +1,148 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern.gateway;
+
+import com.myriadmobile.library.lantern.BeaconTracker;
+import com.myriadmobile.library.lantern.Distance;
+import com.myriadmobile.library.lantern.TrackedBeacon;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs a {@link Gateway} from the command line, printing a line to standard output for every
+ * beacon that is detected, changes or expires. For example, to follow a live controller:
+ * <pre>
+ * hcidump -R | lantern-gateway --hex -
+ * </pre>
+ */
+public class GatewayMain {
+
+    private static final String USAGE = "Usage: lantern-gateway [--hex | --binary] [--shards count]"
+            + " [--expiration millis] [--uuid uuid]... file | -";
+
+    public static void main(String[] args) throws IOException {
+        int format = HciReader.FORMAT_HEX;
+        int shards = Runtime.getRuntime().availableProcessors();
+        long expiration = 10000;
+        List<String> uuids = new ArrayList<String>();
+        String path = null;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equals("--hex")) {
+                    format = HciReader.FORMAT_HEX;
+                } else if (arg.equals("--binary")) {
+                    format = HciReader.FORMAT_BINARY;
+                } else if (arg.equals("--shards")) {
+                    shards = Integer.parseInt(args[++i]);
+                } else if (arg.equals("--expiration")) {
+                    expiration = Long.parseLong(args[++i]);
+                } else if (arg.equals("--uuid")) {
+                    uuids.add(args[++i]);
+                } else if (path == null) {
+                    path = arg;
+                } else {
+                    throw new IllegalArgumentException("Unexpected argument " + arg);
+                }
+            }
+            if (path == null) {
+                throw new IllegalArgumentException("No input given");
+            }
+        } catch (RuntimeException e) {
+            System.err.println(e.getMessage() != null ? e.getMessage() : e.toString());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+
+        Gateway gateway = new Gateway(shards, expiration, new PrintingListener(System.out));
+        gateway.setUuidFilter(uuids.toArray(new String[uuids.size()]));
+        InputStream in = path.equals("-") ? System.in : new FileInputStream(path);
+        HciReader reader = HciReader.open(in, format);
+        long start = System.nanoTime();
+        gateway.start();
+        try {
+            gateway.ingest(reader);
+        } finally {
+            reader.close();
+            gateway.close();
+        }
+        long elapsed = Math.max(1, System.nanoTime() - start);
+        System.err.printf("%d events, %d reports, %d beacons active, %.0f reports/s on %d shards%n",
+                gateway.getEventCount(), gateway.getReportCount(), gateway.getSnapshot().size(),
+                gateway.getReportCount() * 1e9 / elapsed, shards);
+        if (gateway.getFailure() != null) {
+            gateway.getFailure().printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Prints one tab separated line per change: the event, uuid, major, minor, RSSI, distance,
+     * proximity and address.
+     */
+    static class PrintingListener implements BeaconTracker.ProximityListener {
+
+        private final PrintStream out;
+
+        PrintingListener(PrintStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void onBeaconDetected(TrackedBeacon beacon) {
+            print("detected", beacon);
+        }
+
+        @Override
+        public void onBeaconChanged(TrackedBeacon beacon) {
+            print("changed", beacon);
+        }
+
+        @Override
+        public void onBeaconExpired(TrackedBeacon beacon) {
+            print("expired", beacon);
+        }
+
+        @Override
+        public void onProximityChanged(TrackedBeacon beacon, int previousProximity) {
+            print("moved", beacon);
+        }
+
+        private void print(String event, TrackedBeacon beacon) {
+            String line = event + '\t' + beacon.getUuid() + '\t' + beacon.getMajor() + '\t' + beacon.getMinor()
+                    + '\t' + beacon.getRssi() + '\t' + String.format("%.2f", beacon.getDistance())
+                    + '\t' + Distance.proximityToString(beacon.getProximity()) + '\t' + beacon.getBluetoothAddress();
+            synchronized (out) {
+                out.println(line);
+            }
+        }
+    }
+}
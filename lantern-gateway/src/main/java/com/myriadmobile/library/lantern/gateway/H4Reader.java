@@ -0,0 +1,115 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern.gateway;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads raw H4 packets, the format of a serial HCI transport or of the packets written out by
+ * {@code hcidump -w} without its file header.
+ */
+class H4Reader extends HciReader {
+
+    private static final int PACKET_TYPE_COMMAND = 0x01;
+    private static final int PACKET_TYPE_ACL = 0x02;
+    private static final int PACKET_TYPE_SCO = 0x03;
+    private static final int PACKET_TYPE_ISO = 0x05;
+
+    private final byte[] header = new byte[4];
+
+    H4Reader(InputStream in) {
+        super(new BufferedInputStream(in, 64 * 1024));
+    }
+
+    @Override
+    public int next(byte[] buffer) throws IOException {
+        while (true) {
+            int type = in.read();
+            switch (type) {
+                case -1:
+                    return -1;
+                case PACKET_TYPE_EVENT:
+                    readFully(buffer, 0, 2);
+                    int length = buffer[1] & 0xff;
+                    readFully(buffer, 2, length);
+                    return length + 2;
+                case PACKET_TYPE_COMMAND:
+                    // Opcode and a one byte length.
+                    readFully(header, 0, 3);
+                    skipFully(header[2] & 0xff);
+                    break;
+                case PACKET_TYPE_SCO:
+                    // Handle and a one byte length.
+                    readFully(header, 0, 3);
+                    skipFully(header[2] & 0xff);
+                    break;
+                case PACKET_TYPE_ACL:
+                    // Handle and a two byte length.
+                    readFully(header, 0, 4);
+                    skipFully((header[2] & 0xff) | (header[3] & 0xff) << 8);
+                    break;
+                case PACKET_TYPE_ISO:
+                    // Handle and a 14 bit length.
+                    readFully(header, 0, 4);
+                    skipFully((header[2] & 0xff) | (header[3] & 0x3f) << 8);
+                    break;
+                default:
+                    throw new IOException("Unknown H4 packet type " + type);
+            }
+        }
+    }
+
+    @Override
+    public boolean ready() throws IOException {
+        return in.available() > 0;
+    }
+
+    private void readFully(byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            int read = in.read(buffer, offset, length);
+            if (read < 0) {
+                throw new EOFException("Stream ended in the middle of a packet");
+            }
+            offset += read;
+            length -= read;
+        }
+    }
+
+    private void skipFully(int length) throws IOException {
+        while (length > 0) {
+            long skipped = in.skip(length);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException("Stream ended in the middle of a packet");
+                }
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+    }
+}
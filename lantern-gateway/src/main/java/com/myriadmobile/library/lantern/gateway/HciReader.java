@@ -0,0 +1,102 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern.gateway;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads HCI event packets from a stream, such as a file or a pipe from the host controller.
+ * Packets that aren't events, like commands and ACL data, are skipped.
+ */
+public abstract class HciReader implements Closeable {
+
+    /**
+     * The H4 packet type of an HCI event.
+     */
+    public static final int PACKET_TYPE_EVENT = 0x04;
+
+    /**
+     * The largest event packet, the event code and length followed by up to 255 bytes of parameters.
+     */
+    public static final int MAX_EVENT_SIZE = 257;
+
+    /**
+     * The stream holds raw H4 packets, each starting with its packet type.
+     */
+    public static final int FORMAT_BINARY = 0;
+
+    /**
+     * The stream holds H4 packets written out in hex, the way {@code hcidump -R} prints them.
+     */
+    public static final int FORMAT_HEX = 1;
+
+    protected final InputStream in;
+
+    protected HciReader(InputStream in) {
+        if (in == null) {
+            throw new IllegalArgumentException("Input stream cannot be null");
+        }
+        this.in = in;
+    }
+
+    /**
+     * Creates a reader for the stream.
+     *
+     * @param in     The stream to read, it's buffered by the reader.
+     * @param format Either {@link #FORMAT_BINARY} or {@link #FORMAT_HEX}.
+     */
+    public static HciReader open(InputStream in, int format) {
+        switch (format) {
+            case FORMAT_BINARY:
+                return new H4Reader(in);
+            case FORMAT_HEX:
+                return new HexReader(in);
+            default:
+                throw new IllegalArgumentException("Unknown format " + format);
+        }
+    }
+
+    /**
+     * Reads the next event packet, blocking until it is available.
+     *
+     * @param buffer Receives the packet starting with the event code, must hold at least
+     *               {@link #MAX_EVENT_SIZE} bytes.
+     * @return The length of the packet, or -1 at the end of the stream.
+     * @throws IOException If the stream can't be read or is malformed.
+     */
+    public abstract int next(byte[] buffer) throws IOException;
+
+    /**
+     * Whether the next packet can be read without blocking, as far as the reader can tell.
+     */
+    public abstract boolean ready() throws IOException;
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
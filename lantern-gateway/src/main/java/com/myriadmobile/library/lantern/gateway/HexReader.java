@@ -0,0 +1,153 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern.gateway;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Reads H4 packets written out in hex, the way {@code hcidump -R} prints them:
+ * <pre>
+ * &lt; 01 0C 20 02 01 00
+ * &gt; 04 3E 2A 02 01 03 00 A1 B2 C3 D4 E5 F6 1E 02 01 06 1A FF 4C 00 02 15 E2 C5 6D B5 DF FB
+ *   48 D2 B0 60 D0 F5 A7 10 96 E0 00 01 00 02 C5 BF
+ * </pre>
+ * A packet starts on a line beginning with its direction, or with the first hex byte, and
+ * continues on the indented lines that follow. Blank lines and lines starting with '#' are
+ * ignored. Events that don't have as many bytes as their header says are dropped.
+ */
+class HexReader extends HciReader {
+
+    private byte[] line = new byte[256];
+    private int lineLength;
+
+    /**
+     * Where the last call to {@link #nextByte(int)} stopped.
+     */
+    private int position;
+
+    HexReader(InputStream in) {
+        super(new BufferedInputStream(in, 64 * 1024));
+    }
+
+    @Override
+    public int next(byte[] buffer) throws IOException {
+        // Bytes of the current event read so far, or -1 when not reading an event.
+        int count = -1;
+        int expected = -1;
+        while (readLine()) {
+            int position = 0;
+            while (position < lineLength && isSpace(line[position])) {
+                position++;
+            }
+            if (position == lineLength || line[position] == '#') {
+                count = -1;
+                continue;
+            }
+            boolean continuation = position > 0;
+            if (line[position] == '>' || line[position] == '<') {
+                continuation = false;
+                position++;
+            }
+            if (!continuation) {
+                // A new packet, whatever was being read is incomplete.
+                count = -1;
+                expected = -1;
+                int type = nextByte(position);
+                if (type != PACKET_TYPE_EVENT) {
+                    continue;
+                }
+                position = this.position;
+                count = 0;
+            } else if (count < 0) {
+                continue;
+            }
+
+            int value;
+            while (count != expected && (value = nextByte(position)) >= 0) {
+                position = this.position;
+                buffer[count++] = (byte) value;
+                if (count == 2) {
+                    expected = 2 + (buffer[1] & 0xff);
+                }
+            }
+            if (count == expected) {
+                return count;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public boolean ready() throws IOException {
+        return in.available() > 0;
+    }
+
+    /**
+     * Parses the next hex byte on the line, skipping whitespace.
+     *
+     * @return The byte, or -1 if there are no more on the line.
+     */
+    private int nextByte(int from) {
+        int i = from;
+        while (i < lineLength && isSpace(line[i])) {
+            i++;
+        }
+        if (i + 1 >= lineLength) {
+            position = lineLength;
+            return -1;
+        }
+        int high = Character.digit(line[i], 16);
+        int low = Character.digit(line[i + 1], 16);
+        if (high < 0 || low < 0) {
+            // Whatever follows isn't hex, like a comment from the tool that wrote the dump.
+            position = lineLength;
+            return -1;
+        }
+        position = i + 2;
+        return high << 4 | low;
+    }
+
+    private boolean readLine() throws IOException {
+        lineLength = 0;
+        int c;
+        while ((c = in.read()) >= 0 && c != '\n') {
+            if (lineLength == line.length) {
+                line = Arrays.copyOf(line, line.length * 2);
+            }
+            line[lineLength++] = (byte) c;
+        }
+        if (lineLength > 0 && line[lineLength - 1] == '\r') {
+            lineLength--;
+        }
+        return c >= 0 || lineLength > 0;
+    }
+
+    private static boolean isSpace(byte c) {
+        return c == ' ' || c == '\t';
+    }
+}
@@ -0,0 +1,90 @@
+package com.myriadmobile.library.lantern.gateway;
+
+import com.myriadmobile.library.lantern.IBeaconFrame;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AdvertisingReportsTest {
+
+    private static final String LEGACY = "04 3E 2A 02 01 03 00 01 00 00 00 00 C1 1E 02 01 06 1A FF 4C"
+            + " 00 02 15 E2 C5 6D B5 DF FB 48 D2 B0 60 D0 F5 A7 10 96 E0 00 01 00 02 C5 BA";
+
+    private static final String EXTENDED = "04 3E 38 0D 01 10 00 00 03 00 00 00 00 C1 01 00 FF 7F BA 00"
+            + " 00 00 00 00 00 00 00 00 1E 02 01 06 1A FF 4C 00 02 15 E2 C5 6D B5 DF FB 48 D2 B0 60 D0 F5"
+            + " A7 10 96 E0 00 02 00 01 BF";
+
+    @Test
+    public void decodesLegacyReport() throws IOException {
+        Recorder recorder = parse(LEGACY);
+        assertEquals(1, recorder.count);
+        assertEquals(0xc10000000001L, recorder.address);
+        assertEquals("C1:00:00:00:00:01", AdvertisingReports.formatAddress(recorder.address));
+        assertEquals(-70, recorder.rssi);
+        assertEquals(1, recorder.frame.major);
+        assertEquals(2, recorder.frame.minor);
+        assertEquals(-59, recorder.frame.txPower);
+        assertEquals(Fixtures.VENUE_UUID, recorder.frame.getUuid());
+    }
+
+    @Test
+    public void decodesExtendedReport() throws IOException {
+        Recorder recorder = parse(EXTENDED);
+        assertEquals(1, recorder.count);
+        assertEquals(0xc10000000003L, recorder.address);
+        assertEquals(-70, recorder.rssi);
+        assertEquals(2, recorder.frame.major);
+        assertEquals(1, recorder.frame.minor);
+        assertEquals(-65, recorder.frame.txPower);
+    }
+
+    @Test
+    public void skipsReportsWithoutRssi() throws IOException {
+        assertEquals(0, parse(LEGACY.substring(0, LEGACY.length() - 2) + "7F").count);
+        assertEquals(0, parse(EXTENDED.replace("FF 7F BA 00", "FF 7F 7F 00")).count);
+    }
+
+    @Test
+    public void ignoresOtherEvents() throws IOException {
+        assertEquals(0, parse("04 0E 04 01 0B 20 00").count);
+        assertEquals(0, parse("04 3E 0A 01 00 00 00 00 00 00 00 00 00 00").count);
+    }
+
+    @Test
+    public void stopsAtTruncatedReport() throws IOException {
+        // Claims two reports, but only has room for one.
+        String twoReports = "04 3E 2A 02 02" + LEGACY.substring("04 3E 2A 02 01".length());
+        Recorder recorder = parse(twoReports);
+        assertEquals(1, recorder.count);
+    }
+
+    private static Recorder parse(String hex) throws IOException {
+        HciReader reader = HciReader.open(new ByteArrayInputStream(hex.getBytes("UTF-8")), HciReader.FORMAT_HEX);
+        byte[] event = new byte[HciReader.MAX_EVENT_SIZE];
+        int length = reader.next(event);
+        assertTrue(length > 0);
+        Recorder recorder = new Recorder();
+        assertEquals(AdvertisingReports.parse(event, length, recorder), recorder.count);
+        return recorder;
+    }
+
+    private static class Recorder implements ReportHandler {
+        final IBeaconFrame frame = new IBeaconFrame();
+        int count;
+        long address;
+        int rssi;
+
+        @Override
+        public void onReport(long address, int rssi, byte[] data, int offset, int length) {
+            count++;
+            this.address = address;
+            this.rssi = rssi;
+            frame.parse(data, offset, length);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.myriadmobile.library.lantern.gateway;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The bundled replay of an LE scan, in hcidump -R format.
+ */
+class Fixtures {
+
+    static final String VENUE_UUID = "e2c56db5-dffb-48d2-b060-d0f5a71096e0";
+
+    /**
+     * The number of HCI events in the fixture, including the command complete events.
+     */
+    static final int EVENTS = 53;
+
+    /**
+     * The number of advertising reports with an RSSI, from iBeacons and other devices.
+     */
+    static final int REPORTS = 49;
+
+    static InputStream hex() {
+        InputStream in = Fixtures.class.getResourceAsStream("/hci_adv_reports.txt");
+        if (in == null) {
+            throw new IllegalStateException("Missing fixture hci_adv_reports.txt");
+        }
+        return in;
+    }
+
+    /**
+     * The same events as raw H4 packets.
+     */
+    static InputStream binary() throws IOException {
+        HciReader reader = HciReader.open(hex(), HciReader.FORMAT_HEX);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // A command the reader has to skip.
+        out.write(new byte[]{0x01, 0x0c, 0x20, 0x02, 0x01, 0x00});
+        byte[] event = new byte[HciReader.MAX_EVENT_SIZE];
+        int length;
+        while ((length = reader.next(event)) >= 0) {
+            out.write(HciReader.PACKET_TYPE_EVENT);
+            out.write(event, 0, length);
+        }
+        reader.close();
+        return new ByteArrayInputStream(out.toByteArray());
+    }
+}
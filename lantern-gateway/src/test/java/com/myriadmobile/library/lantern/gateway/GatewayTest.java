@@ -0,0 +1,113 @@
+package com.myriadmobile.library.lantern.gateway;
+
+import com.myriadmobile.library.lantern.BeaconTracker;
+import com.myriadmobile.library.lantern.TrackedBeacon;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class GatewayTest {
+
+    @Test
+    public void tracksBeaconsFromReplay() throws IOException {
+        RecordingListener listener = new RecordingListener();
+        Gateway gateway = run(4, listener, HciReader.open(Fixtures.hex(), HciReader.FORMAT_HEX));
+
+        assertEquals(Fixtures.EVENTS, gateway.getEventCount());
+        assertEquals(Fixtures.REPORTS, gateway.getReportCount());
+        assertEquals(4, gateway.getSnapshot().getBeacons().size());
+        assertEquals(4, listener.detected.size());
+        assertTrue(listener.detected.contains("1.1"));
+        assertTrue(listener.detected.contains("2.1"));
+        assertTrue(listener.expired.isEmpty());
+        assertNull(gateway.getFailure());
+    }
+
+    @Test
+    public void binaryReplayMatchesHex() throws IOException {
+        RecordingListener listener = new RecordingListener();
+        Gateway gateway = run(2, listener, HciReader.open(Fixtures.binary(), HciReader.FORMAT_BINARY));
+
+        assertEquals(Fixtures.REPORTS, gateway.getReportCount());
+        assertEquals(4, listener.detected.size());
+    }
+
+    @Test
+    public void appliesUuidFilter() throws IOException {
+        RecordingListener listener = new RecordingListener();
+        Gateway gateway = new Gateway(3, 60000, listener);
+        gateway.setUuidFilter(Fixtures.VENUE_UUID);
+        gateway.start();
+        gateway.ingest(HciReader.open(Fixtures.hex(), HciReader.FORMAT_HEX));
+        gateway.close();
+
+        assertEquals(3, listener.detected.size());
+        for (TrackedBeacon beacon : gateway.getSnapshot().getBeacons()) {
+            assertEquals(Fixtures.VENUE_UUID, beacon.getUuid());
+        }
+    }
+
+    @Test
+    public void beaconAlwaysHandledBySameShard() throws IOException {
+        RecordingListener listener = new RecordingListener();
+        // A tiny queue, so feeding keeps waiting on the workers.
+        Gateway gateway = new Gateway(8, 2, 60000, listener);
+        gateway.start();
+        gateway.ingest(HciReader.open(Fixtures.hex(), HciReader.FORMAT_HEX));
+        gateway.close();
+
+        for (Map.Entry<String, Set<String>> entry : listener.threads.entrySet()) {
+            assertEquals(entry.getKey(), 1, entry.getValue().size());
+        }
+        assertEquals(4, listener.detected.size());
+    }
+
+    private static Gateway run(int shards, BeaconTracker.Listener listener, HciReader reader) throws IOException {
+        Gateway gateway = new Gateway(shards, 60000, listener);
+        gateway.start();
+        try {
+            gateway.ingest(reader);
+        } finally {
+            reader.close();
+            gateway.close();
+        }
+        return gateway;
+    }
+
+    private static class RecordingListener implements BeaconTracker.Listener {
+        final Set<String> detected = new HashSet<String>();
+        final Set<String> expired = new HashSet<String>();
+        final Map<String, Set<String>> threads = new HashMap<String, Set<String>>();
+
+        @Override
+        public synchronized void onBeaconDetected(TrackedBeacon beacon) {
+            detected.add(beacon.getMajor() + "." + beacon.getMinor());
+            onBeaconChanged(beacon);
+        }
+
+        @Override
+        public synchronized void onBeaconChanged(TrackedBeacon beacon) {
+            String key = beacon.getUuid() + ":" + beacon.getMajor() + "." + beacon.getMinor();
+            Set<String> names = threads.get(key);
+            if (names == null) {
+                names = new HashSet<String>();
+                threads.put(key, names);
+            }
+            names.add(Thread.currentThread().getName());
+        }
+
+        @Override
+        public synchronized void onBeaconExpired(TrackedBeacon beacon) {
+            expired.add(beacon.getMajor() + "." + beacon.getMinor());
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.myriadmobile.library.lantern.gateway;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertEquals;
+
+public class HciReaderTest {
+
+    @Test
+    public void readsHexDump() throws IOException {
+        assertEquals(Fixtures.EVENTS, count(HciReader.open(Fixtures.hex(), HciReader.FORMAT_HEX)));
+    }
+
+    @Test
+    public void readsBinary() throws IOException {
+        assertEquals(Fixtures.EVENTS, count(HciReader.open(Fixtures.binary(), HciReader.FORMAT_BINARY)));
+    }
+
+    @Test
+    public void joinsContinuationLines() throws IOException {
+        HciReader reader = hex("> 04 3E 05 02\n  01 03 00\n    00 00\n");
+        byte[] event = new byte[HciReader.MAX_EVENT_SIZE];
+        assertEquals(7, reader.next(event));
+        assertEquals(0x3e, event[0]);
+        assertEquals(0x00, event[6]);
+        assertEquals(-1, reader.next(event));
+    }
+
+    @Test
+    public void dropsIncompleteEvents() throws IOException {
+        HciReader reader = hex("> 04 0E 04 01 0B\n> 04 0E 01 07\n");
+        byte[] event = new byte[HciReader.MAX_EVENT_SIZE];
+        assertEquals(3, reader.next(event));
+        assertEquals(0x07, event[2]);
+        assertEquals(-1, reader.next(event));
+    }
+
+    @Test
+    public void acceptsLinesWithoutDirection() throws IOException {
+        assertEquals(2, count(hex("04 0E 01 07\r\n# comment\n\n040E0108\n")));
+    }
+
+    @Test(expected = EOFException.class)
+    public void binaryFailsOnTruncatedPacket() throws IOException {
+        count(HciReader.open(new ByteArrayInputStream(new byte[]{0x04, 0x0e, 0x04, 0x01}), HciReader.FORMAT_BINARY));
+    }
+
+    @Test(expected = IOException.class)
+    public void binaryFailsOnUnknownPacketType() throws IOException {
+        count(HciReader.open(new ByteArrayInputStream(new byte[]{0x09, 0x00}), HciReader.FORMAT_BINARY));
+    }
+
+    private static HciReader hex(String text) throws IOException {
+        InputStream in = new ByteArrayInputStream(text.getBytes("UTF-8"));
+        return HciReader.open(in, HciReader.FORMAT_HEX);
+    }
+
+    private static int count(HciReader reader) throws IOException {
+        byte[] event = new byte[HciReader.MAX_EVENT_SIZE];
+        int count = 0;
+        while (reader.next(event) >= 0) {
+            count++;
+        }
+        reader.close();
+        return count;
+    }
+}
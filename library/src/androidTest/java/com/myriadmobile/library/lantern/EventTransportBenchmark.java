@@ -0,0 +1,116 @@
+package com.myriadmobile.library.lantern;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares how long events take to reach a receiver, and how many get through per second, with
+ * the local transport and with package broadcasts. Needs a device, since broadcasts go through
+ * the system. The results are logged under "EventTransportBenchmark".
+ */
+public class EventTransportBenchmark extends AndroidTestCase {
+
+    private static final String TAG = "EventTransportBenchmark";
+    private static final String ACTION = "com.myriadmobile.library.lantern.benchmark_action";
+    private static final String SENT_EXTRA = "sent";
+    private static final int EVENTS = 2000;
+
+    public void testLocalTransport() throws InterruptedException {
+        final LocalEventTransport transport = LocalEventTransport.getInstance(getContext());
+        Result result = run(transport, new Registrar() {
+            @Override
+            public void register(BroadcastReceiver receiver, IntentFilter filter) {
+                transport.registerReceiver(receiver, filter);
+            }
+
+            @Override
+            public void unregister(BroadcastReceiver receiver) {
+                transport.unregisterReceiver(receiver);
+            }
+        });
+        Log.i(TAG, "Local: " + result);
+    }
+
+    public void testBroadcastTransport() throws InterruptedException {
+        final Context context = getContext();
+        Result result = run(new BroadcastEventTransport(context), new Registrar() {
+            @Override
+            public void register(BroadcastReceiver receiver, IntentFilter filter) {
+                context.registerReceiver(receiver, filter);
+            }
+
+            @Override
+            public void unregister(BroadcastReceiver receiver) {
+                context.unregisterReceiver(receiver);
+            }
+        });
+        Log.i(TAG, "Broadcast: " + result);
+    }
+
+    private Result run(EventTransport transport, Registrar registrar) throws InterruptedException {
+        final CountDownLatch received = new CountDownLatch(EVENTS);
+        final long[] latencies = new long[EVENTS];
+        BroadcastReceiver receiver = new BroadcastReceiver() {
+            private int count;
+
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                long latency = SystemClock.elapsedRealtimeNanos() - intent.getLongExtra(SENT_EXTRA, 0);
+                if (count < EVENTS) {
+                    latencies[count++] = latency;
+                }
+                received.countDown();
+            }
+        };
+        registrar.register(receiver, new IntentFilter(ACTION));
+        try {
+            IBeacon beacon = new IBeacon("e2c56db5-dffb-48d2-b060-d0f5a71096e0", 1, 2, -59, -70);
+            long start = SystemClock.elapsedRealtimeNanos();
+            for (int i = 0; i < EVENTS; i++) {
+                Intent intent = new Intent(ACTION);
+                intent.putExtra(BeaconService.BEACON_RECEIVER_EXTRA, beacon);
+                intent.putExtra(SENT_EXTRA, SystemClock.elapsedRealtimeNanos());
+                transport.send(intent);
+            }
+            assertTrue(received.await(60, TimeUnit.SECONDS));
+            long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+            Arrays.sort(latencies);
+            return new Result(latencies[EVENTS / 2], latencies[EVENTS * 99 / 100], EVENTS * 1e9 / elapsed);
+        } finally {
+            registrar.unregister(receiver);
+        }
+    }
+
+    private interface Registrar {
+        void register(BroadcastReceiver receiver, IntentFilter filter);
+
+        void unregister(BroadcastReceiver receiver);
+    }
+
+    private static class Result {
+        final long medianNanos;
+        final long p99Nanos;
+        final double eventsPerSecond;
+
+        Result(long medianNanos, long p99Nanos, double eventsPerSecond) {
+            this.medianNanos = medianNanos;
+            this.p99Nanos = p99Nanos;
+            this.eventsPerSecond = eventsPerSecond;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("median %.1f us, p99 %.1f us, %.0f events/s",
+                    medianNanos / 1000.0, p99Nanos / 1000.0, eventsPerSecond);
+        }
+    }
+}
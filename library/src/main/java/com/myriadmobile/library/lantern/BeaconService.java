@@ -25,41 +25,60 @@
 package com.myriadmobile.library.lantern;
 
 
-import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
-import android.app.AlarmManager;
+import android.app.Activity;
+import android.app.ActivityManager;
+import android.app.Application;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.le.BluetoothLeScanner;
-import android.bluetooth.le.ScanCallback;
-import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
 import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.os.Binder;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.Message;
+import android.os.Messenger;
 import android.os.Parcel;
+import android.os.ParcelFileDescriptor;
+import android.os.PowerManager;
+import android.os.Process;
+import android.os.RemoteException;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
-import java.util.Calendar;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Service that performs bluetooth low energy scans, if something is detected it is determined
- * if that object is an iBeacon. If so, it sends a broadcast containing the beacon,
- * and an expiration broadcast once that beacon is no longer detected for a certain amount of time,
- * which also contains that beacon. If a beacon's RSSI changes, meaning the distance is likely
- * different, a broadcast with that beacon and it's updated RSSI is also sent.
+ * if that object is an iBeacon. If so, it sends an event containing the beacon,
+ * and an expiration event once that beacon is no longer detected for a certain amount of time,
+ * which also contains that beacon. If a beacon moves into another proximity zone, an event
+ * with that beacon and it's updated proximity is also sent. Events go through the
+ * {@link LocalEventTransport} unless package broadcasts were asked for.
  */
 public class BeaconService extends Service {
 
@@ -68,11 +87,6 @@ public class BeaconService extends Service {
      */
     public static final String BEACON_DETECTED_RECEIVER_ACTION = "com.myriadmobile.library.lantern.beacon_detected_receiver_action";
 
-    /**
-     * Tag for expired beacon broadcast.
-     */
-    private static final String BEACON_EXPIRATION_RECEIVER_PRIVATE = "com.myriadmobile.library.lantern.beacon_expiration_receiver_action_private";
-
     /**
      * Tag for expired beacon broadcast.
      */
@@ -83,11 +97,62 @@ public class BeaconService extends Service {
      */
     public static final String BEACON_SERVICE_STATUS_ACTION = "com.myriadmobile.library.lantern.beacon_service_status_action";
 
+    /**
+     * Tag for when a rule fires, with the beacon and the rule's id in the extras.
+     */
+    public static final String RULE_FIRED_ACTION = "com.myriadmobile.library.lantern.rule_fired_action";
+
+    /**
+     * Tag to get the id of the rule that fired out of extras.
+     */
+    public static final String RULE_ID_EXTRA = "com.myriadmobile.library.lantern.rule_id_extra";
+
+    /**
+     * How often, in milliseconds, rules with a dwell time are checked for beacons that haven't
+     * changed, and cooldowns of beacons that left are forgotten.
+     */
+    private static final long RULE_CHECK_INTERVAL = 5000;
+
     /**
      * Tag to get beacon out of extras.
      */
     public static final String BEACON_RECEIVER_EXTRA = "com.myriadmobile.library.lantern.beacon_receiver_extra";
 
+    /**
+     * Message a bound client sends, with a replyTo messenger, to get the snapshot region.
+     */
+    public static final int MSG_GET_SNAPSHOT_REGION = 1;
+
+    /**
+     * The reply to {@link #MSG_GET_SNAPSHOT_REGION}, carrying the region in its data.
+     */
+    public static final int MSG_SNAPSHOT_REGION = 2;
+
+    /**
+     * Tag to get the read-only {@link ParcelFileDescriptor} of the snapshot region out of the reply.
+     */
+    public static final String BEACON_SNAPSHOT_REGION_EXTRA = "com.myriadmobile.library.lantern.beacon_snapshot_region_extra";
+
+    /**
+     * Tag to get the size in bytes of the snapshot region out of the reply.
+     */
+    public static final String BEACON_SNAPSHOT_SIZE_EXTRA = "com.myriadmobile.library.lantern.beacon_snapshot_size_extra";
+
+    /**
+     * The most beacons the snapshot region holds.
+     */
+    public static final int SNAPSHOT_CAPACITY = 512;
+
+    /**
+     * The most often, in milliseconds, the snapshot region is rewritten while beacons change.
+     */
+    public static final int SNAPSHOT_INTERVAL = 250;
+
+    /**
+     * The oldest, in milliseconds, a batched scan result is taken to be.
+     */
+    private static final long MAX_BATCH_AGE = 60000;
+
     /**
      * Tag to get beacon out of extras.
      */
@@ -113,274 +178,720 @@ public class BeaconService extends Service {
      */
     public static final int BEACON_STATUS_NOT_SCANNING = 3;
 
+    /**
+     * Tag for when the service is waiting for bluetooth to be turned on status broadcast.
+     */
+    public static final int BEACON_STATUS_BLUETOOTH_OFF = 4;
+
+    /**
+     * Tag for when a scan failed and the service is waiting to retry status broadcast.
+     */
+    public static final int BEACON_STATUS_RECOVERING = 5;
+
     /**
      * The device's bluetooth adapter.
      */
     private BluetoothAdapter bluetoothAdapter;
 
     /**
-     * List of currently active beacons.
+     * Keeps track of the currently active beacons.
      */
-    private List<IBeacon> detectedBeacons;
+    private BeaconTracker tracker;
 
     /**
-     * Callback when a bluetooth low energy device is detected.
+     * Expires the beacons that haven't been seen for the expiration interval.
      */
-    private BluetoothAdapter.LeScanCallback scanCallback;
+    private Runnable expirationRunnable;
 
     /**
-     * Whether the service is currently scanning for beacons.
+     * When the expiration runnable is due, or Long.MAX_VALUE if it isn't scheduled.
      */
-    private boolean isScanning;
+    private long nextExpirationTime = Long.MAX_VALUE;
 
     /**
-     * Toggles between scan and no scan.
+     * Where the advertisements come from.
      */
-    private boolean scanToggle = true;
+    private ScanSource scanSource;
 
     /**
-     * Is true when near a beacon. Decreases the interval between scans.
+     * The handler the scan controller runs on.
      */
-    private boolean inFastScanMode = false;
+    private Handler scanHandler;
 
     /**
-     * The handler for the scanning runnable.
+     * Drives the scan duty cycle and recovers from scan failures.
      */
-    private Handler scanHandler;
+    private ScanController scanController;
 
     /**
-     * The runnable for the scanning.
+     * Receives bluetooth adapter state changes.
      */
-    private Runnable scanRunnable;
+    private BluetoothStateReceiver bluetoothStateReceiver;
 
     /**
-     * The time in milliseconds between the scans.
+     * Picks the foreground, background or idle scan profile.
      */
-    private int scanInterval;
+    private ScanProfileSelector profileSelector;
 
     /**
-     * The interval between scans when in fast scan mode.
+     * Merges the profiles of every Lantern instance scanning, and fans the tracker's changes out
+     * to them.
      */
-    private int fastScanInterval;
+    private ScanMultiplexer multiplexer;
 
     /**
-     * The amount of time to scan for.
+     * Tells the profile selector when the app's activities are shown and hidden.
      */
-    private int scanTime;
+    private VisibilityCallbacks visibilityCallbacks;
 
     /**
-     * If not null, only send broadcasts for beacons that have this uuid.
+     * Tells the profile selector when the screen turns off and on.
      */
-    private String uuidFilter;
+    private ScreenStateReceiver screenStateReceiver;
 
     /**
      * The time in milliseconds that a beacon will remain active since the last time it was detected.
      */
     private int expirationInterval;
 
+    /**
+     * Records the raw advertisements if capturing was turned on, otherwise null.
+     */
+    private CaptureRecorder captureRecorder;
+
     /**
      * The shared preferences that are written to by the beacon service config object.
      */
     private SharedPreferences prefs;
 
     /**
-     * Broadcast receiver called when a beacon is expired.
+     * Delivers the detected, expired and status events to the app.
      */
-    private ExpirationReceiver expirationReceiver;
+    private EventTransport eventTransport;
 
+    /**
+     * Publishes the tracker's changes to Reactive Streams subscribers.
+     */
+    private BeaconStream beaconStream;
+
+    /**
+     * A read-only descriptor of the file the snapshot region is mapped from, handed to bound clients.
+     */
+    private ParcelFileDescriptor snapshotDescriptor;
+
+    /**
+     * Publishes the active beacons into the snapshot region, or null if it couldn't be mapped.
+     */
+    private SnapshotRegion.Writer snapshotWriter;
+
+    /**
+     * Publishes the active beacons, at most every {@link #SNAPSHOT_INTERVAL}.
+     */
+    private Runnable snapshotRunnable;
+
+    /**
+     * Whether the snapshot runnable is scheduled. Guarded by the tracker.
+     */
+    private boolean snapshotPending;
+
+    /**
+     * Puts the tracker's changes together into visits, or null if no visit directory was set.
+     */
+    private VisitAggregator visitAggregator;
+
+    /**
+     * Where the visits and their rollups are written.
+     */
+    private VisitStore visitStore;
+
+    /**
+     * Writes the visit store out, off the main thread.
+     */
+    private ExecutorService visitWriter;
+
+    /**
+     * Uploads the tracker's changes in batches, or null if no export was set.
+     */
+    private ExportQueue exportQueue;
+
+    /**
+     * Evaluates the app's rules against the tracker's changes, or null if there are none.
+     */
+    private RuleEngine ruleEngine;
+
+    /**
+     * The app's metadata cache, or null if it didn't set one.
+     */
+    private MetadataCache<?> metadataCache;
+
+    /**
+     * Checks the rules with a dwell time, every {@link #RULE_CHECK_INTERVAL}.
+     */
+    private Runnable ruleRunnable;
+
+    /**
+     * Hands the finished rollups to the store and flushes it, every minute.
+     */
+    private Runnable visitRunnable;
+
+    /**
+     * Answers bound clients.
+     */
+    private final Messenger messenger = new Messenger(new ClientHandler());
+
+    /**
+     * What clients bind to, only letting the allowed ones through to the messenger.
+     */
+    private final IBinder clientBinder = new ClientBinder(messenger.getBinder());
+
+    /**
+     * The permission the service is declared with in the manifest, or null if there is none.
+     */
+    private volatile String clientPermission;
 
-    private ScanCallback lollipopScanCallback;
-    private boolean isNewApi;
-    BluetoothLeScanner scanner;
-    ScanSettings settings;
 
-    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
     @Override
     public void onCreate() {
         super.onCreate();
 
         prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        eventTransport = prefs.getInt(Lantern.PREF_EVENT_TRANSPORT, Lantern.TRANSPORT_LOCAL) == Lantern.TRANSPORT_BROADCAST
+                ? new BroadcastEventTransport(this) : LocalEventTransport.getInstance(this);
+        beaconStream = Lantern.getBeaconStream();
 
-        scanInterval = prefs.getInt(Lantern.PREF_SCAN_INTERVAL, 20000);
         expirationInterval = prefs.getInt(Lantern.PREF_EXPIRATION_INTERVAL, 60000);
-        fastScanInterval = prefs.getInt(Lantern.PREF_FAST_SCAN_INTERVAL, 5000);
-        scanTime = prefs.getInt(Lantern.PREF_SCAN_TIME, 5000);
-        uuidFilter = prefs.getString(Lantern.PREF_UUID_FILTER, null);
-
-        if (Build.VERSION.SDK_INT >= 21) {
-            isNewApi = true;
+        String captureDirectory = prefs.getString(Lantern.PREF_CAPTURE_DIRECTORY, null);
+        if (captureDirectory != null) {
+            try {
+                captureRecorder = new CaptureRecorder(new File(captureDirectory));
+            } catch (IOException e) {
+                Log.e("auto", "BeaconService > onCreate() > Could not start capture", e);
+            }
         }
 
+        Distance.setProfile(loadCalibrationProfile());
+        ProximityZones zones = loadProximityZones();
+        Distance.setZones(zones);
+
         scanHandler = new Handler();
-        scanRunnable = new Runnable() {
-            @Override
-            public void run() {
-                scanForBeacons();
+
+        // Check if the device has bluetooth, if not, stop the service. If bluetooth is only
+        // turned off, wait for it to be turned back on.
+        bluetoothAdapter = getBluetoothAdapter();
+        if (bluetoothAdapter != null) {
+            tracker = new BeaconTracker(expirationInterval, new TrackerListener());
+            tracker.setProximityZones(zones);
+            beaconStream.setSource(new TrackerSource());
+            multiplexer = Lantern.getScanMultiplexer();
+            profileSelector = new ScanProfileSelector(loadScanProfile(ScanProfileSelector.FOREGROUND),
+                    loadScanProfile(ScanProfileSelector.BACKGROUND), loadScanProfile(ScanProfileSelector.IDLE),
+                    new ProfileListener());
+            multiplexer.setSelected(profileSelector.getSelected());
+            multiplexer.setListener(new MultiplexerListener());
+            ScanProfile profile = profileSelector.getProfile();
+            tracker.setUuidFilter(profile.getUuidFilter());
+            loadAllowlist();
+            if (prefs.getBoolean(Lantern.PREF_ADAPTIVE_EXPIRY, true)) {
+                AdaptiveExpiry adaptiveExpiry = new AdaptiveExpiry();
+                adaptiveExpiry.setScanPause(profile.getFastScanInterval());
+                tracker.setAdaptiveExpiry(adaptiveExpiry);
             }
-        };
-        // Callback that is called when the scan find something.
-        scanCallback = new BluetoothAdapter.LeScanCallback() {
-            @Override
-            public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
-
-                // Try to make a beacon object, if it comes back null,
-                // then it is not a beacon, so do nothing.
-                IBeacon temp = IBeacon.fromScanData(scanRecord, rssi, device);
-                if (temp != null) {
-                    // Check if there is a uuid filter, if there isn't continue,
-                    // if there is and it matches the beacon, continue.
-                    if (uuidFilter == null || (uuidFilter.equals(temp.getUuid()))) {
-
-                        // Set the beacons expiration time.
-                        temp.setExpirationTime(Calendar.getInstance().getTimeInMillis() + expirationInterval);
-
-                        // Check if the beacon is active, if not make it active.
-                        if (!detectedBeacons.contains(temp)) {
-                            detectedBeacons.add(temp);
-                            sendDetectedBeaconBroadcast(temp);
-                        }
-                        // Check if the beacon is active, if it is check if the distance has changed.
-                        // If so, update it and send a new broadcast.
-                        else if (detectedBeacons.contains(temp) && rssi != detectedBeacons.get(detectedBeacons.indexOf(temp)).getRssi()) {
-                            detectedBeacons.remove(temp);
-                            detectedBeacons.add(temp);
-                            sendDetectedBeaconBroadcast(temp);
-                        }
-                        setupBeaconExpiration(temp);
-                    }
-                }
+            int historyBeacons = prefs.getInt(Lantern.PREF_RSSI_HISTORY_BEACONS, RssiHistory.DEFAULT_BEACONS);
+            if (historyBeacons > 0) {
+                tracker.setRssiHistory(new RssiHistory(historyBeacons,
+                        prefs.getInt(Lantern.PREF_RSSI_HISTORY_SAMPLES, RssiHistory.DEFAULT_SAMPLES_PER_BEACON)));
+                Lantern.setRssiHistory(tracker.getRssiHistory());
             }
-        };
-        if (isNewApi) {
-            lollipopScanCallback = new ScanCallback() {
-                /**
-                 * Callback when a BLE advertisement has been found.
-                 *
-                 * @param callbackType Determines how this callback was triggered. Currently could only be
-                 *                     {@link android.bluetooth.le.ScanSettings#CALLBACK_TYPE_ALL_MATCHES}.
-                 * @param result       A Bluetooth LE scan result.
-                 */
+            visitAggregator = openVisitAggregator(zones);
+            exportQueue = openExportQueue();
+            ruleEngine = loadRules(zones);
+            metadataCache = Lantern.getMetadataCache();
+            snapshotWriter = mapSnapshotRegion();
+            snapshotRunnable = new Runnable() {
                 @Override
-                public void onScanResult(int callbackType, ScanResult result) {
-                    super.onScanResult(callbackType, result);
-                    Log.i("auto", "BeaconService > onScanResult() > result!");
-                    IBeacon temp = IBeacon.fromScanData(result.getScanRecord().getBytes(), result.getRssi(), result.getDevice());
-                    if (temp != null) {
-                        Log.v("auto", "BeaconService > onScanResult() > Wooooo!!!");
-                        // Check if there is a uuid filter, if there isn't continue,
-                        // if there is and it matches the beacon, continue.
-                        if (uuidFilter == null || (uuidFilter.equals(temp.getUuid()))) {
-
-                            // Set the beacons expiration time.
-                            temp.setExpirationTime(Calendar.getInstance().getTimeInMillis() + expirationInterval);
-
-                            // Check if the beacon is active, if not make it active.
-                            if (!detectedBeacons.contains(temp)) {
-                                detectedBeacons.add(temp);
-                                sendDetectedBeaconBroadcast(temp);
-                            }
-                            // Check if the beacon is active, if it is check if the distance has changed.
-                            // If so, update it and send a new broadcast.
-                            else if (detectedBeacons.contains(temp) && result.getRssi() != detectedBeacons.get(detectedBeacons.indexOf(temp)).getRssi()) {
-                                detectedBeacons.remove(temp);
-                                detectedBeacons.add(temp);
-                                sendDetectedBeaconBroadcast(temp);
-                            }
-                            setupBeaconExpiration(temp);
-                        }
-                    } else {
-                        Log.i("auto", "BeaconService > onScanResult() > Temp is null, not an iBeacon");
-                    }
+                public void run() {
+                    publishSnapshot();
                 }
-
-                /**
-                 * Callback when scan could not be started.
-                 *
-                 * @param errorCode Error code (one of SCAN_FAILED_*) for scan failure.
-                 */
+            };
+            expirationRunnable = new Runnable() {
                 @Override
-                public void onScanFailed(int errorCode) {
-                    super.onScanFailed(errorCode);
-                    Log.e("auto", "BeaconService > onScanFailed() > Failed!");
-                    switch (errorCode) {
-                        case 0:
-                            Log.e("auto", "BeaconService > onScanFailed() > Error 0");
-                            break;
-                        case 1:
-                            Log.e("auto", "BeaconService > onScanFailed() > GATT error (1)");
-                            break;
-                        case 2:
-                            Log.e("auto", "BeaconService > onScanFailed() > Error 2 : ");
-                            break;
-                        case 3:
-                            Log.e("auto", "BeaconService > onScanFailed() > Error 3");
-                            break;
-                    }
+                public void run() {
+                    nextExpirationTime = Long.MAX_VALUE;
+                    expireBeacons();
                 }
             };
-        }
+            scanSource = createScanSource(Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP, profile);
+            scanController = new ScanController(new SwitchableScanSource(), new HandlerScheduler(), new ControllerCallback(),
+                    profile.getScanTime(), profile.getScanInterval(), profile.getFastScanInterval());
+            scanController.onBluetoothStateChanged(bluetoothAdapter.isEnabled());
+            bluetoothStateReceiver = new BluetoothStateReceiver();
+            registerReceiver(bluetoothStateReceiver, new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED));
+            scanController.start();
+            if (visitAggregator != null) {
+                visitRunnable = new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (tracker) {
+                            visitAggregator.flush(System.currentTimeMillis());
+                        }
+                        flushVisits();
+                        scanHandler.postDelayed(this, VisitRollup.MINUTE);
+                    }
+                };
+                scanHandler.postDelayed(visitRunnable, VisitRollup.MINUTE);
+            }
+            if (ruleEngine != null && (ruleEngine.hasDwellRules() || ruleEngine.hasCooldowns())) {
+                ruleRunnable = new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (tracker) {
+                            ruleEngine.check(System.currentTimeMillis());
+                        }
+                        scanHandler.postDelayed(this, RULE_CHECK_INTERVAL);
+                    }
+                };
+                scanHandler.postDelayed(ruleRunnable, RULE_CHECK_INTERVAL);
+            }
 
-        // Check if bluetooth is active, if not, stop the service.
-        bluetoothAdapter = getBluetoothAdapter();
-        if (bluetoothAdapter != null) {
-            detectedBeacons = new ArrayList<IBeacon>();
-            expirationReceiver = new ExpirationReceiver();
-            IntentFilter intentFilter = new IntentFilter(BeaconService.BEACON_DETECTED_RECEIVER_ACTION);
-            intentFilter.addAction(BeaconService.BEACON_EXPIRATION_RECEIVER_PRIVATE);
-            registerReceiver(expirationReceiver, intentFilter);
-            if (Build.VERSION.SDK_INT >= 21) {
-                isNewApi = true;
-                scanner = bluetoothAdapter.getBluetoothLeScanner();
-                settings = new ScanSettings.Builder()
-                        .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
-                        .build();
-//                List<ScanFilter> filters = new ArrayList<ScanFilter>();
-            }
-            scanForBeacons();
+            // Registered once scanning, since they may switch the profile straight away.
+            visibilityCallbacks = new VisibilityCallbacks();
+            getApplication().registerActivityLifecycleCallbacks(visibilityCallbacks);
+            screenStateReceiver = new ScreenStateReceiver();
+            IntentFilter screenFilter = new IntentFilter(Intent.ACTION_SCREEN_OFF);
+            screenFilter.addAction(Intent.ACTION_SCREEN_ON);
+            registerReceiver(screenStateReceiver, screenFilter);
+            profileSelector.setDeviceIdle(!isScreenOn());
+            profileSelector.setVisible(visibilityCallbacks.startedBefore);
         } else {
             stopSelf();
         }
     }
 
+    /**
+     * Creates the scan source for the radio.
+     *
+     * @param newApi  Whether to use the scanner added in Lollipop.
+     * @param profile The profile to take the scan mode, batching and filters from.
+     * @return The scan source, delivering to the service.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private ScanSource createScanSource(boolean newApi, ScanProfile profile) {
+        ScanSource source;
+        if (newApi) {
+            ScanSettings.Builder settings = new ScanSettings.Builder()
+                    .setScanMode(profile.getScanMode());
+            if (profile.getReportDelay() > 0 && bluetoothAdapter.isOffloadedScanBatchingSupported()) {
+                settings.setReportDelay(profile.getReportDelay());
+            }
+            source = new LollipopScanSource(bluetoothAdapter, settings.build(),
+                    LollipopScanSource.uuidFilters(profile.getUuidFilter()));
+        } else {
+            source = new LegacyScanSource(bluetoothAdapter);
+        }
+        source.setListener(new ScanSourceListener());
+        return source;
+    }
+
     /**
      * Obtains the bluetooth adapter from the system.
      *
-     * @return The systems default bluetooth adapter.
+     * @return The systems default bluetooth adapter, or null if the device doesn't have bluetooth.
      */
     private BluetoothAdapter getBluetoothAdapter() {
         final BluetoothManager bluetoothManager =
                 (BluetoothManager) this.getApplicationContext().getSystemService(Context.BLUETOOTH_SERVICE);
-        bluetoothAdapter = bluetoothManager.getAdapter();
-        if (bluetoothAdapter.isEnabled()) {
-            return bluetoothAdapter;
+        if (bluetoothManager == null) {
+            return null;
+        }
+        return bluetoothManager.getAdapter();
+    }
+
+    /**
+     * The profile set with {@link Lantern.Builder#withCalibrationProfile(CalibrationProfile)}, or
+     * else the one registered for this device model.
+     */
+    private CalibrationProfile loadCalibrationProfile() {
+        String encoded = prefs.getString(Lantern.PREF_CALIBRATION_PROFILE, null);
+        if (encoded != null) {
+            try {
+                return CalibrationProfile.decode(encoded);
+            } catch (IllegalArgumentException e) {
+                Log.e("auto", "BeaconService > loadCalibrationProfile() > Ignoring bad profile", e);
+            }
+        }
+        return CalibrationProfiles.forModel(Build.MODEL);
+    }
+
+    /**
+     * The zones set with {@link Lantern.Builder#withProximityZones(ProximityZones)}, or else the
+     * default ones.
+     */
+    private ProximityZones loadProximityZones() {
+        String encoded = prefs.getString(Lantern.PREF_PROXIMITY_ZONES, null);
+        if (encoded != null) {
+            try {
+                return ProximityZones.decode(encoded);
+            } catch (IllegalArgumentException e) {
+                Log.e("auto", "BeaconService > loadProximityZones() > Ignoring bad zones", e);
+            }
+        }
+        return ProximityZones.DEFAULT;
+    }
+
+    /**
+     * Sets the list from {@link Lantern.Builder#withAllowlist(File, int)} on the tracker. A large
+     * list takes a while to read and check, so it is loaded on its own thread and an empty list
+     * turns every beacon away until then. If the list can't be read it stays empty: tracking
+     * every beacon instead would let through all the ones the list is there to keep out.
+     */
+    private void loadAllowlist() {
+        final String path = prefs.getString(Lantern.PREF_ALLOWLIST_FILE, null);
+        if (path == null) {
+            return;
+        }
+        final int bloomBits = prefs.getInt(Lantern.PREF_ALLOWLIST_BLOOM_BITS, BeaconAllowlist.DEFAULT_BLOOM_BITS_PER_BEACON);
+        tracker.setAllowlist(new BeaconAllowlist.Builder().build());
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                BeaconAllowlist allowlist;
+                try {
+                    allowlist = BeaconAllowlist.read(new File(path), bloomBits);
+                } catch (IOException e) {
+                    Log.e("auto", "BeaconService > loadAllowlist() > Unreadable allowlist, tracking no beacons", e);
+                    return;
+                }
+                synchronized (tracker) {
+                    tracker.setAllowlist(allowlist);
+                }
+            }
+        }, "lantern-allowlist").start();
+    }
+
+    /**
+     * Opens the store in the directory set with {@link Lantern.Builder#withVisitDirectory(File)}.
+     *
+     * @return The aggregator writing to it, or null if there is no directory or it can't be opened.
+     */
+    private VisitAggregator openVisitAggregator(ProximityZones zones) {
+        String directory = prefs.getString(Lantern.PREF_VISIT_DIRECTORY, null);
+        if (directory == null) {
+            return null;
+        }
+        try {
+            visitStore = new VisitStore(new File(directory));
+        } catch (IOException e) {
+            Log.e("auto", "BeaconService > openVisitAggregator() > Could not open visit store", e);
+            return null;
+        }
+        visitWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "lantern-visits");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        return new VisitAggregator(zones, visitStore);
+    }
+
+    /**
+     * Opens the queue set with {@link Lantern.Builder#withExport(File, URL)}.
+     *
+     * @return The queue, or null if there is no export or it can't be opened.
+     */
+    private ExportQueue openExportQueue() {
+        String directory = prefs.getString(Lantern.PREF_EXPORT_DIRECTORY, null);
+        String url = prefs.getString(Lantern.PREF_EXPORT_URL, null);
+        if (directory == null || url == null) {
+            return null;
+        }
+        try {
+            return new ExportQueue.Builder(new File(directory), new HttpExportUploader(new URL(url))).build();
+        } catch (IOException e) {
+            Log.e("auto", "BeaconService > openExportQueue() > Could not open export queue", e);
+            return null;
+        }
+    }
+
+    /**
+     * Reads the rules set with {@link Lantern.Builder#withRule(BeaconRule)}.
+     *
+     * @return The engine evaluating them, or null if there are none.
+     */
+    private RuleEngine loadRules(ProximityZones zones) {
+        String encoded = prefs.getString(Lantern.PREF_RULES, null);
+        if (encoded == null) {
+            return null;
+        }
+        List<BeaconRule> rules = new ArrayList<BeaconRule>();
+        for (String line : encoded.split("\n")) {
+            try {
+                rules.add(BeaconRule.decode(line));
+            } catch (IllegalArgumentException e) {
+                Log.e("auto", "BeaconService > loadRules() > Ignoring unreadable rule", e);
+            }
+        }
+        return new RuleEngine(rules, zones, TimeZone.getDefault(), new RuleListener());
+    }
+
+    /**
+     * Writes out the visits and rollups the store has been handed.
+     */
+    private void flushVisits() {
+        visitWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    visitStore.flush();
+                } catch (IOException e) {
+                    Log.e("auto", "BeaconService > flushVisits() > Could not write visits", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Maps the snapshot region from a file in the cache directory. Bound clients get a read-only
+     * descriptor of the file and map it themselves, so they can read snapshots without any IPC.
+     *
+     * @return The writer for the region, or null if it couldn't be mapped.
+     */
+    private SnapshotRegion.Writer mapSnapshotRegion() {
+        File snapshotFile = new File(getCacheDir(), "lantern_snapshot");
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(snapshotFile, "rw");
+            int size = SnapshotRegion.sizeFor(SNAPSHOT_CAPACITY);
+            file.setLength(size);
+            // The mapping stays valid after the file is closed.
+            SnapshotRegion.Writer writer = new SnapshotRegion.Writer(file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size));
+            snapshotDescriptor = ParcelFileDescriptor.open(snapshotFile, ParcelFileDescriptor.MODE_READ_ONLY);
+            return writer;
+        } catch (IOException e) {
+            Log.e("auto", "BeaconService > mapSnapshotRegion() > Could not map snapshot region", e);
+            return null;
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    Log.e("auto", "BeaconService > mapSnapshotRegion() > Could not close snapshot file", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Schedules the active beacons to be published into the snapshot region. Must hold the tracker.
+     */
+    private void requestSnapshot() {
+        if (snapshotWriter != null && !snapshotPending) {
+            snapshotPending = true;
+            scanHandler.postDelayed(snapshotRunnable, SNAPSHOT_INTERVAL);
+        }
+    }
+
+    /**
+     * Writes the active beacons into the snapshot region.
+     */
+    private void publishSnapshot() {
+        synchronized (tracker) {
+            snapshotPending = false;
+            snapshotWriter.write(System.currentTimeMillis(), tracker.getBeacons());
+        }
+    }
+
+    /**
+     * The foreground profile set with {@link Lantern.Builder#withForegroundProfile(ScanProfile)},
+     * or else the default one with the intervals set on the builder.
+     */
+    private ScanProfile loadForegroundProfile() {
+        ScanProfile legacy = ScanProfile.FOREGROUND.buildUpon()
+                .withDutyCycle(prefs.getInt(Lantern.PREF_SCAN_TIME, 5000), prefs.getInt(Lantern.PREF_SCAN_INTERVAL, 20000),
+                        prefs.getInt(Lantern.PREF_FAST_SCAN_INTERVAL, 5000))
+                .withUuidFilter(prefs.getString(Lantern.PREF_UUID_FILTER, null))
+                .build();
+        return loadScanProfile(Lantern.PREF_FOREGROUND_PROFILE, legacy);
+    }
+
+    /**
+     * The merged profile of the Lantern instances scanning, or else the one in the preferences,
+     * such as when the system restarted the service.
+     *
+     * @param selected One of the {@link ScanProfileSelector} profiles.
+     */
+    private ScanProfile loadScanProfile(int selected) {
+        ScanProfile merged = multiplexer.getProfile(selected);
+        if (merged != null) {
+            return merged;
+        }
+        switch (selected) {
+            case ScanProfileSelector.BACKGROUND:
+                return loadScanProfile(Lantern.PREF_BACKGROUND_PROFILE, ScanProfile.BACKGROUND);
+            case ScanProfileSelector.IDLE:
+                return loadScanProfile(Lantern.PREF_IDLE_PROFILE, ScanProfile.IDLE);
+            default:
+                return loadForegroundProfile();
+        }
+    }
+
+    private ScanProfile loadScanProfile(String key, ScanProfile fallback) {
+        String encoded = prefs.getString(key, null);
+        if (encoded != null) {
+            try {
+                return ScanProfile.decode(encoded);
+            } catch (IllegalArgumentException e) {
+                Log.e("auto", "BeaconService > loadScanProfile() > Ignoring bad profile " + key, e);
+            }
+        }
+        return fallback;
+    }
+
+    /**
+     * Whether this process is the one the user is looking at.
+     */
+    private boolean isInForeground() {
+        ActivityManager activityManager = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
+        List<ActivityManager.RunningAppProcessInfo> processes = activityManager != null
+                ? activityManager.getRunningAppProcesses() : null;
+        if (processes == null) {
+            return true;
+        }
+        for (ActivityManager.RunningAppProcessInfo process : processes) {
+            if (process.pid == Process.myPid()) {
+                return process.importance == ActivityManager.RunningAppProcessInfo.IMPORTANCE_FOREGROUND;
+            }
+        }
+        return true;
+    }
+
+    @SuppressWarnings("deprecation")
+    private boolean isScreenOn() {
+        PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        return powerManager == null || powerManager.isScreenOn();
+    }
+
+    /**
+     * Switches to another profile without stopping the service. The Lollipop scanner is
+     * restarted with the profile's settings, the duty cycle carries on with its intervals.
+     */
+    private void applyProfile(ScanProfile profile) {
+        synchronized (tracker) {
+            tracker.setUuidFilter(profile.getUuidFilter());
+            if (tracker.getAdaptiveExpiry() != null) {
+                tracker.getAdaptiveExpiry().setScanPause(profile.getFastScanInterval());
+            }
+        }
+        if (!(scanSource instanceof LegacyScanSource)) {
+            boolean scanning = scanController.getState() == ScanController.STATE_SCANNING;
+            if (scanning) {
+                scanSource.stopScan();
+            }
+            scanSource = createScanSource(true, profile);
+            if (scanning && !scanSource.startScan()) {
+                scanController.onScanFailed(ScanController.SCAN_FAILED_START_REJECTED);
+            }
         }
-        return null;
+        scanController.setDutyCycle(profile.getScanTime(), profile.getScanInterval(), profile.getFastScanInterval());
     }
 
     /**
      * Called when service is destroyed and stop all scanning.
      */
-    @SuppressLint("NewApi")
     @Override
     public void onDestroy() {
         super.onDestroy();
-        if (expirationReceiver != null) {
-            unregisterReceiver(expirationReceiver);
+        if (multiplexer != null) {
+            multiplexer.setListener(null);
         }
-        if (bluetoothAdapter != null) {
-            if (isNewApi) {
-                scanner.stopScan(lollipopScanCallback);
-            } else {
-                bluetoothAdapter.stopLeScan(scanCallback);
+        Lantern.setRssiHistory(null);
+        if (bluetoothStateReceiver != null) {
+            unregisterReceiver(bluetoothStateReceiver);
+        }
+        if (visibilityCallbacks != null) {
+            getApplication().unregisterActivityLifecycleCallbacks(visibilityCallbacks);
+        }
+        if (screenStateReceiver != null) {
+            unregisterReceiver(screenStateReceiver);
+        }
+        if (scanController != null) {
+            scanController.stop();
+        }
+        if (captureRecorder != null) {
+            try {
+                captureRecorder.close();
+            } catch (IOException e) {
+                Log.e("auto", "BeaconService > onDestroy() > Could not finish capture", e);
             }
         }
         scanHandler.removeCallbacksAndMessages(null);
+        if (visitAggregator != null) {
+            // The visits end when the beacons were last seen.
+            synchronized (tracker) {
+                visitAggregator.closeAll();
+            }
+            flushVisits();
+            visitWriter.shutdown();
+        }
+        if (exportQueue != null) {
+            // Closing waits for an upload in progress, so not on the main thread. Whatever isn't
+            // uploaded yet is sent when the service starts again.
+            final ExportQueue closing = exportQueue;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        closing.close();
+                    } catch (IOException e) {
+                        Log.e("auto", "BeaconService > onDestroy() > Could not close export queue", e);
+                    }
+                }
+            }, "lantern-export-close").start();
+        }
+        // No expirations will come for the beacons that were active.
+        beaconStream.setSource(null);
+        beaconStream.clear();
+        if (snapshotWriter != null) {
+            // Bound clients still mapping the region see no beacons rather than stale ones.
+            snapshotWriter.write(System.currentTimeMillis(), new ArrayList<TrackedBeacon>(0));
+        }
+        if (snapshotDescriptor != null) {
+            try {
+                snapshotDescriptor.close();
+            } catch (IOException e) {
+                Log.e("auto", "BeaconService > onDestroy() > Could not close snapshot region", e);
+            }
+        }
         sendStatusBroadcast(BEACON_STATUS_OFF);
     }
 
+    /**
+     * Binding gives a {@link Messenger} that hands out the snapshot region, see
+     * {@link BeaconSnapshotClient}. Only the app itself and callers holding the permission the
+     * service is declared with, android:permission in the manifest, can send it messages.
+     */
     @Override
     public IBinder onBind(Intent intent) {
-        return null;
+        try {
+            clientPermission = getPackageManager()
+                    .getServiceInfo(new ComponentName(this, getClass()), 0).permission;
+        } catch (PackageManager.NameNotFoundException e) {
+            clientPermission = null;
+        }
+        return clientBinder;
+    }
+
+    /**
+     * Whether the caller of the binder transaction in progress may read the snapshot region.
+     * Without a permission on the service, only the app's own processes can.
+     */
+    private boolean isClientAllowed() {
+        if (Binder.getCallingUid() == Process.myUid()) {
+            return true;
+        }
+        String permission = clientPermission;
+        return permission != null && checkCallingPermission(permission) == PackageManager.PERMISSION_GRANTED;
     }
 
     /**
@@ -404,49 +915,236 @@ public class BeaconService extends Service {
             case BEACON_STATUS_NOT_SCANNING:
                 broadcastIntent.putExtra(BEACON_SERVICE_STATUS_CHANGE_EXTRA, BEACON_STATUS_NOT_SCANNING);
                 break;
+            case BEACON_STATUS_BLUETOOTH_OFF:
+                broadcastIntent.putExtra(BEACON_SERVICE_STATUS_CHANGE_EXTRA, BEACON_STATUS_BLUETOOTH_OFF);
+                break;
+            case BEACON_STATUS_RECOVERING:
+                broadcastIntent.putExtra(BEACON_SERVICE_STATUS_CHANGE_EXTRA, BEACON_STATUS_RECOVERING);
+                break;
         }
-        sendBroadcast(broadcastIntent);
+        eventTransport.send(broadcastIntent);
     }
 
 
     /**
-     * Scans for beacons. Either it is scanning, or waiting to scan.
+     * Handles the advertisements from the scan source.
      */
-    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
-    private void scanForBeacons() {
-        if (detectedBeacons.size() == 0) {
-            inFastScanMode = false;
-        } else {
-            inFastScanMode = true;
-        }
-        if (scanToggle) {
-            if (inFastScanMode) {
-                sendStatusBroadcast(BEACON_STATUS_FAST_SCANNING);
-            } else {
-                sendStatusBroadcast(BEACON_STATUS_SCANNING);
-            }
-            isScanning = true;
-            scanToggle = false;
-            if (isNewApi) {
-                scanner.startScan(null, settings, lollipopScanCallback);
-            } else {
-                bluetoothAdapter.startLeScan(scanCallback);
-            }
-            scanHandler.postDelayed(scanRunnable, scanTime);
-        } else {
-            sendStatusBroadcast(BEACON_STATUS_NOT_SCANNING);
-            isScanning = false;
-            scanToggle = true;
-            if (isNewApi) {
-                scanner.stopScan(lollipopScanCallback);
-            } else {
-                bluetoothAdapter.stopLeScan(scanCallback);
+    private class ScanSourceListener implements ScanSource.Listener {
+
+        @Override
+        public void onAdvertisement(byte[] scanRecord, int rssi, String address, long timestampNanos) {
+            if (captureRecorder != null) {
+                captureRecorder.record(timestampNanos, rssi, address, scanRecord);
             }
-            if (inFastScanMode) {
-                scanHandler.postDelayed(scanRunnable, fastScanInterval);
-            } else {
-                scanHandler.postDelayed(scanRunnable, scanInterval);
+
+            // The old api calls back on a binder thread, the tracker is shared with the scan handler.
+            synchronized (tracker) {
+                TrackedBeacon beacon = tracker.onAdvertisement(scanRecord, rssi, address, receivedAt(timestampNanos));
+                if (beacon != null && beacon.getExpirationTime() < nextExpirationTime) {
+                    // Beacons expire after different times, so this one may be due first.
+                    scanHandler.removeCallbacks(expirationRunnable);
+                    scheduleExpiration(beacon.getExpirationTime());
+                }
+            }
+        }
+
+        /**
+         * The wall clock time an advertisement was received. Batched results are delivered
+         * together, long after they were received, which would throw off the advertising
+         * interval estimates.
+         */
+        private long receivedAt(long timestampNanos) {
+            long now = System.currentTimeMillis();
+            long age = (SystemClock.elapsedRealtimeNanos() - timestampNanos) / 1000000;
+            // Anything older than a batch can be, like a replayed capture, is taken as received now.
+            return age > 0 && age < MAX_BATCH_AGE ? now - age : now;
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            Log.e("auto", "BeaconService > onScanFailed() > Error " + errorCode);
+            if (errorCode == ScanController.SCAN_FAILED_FEATURE_UNSUPPORTED && !(scanSource instanceof LegacyScanSource)) {
+                // Fall back to the old api for the retry.
+                scanSource.stopScan();
+                scanSource = createScanSource(false, profileSelector.getProfile());
+            }
+            scanController.onScanFailed(errorCode);
+        }
+    }
+
+    /**
+     * Hands the scan controller's calls to the current scan source, which changes if the
+     * Lollipop scanner turns out to be unsupported.
+     */
+    private class SwitchableScanSource implements ScanSource {
+
+        @Override
+        public void setListener(Listener listener) {
+        }
+
+        @Override
+        public boolean startScan() {
+            return scanSource.startScan();
+        }
+
+        @Override
+        public void stopScan() {
+            scanSource.stopScan();
+        }
+    }
+
+    /**
+     * Runs the scan controller on the scan handler.
+     */
+    private class HandlerScheduler implements ScanController.Scheduler {
+
+        @Override
+        public void postDelayed(Runnable runnable, long delayMillis) {
+            scanHandler.postDelayed(runnable, delayMillis);
+        }
+
+        @Override
+        public void removeCallbacks(Runnable runnable) {
+            scanHandler.removeCallbacks(runnable);
+        }
+    }
+
+    /**
+     * Turns scan controller states into status broadcasts.
+     */
+    private class ControllerCallback implements ScanController.Callback {
+
+        @Override
+        public void onStateChanged(int state) {
+            switch (state) {
+                case ScanController.STATE_SCANNING:
+                    synchronized (tracker) {
+                        tracker.onScanWindowStarted(System.currentTimeMillis());
+                    }
+                    sendStatusBroadcast(hasActiveBeacons() ? BEACON_STATUS_FAST_SCANNING : BEACON_STATUS_SCANNING);
+                    break;
+                case ScanController.STATE_WAITING:
+                    sendStatusBroadcast(BEACON_STATUS_NOT_SCANNING);
+                    break;
+                case ScanController.STATE_RECOVERING:
+                    sendStatusBroadcast(BEACON_STATUS_RECOVERING);
+                    break;
+                case ScanController.STATE_BLUETOOTH_OFF:
+                    sendStatusBroadcast(BEACON_STATUS_BLUETOOTH_OFF);
+                    break;
+            }
+        }
+
+        @Override
+        public boolean hasActiveBeacons() {
+            synchronized (tracker) {
+                return tracker.size() != 0;
+            }
+        }
+    }
+
+    /**
+     * Tells the scan controller when bluetooth is turned on or off. The detected beacons are
+     * kept while bluetooth is off, so nothing is lost once scanning resumes.
+     */
+    private class BluetoothStateReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            int state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.ERROR);
+            if (state == BluetoothAdapter.STATE_ON) {
+                scanController.onBluetoothStateChanged(true);
+            } else if (state == BluetoothAdapter.STATE_TURNING_OFF || state == BluetoothAdapter.STATE_OFF) {
+                scanController.onBluetoothStateChanged(false);
+            }
+        }
+    }
+
+    /**
+     * Switches the scan profile.
+     */
+    private class ProfileListener implements ScanProfileSelector.Listener {
+
+        @Override
+        public void onProfileChanged(ScanProfile profile) {
+            multiplexer.setSelected(profileSelector.getSelected());
+            applyProfile(profile);
+        }
+    }
+
+    /**
+     * Scans with the merged profiles as Lantern instances start and stop scanning.
+     */
+    private class MultiplexerListener implements ScanMultiplexer.Listener {
+
+        @Override
+        public void onProfilesChanged(ScanMultiplexer multiplexer) {
+            // Instances may start scanning from any thread, the selector runs on the main one.
+            scanHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (BeaconService.this.multiplexer.size() != 0) {
+                        profileSelector.setProfiles(loadScanProfile(ScanProfileSelector.FOREGROUND),
+                                loadScanProfile(ScanProfileSelector.BACKGROUND), loadScanProfile(ScanProfileSelector.IDLE));
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Keeps the app's started activities, the app is visible while there is at least one. The
+     * activity that started the service was already started when these callbacks were
+     * registered, so if the app was in the foreground then, it counts as visible until an
+     * activity it never saw start stops.
+     */
+    private class VisibilityCallbacks implements Application.ActivityLifecycleCallbacks {
+
+        private final Set<Activity> started = Collections.newSetFromMap(new IdentityHashMap<Activity, Boolean>());
+        private boolean startedBefore = isInForeground();
+
+        @Override
+        public void onActivityStarted(Activity activity) {
+            started.add(activity);
+            profileSelector.setVisible(true);
+        }
+
+        @Override
+        public void onActivityStopped(Activity activity) {
+            if (!started.remove(activity)) {
+                startedBefore = false;
             }
+            profileSelector.setVisible(startedBefore || !started.isEmpty());
+        }
+
+        @Override
+        public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+        }
+
+        @Override
+        public void onActivityResumed(Activity activity) {
+        }
+
+        @Override
+        public void onActivityPaused(Activity activity) {
+        }
+
+        @Override
+        public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+        }
+
+        @Override
+        public void onActivityDestroyed(Activity activity) {
+        }
+    }
+
+    /**
+     * Treats the screen being off as the device being idle. The doze broadcasts need a newer
+     * sdk than the library compiles against.
+     */
+    private class ScreenStateReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            profileSelector.setDeviceIdle(Intent.ACTION_SCREEN_OFF.equals(intent.getAction()));
         }
     }
 
@@ -461,57 +1159,218 @@ public class BeaconService extends Service {
         extras.putParcelable(BEACON_RECEIVER_EXTRA, beacon);
         intent.putExtras(extras);
         intent.setAction(BEACON_DETECTED_RECEIVER_ACTION);
-        sendBroadcast(intent);
+        eventTransport.send(intent);
     }
 
 
     /**
-     * Sets an alarm for a beacon expiration broadcast to be sent, an amount of time in the future
-     * that the expiration time is set.
+     * Sends a broadcast with the beacon that expired.
      *
-     * @param beacon The beacon to be sent during the expiration broadcast.
+     * @param beacon The beacon to be sent in the broadcast.
      */
-    private void setupBeaconExpiration(IBeacon beacon) {
+    private void sendExpiredBeaconBroadcast(IBeacon beacon) {
+        Bundle extras = new Bundle();
+        extras.putParcelable(BEACON_RECEIVER_EXTRA, beacon);
+        Intent expireIntent = new Intent();
+        expireIntent.setAction(BEACON_EXPIRATION_RECEIVER_ACTION);
+        expireIntent.putExtras(extras);
+        eventTransport.send(expireIntent);
+    }
 
-        Parcel parcel = Parcel.obtain();
-        beacon.writeToParcel(parcel, 0);
-        parcel.setDataPosition(0);
+    /**
+     * Expires the beacons whose expiration time has passed, and schedules the next expiration.
+     */
+    private void expireBeacons() {
+        synchronized (tracker) {
+            long next = tracker.expire(System.currentTimeMillis());
+            if (next != Long.MAX_VALUE) {
+                scheduleExpiration(next);
+            }
+        }
+    }
 
-        Intent intent = new Intent();
-        intent.putExtra(BEACON_RECEIVER_EXTRA, parcel.marshall());
+    /**
+     * Schedules the beacons to be expired at the given time. Expiration times only move forward
+     * as beacons are seen again, so the earliest one is enough, and the beacons due then are
+     * expired together.
+     */
+    private void scheduleExpiration(long expirationTime) {
+        nextExpirationTime = expirationTime;
+        scanHandler.postDelayed(expirationRunnable, Math.max(0, expirationTime - System.currentTimeMillis()));
+    }
 
-        intent.setAction(BEACON_EXPIRATION_RECEIVER_PRIVATE);
-        PendingIntent startPIntent = PendingIntent.getBroadcast(getApplicationContext(), beacon.hashCode(), intent, PendingIntent.FLAG_UPDATE_CURRENT);
-        AlarmManager alarm = (AlarmManager) getApplicationContext().getSystemService(Context.ALARM_SERVICE);
-        alarm.set(AlarmManager.RTC_WAKEUP, beacon.getExpirationTime(), startPIntent);
+    /**
+     * Gives the stream's first snapshot subscriber the tracker's beacons, since the stream doesn't
+     * copy signal changes while nobody subscribes.
+     */
+    private class TrackerSource implements BeaconStream.Source {
 
+        @Override
+        public List<TrackedBeacon> copyActiveBeacons() {
+            synchronized (tracker) {
+                List<TrackedBeacon> beacons = tracker.getBeacons();
+                for (int i = 0; i < beacons.size(); i++) {
+                    beacons.set(i, new TrackedBeacon(beacons.get(i)));
+                }
+                return beacons;
+            }
+        }
     }
 
     /**
-     * Receives expiration broadcast and sends them to the host app.
-     * This is a helper receiver that allows the beacon to be put into a bundle,
-     * since there would be an error if the AlarmManager tried to send it.
+     * Turns changes to the active beacons into events. RSSI changes alone are not sent as events,
+     * only beacons moving between zones, but they do go to the stream and the snapshot region.
      */
-    private class ExpirationReceiver extends BroadcastReceiver {
+    private class TrackerListener implements BeaconTracker.ProximityListener {
+
         @Override
-        public void onReceive(Context context, Intent intent) {
-            if (intent.getAction().equals(BeaconService.BEACON_EXPIRATION_RECEIVER_PRIVATE)) {
-                byte[] byteArrayExtra = intent.getByteArrayExtra(BeaconService.BEACON_RECEIVER_EXTRA);
-                Parcel parcel = Parcel.obtain();
-                parcel.unmarshall(byteArrayExtra, 0, byteArrayExtra.length);
-                parcel.setDataPosition(0);
-                IBeacon beacon = IBeacon.CREATOR.createFromParcel(parcel);
-                detectedBeacons.remove(beacon);
+        public void onBeaconDetected(TrackedBeacon beacon) {
+            sendDetectedBeaconBroadcast(IBeacon.from(beacon));
+            beaconStream.onBeaconDetected(beacon);
+            multiplexer.onBeaconDetected(beacon);
+            if (visitAggregator != null) {
+                visitAggregator.onBeaconDetected(beacon);
+            }
+            if (exportQueue != null) {
+                exportQueue.onBeaconDetected(beacon);
+            }
+            if (ruleEngine != null) {
+                ruleEngine.onBeaconDetected(beacon);
+            }
+            if (metadataCache != null) {
+                metadataCache.onBeaconDetected(beacon);
+            }
+            requestSnapshot();
+        }
+
+        @Override
+        public void onBeaconChanged(TrackedBeacon beacon) {
+            beaconStream.onBeaconChanged(beacon);
+            multiplexer.onBeaconChanged(beacon);
+            if (visitAggregator != null) {
+                visitAggregator.onBeaconChanged(beacon);
+            }
+            if (exportQueue != null) {
+                exportQueue.onBeaconChanged(beacon);
+            }
+            if (ruleEngine != null) {
+                ruleEngine.onBeaconChanged(beacon);
+            }
+            requestSnapshot();
+        }
+
+        @Override
+        public void onProximityChanged(TrackedBeacon beacon, int previousProximity) {
+            sendDetectedBeaconBroadcast(IBeacon.from(beacon));
+            beaconStream.onProximityChanged(beacon, previousProximity);
+            multiplexer.onProximityChanged(beacon, previousProximity);
+            if (visitAggregator != null) {
+                visitAggregator.onProximityChanged(beacon, previousProximity);
+            }
+            if (exportQueue != null) {
+                exportQueue.onProximityChanged(beacon, previousProximity);
+            }
+            if (ruleEngine != null) {
+                ruleEngine.onProximityChanged(beacon, previousProximity);
+            }
+            requestSnapshot();
+        }
+
+        @Override
+        public void onBeaconExpired(TrackedBeacon beacon) {
+            sendExpiredBeaconBroadcast(IBeacon.from(beacon));
+            beaconStream.onBeaconExpired(beacon);
+            multiplexer.onBeaconExpired(beacon);
+            if (visitAggregator != null) {
+                visitAggregator.onBeaconExpired(beacon);
+            }
+            if (exportQueue != null) {
+                exportQueue.onBeaconExpired(beacon);
+            }
+            if (ruleEngine != null) {
+                ruleEngine.onBeaconExpired(beacon);
+            }
+            if (metadataCache != null) {
+                metadataCache.onBeaconExpired(beacon);
+            }
+            requestSnapshot();
+        }
+    }
 
-                Bundle extras = new Bundle();
-                extras.putParcelable(BEACON_RECEIVER_EXTRA, beacon);
-                Intent expireIntent = new Intent();
-                expireIntent.setAction(BEACON_EXPIRATION_RECEIVER_ACTION);
-                expireIntent.putExtras(extras);
-                sendBroadcast(expireIntent);
+    /**
+     * Sends the event for a rule that fired, and the app's intent for it if there is one.
+     */
+    private class RuleListener implements RuleEngine.Listener {
+
+        @Override
+        public void onRuleFired(BeaconRule rule, TrackedBeacon beacon, long time) {
+            Intent intent = new Intent();
+            Bundle extras = new Bundle();
+            extras.putParcelable(BEACON_RECEIVER_EXTRA, IBeacon.from(beacon));
+            extras.putString(RULE_ID_EXTRA, rule.getId());
+            intent.putExtras(extras);
+            intent.setAction(RULE_FIRED_ACTION);
+            eventTransport.send(intent);
+            PendingIntent action = Lantern.getRuleAction(rule.getId());
+            if (action != null) {
+                try {
+                    action.send(BeaconService.this, 0, new Intent().putExtras(extras));
+                } catch (PendingIntent.CanceledException e) {
+                    Log.e("auto", "BeaconService > onRuleFired() > Rule action was cancelled", e);
+                }
             }
         }
     }
 
+    /**
+     * Checks the caller of every transaction before handing it to the messenger. The messenger's
+     * handler runs later on the main thread and, below Lollipop MR1, can't tell who sent a message.
+     */
+    private class ClientBinder extends Binder {
+
+        private final IBinder target;
+
+        ClientBinder(IBinder target) {
+            this.target = target;
+        }
+
+        @Override
+        protected boolean onTransact(int code, Parcel data, Parcel reply, int flags) throws RemoteException {
+            if (!isClientAllowed()) {
+                Log.e("auto", "BeaconService > onTransact() > Refused client without permission, uid "
+                        + Binder.getCallingUid());
+                return false;
+            }
+            return target.transact(code, data, reply, flags);
+        }
+    }
+
+    /**
+     * Replies to bound clients with a read-only descriptor of the snapshot region.
+     */
+    private class ClientHandler extends Handler {
+
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.what != MSG_GET_SNAPSHOT_REGION) {
+                super.handleMessage(msg);
+                return;
+            }
+            if (msg.replyTo == null || snapshotWriter == null) {
+                return;
+            }
+            Message reply = Message.obtain(null, MSG_SNAPSHOT_REGION);
+            Bundle data = new Bundle();
+            // Binder duplicates the descriptor into the client, so the service keeps its own.
+            data.putParcelable(BEACON_SNAPSHOT_REGION_EXTRA, snapshotDescriptor);
+            data.putInt(BEACON_SNAPSHOT_SIZE_EXTRA, SnapshotRegion.sizeFor(SNAPSHOT_CAPACITY));
+            reply.setData(data);
+            try {
+                msg.replyTo.send(reply);
+            } catch (RemoteException e) {
+                Log.e("auto", "BeaconService > handleMessage() > Client went away", e);
+            }
+        }
+    }
 
 }
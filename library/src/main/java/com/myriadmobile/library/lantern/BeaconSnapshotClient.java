@@ -0,0 +1,190 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Binder;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binds to the {@link BeaconService}, possibly in another process, and maps the region the
+ * service publishes the active beacons into. After that, {@link #read()} costs no IPC at all, so
+ * it can be polled at whatever rate suits the client, such as once per frame.
+ * <p/>
+ * The client doesn't start the service, it connects once the service is started with
+ * {@link Lantern#startScan()}. Must be used from a thread with a looper.
+ */
+public class BeaconSnapshotClient {
+
+    private final Context context;
+    private final Intent intent;
+    private final Messenger replyMessenger = new Messenger(new ReplyHandler());
+    private volatile SnapshotRegion.Reader reader;
+    private boolean bound;
+    private boolean local;
+
+    /**
+     * Connects to the service in this app.
+     */
+    public BeaconSnapshotClient(Context context) {
+        this(context, new ComponentName(context, BeaconService.class));
+    }
+
+    /**
+     * Connects to the service in another app. The service has to be exported.
+     */
+    public BeaconSnapshotClient(Context context, ComponentName service) {
+        if (context == null) {
+            throw new IllegalArgumentException("Context cannot be null");
+        }
+        this.context = context;
+        intent = new Intent().setComponent(service);
+    }
+
+    public void connect() {
+        if (!bound) {
+            bound = context.bindService(intent, connection, 0);
+        }
+    }
+
+    public void disconnect() {
+        if (bound) {
+            context.unbindService(connection);
+            bound = false;
+        }
+        reader = null;
+    }
+
+    /**
+     * Whether the region is mapped and {@link #read()} returns the service's beacons.
+     */
+    public boolean isConnected() {
+        return reader != null;
+    }
+
+    /**
+     * The active beacons as of the last time the service published them. Returns the same
+     * snapshot again if nothing has changed since the last call.
+     *
+     * @return The snapshot, or null if not connected yet.
+     */
+    public PresenceSnapshot read() {
+        SnapshotRegion.Reader reader = this.reader;
+        return reader != null ? reader.read() : null;
+    }
+
+    /**
+     * The active beacons, as {@link IBeacon}s like the broadcasts carry.
+     *
+     * @return The beacons, empty if not connected yet.
+     */
+    public List<IBeacon> getBeacons() {
+        PresenceSnapshot snapshot = read();
+        if (snapshot == null) {
+            return new ArrayList<IBeacon>(0);
+        }
+        List<IBeacon> beacons = new ArrayList<IBeacon>(snapshot.size());
+        for (TrackedBeacon beacon : snapshot.getBeacons()) {
+            beacons.add(IBeacon.from(beacon));
+        }
+        return beacons;
+    }
+
+    private void map(ParcelFileDescriptor descriptor, int size) {
+        FileInputStream in = new FileInputStream(descriptor.getFileDescriptor());
+        try {
+            MappedByteBuffer region = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+            reader = new SnapshotRegion.Reader(region);
+        } catch (IOException e) {
+            Log.e("auto", "BeaconSnapshotClient > map() > Could not map snapshot region", e);
+        } finally {
+            // In the same process the descriptor is the service's own, so only close a copy.
+            if (!local) {
+                try {
+                    descriptor.close();
+                } catch (IOException e) {
+                    Log.e("auto", "BeaconSnapshotClient > map() > Could not close descriptor", e);
+                }
+            }
+        }
+    }
+
+    private final ServiceConnection connection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            local = service instanceof Binder;
+            Message request = Message.obtain(null, BeaconService.MSG_GET_SNAPSHOT_REGION);
+            request.replyTo = replyMessenger;
+            try {
+                new Messenger(service).send(request);
+            } catch (RemoteException e) {
+                Log.e("auto", "BeaconSnapshotClient > onServiceConnected() > Service went away", e);
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            // The service will be bound again if it restarts, with a new region.
+            reader = null;
+        }
+    };
+
+    /**
+     * Receives the region from the service.
+     */
+    private class ReplyHandler extends Handler {
+
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.what != BeaconService.MSG_SNAPSHOT_REGION || !bound) {
+                super.handleMessage(msg);
+                return;
+            }
+            Bundle data = msg.getData();
+            data.setClassLoader(ParcelFileDescriptor.class.getClassLoader());
+            ParcelFileDescriptor descriptor = data.getParcelable(BeaconService.BEACON_SNAPSHOT_REGION_EXTRA);
+            if (descriptor != null) {
+                map(descriptor, data.getInt(BeaconService.BEACON_SNAPSHOT_SIZE_EXTRA));
+            }
+        }
+    }
+}
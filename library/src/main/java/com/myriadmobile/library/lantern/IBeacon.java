@@ -105,17 +105,7 @@ public class IBeacon extends Beacon implements Parcelable {
      * @return The distance calculated of the beacon.
      */
     public static double calculateDistance(int txPower, double rssi) {
-        if (rssi == 0) {
-            return -1.0;
-        }
-
-        double ratio = rssi * 1.0 / txPower;
-        if (ratio < 1.0) {
-            return Math.pow(ratio, 10);
-        } else {
-            double distance = (0.89976) * Math.pow(ratio, 7.7095) + 0.111;
-            return distance;
-        }
+        return Distance.estimate(txPower, rssi);
     }
 
     /**
@@ -125,17 +115,7 @@ public class IBeacon extends Beacon implements Parcelable {
      * @return The proximity that was calculated.
      */
     public static int calculateProximity(double distance) {
-        if (distance < 0) {
-            return PROXIMITY_UNKNOWN;
-        }
-        if (distance < 0.5) {
-            return PROXIMITY_IMMEDIATE;
-        }
-        if (distance <= 4.0) {
-            return PROXIMITY_NEAR;
-        }
-        return PROXIMITY_FAR;
-
+        return Distance.toProximity(distance);
     }
 
     /**
@@ -145,14 +125,7 @@ public class IBeacon extends Beacon implements Parcelable {
      * @return The human readable proximity.
      */
     public static String proximityToString(int proximity) {
-        if (proximity == 1) {
-            return "Immediate";
-        } else if (proximity == 2) {
-            return "Near";
-        } else if (proximity == 3) {
-            return "Far";
-        }
-        return "Unknown";
+        return Distance.proximityToString(proximity);
     }
 
 
@@ -165,68 +138,43 @@ public class IBeacon extends Beacon implements Parcelable {
      * @return The beacon object.
      */
     public static IBeacon fromScanData(byte[] scanData, int rssi, BluetoothDevice device) {
-        int startByte = 2;
-        boolean patternFound = false;
-        while (startByte <= 5) {
-            if (((int) scanData[startByte + 2] & 0xff) == 0x02 && ((int) scanData[startByte + 3] & 0xff) == 0x15) {
-                patternFound = true;
-                break;
-            }
-            startByte++;
-        }
-
+        return fromScanData(scanData, rssi, device != null ? device.getAddress() : null);
+    }
 
-        if (!patternFound) {
+    /**
+     * Returns a beacon object from the data obtained from a low energy scan.
+     *
+     * @param rssi              The RSSI of the beacon.
+     * @param bluetoothAddress  The mac address of the beacon, may be null.
+     * @param scanData          The data obtained from the scan.
+     * @return The beacon object, or null if the data isn't from an iBeacon.
+     */
+    public static IBeacon fromScanData(byte[] scanData, int rssi, String bluetoothAddress) {
+        IBeaconFrame frame = new IBeaconFrame();
+        if (!frame.parse(scanData)) {
             return null;
         }
 
         IBeacon iBeacon = new IBeacon();
-
-        iBeacon.major = (scanData[startByte + 20] & 0xff) * 0x100 + (scanData[startByte + 21] & 0xff);
-        iBeacon.minor = (scanData[startByte + 22] & 0xff) * 0x100 + (scanData[startByte + 23] & 0xff);
-        iBeacon.txPower = (int) scanData[startByte + 24]; // this one is signed
+        iBeacon.uuid = frame.getUuid();
+        iBeacon.major = frame.major;
+        iBeacon.minor = frame.minor;
+        iBeacon.txPower = frame.txPower;
         iBeacon.rssi = rssi;
-        iBeacon.distance = calculateDistance(iBeacon.txPower, iBeacon.rssi);
-        iBeacon.proximity = calculateProximity(calculateDistance(iBeacon.txPower, iBeacon.rssi));
-
-
-        byte[] proximityUuidBytes = new byte[16];
-        System.arraycopy(scanData, startByte + 4, proximityUuidBytes, 0, 16);
-        String hexString = bytesToHex(proximityUuidBytes);
-        StringBuilder sb = new StringBuilder();
-        sb.append(hexString.substring(0, 8));
-        sb.append("-");
-        sb.append(hexString.substring(8, 12));
-        sb.append("-");
-        sb.append(hexString.substring(12, 16));
-        sb.append("-");
-        sb.append(hexString.substring(16, 20));
-        sb.append("-");
-        sb.append(hexString.substring(20, 32));
-        iBeacon.uuid = sb.toString();
-
-        if (device != null) {
-            iBeacon.bluetoothAddress = device.getAddress();
-        }
-
+        iBeacon.distance = Distance.estimate(iBeacon.txPower, rssi);
+        iBeacon.proximity = calculateProximity(iBeacon.distance);
+        iBeacon.bluetoothAddress = bluetoothAddress;
         return iBeacon;
     }
 
     /**
-     * Converts bytes to hex.
+     * Returns a beacon object with the current state of a tracked beacon.
      *
-     * @param bytes The bytes to be converted.
-     * @return The hex that was converted from the bytes.
+     * @param trackedBeacon The beacon being tracked by the service.
+     * @return The beacon object.
      */
-    private static String bytesToHex(byte[] bytes) {
-        char[] hexChars = new char[bytes.length * 2];
-        int v;
-        for (int j = 0; j < bytes.length; j++) {
-            v = bytes[j] & 0xFF;
-            hexChars[j * 2] = hexArray[v >>> 4];
-            hexChars[j * 2 + 1] = hexArray[v & 0x0F];
-        }
-        return new String(hexChars);
+    public static IBeacon from(TrackedBeacon trackedBeacon) {
+        return trackedBeacon.copyTo(new IBeacon());
     }
 
     protected IBeacon(Parcel in) {
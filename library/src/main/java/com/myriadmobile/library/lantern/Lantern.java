@@ -1,13 +1,27 @@
 package com.myriadmobile.library.lantern;
 
+import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
 
+import org.reactivestreams.Publisher;
+
+import java.io.File;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
 /*
 * This is the primary class exposed to the end user (The other being Beacon). Everything will
 * be done from here. A single instance of Lantern will only only work for a single kind of beacon.
+* Several instances can scan at once, sharing the service, see {@link #startScan()}.
 */
 public class Lantern {
 
@@ -23,6 +37,39 @@ public class Lantern {
     public static final String PREF_FAST_SCAN_INTERVAL = "com.myriadmobile.library.lantern.fast_scan_interval";
     public static final String PREF_EXPIRATION_INTERVAL = "com.myriadmobile.library.lantern.expiration_interval";
     public static final String PREF_UUID_FILTER = "com.myriadmobile.library.lantern.uuid_filter";
+    public static final String PREF_CAPTURE_DIRECTORY = "com.myriadmobile.library.lantern.capture_directory";
+    public static final String PREF_CALIBRATION_PROFILE = "com.myriadmobile.library.lantern.calibration_profile";
+    public static final String PREF_PROXIMITY_ZONES = "com.myriadmobile.library.lantern.proximity_zones";
+    public static final String PREF_EVENT_TRANSPORT = "com.myriadmobile.library.lantern.event_transport";
+    public static final String PREF_FOREGROUND_PROFILE = "com.myriadmobile.library.lantern.foreground_profile";
+    public static final String PREF_BACKGROUND_PROFILE = "com.myriadmobile.library.lantern.background_profile";
+    public static final String PREF_IDLE_PROFILE = "com.myriadmobile.library.lantern.idle_profile";
+    public static final String PREF_ALLOWLIST_FILE = "com.myriadmobile.library.lantern.allowlist_file";
+    public static final String PREF_ALLOWLIST_BLOOM_BITS = "com.myriadmobile.library.lantern.allowlist_bloom_bits";
+    public static final String PREF_ADAPTIVE_EXPIRY = "com.myriadmobile.library.lantern.adaptive_expiry";
+    public static final String PREF_RSSI_HISTORY_BEACONS = "com.myriadmobile.library.lantern.rssi_history_beacons";
+    public static final String PREF_RSSI_HISTORY_SAMPLES = "com.myriadmobile.library.lantern.rssi_history_samples";
+    public static final String PREF_VISIT_DIRECTORY = "com.myriadmobile.library.lantern.visit_directory";
+    public static final String PREF_EXPORT_DIRECTORY = "com.myriadmobile.library.lantern.export_directory";
+    public static final String PREF_EXPORT_URL = "com.myriadmobile.library.lantern.export_url";
+    public static final String PREF_RULES = "com.myriadmobile.library.lantern.rules";
+
+    /**
+     * Deliver events with the {@link LocalEventTransport}, only inside this process.
+     */
+    public static final int TRANSPORT_LOCAL = 0;
+
+    /**
+     * Deliver events as broadcasts limited to this app's package.
+     */
+    public static final int TRANSPORT_BROADCAST = 1;
+
+    private static ExecutorService streamExecutor;
+    private static BeaconStream beaconStream;
+    private static ScanMultiplexer scanMultiplexer;
+    private static volatile RssiHistory rssiHistory;
+    private static final Map<String, PendingIntent> ruleActions = new HashMap<String, PendingIntent>();
+    private static volatile MetadataCache<?> metadataCache;
 
     private Context context;
     private BeaconType beaconType;
@@ -31,6 +78,26 @@ public class Lantern {
     private int scanTime;
     private int fastScanInterval;
     private String[] uuidFilter;
+    private File captureDirectory;
+    private CalibrationProfile calibrationProfile;
+    private ProximityZones proximityZones;
+    private int eventTransport;
+    private ScanProfile foregroundProfile;
+    private ScanProfile backgroundProfile;
+    private ScanProfile idleProfile;
+    private File allowlistFile;
+    private int allowlistBloomBits;
+    private boolean adaptiveExpiry;
+    private int rssiHistoryBeacons;
+    private int rssiHistorySamples;
+    private File visitDirectory;
+    private File exportDirectory;
+    private URL exportUrl;
+    private List<BeaconRule> rules;
+    private Map<String, PendingIntent> actions;
+    private MetadataCache<?> cache;
+    private BeaconStream clientStream;
+    private ScanMultiplexer.Client client;
 
     private Lantern(Builder builder) {
         this.context = builder.context;
@@ -40,9 +107,67 @@ public class Lantern {
         this.scanTime = builder.scanTime;
         this.fastScanInterval = builder.fastScanInterval;
         this.uuidFilter = builder.uuidFilter;
+        this.captureDirectory = builder.captureDirectory;
+        this.calibrationProfile = builder.calibrationProfile;
+        this.proximityZones = builder.proximityZones;
+        this.eventTransport = builder.eventTransport;
+        this.foregroundProfile = builder.foregroundProfile;
+        this.backgroundProfile = builder.backgroundProfile;
+        this.idleProfile = builder.idleProfile;
+        this.allowlistFile = builder.allowlistFile;
+        this.allowlistBloomBits = builder.allowlistBloomBits;
+        this.adaptiveExpiry = builder.adaptiveExpiry;
+        this.rssiHistoryBeacons = builder.rssiHistoryBeacons;
+        this.rssiHistorySamples = builder.rssiHistorySamples;
+        this.visitDirectory = builder.visitDirectory;
+        this.exportDirectory = builder.exportDirectory;
+        this.exportUrl = builder.exportUrl;
+        this.rules = new ArrayList<BeaconRule>(builder.rules);
+        this.actions = new HashMap<String, PendingIntent>(builder.actions);
+        this.cache = builder.cache;
     }
 
+    /**
+     * Starts scanning with this instance's profiles and uuid filter. While other instances are
+     * scanning too, the service keeps running with all their requirements merged, see
+     * {@link ScanMultiplexer}, and the rest of this instance's settings are only used once it
+     * restarts. Otherwise the service is restarted with them.
+     */
     public void startScan() {
+        ScanMultiplexer multiplexer = getScanMultiplexer();
+        if (client != null) {
+            multiplexer.unregister(client);
+        }
+        boolean shared = multiplexer.size() != 0;
+        client = multiplexer.register(getForegroundProfile(), backgroundProfile, idleProfile, getClientStream());
+        Intent startService = new Intent(context, BeaconService.class);
+        if (!shared) {
+            savePreferences();
+            // So proximityToString names this app's zones too, not only the service's.
+            Distance.setZones(proximityZones);
+            context.stopService(startService);
+        }
+        context.startService(startService);
+    }
+
+    /**
+     * Stops this instance scanning. The service only stops once no other instance is scanning.
+     */
+    public void stopScan() {
+        ScanMultiplexer multiplexer = getScanMultiplexer();
+        if (client != null) {
+            multiplexer.unregister(client);
+            client = null;
+            // No expirations will come for the beacons that were active.
+            clientStream.clear();
+        }
+        if (multiplexer.size() == 0) {
+            Intent stopService = new Intent(context, BeaconService.class);
+            context.stopService(stopService);
+        }
+    }
+
+    private void savePreferences() {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
         prefs.edit().putInt(PREF_SCAN_INTERVAL, scanInterval).apply();
         prefs.edit().putInt(PREF_EXPIRATION_INTERVAL, expirationInterval).apply();
@@ -50,14 +175,147 @@ public class Lantern {
         prefs.edit().putInt(PREF_FAST_SCAN_INTERVAL, fastScanInterval).apply();
         //TODO Allow this to work for more than just a single String
         prefs.edit().putString(PREF_UUID_FILTER, null).apply();
-        Intent startService = new Intent(context, BeaconService.class);
-        context.stopService(startService);
-        context.startService(startService);
+        prefs.edit().putString(PREF_CAPTURE_DIRECTORY, captureDirectory != null ? captureDirectory.getAbsolutePath() : null).apply();
+        prefs.edit().putString(PREF_CALIBRATION_PROFILE, calibrationProfile != null ? calibrationProfile.encode() : null).apply();
+        prefs.edit().putString(PREF_PROXIMITY_ZONES, proximityZones.encode()).apply();
+        prefs.edit().putInt(PREF_EVENT_TRANSPORT, eventTransport).apply();
+        prefs.edit().putString(PREF_FOREGROUND_PROFILE, foregroundProfile != null ? foregroundProfile.encode() : null).apply();
+        prefs.edit().putString(PREF_BACKGROUND_PROFILE, backgroundProfile.encode()).apply();
+        prefs.edit().putString(PREF_IDLE_PROFILE, idleProfile.encode()).apply();
+        prefs.edit().putString(PREF_ALLOWLIST_FILE, allowlistFile != null ? allowlistFile.getAbsolutePath() : null).apply();
+        prefs.edit().putInt(PREF_ALLOWLIST_BLOOM_BITS, allowlistBloomBits).apply();
+        prefs.edit().putBoolean(PREF_ADAPTIVE_EXPIRY, adaptiveExpiry).apply();
+        prefs.edit().putInt(PREF_RSSI_HISTORY_BEACONS, rssiHistoryBeacons).apply();
+        prefs.edit().putInt(PREF_RSSI_HISTORY_SAMPLES, rssiHistorySamples).apply();
+        prefs.edit().putString(PREF_VISIT_DIRECTORY, visitDirectory != null ? visitDirectory.getAbsolutePath() : null).apply();
+        prefs.edit().putString(PREF_EXPORT_DIRECTORY, exportDirectory != null ? exportDirectory.getAbsolutePath() : null).apply();
+        prefs.edit().putString(PREF_EXPORT_URL, exportUrl != null ? exportUrl.toString() : null).apply();
+        StringBuilder encodedRules = new StringBuilder();
+        for (BeaconRule rule : rules) {
+            encodedRules.append(encodedRules.length() == 0 ? "" : "\n").append(rule.encode());
+        }
+        prefs.edit().putString(PREF_RULES, rules.isEmpty() ? null : encodedRules.toString()).apply();
+        setRuleActions(actions);
+        metadataCache = cache;
     }
 
-    public void stopScan() {
-        Intent stopService = new Intent(context, BeaconService.class);
-        context.stopService(stopService);
+    /**
+     * The foreground profile set on the builder, or else the default one with the builder's
+     * intervals and uuid filter.
+     */
+    private ScanProfile getForegroundProfile() {
+        if (foregroundProfile != null) {
+            return foregroundProfile;
+        }
+        return ScanProfile.FOREGROUND.buildUpon()
+                .withDutyCycle(scanTime, scanInterval, fastScanInterval)
+                .withUuidFilter(uuidFilter)
+                .build();
+    }
+
+    /**
+     * The changes to the active beacons that this instance's uuid filter lets through, as a
+     * Reactive Streams publisher, like {@link #events(BeaconStream.Overflow, int)} is for all of
+     * them. Only has events while this instance is scanning.
+     */
+    public Publisher<BeaconEvent> filteredEvents(BeaconStream.Overflow overflow, int bufferSize) {
+        return getClientStream().events(overflow, bufferSize);
+    }
+
+    private synchronized BeaconStream getClientStream() {
+        if (clientStream == null) {
+            clientStream = new BeaconStream(getStreamExecutor());
+        }
+        return clientStream;
+    }
+
+    /**
+     * The changes to the active beacons, as a Reactive Streams publisher. Subscribers are called
+     * on a background thread, only with as many events as they requested, and at most the
+     * buffer size of events waits for each of them. The service has to run in this process.
+     *
+     * @param overflow   What to do when a subscriber's buffer is full.
+     * @param bufferSize How many events, or beacons when conflating, can wait for a subscriber.
+     */
+    public static Publisher<BeaconEvent> events(BeaconStream.Overflow overflow, int bufferSize) {
+        return getBeaconStream().events(overflow, bufferSize);
+    }
+
+    /**
+     * The latest snapshot of the active beacons, as a Reactive Streams publisher. A subscriber
+     * that falls behind skips to the current snapshot instead of buffering.
+     */
+    public static Publisher<PresenceSnapshot> snapshots() {
+        return getBeaconStream().snapshots();
+    }
+
+    /**
+     * The stream the service publishes its tracker's changes to, shared by the whole process.
+     */
+    static synchronized BeaconStream getBeaconStream() {
+        if (beaconStream == null) {
+            beaconStream = new BeaconStream(getStreamExecutor());
+        }
+        return beaconStream;
+    }
+
+    /**
+     * The RSSI history of the running service, or null if it isn't running in this process or
+     * keeps no history.
+     */
+    public static RssiHistory getRssiHistory() {
+        return rssiHistory;
+    }
+
+    static void setRssiHistory(RssiHistory history) {
+        rssiHistory = history;
+    }
+
+    /**
+     * The intent to send when the rule fires, or null to only send the event.
+     */
+    static PendingIntent getRuleAction(String id) {
+        synchronized (ruleActions) {
+            return ruleActions.get(id);
+        }
+    }
+
+    private static void setRuleActions(Map<String, PendingIntent> actions) {
+        synchronized (ruleActions) {
+            ruleActions.clear();
+            ruleActions.putAll(actions);
+        }
+    }
+
+    /**
+     * The cache the service loads detected beacons' metadata into, or null.
+     */
+    static MetadataCache<?> getMetadataCache() {
+        return metadataCache;
+    }
+
+    /**
+     * Merges the requirements of every instance that is scanning, shared by the whole process.
+     */
+    static synchronized ScanMultiplexer getScanMultiplexer() {
+        if (scanMultiplexer == null) {
+            scanMultiplexer = new ScanMultiplexer();
+        }
+        return scanMultiplexer;
+    }
+
+    private static synchronized ExecutorService getStreamExecutor() {
+        if (streamExecutor == null) {
+            streamExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "lantern-stream");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return streamExecutor;
     }
 
 
@@ -69,6 +327,24 @@ public class Lantern {
         private int scanTime;
         private int fastScanInterval;
         private String[] uuidFilter;
+        private File captureDirectory;
+        private CalibrationProfile calibrationProfile;
+        private ProximityZones proximityZones;
+        private int eventTransport;
+        private ScanProfile foregroundProfile;
+        private ScanProfile backgroundProfile;
+        private ScanProfile idleProfile;
+        private File allowlistFile;
+        private int allowlistBloomBits;
+        private boolean adaptiveExpiry;
+        private int rssiHistoryBeacons;
+        private int rssiHistorySamples;
+        private File visitDirectory;
+        private File exportDirectory;
+        private URL exportUrl;
+        private List<BeaconRule> rules;
+        private Map<String, PendingIntent> actions;
+        private MetadataCache<?> cache;
 
         public Builder(Context context) {
             if (context == null) {
@@ -81,6 +357,24 @@ public class Lantern {
             scanTime = 5000;
             fastScanInterval = 5000;
             uuidFilter = null;
+            captureDirectory = null;
+            calibrationProfile = null;
+            proximityZones = ProximityZones.DEFAULT;
+            eventTransport = TRANSPORT_LOCAL;
+            foregroundProfile = null;
+            backgroundProfile = ScanProfile.BACKGROUND;
+            idleProfile = ScanProfile.IDLE;
+            allowlistFile = null;
+            allowlistBloomBits = BeaconAllowlist.DEFAULT_BLOOM_BITS_PER_BEACON;
+            adaptiveExpiry = true;
+            rssiHistoryBeacons = RssiHistory.DEFAULT_BEACONS;
+            rssiHistorySamples = RssiHistory.DEFAULT_SAMPLES_PER_BEACON;
+            visitDirectory = null;
+            exportDirectory = null;
+            exportUrl = null;
+            rules = new ArrayList<BeaconRule>();
+            actions = new HashMap<String, PendingIntent>();
+            cache = null;
         }
 
         public Lantern build() {
@@ -112,9 +406,197 @@ public class Lantern {
             return this;
         }
 
+        /**
+         * Only tracks beacons with one of these uuids, unless another instance scanning tracks
+         * more, and only those go to this instance's {@link Lantern#filteredEvents}. Null tracks
+         * all of them. Ignored when a foreground profile is set.
+         *
+         * @throws IllegalArgumentException From {@link #startScan()}, if a uuid is malformed.
+         */
         public Builder withUuidFilter(String[] uuidFilter) {
             this.uuidFilter = uuidFilter;
             return this;
         }
+
+        /**
+         * Records every advertisement received to binary capture files in the directory, which
+         * can be read with {@link CaptureReader} or replayed with {@link ReplayScanSource}.
+         * Recording is off when the directory is null.
+         */
+        public Builder withCaptureDirectory(File captureDirectory) {
+            this.captureDirectory = captureDirectory;
+            return this;
+        }
+
+        /**
+         * Estimates distances with the profile, such as one fitted for this device with a
+         * {@link CalibrationSession}. When null, the profile registered for the device model in
+         * {@link CalibrationProfiles} is used, or the default one.
+         */
+        public Builder withCalibrationProfile(CalibrationProfile calibrationProfile) {
+            this.calibrationProfile = calibrationProfile;
+            return this;
+        }
+
+        /**
+         * Reports the proximity of beacons in these zones instead of Immediate, Near and Far.
+         * Beacons only move between zones past the margins and after the minimum dwell time, and
+         * a beacon is only broadcast again when it does.
+         */
+        public Builder withProximityZones(ProximityZones proximityZones) {
+            if (proximityZones == null) {
+                throw new IllegalArgumentException("Zones cannot be null");
+            }
+            this.proximityZones = proximityZones;
+            return this;
+        }
+
+        /**
+         * How the service delivers its events, {@link #TRANSPORT_LOCAL} by default. Receivers
+         * register with {@link LocalEventTransport#registerReceiver} for local events, and with
+         * {@link Context#registerReceiver} for {@link #TRANSPORT_BROADCAST}.
+         */
+        public Builder withEventTransport(int eventTransport) {
+            if (eventTransport != TRANSPORT_LOCAL && eventTransport != TRANSPORT_BROADCAST) {
+                throw new IllegalArgumentException("Unknown event transport " + eventTransport);
+            }
+            this.eventTransport = eventTransport;
+            return this;
+        }
+
+        /**
+         * Scans with this profile while the app is visible, instead of with the intervals and
+         * uuid filter set on this builder.
+         */
+        public Builder withForegroundProfile(ScanProfile profile) {
+            this.foregroundProfile = profile;
+            return this;
+        }
+
+        /**
+         * Scans with this profile while none of the app's activities are visible.
+         */
+        public Builder withBackgroundProfile(ScanProfile profile) {
+            if (profile == null) {
+                throw new IllegalArgumentException("Profile cannot be null");
+            }
+            this.backgroundProfile = profile;
+            return this;
+        }
+
+        /**
+         * Scans with this profile while the app isn't visible and the screen is off.
+         */
+        public Builder withIdleProfile(ScanProfile profile) {
+            if (profile == null) {
+                throw new IllegalArgumentException("Profile cannot be null");
+            }
+            this.idleProfile = profile;
+            return this;
+        }
+
+        /**
+         * Only tracks the beacons in an allowlist file written by {@link BeaconAllowlist#write(File)},
+         * without a Bloom filter in front. All beacons are tracked when the file is null. The file
+         * is read off the main thread when the service starts, and no beacons are tracked until it
+         * is loaded, or at all if it can't be read.
+         */
+        public Builder withAllowlist(File allowlistFile) {
+            return withAllowlist(allowlistFile, BeaconAllowlist.DEFAULT_BLOOM_BITS_PER_BEACON);
+        }
+
+        /**
+         * Only tracks the beacons in an allowlist file written by {@link BeaconAllowlist#write(File)}.
+         *
+         * @param bloomBitsPerBeacon The size of the Bloom filter in front of the list, 0 for none.
+         */
+        public Builder withAllowlist(File allowlistFile, int bloomBitsPerBeacon) {
+            if (bloomBitsPerBeacon < 0 || bloomBitsPerBeacon > 64) {
+                throw new IllegalArgumentException("Bloom filter bits per beacon must be between 0 and 64");
+            }
+            this.allowlistFile = allowlistFile;
+            this.allowlistBloomBits = bloomBitsPerBeacon;
+            return this;
+        }
+
+        /**
+         * Whether every beacon expires after a time worked out from its own advertising interval
+         * and packet loss, see {@link AdaptiveExpiry}, which is the default. When off, every
+         * beacon expires after the expiration interval.
+         */
+        public Builder withAdaptiveExpiry(boolean adaptiveExpiry) {
+            this.adaptiveExpiry = adaptiveExpiry;
+            return this;
+        }
+
+        /**
+         * Sizes the history of RSSI samples kept, see {@link Lantern#getRssiHistory()}. By default
+         * the latest {@link RssiHistory#DEFAULT_SAMPLES_PER_BEACON} samples of
+         * {@link RssiHistory#DEFAULT_BEACONS} beacons are kept, 0 beacons keeps no history.
+         */
+        public Builder withRssiHistory(int beacons, int samplesPerBeacon) {
+            if (beacons < 0 || (beacons > 0 && samplesPerBeacon <= 0)) {
+                throw new IllegalArgumentException("Beacons cannot be negative, nor samples per beacon without any");
+            }
+            this.rssiHistoryBeacons = beacons;
+            this.rssiHistorySamples = samplesPerBeacon;
+            return this;
+        }
+
+        /**
+         * Puts the detections and expirations together into visits, written with their minute
+         * and hour rollups to files in the directory, see {@link VisitStore}. No visits are kept
+         * when the directory is null.
+         */
+        public Builder withVisitDirectory(File visitDirectory) {
+            this.visitDirectory = visitDirectory;
+            return this;
+        }
+
+        /**
+         * Queues the detections, moves and expirations in the directory and posts them to the url
+         * in compressed batches, see {@link ExportQueue} and {@link HttpExportUploader}. Nothing
+         * is exported when either is null.
+         */
+        public Builder withExport(File directory, URL url) {
+            this.exportDirectory = directory;
+            this.exportUrl = url;
+            return this;
+        }
+
+        /**
+         * Has the service evaluate the rule, and send {@link BeaconService#RULE_FIRED_ACTION}
+         * when it fires, see {@link RuleEngine}.
+         */
+        public Builder withRule(BeaconRule rule) {
+            return withRule(rule, null);
+        }
+
+        /**
+         * Has the service evaluate the rule, and send the intent as well as
+         * {@link BeaconService#RULE_FIRED_ACTION} when it fires. The intent gets the beacon and
+         * the rule's id in its extras, like the event. Intents are only kept in memory, so a
+         * service restarted without the app only sends the event.
+         */
+        public Builder withRule(BeaconRule rule, PendingIntent action) {
+            if (rule == null) {
+                throw new IllegalArgumentException("Rule cannot be null");
+            }
+            rules.add(rule);
+            if (action != null) {
+                actions.put(rule.getId(), action);
+            }
+            return this;
+        }
+
+        /**
+         * Has the service start loading the metadata of beacons as they are detected, and of
+         * whole regions as they are entered, see {@link MetadataCache}. Like rule intents, the
+         * cache is only kept in memory.
+         */
+        public Builder withMetadataCache(MetadataCache<?> cache) {
+            this.cache = cache;
+            return this;
+        }
     }
 }
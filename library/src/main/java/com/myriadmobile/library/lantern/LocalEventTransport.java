@@ -0,0 +1,172 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Delivers the events to receivers in this process, without going through the system. The
+ * intents never leave the process, so no other app can read them, and their extras aren't
+ * parceled on the way. Receivers are called on the main thread, like broadcast receivers.
+ * <p/>
+ * This is the transport the service uses unless
+ * {@link Lantern.Builder#withEventTransport(int)} says otherwise, and the service has to run in
+ * the same process as the receivers.
+ */
+public class LocalEventTransport implements EventTransport {
+
+    private static final int MSG_DELIVER = 1;
+
+    private static LocalEventTransport instance;
+
+    private final Context context;
+    private final Handler handler;
+
+    /**
+     * The registrations for each action. Guarded by itself.
+     */
+    private final HashMap<String, ArrayList<Registration>> actions = new HashMap<String, ArrayList<Registration>>();
+
+    public static synchronized LocalEventTransport getInstance(Context context) {
+        if (instance == null) {
+            instance = new LocalEventTransport(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private LocalEventTransport(Context context) {
+        this.context = context;
+        handler = new Handler(Looper.getMainLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MSG_DELIVER) {
+                    deliver((Delivery) msg.obj);
+                } else {
+                    super.handleMessage(msg);
+                }
+            }
+        };
+    }
+
+    /**
+     * Calls the receiver for every event matching the filter, until it is unregistered.
+     */
+    public void registerReceiver(BroadcastReceiver receiver, IntentFilter filter) {
+        Registration registration = new Registration(receiver, filter);
+        synchronized (actions) {
+            for (int i = 0; i < filter.countActions(); i++) {
+                String action = filter.getAction(i);
+                ArrayList<Registration> registrations = actions.get(action);
+                if (registrations == null) {
+                    registrations = new ArrayList<Registration>(1);
+                    actions.put(action, registrations);
+                }
+                registrations.add(registration);
+            }
+        }
+    }
+
+    /**
+     * Stops calling the receiver, for all of the filters it was registered with. Events already
+     * on their way to it are dropped.
+     */
+    public void unregisterReceiver(BroadcastReceiver receiver) {
+        synchronized (actions) {
+            for (ArrayList<Registration> registrations : actions.values()) {
+                for (int i = registrations.size() - 1; i >= 0; i--) {
+                    Registration registration = registrations.get(i);
+                    if (registration.receiver == receiver) {
+                        registration.unregistered = true;
+                        registrations.remove(i);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void send(Intent intent) {
+        List<Registration> matches = null;
+        synchronized (actions) {
+            ArrayList<Registration> registrations = actions.get(intent.getAction());
+            if (registrations == null) {
+                return;
+            }
+            for (int i = 0; i < registrations.size(); i++) {
+                Registration registration = registrations.get(i);
+                if (registration.filter.match(intent.getAction(), intent.getType(), intent.getScheme(),
+                        intent.getData(), intent.getCategories(), "LocalEventTransport") >= 0) {
+                    if (matches == null) {
+                        matches = new ArrayList<Registration>(registrations.size());
+                    }
+                    matches.add(registration);
+                }
+            }
+        }
+        if (matches != null) {
+            handler.sendMessage(handler.obtainMessage(MSG_DELIVER, new Delivery(intent, matches)));
+        }
+    }
+
+    private void deliver(Delivery delivery) {
+        for (int i = 0; i < delivery.registrations.size(); i++) {
+            Registration registration = delivery.registrations.get(i);
+            if (!registration.unregistered) {
+                registration.receiver.onReceive(context, delivery.intent);
+            }
+        }
+    }
+
+    private static class Registration {
+        final BroadcastReceiver receiver;
+        final IntentFilter filter;
+        volatile boolean unregistered;
+
+        Registration(BroadcastReceiver receiver, IntentFilter filter) {
+            this.receiver = receiver;
+            this.filter = filter;
+        }
+    }
+
+    private static class Delivery {
+        final Intent intent;
+        final List<Registration> registrations;
+
+        Delivery(Intent intent, List<Registration> registrations) {
+            this.intent = intent;
+            this.registrations = registrations;
+        }
+    }
+}
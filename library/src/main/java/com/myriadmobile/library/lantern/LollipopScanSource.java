@@ -0,0 +1,179 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Myriad Mobile
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.myriadmobile.library.lantern;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Scans with the {@link BluetoothLeScanner} added in Lollipop.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class LollipopScanSource implements ScanSource {
+
+    /**
+     * The company id iBeacons advertise their manufacturer data with.
+     */
+    private static final int APPLE_COMPANY_ID = 0x004c;
+
+    private final BluetoothAdapter bluetoothAdapter;
+    private final ScanSettings settings;
+    private final List<ScanFilter> filters;
+    private BluetoothLeScanner scanner;
+    private Listener listener;
+
+    private final ScanCallback scanCallback = new ScanCallback() {
+        /**
+         * Callback when a BLE advertisement has been found.
+         *
+         * @param callbackType Determines how this callback was triggered. Currently could only be
+         *                     {@link android.bluetooth.le.ScanSettings#CALLBACK_TYPE_ALL_MATCHES}.
+         * @param result       A Bluetooth LE scan result.
+         */
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            deliver(result);
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            for (ScanResult result : results) {
+                deliver(result);
+            }
+        }
+
+        /**
+         * Callback when scan could not be started.
+         *
+         * @param errorCode Error code (one of SCAN_FAILED_*) for scan failure.
+         */
+        @Override
+        public void onScanFailed(int errorCode) {
+            Log.e("auto", "LollipopScanSource > onScanFailed() > Error " + errorCode);
+            listener.onScanFailed(errorCode);
+        }
+    };
+
+    /**
+     * @param bluetoothAdapter The adapter to get the scanner from.
+     * @param settings         The settings every scan is started with.
+     * @param filters          The filters every scan is started with, may be null.
+     */
+    public LollipopScanSource(BluetoothAdapter bluetoothAdapter, ScanSettings settings, List<ScanFilter> filters) {
+        this.bluetoothAdapter = bluetoothAdapter;
+        this.settings = settings;
+        this.filters = filters;
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public boolean startScan() {
+        // The scanner is only available while bluetooth is on, so get it fresh every time.
+        scanner = bluetoothAdapter.getBluetoothLeScanner();
+        if (scanner == null) {
+            return false;
+        }
+        try {
+            scanner.startScan(filters, settings, scanCallback);
+        } catch (IllegalStateException e) {
+            Log.e("auto", "LollipopScanSource > startScan() > Bluetooth is not on", e);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void stopScan() {
+        if (scanner != null) {
+            try {
+                if (settings.getReportDelayMillis() > 0) {
+                    // Hand over what the chip batched before the window closes.
+                    scanner.flushPendingScanResults(scanCallback);
+                }
+                scanner.stopScan(scanCallback);
+            } catch (IllegalStateException e) {
+                // Bluetooth was turned off, so the scan has already stopped.
+            }
+        }
+    }
+
+    /**
+     * Filters that only let through iBeacons with one of the uuids, so the chip can drop
+     * everything else without waking the app.
+     *
+     * @return The filters, or null to let everything through if there are no uuids.
+     */
+    public static List<ScanFilter> uuidFilters(String[] uuids) {
+        if (uuids == null || uuids.length == 0) {
+            return null;
+        }
+        List<ScanFilter> filters = new ArrayList<ScanFilter>(uuids.length);
+        for (String uuid : uuids) {
+            long[] bits = IBeaconFrame.parseUuid(uuid);
+            // Manufacturer data: 0x02 0x15, uuid, major, minor, tx power. Only the first two
+            // bytes and the uuid have to match.
+            byte[] data = new byte[23];
+            byte[] mask = new byte[23];
+            data[0] = 0x02;
+            data[1] = 0x15;
+            for (int i = 0; i < 8; i++) {
+                data[2 + i] = (byte) (bits[0] >>> (56 - i * 8));
+                data[10 + i] = (byte) (bits[1] >>> (56 - i * 8));
+            }
+            for (int i = 0; i < 18; i++) {
+                mask[i] = (byte) 0xff;
+            }
+            filters.add(new ScanFilter.Builder()
+                    .setManufacturerData(APPLE_COMPANY_ID, data, mask)
+                    .build());
+        }
+        return filters;
+    }
+
+    private void deliver(ScanResult result) {
+        ScanRecord record = result.getScanRecord();
+        if (record == null) {
+            return;
+        }
+        listener.onAdvertisement(record.getBytes(), result.getRssi(),
+                result.getDevice() != null ? result.getDevice().getAddress() : null,
+                result.getTimestampNanos());
+    }
+}